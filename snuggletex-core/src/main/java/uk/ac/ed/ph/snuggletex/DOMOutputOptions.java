@@ -13,6 +13,9 @@ import java.util.Properties;
 /**
  * This class is used to specify how you want DOM trees to be built when calling relevant methods
  * in {@link SnuggleSession} (e.g. {@link SnuggleSession#buildDOMSubtree(org.w3c.dom.Element)}
+ * <p>
+ * Instances of this class (and its subclasses) can be {@link #freeze()}-ed once configured,
+ * after which they are immutable and can be shared between threads.
  *
  * @author  David McKain
  * @version $Revision$
@@ -183,6 +186,12 @@ public class DOMOutputOptions implements Cloneable {
      */
     private LinkResolver linkResolver;
     
+    /**
+     * Set once {@link #freeze()} has been called, after which these options can no longer be
+     * changed.
+     */
+    private boolean frozen;
+    
     public DOMOutputOptions() {
         this.errorOutputOptions = ErrorOutputOptions.NO_OUTPUT;
         this.domPostProcessors = null;
@@ -198,6 +207,58 @@ public class DOMOutputOptions implements Cloneable {
         this.applyingFirefox3SemanticsWorkaround = false;
         this.mathVariantMapping = false;
         this.linkResolver = null;
+        this.frozen = false;
+    }
+    
+    /**
+     * Freezes these options so that they can no longer be changed. Calling any setter
+     * afterwards will result in an {@link IllegalStateException}.
+     * <p>
+     * Frozen options may be built once (e.g. when your application starts up) and then shared
+     * between threads, and are used as-is by {@link SnuggleEngine} and {@link SnuggleSession}
+     * rather than being cloned. Any {@link DOMPostProcessor}s and {@link LinkResolver} you
+     * have set must also be safe to share between threads, and you must not modify any of the
+     * arrays or {@link Properties} returned by the getters.
+     * <p>
+     * Call {@link #clone()} if you want a mutable copy of frozen options.
+     * 
+     * @since 1.3.1
+     */
+    public void freeze() {
+        if (!frozen) {
+            /* Take our own copies of any arrays that the caller might still have hold of */
+            if (domPostProcessors!=null) {
+                domPostProcessors = domPostProcessors.clone();
+            }
+            if (inlineCSSProperties!=null) {
+                Properties inlineCSSPropertiesCopy = new Properties();
+                inlineCSSPropertiesCopy.putAll(inlineCSSProperties);
+                inlineCSSProperties = inlineCSSPropertiesCopy;
+            }
+            frozen = true;
+        }
+    }
+    
+    /**
+     * Returns whether these options have been frozen via {@link #freeze()}.
+     * 
+     * @since 1.3.1
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+    
+    /**
+     * Subclasses should call this at the start of each setter.
+     * 
+     * @throws IllegalStateException if these options have been frozen.
+     * 
+     * @since 1.3.1
+     */
+    protected final void ensureNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("These options have been frozen and can no longer be changed");
+        }
     }
     
     /** 
@@ -215,6 +276,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param errorOutputOptions new {@link ErrorOutputOptions}, which must not be null.
      */
     public void setErrorOutputOptions(ErrorOutputOptions errorOutputOptions) {
+        ensureNotFrozen();
         if (errorOutputOptions==null) {
             throw new IllegalArgumentException("ErrorOutputOptions must not be null");
         }
@@ -239,6 +301,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param inliningCSS true to inline CSS, false otherwise
      */
     public void setInliningCSS(boolean inliningCSS) {
+        ensureNotFrozen();
         this.inliningCSS = inliningCSS;
     }
     
@@ -259,6 +322,7 @@ public class DOMOutputOptions implements Cloneable {
      *   should be null if you want to use the SnuggleTeX defaults.
      */
     public void setInlineCSSProperties(Properties inlineCSSProperties) {
+        ensureNotFrozen();
         this.inlineCSSProperties = inlineCSSProperties;
     }
     
@@ -276,6 +340,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param prefixingXHTML true to prefix XHTML elements, false otherwise.
      */
     public void setPrefixingXHTML(boolean prefixingXHTML) {
+        ensureNotFrozen();
         this.prefixingXHTML = prefixingXHTML;
     }
     
@@ -294,6 +359,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param xhtmlPrefix desired prefix, which must be non-null and a valid XML NCName.
      */
     public void setXHTMLPrefix(String xhtmlPrefix) {
+        ensureNotFrozen();
         if (!XMLUtilities.isXMLNCName(xhtmlPrefix)) {
             throw new IllegalArgumentException("XHTML prefix must be a valid NCName");
         }
@@ -314,6 +380,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param prefixingMathML true to prefix MathML elements, false otherwise.
      */
     public void setPrefixingMathML(boolean prefixingMathML) {
+        ensureNotFrozen();
         this.prefixingMathML = prefixingMathML;
     }
     
@@ -332,6 +399,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param mathMLPrefix desired prefix, which must be non-null and a valid XML NCName.
      */
     public void setMathMLPrefix(String mathMLPrefix) {
+        ensureNotFrozen();
         if (!XMLUtilities.isXMLNCName(mathMLPrefix)) {
             throw new IllegalArgumentException("MathML prefix must be a valid NCName");
         }
@@ -352,6 +420,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param prefixingSnuggleXML true to prefix custom SnuggleTeX XML elements, false otherwise.
      */
     public void setPrefixingSnuggleXML(boolean prefixingSnuggleXML) {
+        ensureNotFrozen();
         this.prefixingSnuggleXML = prefixingSnuggleXML;
     }
     
@@ -371,6 +440,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param snuggleXMLPrefix desired prefix, which must be non-null and a valid XML NCName.
      */
     public void setSnuggleXMLPrefix(String snuggleXMLPrefix) {
+        ensureNotFrozen();
         if (!XMLUtilities.isXMLNCName(snuggleXMLPrefix)) {
             throw new IllegalArgumentException("SnuggleTeX XML prefix must be a valid NCName");
         }
@@ -394,6 +464,7 @@ public class DOMOutputOptions implements Cloneable {
      *   otherwise.
      */
     public void setAddingMathSourceAnnotations(boolean addingMathSourceAnnotations) {
+        ensureNotFrozen();
         this.addingMathSourceAnnotations = addingMathSourceAnnotations;
     }
 
@@ -407,6 +478,7 @@ public class DOMOutputOptions implements Cloneable {
     /** @deprecated Use {@link #setAddingMathSourceAnnotations(boolean)} instead */
     @Deprecated
     public void setAddingMathAnnotations(boolean addingMathSourceAnnotations) {
+        ensureNotFrozen();
         setAddingMathSourceAnnotations(addingMathSourceAnnotations);
     }
     
@@ -452,6 +524,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param applyingFirefox3SemanticsWorkaround true to applying the workaround described above when, false otherwise.
      */
     public void setApplyingFirefox3SemanticsWorkaround(boolean applyingFirefox3SemanticsWorkaround) {
+        ensureNotFrozen();
         this.applyingFirefox3SemanticsWorkaround = applyingFirefox3SemanticsWorkaround;
     }
 
@@ -482,6 +555,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param mathVariantMapping set true to perform mappings, false otherwise.
      */
     public void setMathVariantMapping(boolean mathVariantMapping) {
+        ensureNotFrozen();
         this.mathVariantMapping = mathVariantMapping;
     }
     
@@ -525,6 +599,7 @@ public class DOMOutputOptions implements Cloneable {
      * @param domPostProcessors array of {@link DOMPostProcessor} to use, which may be empty.
      */
     public void setDOMPostProcessors(DOMPostProcessor... domPostProcessors) {
+        ensureNotFrozen();
         this.domPostProcessors = domPostProcessors;
     }
     
@@ -538,6 +613,7 @@ public class DOMOutputOptions implements Cloneable {
      *   {@link DOMPostProcessor}s, which may be empty.
      */
     public void addDOMPostProcessors(DOMPostProcessor... domPostProcessors) {
+        ensureNotFrozen();
         this.domPostProcessors = ObjectUtilities.concat(this.domPostProcessors, domPostProcessors, DOMPostProcessor.class);
     }
 
@@ -558,14 +634,21 @@ public class DOMOutputOptions implements Cloneable {
      *   want links left as-is.
      */
     public void setLinkResolver(LinkResolver linkResolver) {
+        ensureNotFrozen();
         this.linkResolver = linkResolver;
     }
 
 
+    /**
+     * Returns a copy of these options, which will be mutable even if these options have
+     * been frozen.
+     */
     @Override
     public Object clone() {
         try {
-            return super.clone();
+            DOMOutputOptions result = (DOMOutputOptions) super.clone();
+            result.frozen = false;
+            return result;
         }
         catch (CloneNotSupportedException e) {
             throw new SnuggleLogicException(e);
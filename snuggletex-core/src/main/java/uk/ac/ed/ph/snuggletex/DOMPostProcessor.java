@@ -22,8 +22,13 @@ import org.w3c.dom.Document;
  *     may be used here as well.
  *   </li>
  * </ul>
+ * <p>
+ * Post-processors that can work on a stream of SAX events should implement
+ * {@link StreamingDOMPostProcessor}, which allows them to be chained together without
+ * creating intermediate DOMs.
  * 
  * @see DownConvertingPostProcessor
+ * @see StreamingDOMPostProcessor
  *
  * @author  David McKain
  * @version $Revision$
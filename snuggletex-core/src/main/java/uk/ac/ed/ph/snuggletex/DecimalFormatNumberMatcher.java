@@ -19,6 +19,12 @@ import java.util.Locale;
  * <p>
  * You will probably want your {@link DecimalFormat} to have grouping turned off, otherwise
  * something like <tt>1,2</tt> (in UK locale) would be parsed as a number 12.
+ * <p>
+ * An instance of this class is <strong>not</strong> safe to use from multiple Threads at once,
+ * as {@link DecimalFormat} is not. Consider using {@link LocaleNumberMatcher} instead, which
+ * matches the same numbers, is thread-safe and is considerably faster.
+ * 
+ * @see LocaleNumberMatcher
  * 
  * @since 1.3.0
  *
@@ -6,24 +6,79 @@
 package uk.ac.ed.ph.snuggletex;
 
 import uk.ac.ed.ph.snuggletex.utilities.MathMLDownConverter;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLPostProcessor;
 import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 
 /**
  * Trivial implementation of {@link DOMPostProcessor} that hooks into the
  * {@link MathMLDownConverter}. See {@link MathMLDownConverter} for information on what
  * this does.
+ * <p>
+ * As of SnuggleTeX 1.3.1, this is also a {@link StreamingDOMPostProcessor} so can be
+ * chained with other post-processors without creating intermediate DOMs. In this case,
+ * each MathML island is down-converted separately.
  *
  * @author  David McKain
  * @version $Revision$
  */
-public final class DownConvertingPostProcessor implements DOMPostProcessor {
+public final class DownConvertingPostProcessor implements StreamingDOMPostProcessor {
     
     public Document postProcessDOM(Document workDocument, DOMOutputOptions options,
             StylesheetManager stylesheetManager) {
         MathMLDownConverter downConverter = new MathMLDownConverter(stylesheetManager, options);
         return downConverter.downConvertDOM(workDocument);
     }
+    
+    public ContentHandler createPostProcessingHandler(ContentHandler resultHandler,
+            DOMOutputOptions options, StylesheetManager stylesheetManager) {
+        /* Down-conversion only affects MathML islands, so we stream everything else straight
+         * through and down-convert each island in turn.
+         */
+        MathMLDownConverter downConverter = new MathMLDownConverter(stylesheetManager, options);
+        return new IslandDownConverter(downConverter)
+            .createPostProcessingHandler(resultHandler, options, stylesheetManager);
+    }
+    
+    /**
+     * Trivial {@link MathMLPostProcessor} that down-converts each MathML island in turn, falling
+     * back to the XSLT (reusing the same {@link Transformer} each time) for islands that can't
+     * be down-converted natively.
+     */
+    private static final class IslandDownConverter extends MathMLPostProcessor {
+        
+        private final MathMLDownConverter downConverter;
+        private Transformer downConvertingTransformer;
+        
+        public IslandDownConverter(final MathMLDownConverter downConverter) {
+            this.downConverter = downConverter;
+        }
+        
+        @Override
+        protected void handleMathMLIsland(Element inputMathIsland, Document outputDocument,
+                Node outputParentNode, int mathmlCounter) {
+            if (downConverter.downConvertMathIslandNatively(inputMathIsland, outputParentNode)) {
+                return;
+            }
+            if (downConvertingTransformer==null) {
+                downConvertingTransformer = downConverter.createDownConvertingTransformer();
+            }
+            try {
+                downConvertingTransformer.transform(new DOMSource(inputMathIsland), new DOMResult(outputParentNode));
+            }
+            catch (TransformerException e) {
+                throw new SnuggleRuntimeException("Unexpected Exception down-converting MathML island", e);
+            }
+        }
+    }
 
 }
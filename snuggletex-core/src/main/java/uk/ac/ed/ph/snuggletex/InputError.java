@@ -34,6 +34,12 @@ public final class InputError {
      */
     private final Object[] arguments;
     
+    /** Formatted error message, built on demand */
+    private String message;
+    
+    /** Description of where the error occurred, built on demand */
+    private String sourceContext;
+    
     private String stringRepresentation;
     
     public InputError(final ErrorCode errorCode, final FrozenSlice slice, final Object... arguments) {
@@ -64,6 +70,38 @@ public final class InputError {
         return arguments;
     }
 
+    /**
+     * Returns the readable error message for this error, built from the {@link ErrorCode} and
+     * arguments by {@link MessageFormatter}.
+     * <p>
+     * This is only built when first asked for. (Instances may be shared between threads via
+     * {@link SnuggleSnapshot}s, in which case the message might occasionally be built more than
+     * once, which is harmless.)
+     * 
+     * @since 1.3.1
+     */
+    public String getMessage() {
+        if (message==null) {
+            message = MessageFormatter.getErrorMessage(errorCode, arguments);
+        }
+        return message;
+    }
+    
+    /**
+     * Returns a readable description of where this error occurred in the input, or null if
+     * the error has no {@link FrozenSlice}.
+     * <p>
+     * Like {@link #getMessage()}, this is only built when first asked for.
+     * 
+     * @since 1.3.1
+     */
+    public String getSourceContext() {
+        if (sourceContext==null && slice!=null) {
+            sourceContext = MessageFormatter.formatSliceContext(slice);
+        }
+        return sourceContext;
+    }
+
     @Override
     public String toString() {
         if (stringRepresentation==null) {
@@ -0,0 +1,230 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Implementation of {@link NumberMatcher} that matches the same numbers as a
+ * {@link DecimalFormatNumberMatcher} created for the same {@link Locale}, but which scans the
+ * input in place without creating any Objects, and which is immutable and therefore safe to
+ * share between Threads (e.g. within a {@link SessionConfiguration} used by many sessions).
+ * <p>
+ * This works by taking the relevant parts of the {@link DecimalFormatSymbols} for the
+ * {@link Locale} (digits, decimal separator, exponent separator and minus sign) and the
+ * prefixes and suffixes of the default {@link DecimalFormat} pattern, and then following the
+ * same rules as {@link DecimalFormat#parse(String, java.text.ParsePosition)} with grouping
+ * turned off. In particular:
+ * <ul>
+ *   <li>Any Unicode decimal digits are accepted, as well as the {@link Locale}'s own digits.</li>
+ *   <li>Numbers may end in an exponent, e.g. <tt>1E5</tt>.</li>
+ *   <li>
+ *     Negative numbers are not matched, except for "negative zero" (e.g. <tt>-0</tt>), which
+ *     {@link DecimalFormat} parses as zero.
+ *   </li>
+ * </ul>
+ * There are two (deliberate) differences from {@link DecimalFormatNumberMatcher}:
+ * <ul>
+ *   <li>
+ *     {@link DecimalFormatNumberMatcher} only reads ahead a few characters at a time, so can
+ *     miss an exponent that straddles the point where it stopped reading. This always
+ *     considers the whole exponent.
+ *   </li>
+ *   <li>
+ *     The {@link Locale}'s NaN and infinity symbols are not matched, whereas
+ *     {@link DecimalFormatNumberMatcher} fails with a {@link ClassCastException} on them.
+ *   </li>
+ * </ul>
+ *
+ * @see DecimalFormatNumberMatcher
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class LocaleNumberMatcher implements NumberMatcher {
+
+    private final Locale locale;
+    private final char zeroDigit;
+    private final char decimalSeparator;
+    private final char minusSign;
+    private final String exponentSeparator;
+    private final String positivePrefix;
+    private final String positiveSuffix;
+    private final String negativePrefix;
+    private final String negativeSuffix;
+
+    public LocaleNumberMatcher() {
+        this(Locale.getDefault());
+    }
+
+    public LocaleNumberMatcher(final Locale locale) {
+        /* (We set up a DecimalFormat in exactly the same way as DecimalFormatNumberMatcher
+         * to get the prefixes and suffixes) */
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols(locale);
+        DecimalFormat decimalFormat = new DecimalFormat();
+        decimalFormat.setDecimalFormatSymbols(symbols);
+        this.locale = locale;
+        this.zeroDigit = symbols.getZeroDigit();
+        this.decimalSeparator = symbols.getDecimalSeparator();
+        this.minusSign = symbols.getMinusSign();
+        this.exponentSeparator = symbols.getExponentSeparator();
+        this.positivePrefix = decimalFormat.getPositivePrefix();
+        this.positiveSuffix = decimalFormat.getPositiveSuffix();
+        this.negativePrefix = decimalFormat.getNegativePrefix();
+        this.negativeSuffix = decimalFormat.getNegativeSuffix();
+    }
+
+    public Locale getLocale() {
+        return locale;
+    }
+
+    //-------------------------------------------------------------------
+
+    public int getNumberEnd(final InputContext input, final int startIndex) {
+        /* Work out which of the prefixes we have, preferring the longer if both match */
+        boolean positive = matchesAt(input, startIndex, positivePrefix);
+        boolean negative = matchesAt(input, startIndex, negativePrefix);
+        if (positive && negative) {
+            if (positivePrefix.length() > negativePrefix.length()) {
+                negative = false;
+            }
+            else if (positivePrefix.length() < negativePrefix.length()) {
+                positive = false;
+            }
+        }
+        int index;
+        if (positive) {
+            index = startIndex + positivePrefix.length();
+        }
+        else if (negative) {
+            index = startIndex + negativePrefix.length();
+        }
+        else {
+            return -1;
+        }
+
+        /* Read mantissa digits, with at most one decimal separator, followed by an optional
+         * exponent */
+        boolean sawDigit = false;
+        boolean sawNonZeroDigit = false;
+        boolean sawDecimalSeparator = false;
+        int c;
+        while ((c = input.charAt(index))!=-1) {
+            int digit = digitValue(c);
+            if (digit!=-1) {
+                sawDigit = true;
+                sawNonZeroDigit |= digit!=0;
+                index++;
+            }
+            else if (c==decimalSeparator) {
+                if (sawDecimalSeparator) {
+                    break;
+                }
+                sawDecimalSeparator = true;
+                index++;
+            }
+            else {
+                if (matchesAt(input, index, exponentSeparator)) {
+                    int exponentEnd = getExponentEnd(input, index + exponentSeparator.length());
+                    if (exponentEnd!=-1) {
+                        index = exponentEnd;
+                    }
+                }
+                break;
+            }
+        }
+        if (!sawDigit) {
+            return -1;
+        }
+
+        /* Check suffixes, again preferring the longer if both match */
+        if (positive) {
+            positive = matchesAt(input, index, positiveSuffix);
+        }
+        if (negative) {
+            negative = matchesAt(input, index, negativeSuffix);
+        }
+        if (positive && negative) {
+            if (positiveSuffix.length() > negativeSuffix.length()) {
+                negative = false;
+            }
+            else if (positiveSuffix.length() < negativeSuffix.length()) {
+                positive = false;
+            }
+        }
+        if (positive==negative) {
+            return -1;
+        }
+        if (negative && sawNonZeroDigit) {
+            /* Negative numbers are treated separately (but negative zero is just zero) */
+            return -1;
+        }
+        return index + (positive ? positiveSuffix.length() : negativeSuffix.length());
+    }
+
+    /**
+     * Reads an exponent, which is an optional minus sign followed by digits, returning the
+     * index after it, or -1 if there is no exponent here or if it is too big to fit in a long.
+     */
+    private int getExponentEnd(final InputContext input, final int startIndex) {
+        int index = startIndex;
+        boolean negative = false;
+        if (input.charAt(index)==minusSign) {
+            negative = true;
+            index++;
+        }
+        /* Accumulate (negated) magnitude, so that we can detect overflow without running
+         * out of room for Long.MIN_VALUE */
+        long negatedMagnitude = 0;
+        boolean sawDigit = false;
+        boolean overflowed = false;
+        int digit;
+        while ((digit = digitValue(input.charAt(index)))!=-1) {
+            sawDigit = true;
+            if (negatedMagnitude < (Long.MIN_VALUE + digit) / 10) {
+                overflowed = true;
+            }
+            else {
+                negatedMagnitude = negatedMagnitude * 10 - digit;
+            }
+            index++;
+        }
+        if (!sawDigit || overflowed || (!negative && negatedMagnitude==Long.MIN_VALUE)) {
+            return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the value of the given character if it is a digit, otherwise -1.
+     */
+    private int digitValue(final int c) {
+        if (c==-1) {
+            return -1;
+        }
+        int digit = c - zeroDigit;
+        if (digit<0 || digit>9) {
+            digit = Character.digit((char) c, 10);
+        }
+        return digit;
+    }
+
+    /**
+     * Tests whether the given String occurs at the given index, without creating any Objects.
+     */
+    private static boolean matchesAt(final InputContext input, final int index, final String s) {
+        for (int i=0, length=s.length(); i<length; i++) {
+            if (input.charAt(index + i)!=s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -9,10 +9,15 @@ package uk.ac.ed.ph.snuggletex;
  * Interface for classes which identify numbers in Math mode input.
  * <p>
  * The default implementation is {@link SimpleNumberMatcher}, which will probably be fine
- * for Western use. Use {@link DecimalFormatNumberMatcher} if you need something more complex,
- * or create your own implementation if required.
+ * for Western use. Use {@link LocaleNumberMatcher} (or {@link DecimalFormatNumberMatcher})
+ * if you need something more complex, or create your own implementation if required.
+ * <p>
+ * Implementations should ideally be safe to use from multiple Threads at once, as a
+ * {@link SessionConfiguration} (and hence its {@link NumberMatcher}) is often shared by
+ * many sessions.
  * 
  * @see SimpleNumberMatcher
+ * @see LocaleNumberMatcher
  * @see DecimalFormatNumberMatcher
  * 
  * @since 1.3.0
@@ -17,6 +17,13 @@ import uk.ac.ed.ph.snuggletex.internal.util.ObjectUtilities;
 public final class SessionConfiguration implements Cloneable {
     
     public static final int DEFAULT_EXPANSION_LIMIT = 100;
+    
+    /**
+     * Default value for {@link #getErrorLimit()}, which records all errors.
+     * 
+     * @since 1.3.1
+     */
+    public static final int DEFAULT_ERROR_LIMIT = 0;
    
     /** Set to true to fail immediately on error. Default is to record error but keep going */
     private boolean failingFast;
@@ -35,6 +42,19 @@ public final class SessionConfiguration implements Cloneable {
      */
     private int expansionLimit;
     
+    /**
+     * Maximum number of {@link InputError}s that will be recorded by the {@link SnuggleSession}.
+     * Any further errors are simply counted, and only have their error codes included in any
+     * DOM output. Setting this stops badly broken input from spending most of its time
+     * building error messages.
+     * <p>
+     * The default value is {@link #DEFAULT_ERROR_LIMIT}, which records all errors.
+     * Set this to a positive value to cap the number of errors recorded.
+     * 
+     * @since 1.3.1
+     */
+    private int errorLimit;
+    
     /**
      * Matcher used to identify numbers in math mode input.
      */
@@ -43,6 +63,7 @@ public final class SessionConfiguration implements Cloneable {
     public SessionConfiguration() {
         this.failingFast = false;
         this.expansionLimit = DEFAULT_EXPANSION_LIMIT;
+        this.errorLimit = DEFAULT_ERROR_LIMIT;
         this.numberMatcher = null;
     }
     
@@ -100,6 +121,37 @@ public final class SessionConfiguration implements Cloneable {
     }
     
     
+    /**
+     * Gets the maximum number of {@link InputError}s that will be recorded by the
+     * {@link SnuggleSession}. Any further errors are simply counted (see
+     * {@link SnuggleSession#getOverflowErrorCount()}) and only have their error codes included
+     * in any DOM output.
+     * <p>
+     * The default value is {@link #DEFAULT_ERROR_LIMIT}, which records all errors.
+     * Set this to a positive value to cap the number of errors recorded.
+     * 
+     * @since 1.3.1
+     */
+    public int getErrorLimit() {
+        return errorLimit;
+    }
+    
+    /**
+     * Sets the maximum number of {@link InputError}s that will be recorded by the
+     * {@link SnuggleSession}. Any further errors are simply counted (see
+     * {@link SnuggleSession#getOverflowErrorCount()}) and only have their error codes included
+     * in any DOM output.
+     * <p>
+     * The default value is {@link #DEFAULT_ERROR_LIMIT}, which records all errors.
+     * Set this to a positive value to cap the number of errors recorded.
+     * 
+     * @since 1.3.1
+     */
+    public void setErrorLimit(int errorLimit) {
+        this.errorLimit = errorLimit;
+    }
+    
+    
     /**
      * Gets the {@link NumberMatcher} used to identify numbers in Math mode input.
      * Returns null if a default {@link SimpleNumberMatcher} is being used.
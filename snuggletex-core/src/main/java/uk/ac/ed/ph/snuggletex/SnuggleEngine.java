@@ -8,6 +8,7 @@ package uk.ac.ed.ph.snuggletex;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinCommand;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinEnvironment;
 import uk.ac.ed.ph.snuggletex.definitions.CorePackageDefinitions;
+import uk.ac.ed.ph.snuggletex.internal.WebPageChrome;
 import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
 import uk.ac.ed.ph.snuggletex.utilities.DefaultTransformerFactoryChooser;
 import uk.ac.ed.ph.snuggletex.utilities.SimpleStylesheetCache;
@@ -18,6 +19,8 @@ import uk.ac.ed.ph.snuggletex.utilities.TransformerFactoryChooser;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * This is the main entry point into SnuggleTeX.
@@ -68,6 +71,15 @@ public final class SnuggleEngine {
     
     /** Default {@link XMLStringOutputOptions} */
     private XMLStringOutputOptions defaultXMLStringOutputOptions;
+    
+    /** Optional {@link SnuggleMetricsListener} to notify, null to record nothing */
+    private SnuggleMetricsListener metricsListener;
+    
+    /**
+     * Pre-rendered {@link WebPageChrome}s for the frozen {@link WebPageOutputOptions} used
+     * with this engine, keyed on the options themselves.
+     */
+    private final Map<WebPageOutputOptions, WebPageChrome> webPageChromeCache;
 
     /**
      * Creates a new {@link SnuggleEngine} using a very simple internal cache for any
@@ -115,6 +127,7 @@ public final class SnuggleEngine {
         this.defaultSessionConfiguration = new SessionConfiguration();
         this.defaultDOMOutputOptions = new DOMOutputOptions();
         this.defaultXMLStringOutputOptions = new XMLStringOutputOptions();
+        this.webPageChromeCache = Collections.synchronizedMap(new WeakHashMap<WebPageOutputOptions, WebPageChrome>());
         
         /* Create manager for XSLT stylesheets using the given cache */
         this.stylesheetManager = stylesheetManager;
@@ -284,6 +297,33 @@ public final class SnuggleEngine {
     }
 
 
+    /**
+     * Returns the {@link SnuggleMetricsListener} that will be notified by newly created
+     * sessions, or null if no metrics are being recorded (which is the default).
+     * 
+     * @since 1.3.1
+     */
+    public SnuggleMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+    
+    /**
+     * Sets the {@link SnuggleMetricsListener} that will be notified by sessions subsequently
+     * created by this engine. Set this to null to stop recording metrics.
+     * 
+     * @since 1.3.1
+     */
+    public void setMetricsListener(SnuggleMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+    
+    /**
+     * (Used internally by {@link SnuggleSession} when writing out web pages.)
+     */
+    Map<WebPageOutputOptions, WebPageChrome> getWebPageChromeCache() {
+        return webPageChromeCache;
+    }
+    
     /**
      * @deprecated Use {@link #getDefaultDOMOutputOptions()}
      */
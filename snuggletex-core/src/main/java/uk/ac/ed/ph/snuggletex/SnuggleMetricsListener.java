@@ -0,0 +1,109 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+/**
+ * Optional callback interface that can be registered with a {@link SnuggleEngine} via
+ * {@link SnuggleEngine#setMetricsListener(SnuggleMetricsListener)} to find out how long each
+ * stage of the SnuggleTeX process takes, along with some simple counts of what was done.
+ * <p>
+ * No metrics are recorded (and there is no timing overhead) unless a listener is registered.
+ * <p>
+ * Implementations will be called from every {@link SnuggleSession} created by the engine,
+ * so must be safe to use from multiple Threads if sessions are being used concurrently.
+ * Implementations should also be fast, as they get called during the process being measured.
+ * <p>
+ * Bridges to common metrics libraries are available in the <tt>snuggletex-metrics</tt> module.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public interface SnuggleMetricsListener {
+
+    /**
+     * Enumerates the stages of the SnuggleTeX process that get timed.
+     */
+    public static enum Stage {
+
+        /** Tokenisation of a {@link SnuggleInput}, including expansion of user-defined commands */
+        TOKENISATION,
+
+        /** Evaluation of style information in the tokenised input */
+        STYLE_EVALUATION,
+
+        /** Fixing up of the tokenised input into a more regular tree */
+        TOKEN_FIXING,
+
+        /** Rebuilding of style information after fixing */
+        STYLE_REBUILDING,
+
+        /** Building of the raw DOM, excluding any {@link DOMPostProcessor}s */
+        DOM_BUILDING,
+
+        /**
+         * Running of all registered {@link DOMPostProcessor}s. (Each one is also reported
+         * individually via {@link SnuggleMetricsListener#postProcessorCompleted(DOMPostProcessor, long)}.)
+         */
+        POST_PROCESSING,
+
+        /** Serialization of the resulting DOM into XML or a web page */
+        SERIALIZATION,
+        ;
+    }
+
+    /**
+     * Enumerates the things that get counted during the SnuggleTeX process.
+     */
+    public static enum Counter {
+
+        /** Number of characters in each {@link SnuggleInput}, before any macro expansion */
+        INPUT_CHARACTERS,
+
+        /** Number of tokens created while tokenising each {@link SnuggleInput} */
+        TOKENS,
+
+        /** Number of expansions of user-defined commands and environments while tokenising */
+        MACRO_EXPANSIONS,
+
+        /** Number of MathML islands created during each DOM building process */
+        MATH_ISLANDS,
+
+        /** Number of {@link InputError}s recorded during parsing or DOM building */
+        ERRORS,
+        ;
+    }
+
+    /**
+     * Called when the given {@link Stage} has finished.
+     *
+     * @param stage {@link Stage} that has finished
+     * @param durationNanos time taken for this stage, in nanoseconds
+     */
+    void stageCompleted(Stage stage, long durationNanos);
+
+    /**
+     * Called once the given {@link DOMPostProcessor} has finished.
+     * <p>
+     * As post-processors are chained together, this reports the time spent within the
+     * post-processor itself, excluding the time spent by the post-processors after it.
+     *
+     * @param domPostProcessor {@link DOMPostProcessor} that has finished
+     * @param durationNanos time taken, in nanoseconds
+     */
+    void postProcessorCompleted(DOMPostProcessor domPostProcessor, long durationNanos);
+
+    /**
+     * Called to report the value of the given {@link Counter} at the end of the stage it
+     * refers to.
+     *
+     * @param counter {@link Counter} being reported
+     * @param count value of the counter for the stage just completed
+     */
+    void countRecorded(Counter counter, long count);
+
+}
@@ -0,0 +1,187 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.DigestUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.IOUtilities;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the results of parsing "preamble" {@link SnuggleInput}s, such as shared files of
+ * macro definitions, so that they only need to be parsed once.
+ * <p>
+ * Each preamble is parsed by a fresh {@link SnuggleSession} created by the underlying
+ * {@link SnuggleEngine} and the resulting {@link SnuggleSnapshot} is cached, keyed on a
+ * hash of the preamble's content. (This means that changes to a preamble file are picked up
+ * automatically, at the cost of reading it in each time.)
+ * Call {@link #createSession(SnuggleInput)} to get a new {@link SnuggleSession} that has
+ * already parsed the preamble, which can then be used to parse the actual input as normal.
+ * <p>
+ * The cache holds at most {@link #getMaximumSize()} snapshots, discarding the least
+ * recently used one when full.
+ * <p>
+ * An instance of this class is thread-safe, provided the underlying {@link SnuggleEngine}
+ * is not reconfigured once in use. Note that preambles are parsed using the engine's
+ * {@link SnuggleEngine#getDefaultSessionConfiguration()} at the time of parsing.
+ * <p>
+ * (Snapshots are not saved to disk, as the parsed tokens refer back into the original
+ * input data and to definitions that cannot be serialized.)
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class SnugglePreambleCache {
+
+    /** Default value for {@link #getMaximumSize()} */
+    public static final int DEFAULT_MAXIMUM_SIZE = 16;
+
+    private final SnuggleEngine engine;
+    private final int maximumSize;
+    private final Map<String, SnuggleSnapshot> snapshotMap;
+
+    public SnugglePreambleCache(final SnuggleEngine engine) {
+        this(engine, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public SnugglePreambleCache(final SnuggleEngine engine, final int maximumSize) {
+        ConstraintUtilities.ensureNotNull(engine, "engine");
+        if (maximumSize<1) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        this.engine = engine;
+        this.maximumSize = maximumSize;
+        this.snapshotMap = new LinkedHashMap<String, SnuggleSnapshot>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 6313957512263548317L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SnuggleSnapshot> eldest) {
+                return size() > SnugglePreambleCache.this.maximumSize;
+            }
+        };
+    }
+
+    public SnuggleEngine getEngine() {
+        return engine;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /** Returns the number of snapshots currently cached */
+    public synchronized int size() {
+        return snapshotMap.size();
+    }
+
+    /** Discards all cached snapshots */
+    public synchronized void clear() {
+        snapshotMap.clear();
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Creates a new {@link SnuggleSession} having the same state as a session that has just
+     * parsed the given preamble, which is read in and then parsed only if it has not been
+     * seen before.
+     * <p>
+     * Any errors in the preamble will be included in the resulting session's errors.
+     *
+     * @param preambleInput preamble to parse, which must not be null
+     * @throws IOException if the preamble could not be read in
+     */
+    public SnuggleSession createSession(final SnuggleInput preambleInput) throws IOException {
+        return getSnapshot(preambleInput).createSession();
+    }
+
+    /**
+     * Returns a {@link SnuggleSnapshot} of a session that has just parsed the given preamble,
+     * parsing it only if it has not been seen before.
+     *
+     * @param preambleInput preamble to parse, which must not be null
+     * @throws IOException if the preamble could not be read in
+     */
+    public SnuggleSnapshot getSnapshot(final SnuggleInput preambleInput) throws IOException {
+        ConstraintUtilities.ensureNotNull(preambleInput, "preambleInput");
+        String content = readInput(preambleInput);
+        String key = hashContent(content);
+        SnuggleSnapshot result;
+        synchronized (this) {
+            result = snapshotMap.get(key);
+        }
+        if (result==null) {
+            /* Parse outside the lock. (Concurrent misses for the same preamble may end up
+             * parsing it more than once, but the results are equivalent so it doesn't matter
+             * which one ends up being cached.) */
+            SnuggleInput contentInput = new SnuggleInput(content, preambleInput.getIdentifier());
+            contentInput.setURI(preambleInput.getURI());
+            SnuggleSession session = engine.createSession();
+            session.parseInput(contentInput);
+            result = session.createSnapshot();
+            synchronized (this) {
+                snapshotMap.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    //-------------------------------------------------
+
+    private static String readInput(final SnuggleInput input) throws IOException {
+        switch (input.getType()) {
+            case STRING:
+                return input.getString();
+
+            case FILE:
+                InputStream fileStream = new FileInputStream(input.getFile());
+                try {
+                    return IOUtilities.readCharacterStream(createReader(fileStream, input.getEncoding()));
+                }
+                finally {
+                    fileStream.close();
+                }
+
+            case INPUT_STREAM:
+                return IOUtilities.readCharacterStream(createReader(input.getInputStream(), input.getEncoding()));
+
+            case READER:
+                return IOUtilities.readCharacterStream(input.getReader());
+
+            default:
+                throw new SnuggleLogicException("Unexpected switch case: " + input.getType());
+        }
+    }
+
+    private static Reader createReader(final InputStream inputStream, final String encoding)
+            throws UnsupportedEncodingException {
+        return encoding!=null ? new InputStreamReader(inputStream, encoding) : new InputStreamReader(inputStream);
+    }
+
+    private static String hashContent(final String content) {
+        return DigestUtilities.hashUTF8(content);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode())
+            + "(engine=" + engine
+            + ",maximumSize=" + maximumSize
+            + ",size=" + size()
+            + ")";
+    }
+}
@@ -5,6 +5,8 @@
  */
 package uk.ac.ed.ph.snuggletex;
 
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Counter;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Stage;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinCommand;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinEnvironment;
 import uk.ac.ed.ph.snuggletex.definitions.MathCharacter;
@@ -19,6 +21,7 @@ import uk.ac.ed.ph.snuggletex.internal.StyleEvaluator;
 import uk.ac.ed.ph.snuggletex.internal.StyleRebuilder;
 import uk.ac.ed.ph.snuggletex.internal.TokenFixer;
 import uk.ac.ed.ph.snuggletex.internal.WebPageBuilder;
+import uk.ac.ed.ph.snuggletex.internal.util.ChannelWriter;
 import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 import uk.ac.ed.ph.snuggletex.tokens.FlowToken;
@@ -28,6 +31,7 @@ import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -116,6 +120,9 @@ public final class SnuggleSession implements SessionContext {
     /** Configuration for this session */
     private final SessionConfiguration configuration;
     
+    /** {@link SnuggleMetricsListener} copied from the owning {@link SnuggleEngine}, null if not recording metrics */
+    private final SnuggleMetricsListener metricsListener;
+    
     /** Default {@link DOMOutputOptions}, copied from the owning {@link SnuggleEngine} during creation */
     final DOMOutputOptions defaultDOMOutputOptions;
     
@@ -128,6 +135,9 @@ public final class SnuggleSession implements SessionContext {
     /** Errors accumulated during this session */
     private final List<InputError> errors;
     
+    /** Number of errors not recorded in {@link #errors} as the error limit had been reached */
+    private int overflowErrorCount;
+    
     /** Map of user-defined commands, keyed on name */
     private final Map<String, UserDefinedCommand> userCommandMap;
     
@@ -152,10 +162,12 @@ public final class SnuggleSession implements SessionContext {
         this.configuration = (SessionConfiguration) configuration.clone();
         
         /* Similarly with default output options, though we're not exposing these in the public API
-         * so they become effectively immutable here.
+         * so they become effectively immutable here. (Frozen options are already immutable so
+         * don't need cloned.)
          */
-        this.defaultDOMOutputOptions = (DOMOutputOptions) engine.getDefaultDOMOutputOptions().clone();
-        this.defaultXMLStringOutputOptions = (XMLStringOutputOptions) engine.getDefaultXMLStringOutputOptions().clone();
+        this.defaultDOMOutputOptions = copyUnlessFrozen(engine.getDefaultDOMOutputOptions());
+        this.defaultXMLStringOutputOptions = copyUnlessFrozen(engine.getDefaultXMLStringOutputOptions());
+        this.metricsListener = engine.getMetricsListener();
 
         /* Set up main worker Objects */
         this.tokeniser = new LaTeXTokeniser(this);
@@ -178,9 +190,12 @@ public final class SnuggleSession implements SessionContext {
         /* Copy stuff from the template */
         this.engine = snapshot.engine;
         this.packages = snapshot.packages;
-        this.configuration = snapshot.configuration;
+        
+        /* (We clone the configuration so that snapshots can safely be shared between sessions) */
+        this.configuration = (SessionConfiguration) snapshot.configuration.clone();
         this.defaultDOMOutputOptions = snapshot.defaultDOMOutputOptions;
         this.defaultXMLStringOutputOptions = snapshot.defaultXMLStringOutputOptions;
+        this.metricsListener = snapshot.engine.getMetricsListener();
         
         /* Set up main worker Objects */
         this.tokeniser = new LaTeXTokeniser(this);
@@ -190,11 +205,17 @@ public final class SnuggleSession implements SessionContext {
         
         /* Re-initialise session state */
         this.errors = new ArrayList<InputError>(snapshot.errors);
+        this.overflowErrorCount = snapshot.overflowErrorCount;
         this.userCommandMap = new HashMap<String, UserDefinedCommand>(snapshot.userCommandMap);
         this.userEnvironmentMap = new HashMap<String, UserDefinedEnvironment>(snapshot.userEnvironmentMap);
         this.parsedTokens = new ArrayList<FlowToken>(snapshot.parsedTokens);
     }
     
+    @SuppressWarnings("unchecked")
+    private static <E extends DOMOutputOptions> E copyUnlessFrozen(E options) {
+        return options.isFrozen() ? options : (E) options.clone();
+    }
+    
     //-------------------------------------------------
     
     public SessionConfiguration getConfiguration() {
@@ -205,6 +226,17 @@ public final class SnuggleSession implements SessionContext {
         return errors;
     }
     
+    /**
+     * Returns the number of errors that have occurred but have not been recorded in
+     * {@link #getErrors()} because the error limit specified by
+     * {@link SessionConfiguration#getErrorLimit()} had been reached.
+     * 
+     * @since 1.3.1
+     */
+    public int getOverflowErrorCount() {
+        return overflowErrorCount;
+    }
+    
     public List<FlowToken> getParsedTokens() {
         return parsedTokens;
     }
@@ -220,24 +252,60 @@ public final class SnuggleSession implements SessionContext {
      * 
      * @return true if parsing finished, false if it was terminated by an error in the
      *   input LaTeX and if the session was configured to fail on the first error.
+     * @throws SnuggleRuntimeException wrapping an {@link InterruptedException} if the calling
+     *   thread is interrupted while expanding user-defined commands or environments.
      */
     public boolean parseInput(SnuggleInput snuggleInput) throws IOException {
         ConstraintUtilities.ensureNotNull(snuggleInput, "snuggleInput");
-        /* Perform tokenisation, then fix up and store the results */
+        
+        /* Perform tokenisation, then fix up and store the results, timing each stage if
+         * metrics are being recorded */
+        int initialErrorCount = errors.size() + overflowErrorCount;
+        boolean tokenised = false;
         try {
             SnuggleInputReader reader = new SnuggleInputReader(this, snuggleInput);
+            long startTime = metricsListener!=null ? System.nanoTime() : 0L;
             RootToken rootToken = tokeniser.tokenise(reader);
+            tokenised = true;
+            startTime = recordStage(Stage.TOKENISATION, startTime);
             styleEvaluator.evaluateStyles(rootToken);
+            startTime = recordStage(Stage.STYLE_EVALUATION, startTime);
             tokenFixer.fixTokenTree(rootToken);
+            startTime = recordStage(Stage.TOKEN_FIXING, startTime);
             styleRebuilder.rebuildStyles(rootToken);
+            recordStage(Stage.STYLE_REBUILDING, startTime);
             parsedTokens.addAll(rootToken.getContents());
         }
         catch (SnuggleParseException e) {
             return false;
         }
+        finally {
+            if (metricsListener!=null) {
+                if (tokenised) {
+                    metricsListener.countRecorded(Counter.INPUT_CHARACTERS, tokeniser.getInputLength());
+                    metricsListener.countRecorded(Counter.TOKENS, tokeniser.getTokenCount());
+                    metricsListener.countRecorded(Counter.MACRO_EXPANSIONS, tokeniser.getMacroExpansionCount());
+                }
+                metricsListener.countRecorded(Counter.ERRORS, errors.size() + overflowErrorCount - initialErrorCount);
+            }
+        }
         return true;
     }
     
+    /**
+     * Reports the completion of the given {@link Stage} to the {@link SnuggleMetricsListener},
+     * returning the current time as the start time of the next stage. This does nothing if
+     * no metrics are being recorded.
+     */
+    private long recordStage(Stage stage, long startTime) {
+        if (metricsListener==null) {
+            return 0L;
+        }
+        long endTime = System.nanoTime();
+        metricsListener.stageCompleted(stage, endTime - startTime);
+        return endTime;
+    }
+    
     /**
      * Creates a {@link SnuggleSnapshot} Object holding the current state of this session that can
      * be later used to recreate a session having exactly the same state.
@@ -245,9 +313,9 @@ public final class SnuggleSession implements SessionContext {
     public SnuggleSnapshot createSnapshot() {
         return new SnuggleSnapshot(engine, packages,
                 (SessionConfiguration) configuration.clone(),
-                (DOMOutputOptions) defaultDOMOutputOptions.clone(), /* (No real need to clone as this is immutable here, but we'll do it for consistency) */
-                (XMLStringOutputOptions) defaultXMLStringOutputOptions.clone(), /* (Ditto) */
-                new ArrayList<InputError>(errors), 
+                defaultDOMOutputOptions, /* (No need to clone as this is effectively immutable here) */
+                defaultXMLStringOutputOptions, /* (Ditto) */
+                new ArrayList<InputError>(errors), overflowErrorCount,
                 new HashMap<String, UserDefinedCommand>(userCommandMap),
                 new HashMap<String, UserDefinedEnvironment>(userEnvironmentMap),
                 new ArrayList<FlowToken>(parsedTokens));
@@ -258,6 +326,7 @@ public final class SnuggleSession implements SessionContext {
      */
     public void reset() {
         errors.clear();
+        overflowErrorCount = 0;
         userCommandMap.clear();
         userEnvironmentMap.clear();
         parsedTokens.clear();
@@ -378,7 +447,53 @@ public final class SnuggleSession implements SessionContext {
         if (!buildDOMSubtree(temporaryRoot, options)) {
             return null;
         }
-        return XMLUtilities.serializeNodeChildren(getStylesheetManager(), temporaryRoot, options);
+        long startTime = metricsListener!=null ? System.nanoTime() : 0L;
+        String result = XMLUtilities.serializeNodeChildren(getStylesheetManager(), temporaryRoot, options);
+        recordStage(Stage.SERIALIZATION, startTime);
+        return result;
+    }
+    
+    /**
+     * Creates a well-formed external general parsed entity out of the currently parsed tokens,
+     * sending the results to the given {@link WritableByteChannel}, encoded using
+     * {@link XMLStringOutputOptions#getEncoding()}. The channel is left open afterwards.
+     * <p>
+     * This avoids creating any intermediate Strings, and reuses the encoders created by
+     * previous calls made by the same Thread. Use a {@link uk.ac.ed.ph.snuggletex.utilities.ByteArrayChannel} to collect the
+     * results in a reusable byte array.
+     * 
+     * @param options {@link XMLStringOutputOptions} to use, which must not be null.
+     * @param channel channel to send the results to, which must not be null.
+     * 
+     * @return true if completed successfully, false if the process was terminated by an error in the
+     *   input LaTeX and if the session was configured to fail on the first error. (Nothing is
+     *   written in the latter case.)
+     * 
+     * @throws IOException if an I/O problem arose whilst writing out the results.
+     * 
+     * @since 1.3.1
+     */
+    public boolean writeXMLString(final XMLStringOutputOptions options, final WritableByteChannel channel)
+            throws IOException {
+        ConstraintUtilities.ensureNotNull(options, "XMLStringOutputOptions");
+        ConstraintUtilities.ensureNotNull(channel, "channel");
+        DocumentBuilder documentBuilder = XMLUtilities.createNSAwareDocumentBuilder();
+        Document document = documentBuilder.newDocument();
+        Element temporaryRoot = document.createElement("root");
+        document.appendChild(temporaryRoot);
+        if (!buildDOMSubtree(temporaryRoot, options)) {
+            return false;
+        }
+        long startTime = metricsListener!=null ? System.nanoTime() : 0L;
+        ChannelWriter writer = new ChannelWriter(channel, options.getEncoding());
+        try {
+            XMLUtilities.serializeNodeChildren(getStylesheetManager(), temporaryRoot, options, writer);
+        }
+        finally {
+            writer.close();
+        }
+        recordStage(Stage.SERIALIZATION, startTime);
+        return true;
     }
     
     /**
@@ -505,7 +620,7 @@ public final class SnuggleSession implements SessionContext {
     public String buildWebPageString(final WebPageOutputOptions options) {
         ConstraintUtilities.ensureNotNull(options, "options");
         try {
-            return new WebPageBuilder(this, options).buildWebPageString(parsedTokens);
+            return new WebPageBuilder(this, options, engine.getWebPageChromeCache()).buildWebPageString(parsedTokens);
         }
         catch (SnuggleParseException e) {
             return null;
@@ -597,7 +712,49 @@ public final class SnuggleSession implements SessionContext {
         ConstraintUtilities.ensureNotNull(outputStream, "outputStream");
         ConstraintUtilities.ensureNotNull(endOutputAction, "endOutputAction");
         try {
-            new WebPageBuilder(this, options).writeWebPage(parsedTokens, contentTypeSettable, outputStream, endOutputAction);
+            new WebPageBuilder(this, options, engine.getWebPageChromeCache()).writeWebPage(parsedTokens, contentTypeSettable, outputStream, endOutputAction);
+            return true;
+        }
+        catch (SnuggleParseException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Builds a complete web page based on the currently parsed tokens, sending the encoded
+     * results to the given {@link WritableByteChannel} and performing the given
+     * {@link EndOutputAction} to it afterwards. (As channels are unbuffered, 
+     * {@link EndOutputAction#FLUSH} has the same effect as {@link EndOutputAction#DO_NOTHING}.)
+     * <p>
+     * This avoids creating any intermediate Strings, and reuses the encoders created by
+     * previous calls made by the same Thread, so is a good choice for sending pages to files or
+     * network connections. Use a {@link uk.ac.ed.ph.snuggletex.utilities.ByteArrayChannel} to collect the results in a reusable
+     * byte array.
+     * <p>
+     * The provided {@link WebPageOutputOptions} Object is
+     * used to determine which type of web page to generate and how it should be configured.
+     * <p>
+     * If the <tt>contentTypeSettable</tt> Object is not null and has a
+     * property called <tt>contentType</tt>, then it is set in advance to the appropriate HTTP
+     * <tt>Content-Type</tt> header for the resulting page before the web page data is written.
+     * 
+     * @since 1.3.1
+     * 
+     * @return true if completed successfully, false if the process was terminated by an error in the
+     *   input LaTeX and if the session was configured to fail on the first error. 
+     * 
+     * @throws IOException if an I/O problem arose whilst writing out the web page data.
+     * @throws SnuggleRuntimeException if calling <tt>setContentType()</tt> on the contentTypeSettable
+     *   Object failed, with the underlying Exception wrapped up.
+     */
+    public boolean writeWebPage(final WebPageOutputOptions options, final Object contentTypeSettable,
+            final WritableByteChannel channel, final EndOutputAction endOutputAction)
+            throws IOException {
+        ConstraintUtilities.ensureNotNull(options, "options");
+        ConstraintUtilities.ensureNotNull(channel, "channel");
+        ConstraintUtilities.ensureNotNull(endOutputAction, "endOutputAction");
+        try {
+            new WebPageBuilder(this, options, engine.getWebPageChromeCache()).writeWebPage(parsedTokens, contentTypeSettable, channel, endOutputAction);
             return true;
         }
         catch (SnuggleParseException e) {
@@ -680,6 +837,17 @@ public final class SnuggleSession implements SessionContext {
         return userEnvironmentMap;
     }
     
+    /**
+     * Gets the {@link SnuggleMetricsListener} being used by this session, which is taken from
+     * the underlying {@link SnuggleEngine} when the session is created. This will be null if
+     * no metrics are being recorded.
+     * 
+     * @since 1.3.1
+     */
+    public SnuggleMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+    
     /**
      * Gets the {@link StylesheetManager} being used by the underlying {@link SnuggleEngine}
      */
@@ -691,6 +859,9 @@ public final class SnuggleSession implements SessionContext {
      * Records a new error, throwing a {@link SnuggleParseException} if
      * the current {@link SessionConfiguration} deems that we should
      * fail on the first error.
+     * <p>
+     * If the error limit specified by {@link SessionConfiguration#getErrorLimit()} has been
+     * reached then the error is counted rather than recorded.
      * 
      * @param inputError {@link InputError} to register, which must not be null.
      * 
@@ -698,9 +869,19 @@ public final class SnuggleSession implements SessionContext {
      */
     public void registerError(InputError inputError) throws SnuggleParseException {
         ConstraintUtilities.ensureNotNull(inputError, "InputError");
-        errors.add(inputError);
+        if (isErrorLimitReached()) {
+            overflowErrorCount++;
+        }
+        else {
+            errors.add(inputError);
+        }
         if (configuration.isFailingFast()) {
             throw new SnuggleParseException(inputError);
         }
     }
+    
+    private boolean isErrorLimitReached() {
+        int errorLimit = configuration.getErrorLimit();
+        return errorLimit>0 && errors.size()>=errorLimit;
+    }
 }
@@ -41,6 +41,9 @@ public final class SnuggleSnapshot {
     /** Errors accumulated during the owning session */
     final List<InputError> errors;
     
+    /** Number of errors not recorded by the owning session as its error limit was reached */
+    final int overflowErrorCount;
+    
     /** Map of user-defined commands, keyed on name */
     final Map<String, UserDefinedCommand> userCommandMap;
     
@@ -54,7 +57,8 @@ public final class SnuggleSnapshot {
             final SessionConfiguration configuration,
             final DOMOutputOptions defaultDOMOutputOptions,
             final XMLStringOutputOptions defaultXMLStringOutputOptions,
-            final List<InputError> errors, final Map<String, UserDefinedCommand> userCommandMap,
+            final List<InputError> errors, final int overflowErrorCount,
+            final Map<String, UserDefinedCommand> userCommandMap,
             final Map<String, UserDefinedEnvironment> userEnvironmentMap,
             final List<FlowToken> parsedTokens) {
         this.engine = engine;
@@ -63,6 +67,7 @@ public final class SnuggleSnapshot {
         this.defaultDOMOutputOptions = defaultDOMOutputOptions;
         this.defaultXMLStringOutputOptions = defaultXMLStringOutputOptions;
         this.errors = errors;
+        this.overflowErrorCount = overflowErrorCount;
         this.userCommandMap = userCommandMap;
         this.userEnvironmentMap = userEnvironmentMap;
         this.parsedTokens = parsedTokens;
@@ -0,0 +1,64 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Extension of {@link DOMPostProcessor} for post-processors that can do their work on a
+ * stream of SAX events rather than on a complete DOM {@link org.w3c.dom.Document}.
+ * <p>
+ * When all of the {@link DOMPostProcessor}s registered in the {@link DOMOutputOptions}
+ * are run, SnuggleTeX chains them together so that the raw DOM is streamed through the
+ * whole chain in a single pass. Post-processors implementing this interface take part in
+ * that stream directly; any other {@link DOMPostProcessor}s are adapted by buffering the
+ * events they receive into a DOM and calling
+ * {@link #postProcessDOM(org.w3c.dom.Document, DOMOutputOptions, StylesheetManager)} as before.
+ * <ul>
+ *   <li>
+ *     The {@link DownConvertingPostProcessor} implements this interface
+ *   </li>
+ *   <li>
+ *     Subclasses of {@link uk.ac.ed.ph.snuggletex.utilities.MathMLPostProcessor} get this
+ *     for free, only buffering each MathML island in turn.
+ *   </li>
+ * </ul>
+ *
+ * @see DOMPostProcessor
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public interface StreamingDOMPostProcessor extends DOMPostProcessor {
+
+    /**
+     * Implement this to create a {@link ContentHandler} that will receive the SAX events
+     * corresponding to the raw SnuggleTeX output and pass its own (post-processed) output
+     * on to the given resultHandler.
+     * <p>
+     * The incoming events will describe an entire document, containing a root element
+     * called <tt>root</tt> in the {@link SnuggleConstants#SNUGGLETEX_NAMESPACE} namespace.
+     * The events sent to the resultHandler should describe an entire document in the same way,
+     * with the children of the root element ending up being the Nodes added to the final DOM.
+     * <p>
+     * The resultHandler may also implement {@link LexicalHandler}, in which case comments
+     * should be passed on to it as well.
+     *
+     * @param resultHandler {@link ContentHandler} that should receive the results of this
+     *   post-processor, which will not be null.
+     * @param options {@link DOMOutputOptions} specified by caller
+     * @param stylesheetManager Instance of {@link StylesheetManager} that can be used to
+     *   load and manage XSLT stylesheets.
+     */
+    ContentHandler createPostProcessingHandler(ContentHandler resultHandler,
+            DOMOutputOptions options, StylesheetManager stylesheetManager);
+
+}
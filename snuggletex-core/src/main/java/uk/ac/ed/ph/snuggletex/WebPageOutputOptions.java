@@ -8,6 +8,11 @@ package uk.ac.ed.ph.snuggletex;
 import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
 import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 
 import static uk.ac.ed.ph.snuggletex.internal.util.ObjectUtilities.concat;
@@ -289,9 +294,48 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * appropriate.
      * <p>
      * If null or empty, then no stylesheet is applied.
+     * <p>
+     * As {@link Transformer}s are not thread-safe, these options can't be frozen if any of
+     * these have been set. Use {@link #stylesheetTemplates} or {@link #stylesheetURIs} instead.
      */
     private Transformer[] stylesheets;
     
+    /**
+     * Optional compiled XSLT stylesheets that will be applied to the resulting web page once
+     * it has been built but before it is serialised, after any {@link #stylesheets}. A new
+     * {@link Transformer} is created from each of these whenever a page is built.
+     * <p>
+     * The same considerations as for {@link #stylesheets} apply when writing these.
+     * <p>
+     * If null or empty, then no stylesheet is applied.
+     * 
+     * @since 1.3.1
+     */
+    private Templates[] stylesheetTemplates;
+    
+    /**
+     * Optional URIs of XSLT stylesheets that will be applied to the resulting web page once
+     * it has been built but before it is serialised, after any {@link #stylesheetTemplates}.
+     * These are resolved, compiled and cached using the {@link SnuggleEngine}'s
+     * {@link uk.ac.ed.ph.snuggletex.utilities.StylesheetManager}, so will typically be
+     * <tt>classpath:/</tt> URIs.
+     * <p>
+     * The same considerations as for {@link #stylesheets} apply when writing these.
+     * <p>
+     * If null or empty, then no stylesheet is applied.
+     * 
+     * @since 1.3.1
+     */
+    private String[] stylesheetURIs;
+    
+    /**
+     * Parameters to pass to the stylesheets specified by {@link #stylesheetTemplates} and
+     * {@link #stylesheetURIs}, keyed on name. Parameters with null values are not passed.
+     * 
+     * @since 1.3.1
+     */
+    private Map<String, Object> stylesheetParameters;
+    
     /**
      * Determines whether to generate HTML (or XHTML 5) output, which uses a "charset" meta
      * attribute and a different DOCTYPE declaration.
@@ -354,6 +398,9 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
         this.cssStylesheetURLs = null;
         this.clientSideXSLTStylesheetURLs = null;
         this.stylesheets = null;
+        this.stylesheetTemplates = null;
+        this.stylesheetURIs = null;
+        this.stylesheetParameters = new HashMap<String, Object>();
         this.html5 = false;
         this.noCharsetInContentTypeHeader = false;
         this.mathJax = false;
@@ -384,6 +431,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      */
     @Deprecated
     public void setWebPageType(WebPageType webPageType) {
+        ensureNotFrozen();
         ConstraintUtilities.ensureNotNull(webPageType, "webPageType");
         this.webPageType = webPageType;
     }
@@ -404,6 +452,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param contentType desired contentType, which must not be null.
      */
     public void setContentType(String contentType) {
+        ensureNotFrozen();
         ConstraintUtilities.ensureNotNull(contentType, "contentType");
         this.contentType = contentType;
     }
@@ -424,6 +473,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param lang desired language, which may be null.
      */
     public void setLang(String lang) {
+        ensureNotFrozen();
         this.lang = lang;
     }
 
@@ -450,6 +500,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      *   that no title should be included. 
      */
     public void setTitle(String title) {
+        ensureNotFrozen();
         this.title = title;
     }
 
@@ -475,6 +526,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param addingTitleHeading true to add a title header if a title has been set, false otherwise.
      */
     public void setAddingTitleHeading(boolean addingTitleHeading) {
+        ensureNotFrozen();
         this.addingTitleHeading = addingTitleHeading;
     }
     
@@ -501,6 +553,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param addingMathPlayerImport true to add gubbins for importing MathPlayer, false otherwise.
      */
     public void setAddingMathPlayerImport(boolean addingMathPlayerImport) {
+        ensureNotFrozen();
         this.addingMathPlayerImport = addingMathPlayerImport;
     }
     
@@ -532,6 +585,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @since 1.3.0
      */
     public void setMathPrefRenderer(String mathPrefRenderer) {
+        ensureNotFrozen();
         this.mathPrefRenderer = mathPrefRenderer;
     }
 
@@ -561,6 +615,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param includingStyleElement set to true to include a <tt>style</tt> element, false otherwise.
      */
     public void setIncludingStyleElement(boolean includingStyleElement) {
+        ensureNotFrozen();
         this.includingStyleElement = includingStyleElement;
     }
 
@@ -592,6 +647,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param cssStylesheetURLs array of CSS stylesheet URLs, which may be empty
      */
     public void setCSSStylesheetURLs(String... cssStylesheetURLs) {
+        ensureNotFrozen();
         this.cssStylesheetURLs = cssStylesheetURLs;
     }
     
@@ -607,6 +663,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param cssStylesheetURLs array of CSS stylesheet URLs to add, which may be empty
      */
     public void addCSSStylesheetURLs(String... cssStylesheetURLs) {
+        ensureNotFrozen();
         this.cssStylesheetURLs = concat(this.cssStylesheetURLs, cssStylesheetURLs, String.class);
     }
     
@@ -640,6 +697,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param clientSideXSLTStylesheetURLs array of URLs to use, which may be empty.
      */
     public void setClientSideXSLTStylesheetURLs(String... clientSideXSLTStylesheetURLs) {
+        ensureNotFrozen();
         this.clientSideXSLTStylesheetURLs = clientSideXSLTStylesheetURLs;
     }
     
@@ -656,6 +714,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      * @param clientSideXSLTStylesheetURLs array of URLs to append, which may be empty.
      */
     public void addClientSideXSLTStylesheetURLs(String... clientSideXSLTStylesheetURLs) {
+        ensureNotFrozen();
         this.clientSideXSLTStylesheetURLs = concat(this.clientSideXSLTStylesheetURLs, clientSideXSLTStylesheetURLs, String.class);
     }
 
@@ -700,6 +759,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      *   are applied in the order specified.
      */
     public void setStylesheets(Transformer... stylesheets) {
+        ensureNotFrozen();
         this.stylesheets = stylesheets;
     }
     
@@ -722,14 +782,140 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
      *   are applied in the order specified.
      */
     public void addStylesheets(Transformer... stylesheets) {
+        ensureNotFrozen();
         this.stylesheets = concat(this.stylesheets, stylesheets, Transformer.class);
     }
+    
+    
+    /**
+     * Returns an array of compiled XSLT stylesheets that will be applied to the resulting web
+     * page once it has been built but before it is serialised. These are applied after any
+     * stylesheets specified by {@link #setStylesheets(Transformer...)}.
+     * <p>
+     * Default is null.
+     * 
+     * @since 1.3.1
+     */
+    public Templates[] getStylesheetTemplates() {
+        return stylesheetTemplates;
+    }
+    
+    /**
+     * Sets an array of compiled XSLT stylesheets that will be applied to the resulting web
+     * page once it has been built but before it is serialised. These are applied after any
+     * stylesheets specified by {@link #setStylesheets(Transformer...)}.
+     * <p>
+     * Unlike {@link #setStylesheets(Transformer...)}, these can be safely used with frozen
+     * options, as a new {@link Transformer} is created each time a page is built.
+     * 
+     * @param stylesheetTemplates array of compiled XSLT stylesheets to apply, which may be null.
+     *   They are applied in the order specified.
+     * 
+     * @since 1.3.1
+     */
+    public void setStylesheetTemplates(Templates... stylesheetTemplates) {
+        ensureNotFrozen();
+        this.stylesheetTemplates = stylesheetTemplates;
+    }
+    
+    /**
+     * Appends to the existing array of compiled XSLT stylesheets that will be applied to the
+     * resulting web page once it has been built but before it is serialised.
+     * 
+     * @param stylesheetTemplates array of additional compiled XSLT stylesheets to apply, which
+     *   may be null. They are applied in the order specified.
+     * 
+     * @since 1.3.1
+     */
+    public void addStylesheetTemplates(Templates... stylesheetTemplates) {
+        ensureNotFrozen();
+        this.stylesheetTemplates = concat(this.stylesheetTemplates, stylesheetTemplates, Templates.class);
+    }
+    
+    
+    /**
+     * Returns an array of URIs of XSLT stylesheets that will be applied to the resulting web
+     * page once it has been built but before it is serialised. These are applied last of all,
+     * after any stylesheets specified by {@link #setStylesheetTemplates(Templates...)}.
+     * <p>
+     * Default is null.
+     * 
+     * @since 1.3.1
+     */
+    public String[] getStylesheetURIs() {
+        return stylesheetURIs;
+    }
+    
+    /**
+     * Sets an array of URIs of XSLT stylesheets that will be applied to the resulting web
+     * page once it has been built but before it is serialised. These are applied last of all,
+     * after any stylesheets specified by {@link #setStylesheetTemplates(Templates...)}.
+     * <p>
+     * Each stylesheet is compiled once and cached by the {@link SnuggleEngine}'s
+     * {@link uk.ac.ed.ph.snuggletex.utilities.StylesheetManager}, so these will typically
+     * be <tt>classpath:/</tt> URIs. These can be safely used with frozen options.
+     * 
+     * @param stylesheetURIs array of stylesheet URIs to apply, which may be null. They are
+     *   applied in the order specified.
+     * 
+     * @since 1.3.1
+     */
+    public void setStylesheetURIs(String... stylesheetURIs) {
+        ensureNotFrozen();
+        this.stylesheetURIs = stylesheetURIs;
+    }
+    
+    /**
+     * Appends to the existing array of URIs of XSLT stylesheets that will be applied to the
+     * resulting web page once it has been built but before it is serialised.
+     * 
+     * @param stylesheetURIs array of additional stylesheet URIs to apply, which may be null.
+     *   They are applied in the order specified.
+     * 
+     * @since 1.3.1
+     */
+    public void addStylesheetURIs(String... stylesheetURIs) {
+        ensureNotFrozen();
+        this.stylesheetURIs = concat(this.stylesheetURIs, stylesheetURIs, String.class);
+    }
+    
+    
+    /**
+     * Returns the parameters that will be passed to each stylesheet specified by
+     * {@link #setStylesheetTemplates(Templates...)} and {@link #setStylesheetURIs(String...)},
+     * keyed on parameter name. This will be unmodifiable if these options have been frozen.
+     * <p>
+     * (These are not passed to any stylesheets set via {@link #setStylesheets(Transformer...)};
+     * you can set parameters on those directly.)
+     * 
+     * @since 1.3.1
+     */
+    public Map<String, Object> getStylesheetParameters() {
+        return stylesheetParameters;
+    }
+    
+    /**
+     * Sets a parameter that will be passed to each stylesheet specified by
+     * {@link #setStylesheetTemplates(Templates...)} and {@link #setStylesheetURIs(String...)}.
+     * 
+     * @param name name of the parameter, which must not be null
+     * @param value value of the parameter, which may be null to indicate that it should not be
+     *   passed.
+     * 
+     * @since 1.3.1
+     */
+    public void setStylesheetParameter(String name, Object value) {
+        ensureNotFrozen();
+        ConstraintUtilities.ensureNotNull(name, "name");
+        this.stylesheetParameters.put(name, value);
+    }
 
     public boolean isHtml5() {
         return html5;
     }
     
     public void setHtml5(boolean html5) {
+        ensureNotFrozen();
         this.html5 = html5;
     }
     
@@ -740,6 +926,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
     }
     
     public void setNoCharsetInContentTypeHeader(boolean noCharsetInContentTypeHeader) {
+        ensureNotFrozen();
         this.noCharsetInContentTypeHeader = noCharsetInContentTypeHeader;
     }
     
@@ -749,6 +936,7 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
     }
     
     public void setMathJax(boolean mathJax) {
+        ensureNotFrozen();
         this.mathJax = mathJax;
     }
 
@@ -758,6 +946,55 @@ public class WebPageOutputOptions extends XMLStringOutputOptions {
     }
     
     public void setCustomMathJaxUrl(String mathJaxPath) {
+        ensureNotFrozen();
         this.customMathJaxUrl = mathJaxPath;
     }
+    
+    /**
+     * Freezes these options, as described in {@link DOMOutputOptions#freeze()}.
+     * <p>
+     * If no stylesheets have been specified, the parts of each page that don't depend on
+     * the input (such as the <tt>head</tt> element) will then be rendered only once per
+     * {@link SnuggleEngine} when pages are written out, making it worth freezing options
+     * that are used to generate lots of pages.
+     * 
+     * @throws IllegalStateException if any {@link Transformer}s have been set via
+     *   {@link #setStylesheets(Transformer...)}, as these can't be shared between threads.
+     *   Use {@link #setStylesheetTemplates(Templates...)} or {@link #setStylesheetURIs(String...)}
+     *   instead.
+     */
+    @Override
+    public void freeze() {
+        if (!isFrozen()) {
+            if (stylesheets!=null && stylesheets.length>0) {
+                throw new IllegalStateException("Options using Transformer stylesheets can't be frozen;"
+                        + " use Templates or stylesheet URIs instead");
+            }
+            if (cssStylesheetURLs!=null) {
+                cssStylesheetURLs = cssStylesheetURLs.clone();
+            }
+            if (clientSideXSLTStylesheetURLs!=null) {
+                clientSideXSLTStylesheetURLs = clientSideXSLTStylesheetURLs.clone();
+            }
+            if (stylesheetTemplates!=null) {
+                stylesheetTemplates = stylesheetTemplates.clone();
+            }
+            if (stylesheetURIs!=null) {
+                stylesheetURIs = stylesheetURIs.clone();
+            }
+            stylesheetParameters = Collections.unmodifiableMap(new HashMap<String, Object>(stylesheetParameters));
+            super.freeze();
+        }
+    }
+    
+    /**
+     * Returns a copy of these options, which will be mutable even if these options have
+     * been frozen.
+     */
+    @Override
+    public Object clone() {
+        WebPageOutputOptions result = (WebPageOutputOptions) super.clone();
+        result.stylesheetParameters = new HashMap<String, Object>(stylesheetParameters);
+        return result;
+    }
 }
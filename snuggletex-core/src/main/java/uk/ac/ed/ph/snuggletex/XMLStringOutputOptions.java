@@ -27,7 +27,8 @@ import javax.xml.transform.TransformerFactory;
  */
 public class XMLStringOutputOptions extends DOMOutputOptions implements SerializationSpecifier {
     
-    private final SerializationOptions serializationOptions;
+    /** (Not final so that {@link #clone()} can take a copy of it) */
+    private SerializationOptions serializationOptions;
     
     public XMLStringOutputOptions() {
         super();
@@ -58,6 +59,7 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      * @param serializationMethod {@link SerializationMethod} to use, which must not be null.
      */
     public void setSerializationMethod(SerializationMethod serializationMethod) {
+        ensureNotFrozen();
         serializationOptions.setSerializationMethod(serializationMethod);
     }
 
@@ -79,6 +81,7 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      *   {@link TransformerFactory} that will end up doing the serialization.
      */
     public void setEncoding(String encoding) {
+        ensureNotFrozen();
         serializationOptions.setEncoding(encoding);
     }
 
@@ -106,6 +109,7 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      * @param indenting true to indent, false otherwise.
      */
     public void setIndenting(boolean indenting) {
+        ensureNotFrozen();
         serializationOptions.setIndenting(indenting);
     }
     
@@ -137,6 +141,7 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      * @since 1.2.3
      */
     public void setIndent(int indent) {
+        ensureNotFrozen();
         serializationOptions.setIndent(indent);
     }
 
@@ -155,6 +160,7 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      * @param includingXMLDeclaration true to include an XML declaration, false otherwise.
      */
     public void setIncludingXMLDeclaration(boolean includingXMLDeclaration) {
+        ensureNotFrozen();
         serializationOptions.setIncludingXMLDeclaration(includingXMLDeclaration);
     }
 
@@ -173,9 +179,9 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      * Sets whether to use named entities for certain MathML symbols rather than
      * numeric character references.
      * <p>
-     * Note that this requires an XSLT 2.0-compliant engine (e.g. Saxon, which is in the
-     * "full" SnuggleTeX distribution). This option will be silently ignored if you are
-     * using an XSLT 1.0 engine, such as the one which typically comes bundled with your JDK.
+     * Note that this is done by SnuggleTeX itself as the output is written, so works with
+     * any XSLT processor. (Prior to SnuggleTeX 1.3.1, this required an XSLT 2.0 processor and
+     * was silently ignored otherwise.)
      * <p>
      * (Also note that the resulting XML won't be parseable unless accompanied with a DTD
      * defining the MathML entities!)
@@ -184,6 +190,7 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      *   numeric character references.
      */
     public void setUsingNamedEntities(boolean usingNamedEntities) {
+        ensureNotFrozen();
         serializationOptions.setUsingNamedEntities(usingNamedEntities);
     }
 
@@ -205,6 +212,7 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      * @param doctypePublic public identifier to use, null for no identifier.
      */
     public void setDoctypePublic(String doctypePublic) {
+        ensureNotFrozen();
         serializationOptions.setDoctypePublic(doctypePublic);
     }
 
@@ -226,6 +234,18 @@ public class XMLStringOutputOptions extends DOMOutputOptions implements Serializ
      * @param doctypeSystem system identifier to use, null for no identifier.
      */
     public void setDoctypeSystem(String doctypeSystem) {
+        ensureNotFrozen();
         serializationOptions.setDoctypeSystem(doctypeSystem);
     }
+    
+    /**
+     * Returns a copy of these options, which will be mutable even if these options have
+     * been frozen.
+     */
+    @Override
+    public Object clone() {
+        XMLStringOutputOptions result = (XMLStringOutputOptions) super.clone();
+        result.serializationOptions = (SerializationOptions) serializationOptions.clone();
+        return result;
+    }
 }
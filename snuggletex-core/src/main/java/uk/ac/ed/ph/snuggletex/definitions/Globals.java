@@ -57,7 +57,11 @@ public final class Globals {
     /** Specifies the ClassPath location of the Stylesheet used by {@link XMLUtilities#serializeNodeChildren(uk.ac.ed.ph.snuggletex.utilities.StylesheetManager, org.w3c.dom.Node, SerializationSpecifier)} */
     public static final String EXTRACT_CHILD_NODES_XSL_RESOURCE_NAME = "classpath:/uk/ac/ed/ph/snuggletex/extract-child-nodes.xsl";
     
-    /** Specifies the location of the XSLT that converts MathML symbol characters to named entities */
+    /** 
+     * Specifies the location of the XSLT that converts MathML symbol characters to named entities.
+     * (As of SnuggleTeX 1.3.1, this is no longer applied as a stylesheet but provides the table
+     * used by {@link uk.ac.ed.ph.snuggletex.utilities.MathMLEntityWriter}.)
+     */
     public static final String MATHML_ENTITIES_MAP_XSL_RESOURCE_NAME = "classpath:/uk/ac/ed/ph/snuggletex/mathml-entities-map.xsl";
     
     /** Specifies the ClassPath location of the XHTML -&gt; no namespace used for serializing as legacy HTML */
@@ -46,4 +46,5 @@ public interface W3CConstants {
     String XLINK_NAMESPACE = W3C_BASE_URI + "1999/xlink";
     String MATHML_NAMESPACE = W3C_BASE_URI + "1998/Math/MathML";
     String MATHML_PREF_NAMESPACE = W3C_BASE_URI + "2002/Math/preference";
+    String SVG_NAMESPACE = W3C_BASE_URI + "2000/svg";
 }
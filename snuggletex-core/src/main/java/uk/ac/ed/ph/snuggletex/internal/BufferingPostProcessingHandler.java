@@ -0,0 +1,87 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.DOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.StreamingDOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.internal.util.ContentHandlerFilter;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.TransformerHandler;
+
+import org.w3c.dom.Document;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Adapts a "traditional" {@link DOMPostProcessor} (i.e. one that does not implement
+ * {@link StreamingDOMPostProcessor}) so that it can take part in a chain of streaming
+ * post-processors.
+ * <p>
+ * The incoming SAX events are buffered into a DOM {@link Document}, which is passed to
+ * {@link DOMPostProcessor#postProcessDOM(Document, DOMOutputOptions, StylesheetManager)} once
+ * the end of the document has been reached. The resulting {@link Document} is then streamed
+ * on to the next handler in the chain.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class BufferingPostProcessingHandler extends ContentHandlerFilter {
+
+    private final DOMPostProcessor domPostProcessor;
+    private final ContentHandler resultHandler;
+    private final DOMOutputOptions options;
+    private final StylesheetManager stylesheetManager;
+    private final Document workDocument;
+
+    public BufferingPostProcessingHandler(final DOMPostProcessor domPostProcessor,
+            final ContentHandler resultHandler, final DOMOutputOptions options,
+            final StylesheetManager stylesheetManager) {
+        this(domPostProcessor, resultHandler, options, stylesheetManager,
+                XMLUtilities.createNSAwareDocumentBuilder().newDocument());
+    }
+
+    private BufferingPostProcessingHandler(final DOMPostProcessor domPostProcessor,
+            final ContentHandler resultHandler, final DOMOutputOptions options,
+            final StylesheetManager stylesheetManager, final Document workDocument) {
+        super(createDOMBuildingHandler(stylesheetManager, workDocument));
+        this.domPostProcessor = domPostProcessor;
+        this.resultHandler = resultHandler;
+        this.options = options;
+        this.stylesheetManager = stylesheetManager;
+        this.workDocument = workDocument;
+    }
+
+    private static TransformerHandler createDOMBuildingHandler(final StylesheetManager stylesheetManager,
+            final Document workDocument) {
+        TransformerHandler domBuildingHandler = stylesheetManager.getIdentityTransformerHandler();
+        domBuildingHandler.setResult(new DOMResult(workDocument));
+        return domBuildingHandler;
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        /* Finish building up the workDocument */
+        super.endDocument();
+
+        /* Let post-processor do its thing, then stream the result on */
+        Document outputDocument = domPostProcessor.postProcessDOM(workDocument, options, stylesheetManager);
+        try {
+            stylesheetManager.getTransformerFactory(false).newTransformer()
+                .transform(new DOMSource(outputDocument), createSAXResult(resultHandler));
+        }
+        catch (TransformerException e) {
+            throw new SAXException("Could not stream results of DOMPostProcessor " + domPostProcessor, e);
+        }
+    }
+}
@@ -96,6 +96,12 @@ public final class DOMBuilder {
     
     private final ArrayListStack<ComputedStyle> textStyleStack;
     
+    /** Number of MathML islands built so far, reported via SnuggleMetricsListener */
+    private int mathIslandCount;
+    
+    /** Number of error elements built so far, used to apply the session's error limit */
+    private int errorElementCount;
+    
     //-------------------------------------------
     
     public DOMBuilder(final SessionContext sessionContext, final Element buildRootElement,
@@ -127,6 +133,8 @@ public final class DOMBuilder {
         /* Reset state */
         mathVariantMapStack.clear();
         textStyleStack.clear();
+        mathIslandCount = 0;
+        errorElementCount = 0;
         
         /* Do work */
         currentOutputContext = OutputContext.XHTML;
@@ -147,6 +155,16 @@ public final class DOMBuilder {
     //-------------------------------------------
     // Usual Accessors
     
+    /**
+     * Returns the number of MathML islands built by the last call to
+     * {@link #buildDOMSubtree(List)}.
+     * 
+     * @since 1.3.1
+     */
+    public int getMathIslandCount() {
+        return mathIslandCount;
+    }
+    
     public SessionContext getSessionContext() {
         return sessionContext;
     }
@@ -843,6 +861,7 @@ public final class DOMBuilder {
         
         /* Create <math>...</math> container with appropriate attributes */
         Element math = appendMathMLElement(parentElement, "math");
+        mathIslandCount++;
         if (isDisplayMath) {
             math.setAttribute("display", "block");
         }
@@ -993,6 +1012,12 @@ public final class DOMBuilder {
     public Element appendErrorElement(final Element parentElement, final ErrorToken errorToken) {
         ErrorOutputOptions errorOptions = options.getErrorOutputOptions();
         Element errorElement;
+        
+        /* Once the error limit has been reached, only output error codes as full error
+         * messages are relatively expensive to build */
+        int errorLimit = sessionContext.getConfiguration().getErrorLimit();
+        boolean fullDetails = errorLimit<=0 || errorElementCount<errorLimit;
+        errorElementCount++;
         switch (errorOptions) {
             case NO_OUTPUT:
                 /* Add nothing */
@@ -1004,7 +1029,7 @@ public final class DOMBuilder {
                 errorElement = MessageFormatter.formatErrorAsXML(document,
                         options,
                         errorToken.getError(),
-                        errorOptions==ErrorOutputOptions.XML_FULL);
+                        fullDetails && errorOptions==ErrorOutputOptions.XML_FULL);
                 parentElement.appendChild(errorElement);
                 break;
                 
@@ -1019,7 +1044,7 @@ public final class DOMBuilder {
                 
                 /* Output full XHTML fragment as a child of the nearest non-MathML ancestor-or-self */
                 Element ancestorElement = findNearestXHTMLAncestorOrSelf(parentElement);
-                errorElement = MessageFormatter.formatErrorAsXHTML(document, errorToken.getError());
+                errorElement = MessageFormatter.formatErrorAsXHTML(document, errorToken.getError(), fullDetails);
                 ancestorElement.appendChild(errorElement);
                 break;
                 
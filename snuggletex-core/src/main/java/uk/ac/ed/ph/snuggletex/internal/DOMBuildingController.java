@@ -8,20 +8,35 @@ package uk.ac.ed.ph.snuggletex.internal;
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.DOMPostProcessor;
 import uk.ac.ed.ph.snuggletex.SnuggleConstants;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Counter;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Stage;
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+import uk.ac.ed.ph.snuggletex.StreamingDOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.internal.util.ContentHandlerFilter;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 import uk.ac.ed.ph.snuggletex.tokens.FlowToken;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 
 import java.util.List;
 
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.TransformerHandler;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xml.sax.ContentHandler;
 
 /**
  * This is the main entry point into the DOM generation process. This uses a {@link DOMBuilder} to
  * build the raw DOM and then does any further work on the resulting DOM as specified by the
  * {@link DOMOutputOptions}.
+ * <p>
+ * Any {@link DOMPostProcessor}s are run as a single streaming chain, so that no intermediate
+ * {@link Document}s are created for those implementing {@link StreamingDOMPostProcessor}.
  *
  * @author  David McKain
  * @version $Revision$
@@ -38,11 +53,35 @@ public final class DOMBuildingController {
     
     public void buildDOMSubtree(final Element targetRoot, final List<FlowToken> fixedTokens)
             throws SnuggleParseException {
+        SnuggleMetricsListener metricsListener = sessionContext.getMetricsListener();
+        if (metricsListener==null) {
+            doBuildDOMSubtree(targetRoot, fixedTokens, null);
+        }
+        else {
+            int initialErrorCount = getErrorCount();
+            try {
+                doBuildDOMSubtree(targetRoot, fixedTokens, metricsListener);
+            }
+            finally {
+                metricsListener.countRecorded(Counter.ERRORS, getErrorCount() - initialErrorCount);
+            }
+        }
+    }
+    
+    /** Returns the number of errors so far, including those over the error limit */
+    private int getErrorCount() {
+        return sessionContext.getErrors().size() + sessionContext.getOverflowErrorCount();
+    }
+    
+    private void doBuildDOMSubtree(final Element targetRoot, final List<FlowToken> fixedTokens,
+            final SnuggleMetricsListener metricsListener)
+            throws SnuggleParseException {
         DOMPostProcessor[] domPostProcessors = options.getDOMPostProcessors();
+        long startTime = metricsListener!=null ? System.nanoTime() : 0L;
         if (domPostProcessors!=null && domPostProcessors.length>0) {
-            /* We run through each Post-Processor in turn, building a temporary "outputDocument"
-             * and then using it as an input for the next stage. The final outputDocument is
-             * used to decide what gets added into the target Document.
+            /* We build the raw DOM into a temporary "workDocument", which is then streamed
+             * through a chain of SAX handlers built from each post-processor, the last of which
+             * adds its results into the target Document.
              */
             Document workDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
             Element workRoot = workDocument.createElementNS(SnuggleConstants.SNUGGLETEX_NAMESPACE, "root");
@@ -51,42 +90,100 @@ public final class DOMBuildingController {
             /* Do raw DOM Building */
             DOMBuilder domBuilder = new DOMBuilder(sessionContext, workRoot, options);
             domBuilder.buildDOMSubtree(fixedTokens);
+            if (metricsListener!=null) {
+                recordDOMBuilding(metricsListener, domBuilder, startTime);
+                startTime = System.nanoTime();
+            }
 
             /* Now let each post-processor mess around with the DOM */
-            for (int processorIndex=0; processorIndex<domPostProcessors.length; processorIndex++) {
-                DOMPostProcessor domPostProcessor = domPostProcessors[processorIndex];
-                
-                /* Now let post-processor do its thing */
-                Document outputDocument = domPostProcessor.postProcessDOM(workDocument, options, sessionContext.getStylesheetManager());
-                
-                Element adoptRoot;
-                if (processorIndex==domPostProcessors.length-1) {
-                    /* This is the final step, so add to targetRoot */
-                    adoptRoot = targetRoot;
-                }
-                else {
-                    /* Still go more steps to do, so we will be reusing workRoot.... */
-                    adoptRoot = workRoot;
-                    /* ...but need to remove existing child Nodes first */
-                    NodeList toDelete = workRoot.getChildNodes();
-                    for (int i=toDelete.getLength()-1; i>=0; i--) {
-                        workRoot.removeChild(toDelete.item(i));
-                    }
-                }
-                /* Adopt nodes from outputDocument to adoptRoot */
-                Element resultRoot = outputDocument.getDocumentElement();
-                NodeList childNodes = resultRoot.getChildNodes();
-                Node childNode;
-                for (int i=0, size=childNodes.getLength(); i<size; i++) {
-                    childNode = childNodes.item(0); /* (Adopting each child moves subsequent ones back!) */
-                    adoptRoot.appendChild(adoptRoot.getOwnerDocument().adoptNode(childNode));
-                }
+            streamThroughPostProcessors(workDocument, targetRoot, domPostProcessors, metricsListener);
+            if (metricsListener!=null) {
+                metricsListener.stageCompleted(Stage.POST_PROCESSING, System.nanoTime() - startTime);
             }
         }
         else {
             /* Just build as normal */
             DOMBuilder domBuilder = new DOMBuilder(sessionContext, targetRoot, options);
             domBuilder.buildDOMSubtree(fixedTokens);
+            if (metricsListener!=null) {
+                recordDOMBuilding(metricsListener, domBuilder, startTime);
+            }
+        }
+    }
+    
+    private void recordDOMBuilding(final SnuggleMetricsListener metricsListener,
+            final DOMBuilder domBuilder, final long startTime) {
+        metricsListener.stageCompleted(Stage.DOM_BUILDING, System.nanoTime() - startTime);
+        metricsListener.countRecorded(Counter.MATH_ISLANDS, domBuilder.getMathIslandCount());
+    }
+    
+    /**
+     * Streams the given workDocument through the given {@link DOMPostProcessor}s in a single
+     * pass, adding the children of the final root element to the given targetRoot.
+     * <p>
+     * The chain is built backwards, starting with a handler that builds the final DOM and
+     * working back towards the first post-processor. Post-processors that don't implement
+     * {@link StreamingDOMPostProcessor} are adapted using a {@link BufferingPostProcessingHandler}.
+     * <p>
+     * If a {@link SnuggleMetricsListener} is provided, then a {@link TimingContentHandler} is
+     * put in front of each stage in order to work out how long each post-processor took.
+     */
+    private void streamThroughPostProcessors(final Document workDocument, final Element targetRoot,
+            final DOMPostProcessor[] domPostProcessors, final SnuggleMetricsListener metricsListener) {
+        StylesheetManager stylesheetManager = sessionContext.getStylesheetManager();
+        
+        /* Final stage adds the resulting root element into targetRoot */
+        TransformerHandler domBuildingHandler = stylesheetManager.getIdentityTransformerHandler();
+        domBuildingHandler.setResult(new DOMResult(targetRoot));
+        ContentHandler chainHandler = domBuildingHandler;
+        TimingContentHandler[] timingHandlers = null;
+        if (metricsListener!=null) {
+            timingHandlers = new TimingContentHandler[domPostProcessors.length + 1];
+            timingHandlers[domPostProcessors.length] = new TimingContentHandler(chainHandler);
+            chainHandler = timingHandlers[domPostProcessors.length];
+        }
+        
+        /* Then work backwards through the post-processors */
+        for (int processorIndex=domPostProcessors.length-1; processorIndex>=0; processorIndex--) {
+            DOMPostProcessor domPostProcessor = domPostProcessors[processorIndex];
+            if (domPostProcessor instanceof StreamingDOMPostProcessor) {
+                chainHandler = ((StreamingDOMPostProcessor) domPostProcessor)
+                    .createPostProcessingHandler(chainHandler, options, stylesheetManager);
+            }
+            else {
+                chainHandler = new BufferingPostProcessingHandler(domPostProcessor, chainHandler,
+                        options, stylesheetManager);
+            }
+            if (timingHandlers!=null) {
+                timingHandlers[processorIndex] = new TimingContentHandler(chainHandler);
+                chainHandler = timingHandlers[processorIndex];
+            }
+        }
+        
+        /* Finally stream the raw DOM through the resulting chain */
+        try {
+            stylesheetManager.getTransformerFactory(false).newTransformer()
+                .transform(new DOMSource(workDocument), ContentHandlerFilter.createSAXResult(chainHandler));
+        }
+        catch (TransformerException e) {
+            throw new SnuggleRuntimeException("Unexpected Exception running DOMPostProcessor chain", e);
+        }
+        
+        /* Report the time taken by each post-processor, if required */
+        if (timingHandlers!=null) {
+            for (int processorIndex=0; processorIndex<domPostProcessors.length; processorIndex++) {
+                metricsListener.postProcessorCompleted(domPostProcessors[processorIndex],
+                        timingHandlers[processorIndex].getElapsedNanos()
+                        - timingHandlers[processorIndex+1].getElapsedNanos());
+            }
+        }
+        
+        /* Finally, replace the resulting root element with its children */
+        Node resultRoot = targetRoot.getLastChild();
+        Node childNode;
+        while ((childNode = resultRoot.getFirstChild())!=null) {
+            targetRoot.insertBefore(childNode, resultRoot);
         }
+        targetRoot.removeChild(resultRoot);
     }
 }
@@ -11,6 +11,7 @@ import uk.ac.ed.ph.snuggletex.NumberMatcher;
 import uk.ac.ed.ph.snuggletex.SimpleNumberMatcher;
 import uk.ac.ed.ph.snuggletex.SnuggleInput;
 import uk.ac.ed.ph.snuggletex.SnuggleLogicException;
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinCommand;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinEnvironment;
 import uk.ac.ed.ph.snuggletex.definitions.Command;
@@ -127,6 +128,18 @@ public final class LaTeXTokeniser {
     /** Stack of open environments */
     private final ArrayListStack<String> openEnvironmentStack;
     
+    //-----------------------------------------
+    // Statistics about the last tokenisation, reported via SnuggleMetricsListener
+    
+    /** Length of the last input tokenised, before any substitutions */
+    private int inputLength;
+    
+    /** Number of tokens created during the last tokenisation */
+    private int tokenCount;
+    
+    /** Number of user-defined command and environment substitutions during the last tokenisation */
+    private int macroExpansionCount;
+    
     /**
      * Represents the "terminator" characters that signify the end of a parsing mode. I have
      * made this an interface is some terminators are static Strings, whereas others are best
@@ -288,6 +301,21 @@ public final class LaTeXTokeniser {
         this.numberMatcher = ourNumberMatcher;
     }
     
+    /** Returns the length of the last input tokenised, before any substitutions were made */
+    public int getInputLength() {
+        return inputLength;
+    }
+    
+    /** Returns the number of tokens created during the last tokenisation */
+    public int getTokenCount() {
+        return tokenCount;
+    }
+    
+    /** Returns the number of user-defined commands and environments expanded during the last tokenisation */
+    public int getMacroExpansionCount() {
+        return macroExpansionCount;
+    }
+    
     /**  Resets the parsing state of this tokeniser. */
     public void reset() {
         workingDocument = null;
@@ -309,6 +337,9 @@ public final class LaTeXTokeniser {
         
         /* Create WorkingDocument for this input */
         this.workingDocument = reader.createWorkingDocument();
+        this.inputLength = workingDocument.length();
+        this.tokenCount = 0;
+        this.macroExpansionCount = 0;
         
         /* Parse document in "top level" mode */
         try {
@@ -350,6 +381,7 @@ public final class LaTeXTokeniser {
         FlowToken token;
         while ((token = readNextToken())!=null) {
             currentModeState.tokens.add(token);
+            tokenCount++;
         }
         
         /*
@@ -478,6 +510,12 @@ public final class LaTeXTokeniser {
      */
     private ErrorToken makeSubstitutionAndRewind(final int startIndex, final int endIndex,
             final CharSequence replacement) throws SnuggleParseException {
+        if (Thread.currentThread().isInterrupted()) {
+            /* Give up if the caller has been interrupted, e.g. because a conversion has taken
+             * too long. (We check here as user-defined expansions are what can blow up.) */
+            throw new SnuggleRuntimeException(new InterruptedException("Tokenisation interrupted after "
+                    + macroExpansionCount + " expansion(s)"));
+        }
         int expansionLimit = sessionContext.getConfiguration().getExpansionLimit();
         if (expansionLimit>0 && workingDocument.getSubstitutionDepth(startIndex) >= expansionLimit) {
             /* Fail: Substitution limit exceeded (avoids infinite recursion) */
@@ -1384,6 +1422,7 @@ public final class LaTeXTokeniser {
          * then continue parsing as normal.
          */
         int afterCommandIndex = position;
+        macroExpansionCount++;
         errorToken = makeSubstitutionAndRewind(startTokenIndex, afterCommandIndex, replacement);
         return errorToken==null ? readNextToken() : errorToken;
     }
@@ -1795,6 +1834,7 @@ public final class LaTeXTokeniser {
       
         /* Substitute our \begin{...} clause with the replacement */
         int endBeginIndex = position;
+        macroExpansionCount++;
         errorToken = makeSubstitutionAndRewind(startTokenIndex, endBeginIndex, resolvedBegin);
         if (errorToken!=null) {
             return errorToken;
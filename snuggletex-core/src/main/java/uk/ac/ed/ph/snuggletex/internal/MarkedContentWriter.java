@@ -0,0 +1,145 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Filtering {@link Writer} that passes through only the characters written between the first
+ * occurrence of a start marker and the next occurrence of an end marker, discarding everything
+ * else (including the markers themselves).
+ * <p>
+ * This is used by {@link WebPageBuilder} to pick the content of the <tt>body</tt> element out
+ * of a serialized page as it is being written.
+ * <p>
+ * Each marker must not contain its own first character anywhere else, which is the case for
+ * XML comments.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class MarkedContentWriter extends Writer {
+
+    private static final int BEFORE_CONTENT = 0;
+    private static final int IN_CONTENT = 1;
+    private static final int AFTER_CONTENT = 2;
+
+    private final Writer target;
+    private final String startMarker;
+    private final String endMarker;
+
+    /** Set to discard any whitespace immediately before the end marker */
+    private final boolean trimmingTrailingWhitespace;
+
+    /**
+     * Characters within the content that are being held back until we know whether they
+     * are part of the end marker (or trailing whitespace)
+     */
+    private final StringBuilder pending;
+
+    private int state;
+
+    /** Number of characters of the current marker matched so far */
+    private int matched;
+
+    public MarkedContentWriter(final Writer target, final String startMarker, final String endMarker,
+            final boolean trimmingTrailingWhitespace) {
+        this.target = target;
+        this.startMarker = startMarker;
+        this.endMarker = endMarker;
+        this.trimmingTrailingWhitespace = trimmingTrailingWhitespace;
+        this.pending = new StringBuilder();
+        this.state = BEFORE_CONTENT;
+        this.matched = 0;
+    }
+
+    /**
+     * Returns whether the end marker has been written.
+     */
+    public boolean isComplete() {
+        return state==AFTER_CONTENT;
+    }
+
+    @Override
+    public void write(final char[] buffer, final int offset, final int length) throws IOException {
+        int start = offset; /* (Start of characters that can be passed through in one go) */
+        for (int i=offset, end=offset+length; i<end; i++) {
+            char c = buffer[i];
+            switch (state) {
+                case BEFORE_CONTENT:
+                    if (c==startMarker.charAt(matched)) {
+                        if (++matched==startMarker.length()) {
+                            state = IN_CONTENT;
+                            matched = 0;
+                            start = i + 1;
+                        }
+                    }
+                    else {
+                        matched = c==startMarker.charAt(0) ? 1 : 0;
+                    }
+                    break;
+
+                case IN_CONTENT:
+                    if (matched>0 || c==endMarker.charAt(0)
+                            || (trimmingTrailingWhitespace && Character.isWhitespace(c))) {
+                        /* Hold back this character */
+                        target.write(buffer, start, i - start);
+                        start = i + 1;
+                        if (matched>0 && c!=endMarker.charAt(matched)) {
+                            /* Not the end marker after all, so release what was held back and
+                             * reconsider this character */
+                            target.append(pending);
+                            pending.setLength(0);
+                            matched = 0;
+                        }
+                        if (c==endMarker.charAt(matched)) {
+                            pending.append(c);
+                            if (++matched==endMarker.length()) {
+                                pending.setLength(0);
+                                state = AFTER_CONTENT;
+                            }
+                        }
+                        else if (matched==0 && trimmingTrailingWhitespace && Character.isWhitespace(c)) {
+                            pending.append(c);
+                        }
+                        else {
+                            target.append(pending).append(c);
+                            pending.setLength(0);
+                        }
+                    }
+                    else if (pending.length()>0) {
+                        /* Held back whitespace was not trailing after all */
+                        target.append(pending);
+                        pending.setLength(0);
+                    }
+                    break;
+
+                default:
+                    /* (Discard everything after the end marker) */
+                    return;
+            }
+        }
+        if (state==IN_CONTENT) {
+            target.write(buffer, start, offset + length - start);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    /**
+     * Flushes the underlying {@link Writer}, but does not close it.
+     */
+    @Override
+    public void close() throws IOException {
+        target.flush();
+    }
+}
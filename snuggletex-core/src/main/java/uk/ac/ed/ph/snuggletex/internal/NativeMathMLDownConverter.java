@@ -0,0 +1,367 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal;
+
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLDownConverter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Hand-written Java implementation of the rules in <tt>mathml-to-xhtml.xsl</tt>, used by
+ * the {@link MathMLDownConverter} as a fast path that avoids running XSLT.
+ * <p>
+ * The XSLT remains the reference implementation. Each MathML island is checked first
+ * and {@link #downConvertMathIsland(Element, Node)} returns false for anything these rules
+ * don't cover, in which case the caller should fall back to the XSLT for that island.
+ * <p>
+ * An instance of this class is immutable and may be shared by multiple Threads.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class NativeMathMLDownConverter {
+
+    /** Local names of MathML elements that may appear inside an island that can be down-converted */
+    private static final Set<String> CONVERTIBLE_ELEMENT_NAMES = new HashSet<String>(Arrays.asList(
+        "semantics", "annotation", "mi", "mo", "mn", "mrow", "msup", "msub", "mfenced", "mspace", "mtext"
+    ));
+
+    /** Invisible times (U+2062) */
+    private static final String INVISIBLE_TIMES = "\u2062";
+
+    /** Apply function (U+2061) */
+    private static final String APPLY_FUNCTION = "\u2061";
+
+    /** CSS properties to inline, or null if nothing is to be inlined */
+    private final Properties cssProperties;
+
+    public NativeMathMLDownConverter(final Properties cssProperties) {
+        this.cssProperties = cssProperties;
+    }
+
+    /**
+     * Down-converts the given MathML <tt>math</tt> element, appending the results to the given
+     * outputParentNode. (If the island is too complex to be down-converted then it is simply
+     * copied.)
+     *
+     * @return true if the island was handled, false if it contains something that these rules
+     *   don't cover, in which case nothing will have been added to the outputParentNode.
+     */
+    public boolean downConvertMathIsland(final Element mathElement, final Node outputParentNode) {
+        if (hasNamespacedAttributes(mathElement) || !isSupported(mathElement)) {
+            return false;
+        }
+        Document outputDocument = getOwnerDocument(outputParentNode);
+        if (isConvertible(mathElement)) {
+            boolean isBlock = "block".equals(mathElement.getAttribute("display"));
+            String elementName = isBlock ? "div" : "span";
+            Element result = appendXHTMLElement(outputDocument, outputParentNode, elementName, "mathml-math");
+            applyTemplates(mathElement, outputDocument, result);
+        }
+        else {
+            copyMathMLElement(mathElement, outputDocument, outputParentNode, true);
+        }
+        return true;
+    }
+
+    /**
+     * Deep copies the given MathML element in the same way as <tt>xsl:copy-of</tt> would,
+     * with the namespace declaration on the island's root element coming before any other
+     * attributes.
+     */
+    private void copyMathMLElement(final Element element, final Document outputDocument,
+            final Node outputParentNode, final boolean isIslandRoot) {
+        Element result = outputDocument.createElementNS(W3CConstants.MATHML_NAMESPACE, element.getLocalName());
+        if (isIslandRoot) {
+            result.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE,
+                    W3CConstants.MATHML_NAMESPACE);
+        }
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i=0, size=attributes.getLength(); i<size; i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (attribute.getNamespaceURI()==null) {
+                result.setAttribute(attribute.getName(), attribute.getValue());
+            }
+        }
+        outputParentNode.appendChild(result);
+        for (Node child = element.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    copyMathMLElement((Element) child, outputDocument, result, false);
+                    break;
+
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    appendText(outputDocument, result, child.getNodeValue());
+                    break;
+
+                case Node.COMMENT_NODE:
+                    result.appendChild(outputDocument.createComment(child.getNodeValue()));
+                    break;
+
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    result.appendChild(outputDocument.importNode(child, false));
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Tests whether the given island contains only things that these rules handle in exactly
+     * the same way as the XSLT. We leave the following to the XSLT:
+     * <ul>
+     *   <li>
+     *     Foreign elements (e.g. from <tt>\xmlInlineElement</tt>), as <tt>xsl:copy</tt> also
+     *     copies in-scope namespace declarations;
+     *   </li>
+     *   <li>
+     *     Attributes in a namespace (other than a declaration of the MathML namespace itself),
+     *     which would introduce further namespace declarations;
+     *   </li>
+     *   <li>
+     *     Identifiers involving surrogate pairs, as string lengths of these differ between
+     *     XSLT processors.
+     *   </li>
+     * </ul>
+     */
+    private boolean isSupported(final Node node) {
+        for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    if (!isMathMLElement(child, null) || hasNamespacedAttributes(child)) {
+                        return false;
+                    }
+                    if (isMathMLElement(child, "mi") && hasSurrogates(child.getTextContent())) {
+                        return false;
+                    }
+                    if (!isSupported(child)) {
+                        return false;
+                    }
+                    break;
+
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                case Node.COMMENT_NODE:
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    break;
+
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Implements the match on the first <tt>m:math</tt> template, i.e. an island can only be
+     * down-converted if it contains only "simple" MathML elements.
+     */
+    private boolean isConvertible(final Node node) {
+        for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (child.getNodeType()==Node.ELEMENT_NODE) {
+                if (isMathMLElement(child, null) && !CONVERTIBLE_ELEMENT_NAMES.contains(child.getLocalName())) {
+                    return false;
+                }
+                if (!isConvertible(child)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equivalent of <tt>xsl:apply-templates</tt> on the children of the given Node, using the
+     * built-in templates for text, comments and processing instructions.
+     */
+    private void applyTemplates(final Node inputNode, final Document outputDocument, final Node outputParentNode) {
+        for (Node child = inputNode.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    handleElement((Element) child, outputDocument, outputParentNode);
+                    break;
+
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    appendText(outputDocument, outputParentNode, child.getNodeValue());
+                    break;
+
+                default:
+                    /* (Comments and PIs are ignored by built-in templates) */
+                    break;
+            }
+        }
+    }
+
+    private void handleElement(final Element element, final Document outputDocument, final Node outputParentNode) {
+        String localName = isMathMLElement(element, null) ? element.getLocalName() : "";
+        if (localName.equals("semantics")) {
+            /* Ignore annotations */
+            applyTemplatesToElementChild(element, 1, outputDocument, outputParentNode);
+        }
+        else if (localName.equals("mi")) {
+            String value = element.getTextContent();
+            String className = value.length()==1 ? "mi-single" : "mi-multiple";
+            appendText(outputDocument, appendXHTMLElement(outputDocument, outputParentNode, "span", className), value);
+        }
+        else if (localName.equals("mo")) {
+            String value = element.getTextContent();
+            if (!value.equals(INVISIBLE_TIMES) && !value.equals(APPLY_FUNCTION)) {
+                appendText(outputDocument, appendXHTMLElement(outputDocument, outputParentNode, "span", "mo"), value);
+            }
+            /* (Invisible times and apply function operators get stripped out) */
+        }
+        else if (localName.equals("mn") || localName.equals("mtext")) {
+            appendText(outputDocument, appendXHTMLElement(outputDocument, outputParentNode, "span", localName),
+                    element.getTextContent());
+        }
+        else if (localName.equals("mrow")) {
+            applyTemplates(element, outputDocument, appendXHTMLElement(outputDocument, outputParentNode, "span", "mrow"));
+        }
+        else if (localName.equals("msup") || localName.equals("msub")) {
+            Element result = appendXHTMLElement(outputDocument, outputParentNode, "span", localName);
+            applyTemplatesToElementChild(element, 1, outputDocument, result);
+            Element script = outputDocument.createElementNS(W3CConstants.XHTML_NAMESPACE,
+                    localName.equals("msup") ? "sup" : "sub");
+            result.appendChild(script);
+            applyTemplatesToElementChild(element, 2, outputDocument, script);
+        }
+        else if (localName.equals("mfenced")) {
+            handleMfenced(element, outputDocument, outputParentNode);
+        }
+        else if (localName.equals("mspace")) {
+            Element result = outputDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, "span");
+            result.setAttribute("class", "mspace");
+            result.setAttribute("style", "width:" + element.getAttribute("width"));
+            result.appendChild(outputDocument.createTextNode("\u00a0"));
+            outputParentNode.appendChild(result);
+        }
+        else {
+            /* Generic copy of element plus attributes, then process children */
+            Element result = (Element) outputDocument.importNode(element, false);
+            outputParentNode.appendChild(result);
+            applyTemplates(element, outputDocument, result);
+        }
+    }
+
+    private void handleMfenced(final Element mfenced, final Document outputDocument, final Node outputParentNode) {
+        appendText(outputDocument, appendXHTMLElement(outputDocument, outputParentNode, "span", "mo"),
+                mfenced.getAttribute("open"));
+        for (Node child = mfenced.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (child.getNodeType()!=Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element childElement = (Element) child;
+            handleElement(childElement, outputDocument, outputParentNode);
+            if (getNextElementSibling(childElement)!=null) {
+                /* (Note that the XSLT looks for the separator on each child, which we replicate here) */
+                Element separator = appendXHTMLElement(outputDocument, outputParentNode, "span", "mo");
+                appendText(outputDocument, separator, childElement.hasAttribute("separator")
+                        ? childElement.getAttribute("separator") : ",");
+            }
+        }
+        appendText(outputDocument, appendXHTMLElement(outputDocument, outputParentNode, "span", "mo"),
+                mfenced.getAttribute("close"));
+    }
+
+    private void applyTemplatesToElementChild(final Element element, final int position,
+            final Document outputDocument, final Node outputParentNode) {
+        int count = 0;
+        for (Node child = element.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (child.getNodeType()==Node.ELEMENT_NODE && ++count==position) {
+                handleElement((Element) child, outputDocument, outputParentNode);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Equivalent of the <tt>add-css-class</tt> template, creating a new XHTML element with
+     * the given name and CSS class and appending it to the given parent.
+     */
+    private Element appendXHTMLElement(final Document outputDocument, final Node outputParentNode,
+            final String elementName, final String className) {
+        Element result = outputDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, elementName);
+        result.setAttribute("class", className);
+        if (cssProperties!=null) {
+            String style = cssProperties.getProperty(elementName + "." + className);
+            if (style==null || style.length()==0) {
+                style = cssProperties.getProperty("." + className);
+            }
+            if (style!=null && style.length()!=0) {
+                result.setAttribute("style", style);
+            }
+        }
+        outputParentNode.appendChild(result);
+        return result;
+    }
+
+    private static void appendText(final Document outputDocument, final Node outputParentNode, final String text) {
+        if (text.length()!=0) {
+            outputParentNode.appendChild(outputDocument.createTextNode(text));
+        }
+    }
+
+    private static Element getNextElementSibling(final Element element) {
+        for (Node sibling = element.getNextSibling(); sibling!=null; sibling = sibling.getNextSibling()) {
+            if (sibling.getNodeType()==Node.ELEMENT_NODE) {
+                return (Element) sibling;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isMathMLElement(final Node node, final String localName) {
+        return node.getNodeType()==Node.ELEMENT_NODE
+            && W3CConstants.MATHML_NAMESPACE.equals(node.getNamespaceURI())
+            && (localName==null || localName.equals(node.getLocalName()));
+    }
+
+    private static boolean hasNamespacedAttributes(final Node element) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i=0, size=attributes.getLength(); i<size; i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String namespaceURI = attribute.getNamespaceURI();
+            if (namespaceURI!=null && !(XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespaceURI)
+                    && XMLConstants.XMLNS_ATTRIBUTE.equals(attribute.getName())
+                    && W3CConstants.MATHML_NAMESPACE.equals(attribute.getValue()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasSurrogates(final String string) {
+        for (int i=0, length=string.length(); i<length; i++) {
+            char c = string.charAt(i);
+            if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Document getOwnerDocument(final Node node) {
+        return node.getNodeType()==Node.DOCUMENT_NODE ? (Document) node : node.getOwnerDocument();
+    }
+}
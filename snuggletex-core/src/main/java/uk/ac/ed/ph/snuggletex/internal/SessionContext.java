@@ -7,6 +7,7 @@ package uk.ac.ed.ph.snuggletex.internal;
 
 import uk.ac.ed.ph.snuggletex.InputError;
 import uk.ac.ed.ph.snuggletex.SessionConfiguration;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinCommand;
 import uk.ac.ed.ph.snuggletex.definitions.BuiltinEnvironment;
 import uk.ac.ed.ph.snuggletex.definitions.MathCharacter;
@@ -29,6 +30,14 @@ public interface SessionContext {
 
     List<InputError> getErrors();
     
+    /**
+     * Returns the number of errors that have not been recorded in {@link #getErrors()}
+     * because the error limit had been reached.
+     * 
+     * @since 1.3.1
+     */
+    int getOverflowErrorCount();
+    
     MathCharacter getMathCharacter(int codePoint);
 
     BuiltinCommand getBuiltinCommandByTeXName(String texName);
@@ -41,5 +50,13 @@ public interface SessionContext {
     
     StylesheetManager getStylesheetManager();
     
+    /**
+     * Returns the {@link SnuggleMetricsListener} to notify about the various stages of
+     * processing, or null if no metrics are being recorded.
+     * 
+     * @since 1.3.1
+     */
+    SnuggleMetricsListener getMetricsListener();
+    
     void registerError(InputError error) throws SnuggleParseException;
 }
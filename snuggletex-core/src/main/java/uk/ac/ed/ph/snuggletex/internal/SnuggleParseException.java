@@ -23,9 +23,14 @@ public final class SnuggleParseException extends Exception {
     private final InputError error;
     
     public SnuggleParseException(InputError error) {
-        super(MessageFormatter.formatErrorAsString(error));
         this.error = error;
     }
+    
+    /** (The message is only built when asked for, as it's often not needed) */
+    @Override
+    public String getMessage() {
+        return MessageFormatter.formatErrorAsString(error);
+    }
 
     public InputError getError() {
         return error;
@@ -0,0 +1,183 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal;
+
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener;
+import uk.ac.ed.ph.snuggletex.internal.util.ContentHandlerFilter;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * {@link ContentHandlerFilter} that passes all events on unchanged, keeping a running total
+ * of the time spent inside the target handler.
+ * <p>
+ * This is used by {@link DOMBuildingController} to time each post-processor in a streaming
+ * chain when a {@link SnuggleMetricsListener} has been registered. As each handler in the
+ * chain calls the next one, the time recorded here includes the time spent by all subsequent
+ * handlers, so the time for a single post-processor is obtained by subtracting the time
+ * recorded just after it.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class TimingContentHandler extends ContentHandlerFilter {
+
+    private long elapsedNanos;
+
+    public TimingContentHandler(final ContentHandler targetHandler) {
+        super(targetHandler);
+        this.elapsedNanos = 0L;
+    }
+
+    /** Returns the total time spent inside the target handler so far, in nanoseconds */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    //-----------------------------------------------------------
+    // ContentHandler methods
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        long startTime = System.nanoTime();
+        try {
+            super.setDocumentLocator(locator);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.startDocument();
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.endDocument();
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.startPrefixMapping(prefix, uri);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.endPrefixMapping(prefix);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts)
+            throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.startElement(uri, localName, qName, atts);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.endElement(uri, localName, qName);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.characters(ch, start, length);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.ignorableWhitespace(ch, start, length);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.processingInstruction(target, data);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.skippedEntity(name);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+
+    //-----------------------------------------------------------
+    // LexicalHandler methods (only comments are likely to be of any significance here)
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        long startTime = System.nanoTime();
+        try {
+            super.comment(ch, start, length);
+        }
+        finally {
+            elapsedNanos += System.nanoTime() - startTime;
+        }
+    }
+}
@@ -6,10 +6,14 @@
 package uk.ac.ed.ph.snuggletex.internal;
 
 import uk.ac.ed.ph.snuggletex.SerializationMethod;
+import uk.ac.ed.ph.snuggletex.SnuggleLogicException;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Stage;
 import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
 import uk.ac.ed.ph.snuggletex.SnuggleSession.EndOutputAction;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
 import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.ChannelWriter;
 import uk.ac.ed.ph.snuggletex.internal.util.ObjectUtilities;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 import uk.ac.ed.ph.snuggletex.tokens.FlowToken;
@@ -18,15 +22,21 @@ import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Method;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
 
 import javax.xml.XMLConstants;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
@@ -38,6 +48,11 @@ import org.w3c.dom.Element;
 /**
  * Builds a web page from a {@link List} of fixed {@link FlowToken}s, using the supplied
  * {@link WebPageOutputOptions} to determine the exact form of the results.
+ * <p>
+ * When writing out pages for frozen {@link WebPageOutputOptions} that don't specify any
+ * stylesheets, the parts of the page that don't depend on the input are rendered once
+ * into a {@link WebPageChrome} and reused, so that only the content of the <tt>body</tt>
+ * element needs to be built and serialized for each page.
  *
  * @author  David McKain
  * @version $Revision$
@@ -49,18 +64,54 @@ public final class WebPageBuilder {
      */
     public static final String DEFAULT_MATHJAX_URL = "http://cdn.mathjax.org/mathjax/latest/MathJax.js?config=MML_HTMLorMML-full";
     
+    /** Text of the comment marking the start of the page content when serializing */
+    private static final String CONTENT_START_MARKER = "SnuggleTeX-content-start";
+    
+    /** Text of the comment marking the end of the page content when serializing */
+    private static final String CONTENT_END_MARKER = "SnuggleTeX-content-end";
+    
     private final SessionContext sessionContext;
     private final WebPageOutputOptions options;
     
+    /** 
+     * Cache of {@link WebPageChrome}s to use for frozen {@link WebPageOutputOptions}, keyed
+     * on the options themselves. May be null to disable the use of pre-rendered chrome.
+     */
+    private final Map<WebPageOutputOptions, WebPageChrome> chromeCache;
+    
     public WebPageBuilder(final SessionContext sessionContext, final WebPageOutputOptions options) {
+        this(sessionContext, options, null);
+    }
+    
+    /**
+     * @since 1.3.1
+     */
+    public WebPageBuilder(final SessionContext sessionContext, final WebPageOutputOptions options,
+            final Map<WebPageOutputOptions, WebPageChrome> chromeCache) {
         this.sessionContext = sessionContext;
         this.options = options;
+        this.chromeCache = chromeCache;
     }
 
     public final Document buildWebPage(final List<FlowToken> fixedTokens) throws SnuggleParseException {
         Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        addClientSideXSLT(document);
+        
+        /* Build <body/> and <head/> */
+        Element body = buildBody(document, fixedTokens);
+        Element head = buildHead(document);
+        
+        /* Create finished document */
+        Element html = createHTMLElement(document);
+        html.appendChild(head);
+        html.appendChild(body);
+        document.appendChild(html);
         
-        /* Add in any client-side XSLT */
+        /* Apply any extra XSLT specified in the options */
+        return applyStylesheets(document);
+    }
+    
+    private void addClientSideXSLT(Document document) {
         String[] clientXSLTURLs = options.getClientSideXSLTStylesheetURLs();
         if (clientXSLTURLs!=null) {
             for (String url : clientXSLTURLs) {
@@ -69,7 +120,9 @@ public final class WebPageBuilder {
                         "type=\"text/xsl\" href=\"" + url + "\""));
             }
         }
-        
+    }
+    
+    private Element buildBody(Document document, final List<FlowToken> fixedTokens) throws SnuggleParseException {
         /* Create <body/> and maybe add title header */
         Element body = createXHTMLElement(document, "body");
         String title = options.getTitle();
@@ -83,9 +136,12 @@ public final class WebPageBuilder {
         /* Build <body/> */
         DOMBuildingController domBuildingController = new DOMBuildingController(sessionContext, options);
         domBuildingController.buildDOMSubtree(body, fixedTokens);
-        
-        /* Build <head/> */
+        return body;
+    }
+    
+    private Element buildHead(Document document) {
         Element head = createXHTMLElement(document, "head");
+        String title = options.getTitle();
         
         /* Do template-y stuff */
         if (options.isAddingMathPlayerImport()) {
@@ -164,8 +220,10 @@ public final class WebPageBuilder {
             script.setAttribute("src", mathJaxUrl);
             head.appendChild(script);
         }
-        
-        /* Create finished document */
+        return head;
+    }
+    
+    private Element createHTMLElement(Document document) {
         Element html = createXHTMLElement(document, "html");
         
         /* Add pref:renderer attribute if doing USS */
@@ -191,27 +249,59 @@ public final class WebPageBuilder {
              */
             html.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:" + options.getMathMLPrefix(), W3CConstants.MATHML_NAMESPACE);
         }
-        html.appendChild(head);
-        html.appendChild(body);
-        document.appendChild(html);
-        
-        /* Apply any extra XSLT specified in the options */
+        return html;
+    }
+    
+    private Document applyStylesheets(Document document) {
         Transformer[] stylesheets = options.getStylesheets();
         if (!ObjectUtilities.isNullOrEmpty(stylesheets)) {
             for (Transformer stylesheet : stylesheets) {
-                DOMSource input = new DOMSource(document);
-                document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
-                try {
-                    stylesheet.transform(input, new DOMResult(document));
-                }
-                catch (TransformerException e) {
-                    throw new SnuggleRuntimeException("Could not apply stylesheet " + stylesheet);
-                }
+                document = applyStylesheet(document, stylesheet);
+            }
+        }
+        Templates[] stylesheetTemplates = options.getStylesheetTemplates();
+        if (!ObjectUtilities.isNullOrEmpty(stylesheetTemplates)) {
+            for (Templates templates : stylesheetTemplates) {
+                document = applyStylesheet(document, newParameterisedTransformer(templates));
+            }
+        }
+        String[] stylesheetURIs = options.getStylesheetURIs();
+        if (!ObjectUtilities.isNullOrEmpty(stylesheetURIs)) {
+            StylesheetManager stylesheetManager = sessionContext.getStylesheetManager();
+            for (String stylesheetURI : stylesheetURIs) {
+                document = applyStylesheet(document, newParameterisedTransformer(stylesheetManager.getCompiledStylesheet(stylesheetURI)));
             }
         }
         return document;
     }
     
+    private Document applyStylesheet(Document document, Transformer stylesheet) {
+        Document result = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        try {
+            stylesheet.transform(new DOMSource(document), new DOMResult(result));
+        }
+        catch (TransformerException e) {
+            throw new SnuggleRuntimeException("Could not apply stylesheet " + stylesheet);
+        }
+        return result;
+    }
+    
+    private Transformer newParameterisedTransformer(Templates templates) {
+        Transformer result;
+        try {
+            result = templates.newTransformer();
+        }
+        catch (TransformerConfigurationException e) {
+            throw new SnuggleRuntimeException("Could not create Transformer from Templates", e);
+        }
+        for (Entry<String, Object> entry : options.getStylesheetParameters().entrySet()) {
+            if (entry.getValue()!=null) {
+                result.setParameter(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+    
     /**
      * Helper to create XHTML elements, setting the correct namespace prefix if required by the
      * underlying{@link WebPageOutputOptions}.
@@ -242,6 +332,21 @@ public final class WebPageBuilder {
     //-----------------------------------------------------------------
     
     public final String buildWebPageString(final List<FlowToken> fixedTokens) throws SnuggleParseException {
+        /* Use pre-rendered chrome if possible */
+        WebPageChrome chrome = getChrome();
+        if (chrome!=null) {
+            StringWriter resultBuilder = new StringWriter();
+            resultBuilder.append(chrome.getPrefix());
+            try {
+                writeContent(fixedTokens, resultBuilder);
+            }
+            catch (IOException e) {
+                throw new SnuggleLogicException("Unexpected IOException writing to a StringWriter", e);
+            }
+            resultBuilder.append(chrome.getSuffix());
+            return resultBuilder.toString();
+        }
+        
         /* Create resulting web page, including any client-specified XSLT */
         Document webPageDocument = buildWebPage(fixedTokens);
         
@@ -252,12 +357,14 @@ public final class WebPageBuilder {
             resultBuilder.append(W3CConstants.HTML5_DOCTYPE_HEADER);
         }
         Transformer serializer = createSerializer();
+        long startTime = sessionContext.getMetricsListener()!=null ? System.nanoTime() : 0L;
         try {
             serializer.transform(new DOMSource(webPageDocument), new StreamResult(resultBuilder));
         }
         catch (TransformerException e) {
             throw new SnuggleRuntimeException("Could not serialize web page", e);
         }
+        recordSerialization(startTime);
         return resultBuilder.toString();
     }
     
@@ -286,23 +393,8 @@ public final class WebPageBuilder {
             setWebPageContentType(contentTypeSettable);
         }
         
-        /* Send HTML5 DOCTYPE, if required */
-        if (options.isHtml5()) {
-            OutputStreamWriter doctypeWriter = new OutputStreamWriter(outputStream, options.getEncoding());
-            doctypeWriter.write(W3CConstants.HTML5_DOCTYPE_HEADER);
-            doctypeWriter.flush();
-        }
-        
-        /* Create resulting web page, including any client-specified XSLT */
-        Document webPageDocument = buildWebPage(fixedTokens);
-        
-        /* Finally serialize */
-        Transformer serializer = createSerializer();
         try {
-            serializer.transform(new DOMSource(webPageDocument), new StreamResult(outputStream));
-        }
-        catch (TransformerException e) {
-            throw new SnuggleRuntimeException("Could not serialize web page", e);
+            writeWebPage(fixedTokens, Channels.newChannel(outputStream));
         }
         finally {
             if (endOutputOptions==EndOutputAction.CLOSE) {
@@ -317,6 +409,199 @@ public final class WebPageBuilder {
         }
     }
     
+    /**
+     * Creates a web page representing the given (fixed) Tokens, and writes the encoded results
+     * to the given {@link WritableByteChannel}.
+     * 
+     * @param fixedTokens fixed Tokens from earlier stages of parsing
+     * @param contentTypeSettable optional bean Object that will have its <tt>contentType</tt>
+     *   property set if provided.
+     * @param channel channel to send the resulting page to
+     * @param endOutputOptions specifies what to do with the channel once we've finished writing
+     *   to it. (As channels are unbuffered, {@link EndOutputAction#FLUSH} has the same effect as
+     *   {@link EndOutputAction#DO_NOTHING}.)
+     * 
+     * @throws SnuggleParseException
+     * @throws IOException
+     * @throws SnuggleRuntimeException if calling <tt>setContentType()</tt> on the contentTypeSettable
+     *   Object failed, with the underlying Exception wrapped up.
+     *   
+     * @since 1.3.1
+     */
+    public final void writeWebPage(final List<FlowToken> fixedTokens, Object contentTypeSettable,
+            final WritableByteChannel channel, final EndOutputAction endOutputOptions)
+            throws SnuggleParseException, IOException {
+        /* Set content type, if requested */
+        if (contentTypeSettable!=null) {
+            setWebPageContentType(contentTypeSettable);
+        }
+        
+        try {
+            writeWebPage(fixedTokens, channel);
+        }
+        finally {
+            if (endOutputOptions==EndOutputAction.CLOSE) {
+                channel.close();
+            }
+        }
+    }
+    
+    private void writeWebPage(final List<FlowToken> fixedTokens, final WritableByteChannel channel)
+            throws SnuggleParseException, IOException {
+        ChannelWriter writer = new ChannelWriter(channel, options.getEncoding());
+        try {
+            WebPageChrome chrome = getChrome();
+            if (chrome!=null) {
+                /* Send pre-rendered chrome around the page content */
+                writer.writeBytes(chrome.getPrefixBytes());
+                writeContent(fixedTokens, writer);
+                writer.writeBytes(chrome.getSuffixBytes());
+            }
+            else {
+                /* Send HTML5 DOCTYPE, if required */
+                if (options.isHtml5()) {
+                    writer.write(W3CConstants.HTML5_DOCTYPE_HEADER);
+                }
+                
+                /* Create resulting web page, including any client-specified XSLT */
+                Document webPageDocument = buildWebPage(fixedTokens);
+                
+                /* Finally serialize */
+                Transformer serializer = createSerializer();
+                long startTime = sessionContext.getMetricsListener()!=null ? System.nanoTime() : 0L;
+                transform(serializer, webPageDocument, writer);
+                recordSerialization(startTime);
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Serializes the given web page {@link Document} to the given {@link Writer}, passing on
+     * any failure of the {@link Writer} as an {@link IOException}.
+     */
+    private static void transform(final Transformer serializer, final Document document,
+            final Writer writer) throws IOException {
+        try {
+            serializer.transform(new DOMSource(document), new StreamResult(writer));
+        }
+        catch (TransformerException e) {
+            IOException ioException = XMLUtilities.findIOException(e);
+            if (ioException!=null) {
+                throw ioException;
+            }
+            throw new SnuggleRuntimeException("Could not serialize web page", e);
+        }
+    }
+    
+    /**
+     * Returns the {@link WebPageChrome} to use for the current {@link WebPageOutputOptions},
+     * rendering and caching it if required, or null if pages must be built in full.
+     * <p>
+     * Chrome is only used with frozen options (as these are the only ones we can safely cache
+     * against) and when no stylesheets have been specified (as they may transform the whole page).
+     */
+    private WebPageChrome getChrome() {
+        if (chromeCache==null || !options.isFrozen()
+                || !ObjectUtilities.isNullOrEmpty(options.getStylesheets())
+                || !ObjectUtilities.isNullOrEmpty(options.getStylesheetTemplates())
+                || !ObjectUtilities.isNullOrEmpty(options.getStylesheetURIs())) {
+            return null;
+        }
+        WebPageChrome result = chromeCache.get(options);
+        if (result==null) {
+            result = renderChrome();
+            chromeCache.put(options, result);
+        }
+        return result;
+    }
+    
+    /**
+     * Renders the chrome for the current {@link WebPageOutputOptions} by serializing a page
+     * whose body contains just a marker comment, and splitting the result at the marker.
+     */
+    private WebPageChrome renderChrome() {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        addClientSideXSLT(document);
+        Element body = createXHTMLElement(document, "body");
+        body.appendChild(document.createComment(CONTENT_START_MARKER));
+        Element html = createHTMLElement(document);
+        html.appendChild(buildHead(document));
+        html.appendChild(body);
+        document.appendChild(html);
+        
+        StringWriter pageWriter = new StringWriter();
+        if (options.isHtml5()) {
+            pageWriter.append(W3CConstants.HTML5_DOCTYPE_HEADER);
+        }
+        try {
+            createSerializer().transform(new DOMSource(document), new StreamResult(pageWriter));
+        }
+        catch (TransformerException e) {
+            throw new SnuggleRuntimeException("Could not serialize web page chrome", e);
+        }
+        String page = pageWriter.toString();
+        String marker = "<!--" + CONTENT_START_MARKER + "-->";
+        int markerIndex = page.indexOf(marker);
+        if (markerIndex==-1) {
+            throw new SnuggleLogicException("Could not find content marker in serialized page " + page);
+        }
+        String prefix = page.substring(0, markerIndex);
+        if (options.isIndenting()) {
+            /* (Content will bring its own indentation) */
+            int prefixEnd = prefix.length();
+            while (prefixEnd>0 && Character.isWhitespace(prefix.charAt(prefixEnd-1))) {
+                prefixEnd--;
+            }
+            prefix = prefix.substring(0, prefixEnd);
+        }
+        return new WebPageChrome(prefix, page.substring(markerIndex + marker.length()), options.getEncoding());
+    }
+    
+    /**
+     * Builds the content of the <tt>body</tt> element for the given tokens and serializes it
+     * to the given {@link Writer}, to go inside the appropriate {@link WebPageChrome}.
+     * <p>
+     * (This serializes a skeleton page with the content placed between marker comments, so
+     * that the content is serialized exactly as it would be within the full page, and then
+     * passes through only the characters between the markers.)
+     */
+    private void writeContent(final List<FlowToken> fixedTokens, final Writer writer)
+            throws SnuggleParseException, IOException {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element body = buildBody(document, fixedTokens);
+        body.insertBefore(document.createComment(CONTENT_START_MARKER), body.getFirstChild());
+        body.appendChild(document.createComment(CONTENT_END_MARKER));
+        Element html = createHTMLElement(document);
+        html.appendChild(body);
+        document.appendChild(html);
+        
+        MarkedContentWriter contentWriter = new MarkedContentWriter(writer,
+                "<!--" + CONTENT_START_MARKER + "-->", "<!--" + CONTENT_END_MARKER + "-->",
+                options.isIndenting());
+        Transformer serializer = createSerializer();
+        long startTime = sessionContext.getMetricsListener()!=null ? System.nanoTime() : 0L;
+        transform(serializer, document, contentWriter);
+        contentWriter.flush();
+        if (!contentWriter.isComplete()) {
+            throw new SnuggleLogicException("Could not find content markers in serialized page");
+        }
+        recordSerialization(startTime);
+    }
+    
+    /**
+     * Reports the time taken to serialize the web page to the {@link SnuggleMetricsListener},
+     * if there is one.
+     */
+    private void recordSerialization(final long startTime) {
+        SnuggleMetricsListener metricsListener = sessionContext.getMetricsListener();
+        if (metricsListener!=null) {
+            metricsListener.stageCompleted(Stage.SERIALIZATION, System.nanoTime() - startTime);
+        }
+    }
+    
     /**
      * Calls the <tt>setContentType</tt> method for the given Object (by reflection) to something
      * appropriate for serving the types of web pages generated by this builder over HTTP.
@@ -0,0 +1,76 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal;
+
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Holds the pre-rendered "chrome" of a web page generated for a particular (frozen)
+ * {@link WebPageOutputOptions}, i.e. everything in the serialized page that comes before
+ * and after the content of the <tt>body</tt> element. This includes any DOCTYPE, the whole
+ * <tt>head</tt> element and the start and end tags of the <tt>html</tt> and <tt>body</tt>
+ * elements.
+ * <p>
+ * This is created by {@link WebPageBuilder} and cached by the {@link uk.ac.ed.ph.snuggletex.SnuggleEngine},
+ * so that each page only needs its content to be built and serialized. It is immutable
+ * and may be shared by multiple Threads.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class WebPageChrome {
+
+    /** Serialized page up to the content of the <tt>body</tt> element */
+    private final String prefix;
+
+    /** Serialized page after the content of the <tt>body</tt> element */
+    private final String suffix;
+
+    /** {@link #prefix} encoded using the required encoding */
+    private final byte[] prefixBytes;
+
+    /** {@link #suffix} encoded using the required encoding */
+    private final byte[] suffixBytes;
+
+    public WebPageChrome(final String prefix, final String suffix, final String encoding) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        try {
+            this.prefixBytes = prefix.getBytes(encoding);
+            this.suffixBytes = suffix.getBytes(encoding);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new SnuggleRuntimeException("Unsupported encoding " + encoding, e);
+        }
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Returns the encoded prefix. (Callers must not modify the resulting array.)
+     */
+    public byte[] getPrefixBytes() {
+        return prefixBytes;
+    }
+
+    /**
+     * Returns the encoded suffix. (Callers must not modify the resulting array.)
+     */
+    public byte[] getSuffixBytes() {
+        return suffixBytes;
+    }
+}
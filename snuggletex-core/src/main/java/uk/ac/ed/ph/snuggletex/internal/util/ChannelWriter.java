@@ -0,0 +1,228 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal.util;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link Writer} that encodes characters straight into a {@link WritableByteChannel}, also
+ * allowing bytes that have already been encoded to be sent via {@link #writeBytes(byte[])}.
+ * <p>
+ * Each Thread keeps the {@link CharsetEncoder}s and byte buffer used here so that they can
+ * be reused by subsequent instances, avoiding the cost of looking up the charset and setting
+ * up a new encoder each time. (Like {@link java.io.OutputStreamWriter}, unmappable and
+ * malformed characters are replaced rather than reported.)
+ * <p>
+ * {@link #close()} must be called once finished to send any remaining bytes and allow the
+ * encoder and buffer to be reused. This does NOT close the underlying channel.
+ * <p>
+ * An instance of this Class is not thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class ChannelWriter extends Writer {
+
+    /** Size of the byte buffer used for encoding */
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    /** {@link CharsetEncoder}s available for reuse in the current Thread, keyed on encoding */
+    private static final ThreadLocal<Map<String, CharsetEncoder>> encoderCache = new ThreadLocal<Map<String, CharsetEncoder>>() {
+        @Override
+        protected Map<String, CharsetEncoder> initialValue() {
+            return new HashMap<String, CharsetEncoder>();
+        }
+    };
+
+    /** Byte buffer available for reuse in the current Thread, null if currently being used */
+    private static final ThreadLocal<ByteBuffer> bufferCache = new ThreadLocal<ByteBuffer>();
+
+    private final WritableByteChannel channel;
+    private final String encoding;
+    private CharsetEncoder encoder;
+    private ByteBuffer bytes;
+
+    /** High surrogate at the end of the last write, waiting for its partner */
+    private char leftoverChar;
+    private boolean hasLeftoverChar;
+
+    /**
+     * Creates a new {@link ChannelWriter} encoding to the given channel using the given encoding.
+     *
+     * @throws UnsupportedEncodingException if the encoding is not supported
+     */
+    public ChannelWriter(final WritableByteChannel channel, final String encoding) throws UnsupportedEncodingException {
+        this.channel = channel;
+        this.encoding = encoding;
+        this.encoder = borrowEncoder(encoding);
+        this.bytes = bufferCache.get();
+        if (bytes!=null) {
+            bufferCache.set(null);
+            bytes.clear();
+        }
+        else {
+            bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    private static CharsetEncoder borrowEncoder(final String encoding) throws UnsupportedEncodingException {
+        CharsetEncoder result = encoderCache.get().remove(encoding);
+        if (result!=null) {
+            result.reset();
+            return result;
+        }
+        try {
+            return Charset.forName(encoding).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        catch (IllegalCharsetNameException e) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+        catch (UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(encoding);
+        }
+    }
+
+    //----------------------------------------------------------------------------
+
+    @Override
+    public void write(final char[] buffer, final int offset, final int length) throws IOException {
+        write(CharBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public void write(final String string, final int offset, final int length) throws IOException {
+        write(CharBuffer.wrap(string, offset, offset + length));
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        write(CharBuffer.wrap(new char[] { (char) c }));
+    }
+
+    private void write(final CharBuffer chars) throws IOException {
+        ensureOpen();
+        if (!chars.hasRemaining()) {
+            return;
+        }
+        if (hasLeftoverChar) {
+            /* (This is rare so we don't mind creating a little buffer here) */
+            hasLeftoverChar = false;
+            CharBuffer pair = CharBuffer.wrap(new char[] { leftoverChar, chars.get() });
+            encode(pair, false);
+            if (pair.hasRemaining()) {
+                /* (The new character was another high surrogate) */
+                leftoverChar = pair.get();
+                hasLeftoverChar = true;
+                write(chars);
+                return;
+            }
+        }
+        encode(chars, false);
+        if (chars.hasRemaining()) {
+            /* Must be a trailing high surrogate, so keep it until the next write */
+            leftoverChar = chars.get();
+            hasLeftoverChar = true;
+        }
+    }
+
+    /**
+     * Sends the given bytes to the channel, after any characters written so far. The bytes
+     * should have been encoded using the encoding of this writer.
+     */
+    public void writeBytes(final byte[] encodedBytes) throws IOException {
+        ensureOpen();
+        drain();
+        writeFully(ByteBuffer.wrap(encodedBytes));
+    }
+
+    /**
+     * Sends all of the characters written so far to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    /**
+     * Finishes encoding, sends any remaining bytes to the channel and releases the encoder
+     * and buffer for reuse. This does not close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (encoder==null) {
+            return;
+        }
+        try {
+            CharBuffer chars = hasLeftoverChar ? CharBuffer.wrap(new char[] { leftoverChar }) : CharBuffer.allocate(0);
+            hasLeftoverChar = false;
+            encode(chars, true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+        finally {
+            encoderCache.get().put(encoding, encoder);
+            bufferCache.set(bytes);
+            encoder = null;
+            bytes = null;
+        }
+    }
+
+    //----------------------------------------------------------------------------
+
+    private void ensureOpen() throws IOException {
+        if (encoder==null) {
+            throw new IOException("Writer has been closed");
+        }
+    }
+
+    private void encode(final CharBuffer chars, final boolean endOfInput) throws IOException {
+        for (;;) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                drain();
+            }
+            else if (result.isUnderflow()) {
+                return;
+            }
+            else {
+                result.throwException();
+            }
+        }
+    }
+
+    /** Sends the contents of the byte buffer to the channel */
+    private void drain() throws IOException {
+        bytes.flip();
+        writeFully(bytes);
+        bytes.clear();
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal.util;
+
+import javax.xml.transform.sax.SAXResult;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Trivial {@link ContentHandler} (and {@link LexicalHandler}) that passes all events
+ * on to another {@link ContentHandler}, intended to be subclassed to create simple
+ * SAX filters. Lexical events are only passed on if the target handler implements
+ * {@link LexicalHandler}.
+ * <p>
+ * (This is a bit like {@link org.xml.sax.helpers.XMLFilterImpl} but without all of
+ * the {@link org.xml.sax.XMLReader} stuff that we don't need.)
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class ContentHandlerFilter implements ContentHandler, LexicalHandler {
+
+    protected final ContentHandler targetHandler;
+    protected final LexicalHandler targetLexicalHandler;
+
+    public ContentHandlerFilter(final ContentHandler targetHandler) {
+        ConstraintUtilities.ensureNotNull(targetHandler, "targetHandler");
+        this.targetHandler = targetHandler;
+        this.targetLexicalHandler = targetHandler instanceof LexicalHandler ? (LexicalHandler) targetHandler : null;
+    }
+
+    /**
+     * Creates a {@link SAXResult} that sends events to the given {@link ContentHandler},
+     * also registering it as a {@link LexicalHandler} if appropriate.
+     */
+    public static SAXResult createSAXResult(final ContentHandler handler) {
+        SAXResult result = new SAXResult(handler);
+        if (handler instanceof LexicalHandler) {
+            result.setLexicalHandler((LexicalHandler) handler);
+        }
+        return result;
+    }
+
+    //-----------------------------------------------------------
+    // ContentHandler methods
+
+    public void setDocumentLocator(Locator locator) {
+        targetHandler.setDocumentLocator(locator);
+    }
+
+    public void startDocument() throws SAXException {
+        targetHandler.startDocument();
+    }
+
+    public void endDocument() throws SAXException {
+        targetHandler.endDocument();
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        targetHandler.startPrefixMapping(prefix, uri);
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        targetHandler.endPrefixMapping(prefix);
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts)
+            throws SAXException {
+        targetHandler.startElement(uri, localName, qName, atts);
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        targetHandler.endElement(uri, localName, qName);
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        targetHandler.characters(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        targetHandler.ignorableWhitespace(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        targetHandler.processingInstruction(target, data);
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        targetHandler.skippedEntity(name);
+    }
+
+    //-----------------------------------------------------------
+    // LexicalHandler methods
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        if (targetLexicalHandler!=null) {
+            targetLexicalHandler.startDTD(name, publicId, systemId);
+        }
+    }
+
+    public void endDTD() throws SAXException {
+        if (targetLexicalHandler!=null) {
+            targetLexicalHandler.endDTD();
+        }
+    }
+
+    public void startEntity(String name) throws SAXException {
+        if (targetLexicalHandler!=null) {
+            targetLexicalHandler.startEntity(name);
+        }
+    }
+
+    public void endEntity(String name) throws SAXException {
+        if (targetLexicalHandler!=null) {
+            targetLexicalHandler.endEntity(name);
+        }
+    }
+
+    public void startCDATA() throws SAXException {
+        if (targetLexicalHandler!=null) {
+            targetLexicalHandler.startCDATA();
+        }
+    }
+
+    public void endCDATA() throws SAXException {
+        if (targetLexicalHandler!=null) {
+            targetLexicalHandler.endCDATA();
+        }
+    }
+
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        if (targetLexicalHandler!=null) {
+            targetLexicalHandler.comment(ch, start, length);
+        }
+    }
+}
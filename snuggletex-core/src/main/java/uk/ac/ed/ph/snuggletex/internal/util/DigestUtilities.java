@@ -0,0 +1,83 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.internal.util;
+
+import uk.ac.ed.ph.snuggletex.SnuggleLogicException;
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for creating the content hashes used as cache keys and validators in various
+ * places.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class DigestUtilities {
+
+    /** Name of the digest algorithm we use */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Creates a new {@link MessageDigest} using {@link #DIGEST_ALGORITHM}.
+     *
+     * @throws SnuggleRuntimeException if the algorithm is not available, which should not
+     *   happen as all Java platforms are required to support it.
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new SnuggleRuntimeException("Could not create " + DIGEST_ALGORITHM + " digest", e);
+        }
+    }
+
+    /**
+     * Updates the given {@link MessageDigest} with the UTF-8 encoding of the given String.
+     */
+    public static void updateUTF8(final MessageDigest digest, final String string) {
+        try {
+            digest.update(string.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new SnuggleLogicException("UTF-8 is unexpectedly unsupported", e);
+        }
+    }
+
+    /**
+     * Returns the hash of the UTF-8 encoding of the given String, as lower case hex.
+     */
+    public static String hashUTF8(final String string) {
+        MessageDigest digest = createDigest();
+        updateUTF8(digest, string);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Converts the given bytes to lower case hex.
+     */
+    public static String toHex(final byte[] bytes) {
+        return toHex(bytes, bytes.length);
+    }
+
+    /**
+     * Converts the first <tt>length</tt> of the given bytes to lower case hex.
+     */
+    public static String toHex(final byte[] bytes, final int length) {
+        StringBuilder result = new StringBuilder(length * 2);
+        for (int i=0; i<length; i++) {
+            result.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16))
+                .append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return result.toString();
+    }
+}
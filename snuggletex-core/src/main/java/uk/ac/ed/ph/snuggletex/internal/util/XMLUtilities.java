@@ -6,17 +6,21 @@
 package uk.ac.ed.ph.snuggletex.internal.util;
 
 import uk.ac.ed.ph.snuggletex.SerializationSpecifier;
+import uk.ac.ed.ph.snuggletex.SnuggleLogicException;
 import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
 import uk.ac.ed.ph.snuggletex.definitions.Globals;
 import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 
+import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMResult;
@@ -211,8 +215,8 @@ public final class XMLUtilities {
      * (If the given Node is an {@link Element} or a {@link Document} then the result
      * will be a well-formed XML String.)
      * <p>
-     * (This may use an XSLT 2.0 stylesheet to help with named entities, hence the requirement for a
-     * {@link StylesheetManager}).
+     * (The {@link StylesheetManager} is used to help create a suitable serializer for the given
+     * options.)
      * 
      * @param stylesheetManager used to help compile and cache stylesheets used in this process.
      *
@@ -244,18 +248,63 @@ public final class XMLUtilities {
     public static String serializeNodeChildren(StylesheetManager stylesheetManager, final Node node,
             final SerializationSpecifier serializationOptions) {
         StringWriter resultWriter = new StringWriter();
-        
         try {
-            Transformer serializer = stylesheetManager.getSerializer(Globals.EXTRACT_CHILD_NODES_XSL_RESOURCE_NAME,
-                    serializationOptions);
-            serializer.transform(new DOMSource(node), new StreamResult(resultWriter));
+            serializeNodeChildren(stylesheetManager, node, serializationOptions, resultWriter);
         }
-        catch (Exception e) {
-            throw new SnuggleRuntimeException("Could not serialize DOM", e);
+        catch (IOException e) {
+            throw new SnuggleLogicException("Unexpected IOException writing to a StringWriter", e);
         }
         return resultWriter.toString();
     }
     
+    /**
+     * Serializes the <tt>children</tt> of given {@link Node} to a well-formed external parsed entity,
+     * sending the results to the given {@link Writer}.
+     * <p>
+     * (The {@link Writer} is responsible for any encoding, though the encoding specified by the
+     * options is still used to decide which characters need to be escaped.)
+     * 
+     * @param stylesheetManager used to help compile and cache stylesheets used in this process.
+     * @param node DOM Node to serialize.
+     * @param serializationOptions XML serialization options
+     * @param writer Writer to send the results to
+     * 
+     * @throws IOException if the {@link Writer} failed
+     * 
+     * @since 1.3.1
+     */
+    public static void serializeNodeChildren(StylesheetManager stylesheetManager, final Node node,
+            final SerializationSpecifier serializationOptions, final Writer writer) throws IOException {
+        Transformer serializer = stylesheetManager.getSerializer(Globals.EXTRACT_CHILD_NODES_XSL_RESOURCE_NAME,
+                serializationOptions);
+        try {
+            serializer.transform(new DOMSource(node), new StreamResult(writer));
+        }
+        catch (TransformerException e) {
+            IOException ioException = findIOException(e);
+            if (ioException!=null) {
+                throw ioException;
+            }
+            throw new SnuggleRuntimeException("Could not serialize DOM", e);
+        }
+    }
+    
+    /**
+     * Returns the {@link IOException} that caused the given {@link TransformerException}, or
+     * null if it was caused by something else. (Transformers wrap up any failures writing
+     * their results, which callers writing to real I/O will usually want to report as is.)
+     * 
+     * @since 1.3.1
+     */
+    public static IOException findIOException(final TransformerException e) {
+        for (Throwable cause = e.getCause(); cause!=null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return (IOException) cause;
+            }
+        }
+        return null;
+    }
+    
     //------------------------------------------------------------------
     
     public static boolean isXMLName(String string) {
@@ -0,0 +1,662 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.samples;
+
+import uk.ac.ed.ph.snuggletex.InputError;
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+import uk.ac.ed.ph.snuggletex.SnuggleSnapshot;
+import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
+import uk.ac.ed.ph.snuggletex.SnuggleSession.EndOutputAction;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.DigestUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.IOUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.MessageFormatter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Batch mode for {@link CommandLineRunner}, used when an output directory is specified.
+ * <p>
+ * Each input (which may be a file, a directory to search for <tt>.tex</tt> files, or a glob
+ * pattern such as <tt>course/**&#47;*.tex</tt>) is converted into a separate output file
+ * within the output directory, mirroring the layout of the input directories. Files are
+ * converted in parallel by a pool of worker threads sharing a single {@link SnuggleEngine},
+ * with any preamble parsed once up front.
+ * <p>
+ * A manifest in the output directory records a hash of each input (along with the preamble
+ * and output options) that was converted without errors, so that unchanged inputs are
+ * skipped next time. Inputs with errors are always converted again so that their errors are
+ * reported each time.
+ * <p>
+ * A summary of throughput and per-file timings is printed at the end.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class CommandLineBatchRunner {
+
+    /** Name of the manifest file created in the output directory by default */
+    public static final String DEFAULT_MANIFEST_NAME = ".snuggletex-manifest";
+
+    /** Suffix of the files found when searching directories */
+    public static final String INPUT_FILE_SUFFIX = ".tex";
+
+    /** Default number of slowest files listed in the summary */
+    public static final int DEFAULT_SLOWEST_FILE_COUNT = 10;
+
+    private final SnuggleEngine engine;
+    private final WebPageOutputOptions options;
+    private final boolean webOutput;
+    private final File outputDirectory;
+    private final String optionsSignature;
+    private File preambleFile;
+    private File manifestFile;
+    private int threadCount;
+    private boolean forcing;
+    private boolean quiet;
+    private int slowestFileCount;
+
+    /**
+     * Creates a new batch runner.
+     *
+     * @param engine {@link SnuggleEngine} to use, which must not be null
+     * @param options output options, which must not be null
+     * @param webOutput whether to create web pages rather than plain XML
+     * @param outputDirectory directory to write results into, which must not be null
+     * @param optionsSignature String describing the output options, which is included in the
+     *   hash for each input so that changing the options causes everything to be converted
+     *   again, which must not be null
+     */
+    public CommandLineBatchRunner(final SnuggleEngine engine, final WebPageOutputOptions options,
+            final boolean webOutput, final File outputDirectory, final String optionsSignature) {
+        ConstraintUtilities.ensureNotNull(engine, "engine");
+        ConstraintUtilities.ensureNotNull(options, "options");
+        ConstraintUtilities.ensureNotNull(outputDirectory, "outputDirectory");
+        ConstraintUtilities.ensureNotNull(optionsSignature, "optionsSignature");
+        this.engine = engine;
+        this.options = options;
+        this.webOutput = webOutput;
+        this.outputDirectory = outputDirectory;
+        this.optionsSignature = optionsSignature;
+        this.preambleFile = null;
+        this.manifestFile = new File(outputDirectory, DEFAULT_MANIFEST_NAME);
+        this.threadCount = Runtime.getRuntime().availableProcessors();
+        this.forcing = false;
+        this.quiet = false;
+        this.slowestFileCount = DEFAULT_SLOWEST_FILE_COUNT;
+    }
+
+    public File getPreambleFile() {
+        return preambleFile;
+    }
+
+    /** Sets a file to be parsed before each input, which may be null */
+    public void setPreambleFile(File preambleFile) {
+        this.preambleFile = preambleFile;
+    }
+
+
+    public File getManifestFile() {
+        return manifestFile;
+    }
+
+    public void setManifestFile(File manifestFile) {
+        ConstraintUtilities.ensureNotNull(manifestFile, "manifestFile");
+        this.manifestFile = manifestFile;
+    }
+
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        if (threadCount<=0) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        this.threadCount = threadCount;
+    }
+
+
+    /** Returns whether all inputs are converted, regardless of the manifest */
+    public boolean isForcing() {
+        return forcing;
+    }
+
+    public void setForcing(boolean forcing) {
+        this.forcing = forcing;
+    }
+
+
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    /** Sets whether to suppress the output of parsing errors */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+
+    public int getSlowestFileCount() {
+        return slowestFileCount;
+    }
+
+    /** Sets the number of slowest files to list in the summary */
+    public void setSlowestFileCount(int slowestFileCount) {
+        this.slowestFileCount = slowestFileCount;
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Converts all of the inputs described by the given specifications, returning 0 if
+     * everything went OK or 1 if any inputs could not be converted.
+     *
+     * @param inputSpecifications input files, directories or glob patterns
+     *
+     * @throws IllegalArgumentException if an input specification doesn't match anything, or
+     *   if two inputs would be written to the same output file
+     * @throws IOException if the preamble or manifest could not be read or written
+     */
+    public int execute(final List<String> inputSpecifications) throws IOException {
+        long startTime = System.nanoTime();
+        List<BatchItem> items = findItems(inputSpecifications);
+
+        /* Parse preamble once, giving up if it has errors as they'd affect every input */
+        byte[] preambleData = new byte[0];
+        SnuggleSnapshot preambleSnapshot = null;
+        if (preambleFile!=null) {
+            preambleData = readFile(preambleFile);
+            SnuggleSession preambleSession = engine.createSession();
+            preambleSession.parseInput(new SnuggleInput(new ByteArrayInputStream(preambleData), preambleFile.getPath()));
+            if (!preambleSession.getErrors().isEmpty()) {
+                System.err.println("Preamble " + preambleFile + " contains errors:");
+                for (InputError error : preambleSession.getErrors()) {
+                    System.err.println(MessageFormatter.formatErrorAsString(error));
+                }
+                return 1;
+            }
+            preambleSnapshot = preambleSession.createSnapshot();
+        }
+        MessageDigest baseDigest = DigestUtilities.createDigest();
+        baseDigest.update(optionsSignature.getBytes("UTF-8"));
+        baseDigest.update((byte) 0);
+        baseDigest.update(preambleData);
+        baseDigest.update((byte) 0);
+
+        /* Convert everything */
+        Properties oldManifest = readManifest();
+        Properties newManifest = new Properties();
+        newManifest.putAll(oldManifest);
+        List<BatchResult> results = new ArrayList<BatchResult>(items.size());
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            CompletionService<BatchResult> completionService = new ExecutorCompletionService<BatchResult>(executorService);
+            for (BatchItem item : items) {
+                completionService.submit(new BatchTask(item, baseDigest, oldManifest.getProperty(item.key),
+                        preambleSnapshot));
+            }
+            for (int i=0; i<items.size(); i++) {
+                BatchResult result;
+                try {
+                    result = completionService.take().get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SnuggleRuntimeException("Interrupted while waiting for conversions", e);
+                }
+                catch (ExecutionException e) {
+                    /* (BatchTask catches everything itself) */
+                    throw new SnuggleRuntimeException("Unexpected failure converting input", e.getCause());
+                }
+                reportResult(result);
+                results.add(result);
+                if (result.status==BatchStatus.CONVERTED || result.status==BatchStatus.SKIPPED) {
+                    newManifest.setProperty(result.item.key, result.hash);
+                }
+                else {
+                    newManifest.remove(result.item.key);
+                }
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        writeManifest(newManifest);
+
+        printSummary(results, System.nanoTime() - startTime, System.out);
+        for (BatchResult result : results) {
+            if (result.status==BatchStatus.FAILED) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    //-------------------------------------------------------------------
+    // Finding inputs
+
+    private List<BatchItem> findItems(final List<String> inputSpecifications) throws IOException {
+        String outputSuffix = webOutput ? ".html" : ".xml";
+        List<BatchItem> result = new ArrayList<BatchItem>();
+        Map<String, File> inputFilesByKey = new HashMap<String, File>();
+        for (String inputSpecification : inputSpecifications) {
+            List<String[]> matches = new ArrayList<String[]>(); /* (base directory, relative path) */
+            File file = new File(inputSpecification);
+            if (file.isDirectory()) {
+                findFiles(file, "", null, matches);
+            }
+            else if (file.isFile()) {
+                matches.add(new String[] { file.getParent(), file.getName() });
+            }
+            else if (inputSpecification.indexOf('*')!=-1 || inputSpecification.indexOf('?')!=-1) {
+                findGlobMatches(inputSpecification, matches);
+            }
+            if (matches.isEmpty()) {
+                throw new IllegalArgumentException("No input files found for " + inputSpecification);
+            }
+            for (String[] match : matches) {
+                File inputFile = new File(match[0], match[1]);
+                String relativePath = match[1];
+                if (relativePath.toLowerCase().endsWith(INPUT_FILE_SUFFIX)) {
+                    relativePath = relativePath.substring(0, relativePath.length() - INPUT_FILE_SUFFIX.length());
+                }
+                String key = relativePath + outputSuffix;
+                File existingInputFile = inputFilesByKey.get(key);
+                if (existingInputFile!=null) {
+                    if (existingInputFile.getCanonicalFile().equals(inputFile.getCanonicalFile())) {
+                        /* (Same file specified more than once) */
+                        continue;
+                    }
+                    throw new IllegalArgumentException("Inputs " + existingInputFile + " and " + inputFile
+                            + " would both be written to " + key);
+                }
+                inputFilesByKey.put(key, inputFile);
+                result.add(new BatchItem(inputFile, key, new File(outputDirectory, key)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds files within the given directory (recursively), adding them to the given List.
+     * If a {@link Pattern} is given then relative paths must match this, otherwise files must
+     * end with {@link #INPUT_FILE_SUFFIX}.
+     */
+    private void findFiles(final File baseDirectory, final String relativePath, final Pattern pattern,
+            final List<String[]> matches) {
+        File directory = relativePath.length()>0 ? new File(baseDirectory, relativePath) : baseDirectory;
+        String[] names = directory.list();
+        if (names==null) {
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            String childPath = relativePath.length()>0 ? relativePath + "/" + name : name;
+            File child = new File(directory, name);
+            if (child.isDirectory()) {
+                if (!name.startsWith(".")) {
+                    findFiles(baseDirectory, childPath, pattern, matches);
+                }
+            }
+            else if (pattern!=null ? pattern.matcher(childPath).matches()
+                    : name.toLowerCase().endsWith(INPUT_FILE_SUFFIX)) {
+                matches.add(new String[] { baseDirectory.getPath(), childPath });
+            }
+        }
+    }
+
+    /**
+     * Finds files matching the given glob pattern. This may contain <tt>*</tt> and <tt>?</tt>
+     * (which don't match directory separators) and <tt>**</tt> (which matches any number of
+     * directories). Paths are reported relative to the directory before the first wildcard.
+     */
+    private void findGlobMatches(final String glob, final List<String[]> matches) {
+        String normalisedGlob = glob.replace(File.separatorChar, '/');
+        int firstWildcardIndex = Math.min(indexOfOrLength(normalisedGlob, '*'), indexOfOrLength(normalisedGlob, '?'));
+        int baseEndIndex = normalisedGlob.lastIndexOf('/', firstWildcardIndex);
+        File baseDirectory = baseEndIndex!=-1 ? new File(baseEndIndex>0 ? normalisedGlob.substring(0, baseEndIndex) : "/") : new File(".");
+        String relativeGlob = normalisedGlob.substring(baseEndIndex + 1);
+        if (baseDirectory.isDirectory()) {
+            findFiles(baseDirectory, "", globToPattern(relativeGlob), matches);
+        }
+    }
+
+    private static int indexOfOrLength(final String s, final char c) {
+        int index = s.indexOf(c);
+        return index!=-1 ? index : s.length();
+    }
+
+    /**
+     * Converts the given glob pattern (using <tt>/</tt> as the directory separator) into a
+     * {@link Pattern} for matching relative paths.
+     */
+    static Pattern globToPattern(final String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i=0, length=glob.length(); i<length; i++) {
+            char c = glob.charAt(i);
+            if (c=='*') {
+                if (i+1<length && glob.charAt(i+1)=='*') {
+                    if (i+2<length && glob.charAt(i+2)=='/') {
+                        /* '**' followed by '/' matches zero or more directories */
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    }
+                    else {
+                        regex.append(".*");
+                        i++;
+                    }
+                }
+                else {
+                    regex.append("[^/]*");
+                }
+            }
+            else if (c=='?') {
+                regex.append("[^/]");
+            }
+            else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    //-------------------------------------------------------------------
+    // Conversion
+
+    private static byte[] readFile(final File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE - 8));
+            IOUtilities.transfer(inputStream, result);
+            return result.toByteArray();
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Converts a single input on a worker thread.
+     */
+    private final class BatchTask implements Callable<BatchResult> {
+
+        private final BatchItem item;
+        private final MessageDigest baseDigest;
+        private final String previousHash;
+        private final SnuggleSnapshot preambleSnapshot;
+
+        public BatchTask(final BatchItem item, final MessageDigest baseDigest, final String previousHash,
+                final SnuggleSnapshot preambleSnapshot) {
+            this.item = item;
+            this.baseDigest = baseDigest;
+            this.previousHash = previousHash;
+            this.preambleSnapshot = preambleSnapshot;
+        }
+
+        public BatchResult call() {
+            long startTime = System.nanoTime();
+            byte[] inputData;
+            String hash;
+            try {
+                inputData = readFile(item.inputFile);
+                MessageDigest digest;
+                synchronized (baseDigest) {
+                    digest = (MessageDigest) baseDigest.clone();
+                }
+                hash = DigestUtilities.toHex(digest.digest(inputData));
+            }
+            catch (Exception e) {
+                return new BatchResult(item, BatchStatus.FAILED, null, 0, System.nanoTime() - startTime, null, e);
+            }
+            if (!forcing && hash.equals(previousHash) && item.outputFile.isFile()) {
+                return new BatchResult(item, BatchStatus.SKIPPED, hash, inputData.length, System.nanoTime() - startTime, null, null);
+            }
+            try {
+                SnuggleSession session = preambleSnapshot!=null ? preambleSnapshot.createSession() : engine.createSession();
+                session.parseInput(new SnuggleInput(new ByteArrayInputStream(inputData), item.inputFile.getPath()));
+                IOUtilities.ensureFileCreated(item.outputFile);
+                if (webOutput) {
+                    OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(item.outputFile));
+                    session.writeWebPage(options, outputStream, EndOutputAction.CLOSE);
+                }
+                else {
+                    String xml = session.buildXMLString(options);
+                    Writer writer = new OutputStreamWriter(new FileOutputStream(item.outputFile), options.getEncoding());
+                    try {
+                        writer.write(xml);
+                        writer.write('\n');
+                    }
+                    finally {
+                        writer.close();
+                    }
+                }
+                List<InputError> errors = session.getErrors();
+                return new BatchResult(item, errors.isEmpty() ? BatchStatus.CONVERTED : BatchStatus.CONVERTED_WITH_ERRORS,
+                        hash, inputData.length, System.nanoTime() - startTime, errors, null);
+            }
+            catch (Exception e) {
+                return new BatchResult(item, BatchStatus.FAILED, hash, inputData.length, System.nanoTime() - startTime, null, e);
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------
+    // Reporting
+
+    private void reportResult(final BatchResult result) {
+        if (result.status==BatchStatus.FAILED) {
+            System.err.println("Failed to convert " + result.item.inputFile + ": " + result.failure);
+        }
+        else if (result.status==BatchStatus.CONVERTED_WITH_ERRORS && !quiet) {
+            System.err.println(result.item.inputFile + " contains errors:");
+            for (InputError error : result.errors) {
+                System.err.println(MessageFormatter.formatErrorAsString(error));
+            }
+        }
+    }
+
+    /**
+     * Prints a summary of the given results to the given stream.
+     */
+    void printSummary(final List<BatchResult> results, final long elapsedNanos, final PrintStream out) {
+        List<BatchResult> convertedResults = new ArrayList<BatchResult>();
+        int skippedCount = 0, errorCount = 0, failedCount = 0;
+        long convertedBytes = 0;
+        for (BatchResult result : results) {
+            switch (result.status) {
+                case SKIPPED:
+                    skippedCount++;
+                    break;
+
+                case FAILED:
+                    failedCount++;
+                    break;
+
+                default:
+                    if (result.status==BatchStatus.CONVERTED_WITH_ERRORS) {
+                        errorCount++;
+                    }
+                    convertedResults.add(result);
+                    convertedBytes += result.inputLength;
+                    break;
+            }
+        }
+        double elapsedSeconds = elapsedNanos / 1.0E9;
+        out.println();
+        out.println(String.format("Converted %d file(s) (%d with errors), skipped %d unchanged, %d failed"
+                + " in %.2fs using %d thread(s)",
+                Integer.valueOf(convertedResults.size()), Integer.valueOf(errorCount),
+                Integer.valueOf(skippedCount), Integer.valueOf(failedCount),
+                Double.valueOf(elapsedSeconds), Integer.valueOf(threadCount)));
+        if (convertedResults.isEmpty()) {
+            return;
+        }
+        out.println(String.format("Throughput: %.1f files/s, %.1f KB/s of input",
+                Double.valueOf(convertedResults.size() / elapsedSeconds),
+                Double.valueOf(convertedBytes / 1024.0 / elapsedSeconds)));
+
+        /* Per-file timings */
+        Collections.sort(convertedResults, new Comparator<BatchResult>() {
+            public int compare(BatchResult r1, BatchResult r2) {
+                return r1.durationNanos < r2.durationNanos ? 1 : r1.durationNanos > r2.durationNanos ? -1 : 0;
+            }
+        });
+        long totalNanos = 0;
+        for (BatchResult result : convertedResults) {
+            totalNanos += result.durationNanos;
+        }
+        out.println(String.format("Per-file time (ms): mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                Double.valueOf(totalNanos / 1.0E6 / convertedResults.size()),
+                Double.valueOf(percentile(convertedResults, 0.50) / 1.0E6),
+                Double.valueOf(percentile(convertedResults, 0.90) / 1.0E6),
+                Double.valueOf(percentile(convertedResults, 0.99) / 1.0E6),
+                Double.valueOf(convertedResults.get(0).durationNanos / 1.0E6)));
+        int listedCount = Math.min(slowestFileCount, convertedResults.size());
+        if (listedCount > 0) {
+            out.println("Slowest file(s):");
+            for (int i=0; i<listedCount; i++) {
+                BatchResult result = convertedResults.get(i);
+                out.println(String.format("  %10.1f ms  %s",
+                        Double.valueOf(result.durationNanos / 1.0E6), result.item.inputFile));
+            }
+        }
+    }
+
+    /**
+     * Returns the given percentile of the durations of the given results (sorted in
+     * descending order), using the nearest rank method
+     */
+    static long percentile(final List<BatchResult> sortedResults, final double percentile) {
+        int rank = (int) Math.ceil(percentile * sortedResults.size());
+        return sortedResults.get(sortedResults.size() - Math.max(rank, 1)).durationNanos;
+    }
+
+    //-------------------------------------------------------------------
+    // Manifest
+
+    private Properties readManifest() throws IOException {
+        Properties result = new Properties();
+        if (manifestFile.isFile()) {
+            InputStream inputStream = new FileInputStream(manifestFile);
+            try {
+                result.load(inputStream);
+            }
+            finally {
+                inputStream.close();
+            }
+        }
+        return result;
+    }
+
+    private void writeManifest(final Properties manifest) throws IOException {
+        /* Write to temporary file first so that an interrupted run never leaves a bad manifest */
+        File tempFile = new File(manifestFile.getPath() + ".tmp");
+        IOUtilities.ensureFileCreated(tempFile);
+        OutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            manifest.store(outputStream, "SnuggleTeX batch manifest: output path=hash of options, preamble and input");
+        }
+        finally {
+            outputStream.close();
+        }
+        if (!tempFile.renameTo(manifestFile)) {
+            /* (Windows won't rename over an existing file) */
+            manifestFile.delete();
+            if (!tempFile.renameTo(manifestFile)) {
+                throw new IOException("Could not rename " + tempFile + " to " + manifestFile);
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Represents an input file and where its output will go.
+     */
+    static final class BatchItem {
+
+        final File inputFile;
+
+        /** Path of output file relative to the output directory, used as manifest key */
+        final String key;
+
+        final File outputFile;
+
+        public BatchItem(final File inputFile, final String key, final File outputFile) {
+            this.inputFile = inputFile;
+            this.key = key;
+            this.outputFile = outputFile;
+        }
+    }
+
+    static enum BatchStatus {
+        CONVERTED,
+        CONVERTED_WITH_ERRORS,
+        SKIPPED,
+        FAILED,
+        ;
+    }
+
+    /**
+     * Outcome of converting (or skipping) a {@link BatchItem}.
+     */
+    static final class BatchResult {
+
+        final BatchItem item;
+        final BatchStatus status;
+        final String hash;
+        final long inputLength;
+        final long durationNanos;
+        final List<InputError> errors;
+        final Throwable failure;
+
+        public BatchResult(final BatchItem item, final BatchStatus status, final String hash,
+                final long inputLength, final long durationNanos, final List<InputError> errors,
+                final Throwable failure) {
+            this.item = item;
+            this.status = status;
+            this.hash = hash;
+            this.inputLength = inputLength;
+            this.durationNanos = durationNanos;
+            this.errors = errors;
+            this.failure = failure;
+        }
+    }
+}
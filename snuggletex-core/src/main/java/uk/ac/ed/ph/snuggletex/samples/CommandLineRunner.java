@@ -28,6 +28,9 @@ import java.util.List;
 /**
  * Trivial command line interface for running SnuggleTeX on a number of inputs files (or STDIN),
  * supporting most of the XML- and web-based output options.
+ * <p>
+ * (As of 1.3.1, specifying an output directory with <tt>-outdir</tt> converts each input into
+ * a separate file using {@link CommandLineBatchRunner} instead.)
  * 
  * @since 1.2.2
  *
@@ -41,6 +44,16 @@ public class CommandLineRunner {
     private WebPageOutputOptions snuggleOptions;
     private boolean requestedWebOutput;
     private boolean isQuiet;
+    private File preambleFile;
+    private File outputDirectory;
+    private File manifestFile;
+    private int threadCount;
+    private boolean isForcing;
+    private int slowestFileCount;
+    private final List<String> batchOnlyOptions;
+    
+    /** Records the options affecting the output, used to detect changes in batch mode */
+    private final StringBuilder optionsSignature;
     
     public CommandLineRunner(String[] args) {
         this.args = args;
@@ -48,6 +61,14 @@ public class CommandLineRunner {
         this.snuggleOptions = null;
         this.requestedWebOutput = false;
         this.isQuiet = false;
+        this.preambleFile = null;
+        this.outputDirectory = null;
+        this.manifestFile = null;
+        this.threadCount = 0;
+        this.isForcing = false;
+        this.slowestFileCount = CommandLineBatchRunner.DEFAULT_SLOWEST_FILE_COUNT;
+        this.batchOnlyOptions = new ArrayList<String>();
+        this.optionsSignature = new StringBuilder();
     }
     
     public int execute() {
@@ -79,8 +100,21 @@ public class CommandLineRunner {
         
         /* Now do actual SnuggleTeX work */
         SnuggleEngine engine = new SnuggleEngine();
+        if (outputDirectory!=null) {
+            return executeBatch(engine);
+        }
+        if (!batchOnlyOptions.isEmpty()) {
+            System.err.println("Options " + batchOnlyOptions + " may only be used with -outdir");
+            showHelp();
+            return 1;
+        }
         SnuggleSession session = engine.createSession();
         try {
+            /* Parse any preamble first */
+            if (preambleFile!=null) {
+                session.parseInput(new SnuggleInput(preambleFile));
+            }
+            
             /* Process each input file in turn */
             for (String inputFile : inputFiles) {
                 SnuggleInput input;
@@ -117,6 +151,39 @@ public class CommandLineRunner {
         return 0;
     }
     
+    private int executeBatch(SnuggleEngine engine) {
+        if (inputFiles.contains("-")) {
+            System.err.println("STDIN may not be used as an input with -outdir");
+            showHelp();
+            return 1;
+        }
+        optionsSignature.append("version=")
+            .append(SnuggleEngine.class.getPackage().getImplementationVersion());
+        CommandLineBatchRunner batchRunner = new CommandLineBatchRunner(engine, snuggleOptions,
+                requestedWebOutput, outputDirectory, optionsSignature.toString());
+        batchRunner.setPreambleFile(preambleFile);
+        if (manifestFile!=null) {
+            batchRunner.setManifestFile(manifestFile);
+        }
+        if (threadCount>0) {
+            batchRunner.setThreadCount(threadCount);
+        }
+        batchRunner.setForcing(isForcing);
+        batchRunner.setQuiet(isQuiet);
+        batchRunner.setSlowestFileCount(slowestFileCount);
+        try {
+            return batchRunner.execute(inputFiles);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+        catch (IOException e) {
+            System.err.println("Got IOException running SnuggleTeX: " + e.getMessage());
+            return 1;
+        }
+    }
+    
     private void showHelp() {
         System.out.println("For help and usage, use the -? option");
     }
@@ -152,6 +219,7 @@ public class CommandLineRunner {
                 try {
                     webPageType = WebPageType.valueOf(webPageTypeName);
                     requestedWebOutput = true;
+                    optionsSignature.append("web=").append(webPageTypeName).append('\n');
                 }
                 catch (IllegalArgumentException e) {
                     throw new IllegalArgumentException("Unknown web page type " + webPageTypeName
@@ -195,6 +263,42 @@ public class CommandLineRunner {
                 }
                 String name = arg.substring(1);
                 String value = nextArg;
+                if ("outdir".equals(name)) {
+                    outputDirectory = new File(value);
+                    i++;
+                    continue;
+                }
+                else if ("preamble".equals(name)) {
+                    preambleFile = new File(value);
+                    i++;
+                    continue;
+                }
+                else if ("manifest".equals(name)) {
+                    manifestFile = new File(value);
+                    batchOnlyOptions.add(arg);
+                    i++;
+                    continue;
+                }
+                else if ("threads".equals(name)) {
+                    threadCount = parseNonNegativeInteger(name, value);
+                    batchOnlyOptions.add(arg);
+                    i++;
+                    continue;
+                }
+                else if ("force".equals(name)) {
+                    isForcing = parseBoolean(name, value);
+                    batchOnlyOptions.add(arg);
+                    i++;
+                    continue;
+                }
+                else if ("timings".equals(name)) {
+                    slowestFileCount = parseNonNegativeInteger(name, value);
+                    batchOnlyOptions.add(arg);
+                    i++;
+                    continue;
+                }
+                /* (Remaining options affect the output) */
+                optionsSignature.append(name).append('=').append(value).append('\n');
                 if ("indent".equals(name)) {
                     int indentAmount = 0;
                     boolean badIndent = false;
@@ -323,6 +427,20 @@ public class CommandLineRunner {
         }
     }
     
+    private int parseNonNegativeInteger(final String name, final String value) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            result = -1;
+        }
+        if (result<0) {
+            throw new IllegalArgumentException("Expected option " + name + " to have a non-negative integer value, but got " + value);
+        }
+        return result;
+    }
+    
     public static void main(String[] args) {
         System.exit(new CommandLineRunner(args).execute());
     }
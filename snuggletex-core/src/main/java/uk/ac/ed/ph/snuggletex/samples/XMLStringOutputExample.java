@@ -38,7 +38,7 @@ public final class XMLStringOutputExample {
         options.setIndenting(true);
         options.setEncoding("UTF-8");
         options.setAddingMathSourceAnnotations(true);
-        options.setUsingNamedEntities(true); /* (Only used if caller has an XSLT 2.0 processor) */
+        options.setUsingNamedEntities(true);
         
         /* Convert the results to an XML String, which in this case will
          * be a single MathML <math>...</math> element. */
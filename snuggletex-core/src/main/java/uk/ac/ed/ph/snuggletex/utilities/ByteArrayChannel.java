@@ -0,0 +1,152 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.utilities;
+
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Simple {@link WritableByteChannel} that collects bytes in a byte array, which is grown
+ * as required.
+ * <p>
+ * This is intended to be reused: call {@link #reset()} before each use to start again
+ * while keeping the existing array. For example, keeping one of these per Thread and passing it
+ * to {@link SnuggleSession#writeXMLString(uk.ac.ed.ph.snuggletex.XMLStringOutputOptions, WritableByteChannel)}
+ * gives the encoded output of each session without creating any intermediate Strings
+ * or arrays once the array has grown to a suitable size. The bytes can then be sent on via
+ * {@link #writeTo(OutputStream)} or {@link #getByteBuffer()}.
+ * <p>
+ * An instance of this Class is not thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class ByteArrayChannel implements WritableByteChannel {
+
+    /** Default initial capacity */
+    public static final int DEFAULT_CAPACITY = 8 * 1024;
+
+    private byte[] buffer;
+    private int size;
+    private boolean open;
+
+    /**
+     * Creates a new {@link ByteArrayChannel} with the default initial capacity.
+     */
+    public ByteArrayChannel() {
+        this(new byte[DEFAULT_CAPACITY]);
+    }
+
+    /**
+     * Creates a new {@link ByteArrayChannel} with the given initial capacity.
+     */
+    public ByteArrayChannel(final int initialCapacity) {
+        this(new byte[initialCapacity]);
+    }
+
+    /**
+     * Creates a new {@link ByteArrayChannel} that will initially write into the given array,
+     * which is replaced by a larger one if it fills up.
+     */
+    public ByteArrayChannel(final byte[] buffer) {
+        this.buffer = buffer;
+        this.size = 0;
+        this.open = true;
+    }
+
+    public int write(final ByteBuffer source) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int length = source.remaining();
+        ensureCapacity(size + length);
+        source.get(buffer, size, length);
+        size += length;
+        return length;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, size);
+            buffer = newBuffer;
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes this channel. It can be reopened by calling {@link #reset()}.
+     */
+    public void close() {
+        open = false;
+    }
+
+    /**
+     * Discards any bytes written so far and (re)opens this channel, keeping the current
+     * array for reuse.
+     */
+    public void reset() {
+        size = 0;
+        open = true;
+    }
+
+    /**
+     * Returns the number of bytes written since this was created or last reset.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the underlying array, whose first {@link #size()} bytes are the ones written.
+     * This may change as more bytes are written.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns a read-only {@link ByteBuffer} containing the bytes written, which shares the
+     * underlying array.
+     */
+    public ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, size).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a copy of the bytes written.
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[size];
+        System.arraycopy(buffer, 0, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Sends the bytes written to the given {@link OutputStream}.
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, 0, size);
+    }
+
+    /**
+     * Decodes the bytes written using the given encoding.
+     */
+    public String toString(final String encoding) throws UnsupportedEncodingException {
+        return new String(buffer, 0, size, encoding);
+    }
+}
@@ -0,0 +1,98 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.utilities;
+
+import java.util.Properties;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+
+/**
+ * Base for the {@link Transformer}s that {@link StylesheetManager} wraps around a serializer
+ * to change what happens during {@link #transform(Source, Result)}. Everything else is
+ * delegated to the underlying serializer.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+abstract class DelegatingTransformer extends Transformer {
+
+    /** Underlying serializer */
+    protected final Transformer serializer;
+
+    protected DelegatingTransformer(final Transformer serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    public abstract void transform(Source xmlSource, Result outputTarget) throws TransformerException;
+
+    @Override
+    public void setParameter(final String name, final Object value) {
+        serializer.setParameter(name, value);
+    }
+
+    @Override
+    public Object getParameter(final String name) {
+        return serializer.getParameter(name);
+    }
+
+    @Override
+    public void clearParameters() {
+        serializer.clearParameters();
+    }
+
+    @Override
+    public void setURIResolver(final URIResolver resolver) {
+        serializer.setURIResolver(resolver);
+    }
+
+    @Override
+    public URIResolver getURIResolver() {
+        return serializer.getURIResolver();
+    }
+
+    @Override
+    public void setOutputProperties(final Properties oformat) {
+        serializer.setOutputProperties(oformat);
+    }
+
+    @Override
+    public Properties getOutputProperties() {
+        return serializer.getOutputProperties();
+    }
+
+    @Override
+    public void setOutputProperty(final String name, final String value) {
+        serializer.setOutputProperty(name, value);
+    }
+
+    @Override
+    public String getOutputProperty(final String name) {
+        return serializer.getOutputProperty(name);
+    }
+
+    @Override
+    public void setErrorListener(final ErrorListener listener) {
+        serializer.setErrorListener(listener);
+    }
+
+    @Override
+    public ErrorListener getErrorListener() {
+        return serializer.getErrorListener();
+    }
+
+    @Override
+    public void reset() {
+        serializer.reset();
+    }
+}
@@ -0,0 +1,95 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Wraps a serializing {@link Transformer} so that any {@link StreamResult} is written via
+ * a {@link MathMLEntityWriter}, which is how {@link StylesheetManager} implements named
+ * entity output.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class EntityMappingTransformer extends DelegatingTransformer {
+
+    public EntityMappingTransformer(final Transformer serializer) {
+        super(serializer);
+    }
+
+    @Override
+    public void transform(final Source xmlSource, final Result outputTarget) throws TransformerException {
+        if (!(outputTarget instanceof StreamResult)) {
+            /* (Entities only make sense when serializing) */
+            serializer.transform(xmlSource, outputTarget);
+            return;
+        }
+        StreamResult streamResult = (StreamResult) outputTarget;
+        try {
+            if (streamResult.getWriter()!=null) {
+                MathMLEntityWriter entityWriter = new MathMLEntityWriter(streamResult.getWriter(), isHTMLOutput());
+                serializer.transform(xmlSource, new StreamResult(entityWriter));
+                entityWriter.flush();
+            }
+            else if (streamResult.getOutputStream()!=null) {
+                transformToStream(xmlSource, streamResult.getOutputStream());
+            }
+            else if (streamResult.getSystemId()!=null) {
+                OutputStream fileStream = new FileOutputStream(new File(new URI(streamResult.getSystemId())));
+                try {
+                    transformToStream(xmlSource, fileStream);
+                }
+                finally {
+                    fileStream.close();
+                }
+            }
+            else {
+                throw new TransformerException("StreamResult has no Writer, OutputStream or system ID");
+            }
+        }
+        catch (TransformerException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new TransformerException("Could not write serialized output", e);
+        }
+    }
+
+    /** Tests whether the underlying serializer is writing HTML */
+    private boolean isHTMLOutput() {
+        return "html".equals(serializer.getOutputProperty(OutputKeys.METHOD));
+    }
+
+    /**
+     * Serializes to the given {@link OutputStream} by encoding the characters ourselves. (The
+     * underlying serializer still escapes any characters that can't be represented in the
+     * required encoding, as it knows about it via its output properties.)
+     */
+    private void transformToStream(final Source xmlSource, final OutputStream outputStream)
+            throws TransformerException, IOException {
+        String encoding = serializer.getOutputProperty(OutputKeys.ENCODING);
+        Writer entityWriter = new MathMLEntityWriter(new OutputStreamWriter(outputStream, encoding!=null ? encoding : "UTF-8"),
+                isHTMLOutput());
+        serializer.transform(xmlSource, new StreamResult(entityWriter));
+        entityWriter.flush();
+    }
+}
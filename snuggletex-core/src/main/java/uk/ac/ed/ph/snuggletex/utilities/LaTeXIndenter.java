@@ -5,138 +5,274 @@
  */
 package uk.ac.ed.ph.snuggletex.utilities;
 
-import java.io.BufferedReader;
+import uk.ac.ed.ph.snuggletex.SnugglePackage;
+import uk.ac.ed.ph.snuggletex.definitions.BuiltinEnvironment;
+import uk.ac.ed.ph.snuggletex.definitions.CorePackageDefinitions;
+import uk.ac.ed.ph.snuggletex.definitions.LaTeXMode;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
- * Simple utility class that does very basic indenting of LaTeX.
- * 
- * NOTE: This has not been properly tested yet so is to be assumed
- * experimental for the time being...!
- * 
+ * Simple utility class that does very basic indenting of LaTeX, indenting the content of
+ * each environment and trimming whitespace from the start and end of each line.
+ * <p>
+ * The input is read in a single pass, character by character, so the amount of memory used
+ * does not depend on the size of the input. (The only thing held back is any run of whitespace
+ * within a line, until we know whether it trails the line or not.)
+ * <p>
+ * Comments, escapes, <tt>\verb</tt> and environments whose content is parsed in
+ * {@link LaTeXMode#VERBATIM} Mode (such as <tt>verbatim</tt>) are recognised in the same way
+ * as the tokeniser does. Verbatim content is passed through unchanged and anything in
+ * comments or verbatim content is ignored when working out indentation, so the result will
+ * be tokenised in the same way as the input.
+ * <p>
+ * An instance of this Class is not thread-safe.
+ *
  * @author  David McKain
  * @version $Revision$
  */
 public final class LaTeXIndenter {
-    
+
     /** Default indent width */
     public static final int DEFAULT_INDENT_WIDTH = 2;
-    
+
     /** Default maximum indent level */
     public static final int DEFAULT_MAX_INDENT_LEVEL = 10;
-    
+
+    /** Size of the buffers used for reading and writing */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Maximum length of command or environment name we remember. (Longer names are never
+     * ones we're interested in.)
+     */
+    private static final int MAX_NAME_LENGTH = 64;
+
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
-    private static final String BEGIN = "\\begin";
-    private static final String END = "\\end";
-    private static final Pattern BEGIN_PATTERN = Pattern.compile("\\\\begin\\s*+\\{(.+?)\\}");
-    private static final Pattern END_PATTERN   = Pattern.compile("\\\\end\\s*+\\{(.+?)\\}");
-    
+    private static final String BEGIN = "begin";
+    private static final String END = "end";
+    private static final String END_COMMAND = "\\end";
+    private static final String VERB = CorePackageDefinitions.CMD_VERB.getTeXName();
+    private static final String VERB_STAR = CorePackageDefinitions.CMD_VERBSTAR.getTeXName();
+
     // --------------------------------------------------------------
     // Properties
-    
+
     /** Writer that we are outputting to */
     private final Writer outputWriter;
-   
+
+    /** Names of environments whose content is parsed in {@link LaTeXMode#VERBATIM} Mode */
+    private final Set<String> verbatimEnvironmentNames;
+
     /** Current indent width */
     private int indentWidth;
-    
+
     /** Current maximum indent level */
     private int maxIndentLevel;
-    
+
     /** Whether to compact >1 blank lines up as a single blank line */
     private boolean compactingBlankLines;
-    
+
     // --------------------------------------------------------------
-    // State
-    
-    /** Encapsulates the different states our parser can be in */
-    private static enum ParsingState {
+    // Tokenising state
+
+    /** Encapsulates what we are in the middle of reading, as far as the tokeniser is concerned */
+    private static enum LexState {
         /** Normal TeX */
-        DEFAULT,
-        
-        /** Handling a run of empty lines */
-        EMPTY_LINES,
-        
-        /** Waiting to resolve a \\begin that started on the previous line */
-        BEGIN_DECLARATION,
-        
-        /** Waiting to resolve a \\end that started on the previous line */
-        END_DECLARATION,
-    }
-    
-    /** Number of consecutive blank lines encountered */
-    private int blankLineCount;
-    
+        TEXT,
+
+        /** Read a '\' */
+        ESCAPE,
+
+        /** Reading the name of a command */
+        COMMAND_NAME,
+
+        /** Read a command name ending with '*', so the name is now complete */
+        COMMAND_NAME_STARRED,
+
+        /** Reading a comment */
+        COMMENT,
+
+        /** After \\begin or \\end, waiting for the '{' */
+        ENVIRONMENT_OPEN,
+
+        /** Reading a comment between \\begin or \\end and its '{' */
+        ENVIRONMENT_COMMENT,
+
+        /** Read the '{' after \\begin or \\end */
+        ENVIRONMENT_NAME_START,
+
+        /** Reading the name of an environment */
+        ENVIRONMENT_NAME,
+
+        /** Name of environment is complete, waiting for the '}' */
+        ENVIRONMENT_NAME_END,
+
+        /** Inside \\verb, waiting for its closing delimiter */
+        VERB,
+
+        /** Inside the content of a verbatim environment, waiting for its \\end */
+        VERBATIM,
+    }
+
+    /** Current tokenising state */
+    private LexState lexState;
+
+    /** Name of the command or environment currently being read (truncated if too long) */
+    private final StringBuilder nameBuilder;
+
+    /** Full length of the command or environment currently being read */
+    private int nameLength;
+
+    /** Set when reading \\begin, clear when reading \\end */
+    private boolean inBegin;
+
+    /** Closing delimiter of the current \\verb */
+    private char verbDelimiter;
+
+    /** Name of the current verbatim environment */
+    private String verbatimEnvironmentName;
+
+    /** Number of characters of <tt>\end</tt> matched so far in verbatim content */
+    private int endCommandMatched;
+
+    /** Number of characters of <tt>{envName}</tt> matched so far */
+    private int verbatimTerminatorMatched;
+
     /** Current indent level */
     private int indentLevel;
-    
-    /** Set when we are in verbatim mode */
-    private boolean verbatimMode;
-    
-    /** Current parsing state */
-    private ParsingState parsingState;
-    
+
+    // --------------------------------------------------------------
+    // Output state
+
+    /** Encapsulates how far we are through the current line */
+    private static enum LinePosition {
+        /** Skipping leading whitespace */
+        LINE_START,
+
+        /** Holding back the start of the line until we know whether it is an \\end */
+        LINE_HEAD,
+
+        /** Within the line */
+        LINE_BODY,
+    }
+
+    /** How far through the current (non-verbatim) line we are */
+    private LinePosition linePosition;
+
+    /** Set if the current line started within verbatim content, so is output unchanged */
+    private boolean verbatimLine;
+
+    /** Set if nothing at all has been read on the current line */
+    private boolean emptyLine;
+
+    /** Indent level at the start of the current line */
+    private int lineIndentLevel;
+
+    /** Characters at the start of the current line that are being held back */
+    private final StringBuilder lineHead;
+
+    /** Whitespace that is being held back until we know whether it trails the current line */
+    private final StringBuilder pendingWhitespace;
+
+    /** Number of consecutive blank lines encountered */
+    private int blankLineCount;
+
+    /** Output that has not been sent to {@link #outputWriter} yet */
+    private final char[] outputBuffer;
+    private int outputLength;
+
     /**
      * Creates a new indenter that will output to {@link #outputWriter}. This will have
-     * default properties set and will compact blank lines by default.
-     * 
+     * default properties set and will compact blank lines by default. Environments defined in
+     * the core {@link SnugglePackage} are recognised; call
+     * {@link #addVerbatimEnvironments(SnugglePackage)} if other packages will be used.
+     *
      * @param outputWriter
      */
     public LaTeXIndenter(final Writer outputWriter) {
+        ConstraintUtilities.ensureNotNull(outputWriter, "outputWriter");
         this.outputWriter = outputWriter;
+        this.verbatimEnvironmentNames = new HashSet<String>();
         this.indentWidth = DEFAULT_INDENT_WIDTH;
         this.maxIndentLevel = DEFAULT_MAX_INDENT_LEVEL;
         this.compactingBlankLines = true;
-        
+        this.nameBuilder = new StringBuilder(MAX_NAME_LENGTH);
+        this.lineHead = new StringBuilder(END_COMMAND.length() + 1);
+        this.pendingWhitespace = new StringBuilder();
+        this.outputBuffer = new char[BUFFER_SIZE];
+        addVerbatimEnvironments(CorePackageDefinitions.getPackage());
+
         /* Initialise parsing state */
         reset();
     }
-    
+
     //--------------------------------------------------------------
-    
+
     public int getIndentWidth() {
         return this.indentWidth;
     }
-    
+
     public void setIndentWidth(int indentWidth) {
         if (indentWidth<0) {
             throw new IllegalArgumentException("indentWidth must be non-negative");
         }
         this.indentWidth = indentWidth;
     }
-    
-    
+
+
     public int getMaxIndentLevel() {
         return this.maxIndentLevel;
     }
-    
+
     public void setMaxIndentLevel(int maxIndentLevel) {
         if (maxIndentLevel<0) {
             throw new IllegalArgumentException("maxIndentLevel must be non-negative");
         }
         this.maxIndentLevel = maxIndentLevel;
     }
-    
-    
+
+
     public boolean isCompactingBlankLines() {
         return this.compactingBlankLines;
     }
-    
+
     public void setCompactingBlankLines(boolean condenseBlankLines) {
         this.compactingBlankLines = condenseBlankLines;
     }
-    
+
+
+    /**
+     * Registers the environments in the given {@link SnugglePackage} whose content is parsed
+     * in {@link LaTeXMode#VERBATIM} Mode, so that their content is left alone.
+     *
+     * @since 1.3.1
+     */
+    public void addVerbatimEnvironments(SnugglePackage snugglePackage) {
+        ConstraintUtilities.ensureNotNull(snugglePackage, "snugglePackage");
+        for (BuiltinEnvironment environment : snugglePackage.getBuiltinEnvironmentMap().values()) {
+            if (environment.getContentMode()==LaTeXMode.VERBATIM) {
+                verbatimEnvironmentNames.add(environment.getTeXName());
+            }
+        }
+    }
+
     //--------------------------------------------------------------
-    
+
     public void reset() {
+        this.lexState = LexState.TEXT;
+        this.nameBuilder.setLength(0);
+        this.nameLength = 0;
+        this.verbatimEnvironmentName = null;
         this.indentLevel = 0;
-        this.verbatimMode = false;
         this.blankLineCount = 0;
-        this.parsingState = ParsingState.DEFAULT;
+        this.outputLength = 0;
+        startLine();
     }
 
     /**
@@ -144,202 +280,434 @@ public final class LaTeXIndenter {
      * {@link #outputWriter}. The inputReader will be closed afterwards; the
      * {@link #outputWriter} is left open so the caller should arrange to
      * flush or close it as required.
+     * <p>
+     * Lines may be terminated by any of <tt>\n</tt>, <tt>\r</tt> or <tt>\r\n</tt>. Each output
+     * line is terminated by the platform line separator.
      */
     public void run(Reader inputReader) throws IOException {
         /* Reset state */
         reset();
-        
-        /* Ensure input is buffered */
-        BufferedReader reader;
-        if (inputReader instanceof BufferedReader) {
-            reader = (BufferedReader) inputReader;
-        }
-        else {
-            reader = new BufferedReader(inputReader);
-        }
-        /* Now read line-by-line */
-        String line;
+
+        /* Now read character-by-character */
+        char[] inputBuffer = new char[BUFFER_SIZE];
+        boolean afterCarriageReturn = false;
+        int count;
         try {
-            while ((line=reader.readLine())!=null) {
-                handleLine(line);
+            while ((count=inputReader.read(inputBuffer))!=-1) {
+                for (int i=0; i<count; i++) {
+                    char c = inputBuffer[i];
+                    if (c=='\n') {
+                        if (!afterCarriageReturn) {
+                            handleNewline();
+                        }
+                        afterCarriageReturn = false;
+                    }
+                    else if (c=='\r') {
+                        handleNewline();
+                        afterCarriageReturn = true;
+                    }
+                    else {
+                        handleCharacter(c);
+                        afterCarriageReturn = false;
+                    }
+                }
+            }
+            /* Finish off any unterminated final line. (Any trailing blank lines are dropped.) */
+            if (!emptyLine) {
+                handleNewline();
             }
+            flushOutput();
         }
         finally {
             inputReader.close();
         }
     }
-    
+
     //--------------------------------------------------------------
+    // Line handling
+
+    private void startLine() {
+        verbatimLine = lexState==LexState.VERBATIM || lexState==LexState.VERB;
+        linePosition = LinePosition.LINE_START;
+        emptyLine = true;
+        lineIndentLevel = indentLevel;
+        lineHead.setLength(0);
+        pendingWhitespace.setLength(0);
+    }
+
+    private void handleNewline() throws IOException {
+        lex('\n');
+        endLine();
+    }
+
+    private void handleCharacter(final char c) throws IOException {
+        if (lexState==LexState.TEXT && linePosition==LinePosition.LINE_BODY
+                && c>' ' && c<0x7f && c!='\\' && c!='%') {
+            /* Fast path for the common case of ordinary text */
+            writeBodyCharacter(c, false);
+            return;
+        }
+        /* (Whether this character is verbatim depends on the state before we read it) */
+        boolean verbatim = lexState==LexState.VERBATIM || lexState==LexState.VERB;
+        lex(c);
+        emptyLine = false;
+        if (verbatimLine) {
+            writeBlankLines();
+            write(c);
+            return;
+        }
+        switch (linePosition) {
+            case LINE_START:
+                if (!verbatim && Character.isWhitespace(c)) {
+                    /* Skip leading whitespace */
+                    break;
+                }
+                linePosition = LinePosition.LINE_HEAD;
+                lineHead.append(c);
+                checkLineHead();
+                break;
+
+            case LINE_HEAD:
+                lineHead.append(c);
+                checkLineHead();
+                break;
+
+            case LINE_BODY:
+                writeBodyCharacter(c, verbatim);
+                break;
+
+            default:
+                throw new IllegalStateException("Unexpected switch case " + linePosition);
+        }
+    }
+
+    /**
+     * Decides whether the current line starts with <tt>\end</tt> once we've read enough of it.
+     */
+    private void checkLineHead() throws IOException {
+        int length = lineHead.length();
+        if (length<=END_COMMAND.length()) {
+            if (lineHead.charAt(length-1)!=END_COMMAND.charAt(length-1)) {
+                releaseLineHead(false);
+            }
+        }
+        else {
+            char c = lineHead.charAt(length-1);
+            releaseLineHead(!isLetter(c) && c!='*');
+        }
+    }
 
     /**
-     * Handles a single line, which may or may not end in a newline character
+     * Outputs the indent for the current line, unindenting if the line starts with <tt>\end</tt>,
+     * followed by the characters that were held back.
      */
-    private void handleLine(String line) throws IOException {
-        /* Trim off trailing newline stuff */
-        line = line.replace(LINE_SEPARATOR, "");
-        
-        /* If we're not currently in verbatim mode, then trim off leading and trailing whitespace */
-        if (!verbatimMode) {
-            line = line.trim();
-        }
-        /* Record whether line is blank and in non-verbatim mode */
-        boolean isBlankLine = !verbatimMode && line.length()==0;
-        
-//        /* Log what we have at the moment */
-//        System.out.println("Handling line: state=" + parsingState
-//                    + ", vbMode=" + verbatimMode
-//                    + ", iLevel=" + indentLevel
-//                    + ", line=" + line
-//                    + ", isBlank=" + isBlankLine);
-        
-        /* Now handle line, which will depend on the current parsing state */
-        switch (parsingState) {
-            case DEFAULT: {
-                if (isBlankLine) {
-                    /* Mark change of state */
-                    parsingState = ParsingState.EMPTY_LINES;
-                    blankLineCount++;
+    private void releaseLineHead(final boolean startsWithEnd) throws IOException {
+        writeBlankLines();
+        int level = startsWithEnd ? lineIndentLevel - 1 : lineIndentLevel;
+        if (level > maxIndentLevel) {
+            level = maxIndentLevel;
+        }
+        for (int i=level*indentWidth; i>0; i--) {
+            write(' ');
+        }
+        linePosition = LinePosition.LINE_BODY;
+        for (int i=0, length=lineHead.length(); i<length; i++) {
+            writeBodyCharacter(lineHead.charAt(i), false);
+        }
+    }
+
+    private void writeBodyCharacter(final char c, final boolean verbatim) throws IOException {
+        if (!verbatim && Character.isWhitespace(c)) {
+            pendingWhitespace.append(c);
+        }
+        else {
+            if (pendingWhitespace.length()>0) {
+                write(pendingWhitespace);
+                pendingWhitespace.setLength(0);
+            }
+            write(c);
+        }
+    }
+
+    private void endLine() throws IOException {
+        if (verbatimLine) {
+            writeBlankLines();
+            write(LINE_SEPARATOR);
+        }
+        else {
+            if (linePosition==LinePosition.LINE_HEAD) {
+                releaseLineHead(END_COMMAND.contentEquals(lineHead));
+            }
+            if (linePosition==LinePosition.LINE_START) {
+                /* Blank line, so hold back until we get to the next non-blank line */
+                blankLineCount++;
+            }
+            else {
+                /* (Any pending whitespace trails the line so is dropped) */
+                write(LINE_SEPARATOR);
+            }
+        }
+        startLine();
+    }
+
+    private void writeBlankLines() throws IOException {
+        if (blankLineCount>0) {
+            write(LINE_SEPARATOR);
+            if (!compactingBlankLines) {
+                for (int i=1; i<blankLineCount; i++) {
+                    write(LINE_SEPARATOR);
                 }
-                else {
-                    /* Handle normally */
-                    handleLineInDefaultState(line);
+            }
+            blankLineCount = 0;
+        }
+    }
+
+    //--------------------------------------------------------------
+    // Tokenising. This follows what LaTeXTokeniser does, but only pays attention
+    // to what we need.
+
+    private void lex(final char c) {
+        switch (lexState) {
+            case TEXT:
+                if (c=='\\') {
+                    lexState = LexState.ESCAPE;
+                }
+                else if (c=='%') {
+                    lexState = LexState.COMMENT;
                 }
                 break;
-            }
-                
-            case EMPTY_LINES: {
-                if (isBlankLine) {
-                    /* Do nothing, we've just had a blank line */
-                    blankLineCount++;
+
+            case ESCAPE:
+                if (isLetter(c)) {
+                    startName(c);
+                    lexState = LexState.COMMAND_NAME;
                 }
                 else {
-                    /* End of blank lines. So output blank (or blanks), return to default state
-                     * and handle the line as normal.
-                     */
-                    outputWriter.write(LINE_SEPARATOR);
-                    if (!compactingBlankLines) {
-                        for (int i=1; i<blankLineCount; i++) {
-                            outputWriter.write(LINE_SEPARATOR);
-                        }
-                    }
-                    blankLineCount = 0;
-                    parsingState = ParsingState.DEFAULT;
-                    handleLineInDefaultState(line);
+                    /* Funny symbols are always exactly one character */
+                    lexState = LexState.TEXT;
                 }
                 break;
-            }
 
-            case BEGIN_DECLARATION: {
-                if (isBlankLine) {
-                    /* Ignore */
+            case COMMAND_NAME:
+                if (isLetter(c)) {
+                    appendName(c);
+                }
+                else if (c=='*') {
+                    appendName(c);
+                    lexState = LexState.COMMAND_NAME_STARRED;
                 }
                 else {
-                    /* Should be finishing off the declaration */
-                    parsingState = ParsingState.DEFAULT;
-                    handleLineInDefaultState(BEGIN + line);
+                    endCommandName(c);
                 }
                 break;
-            }
-            
-            case END_DECLARATION: {
-                if (isBlankLine) {
-                    /* Ignore */
+
+            case COMMAND_NAME_STARRED:
+                endCommandName(c);
+                break;
+
+            case COMMENT:
+                if (c=='\n') {
+                    lexState = LexState.TEXT;
+                }
+                break;
+
+            case ENVIRONMENT_OPEN:
+                if (c=='{') {
+                    lexState = LexState.ENVIRONMENT_NAME_START;
+                }
+                else if (c=='%') {
+                    lexState = LexState.ENVIRONMENT_COMMENT;
+                }
+                else if (!Character.isWhitespace(c)) {
+                    /* Error: Expected to find {envName} */
+                    lexState = LexState.TEXT;
+                    lex(c);
+                }
+                break;
+
+            case ENVIRONMENT_COMMENT:
+                if (c=='\n') {
+                    lexState = LexState.ENVIRONMENT_OPEN;
+                }
+                break;
+
+            case ENVIRONMENT_NAME_START:
+                startName(c);
+                lexState = isLetter(c) ? LexState.ENVIRONMENT_NAME : LexState.ENVIRONMENT_NAME_END;
+                break;
+
+            case ENVIRONMENT_NAME:
+                if (isLetter(c)) {
+                    appendName(c);
+                }
+                else if (c=='*') {
+                    appendName(c);
+                    lexState = LexState.ENVIRONMENT_NAME_END;
                 }
                 else {
-                    /* Should be finishing off the declaration */
-                    parsingState = ParsingState.DEFAULT;
-                    handleLineInDefaultState(END + line);
+                    endEnvironmentName(c);
                 }
                 break;
-            }
-                
+
+            case ENVIRONMENT_NAME_END:
+                endEnvironmentName(c);
+                break;
+
+            case VERB:
+                if (c==verbDelimiter) {
+                    lexState = LexState.TEXT;
+                }
+                break;
+
+            case VERBATIM:
+                lexVerbatim(c);
+                break;
+
             default:
-                throw new IllegalStateException("Unexpected switch case " + parsingState);
+                throw new IllegalStateException("Unexpected switch case " + lexState);
         }
     }
-    
-    private void handleLineInDefaultState(String line) throws IOException {
-        /* Does line end with a \begin or \end which is unclosed */
-        if (line.endsWith(BEGIN)) {
-            handleLineFragmentInDefaultState(line.substring(0, line.length() - BEGIN.length()));
-            parsingState = ParsingState.BEGIN_DECLARATION;
+
+    /**
+     * Called once the name of a command has been read, with the character following it.
+     */
+    private void endCommandName(final char c) {
+        if (isName(BEGIN) || isName(END)) {
+            inBegin = isName(BEGIN);
+            lexState = LexState.ENVIRONMENT_OPEN;
+            lex(c);
         }
-        else if (line.endsWith(END)) {
-            handleLineFragmentInDefaultState(line.substring(0, line.length() - END.length()));
-            parsingState = ParsingState.END_DECLARATION;
+        else if ((isName(VERB) || isName(VERB_STAR)) && !Character.isWhitespace(c)) {
+            /* This character delimits the verbatim region, which goes up to the next instance of it */
+            verbDelimiter = c;
+            lexState = LexState.VERB;
+        }
+        else {
+            lexState = LexState.TEXT;
+            lex(c);
+        }
+    }
 
+    /**
+     * Called once the name of an environment has been read, with the character following it.
+     */
+    private void endEnvironmentName(final char c) {
+        if (c!='}') {
+            /* Error: Expected to find {envName} */
+            lexState = LexState.TEXT;
+            lex(c);
+        }
+        else if (!inBegin) {
+            indentLevel--;
+            lexState = LexState.TEXT;
+        }
+        else if ((verbatimEnvironmentName = findVerbatimEnvironmentName())!=null) {
+            /* Content is passed through until the next \end{envName} */
+            endCommandMatched = 0;
+            verbatimTerminatorMatched = 0;
+            lexState = LexState.VERBATIM;
         }
         else {
-            handleLineFragmentInDefaultState(line);
-        }
-    }
-    
-    private void handleLineFragmentInDefaultState(String line) throws IOException {
-//        System.out.println("Handling line fragment: state=" + parsingState
-//                    + ", vbLevel=" + verbatimMode
-//                    + ", iLevel=" + indentLevel
-//                    + ", line=" + line
-//                    );
-        
-        /* If not in verbatim, we'll indent the line as appropriate. This will be the
-         * current indent, unless it starts with an '\end' in which case we'll unindent
-         * immediately.
-         */
-        boolean initialUnindent = false;
-        if (!verbatimMode) {
-            if (line.startsWith(END)) {
-                initialUnindent = true;
-                indentLevel--;
-            }
-            createIndent(indentLevel);
-        }
-
-        /* Now output line */
-        outputWriter.write(line);
-        outputWriter.write(LINE_SEPARATOR);
-        
-        /* We now adjust the indentLevel and verbatimLevel.
-         * 
-         * First find all of the \end{...}'s.
-         */
-        Matcher matcher = END_PATTERN.matcher(line);
-        while (matcher.find()) {
-            if (!verbatimMode) {
-                indentLevel--;
+            indentLevel++;
+            lexState = LexState.TEXT;
+        }
+    }
 
+    /**
+     * Looks for the end of the current verbatim environment, which is <tt>\end</tt> followed
+     * by optional whitespace and <tt>{envName}</tt>.
+     */
+    private void lexVerbatim(final char c) {
+        if (endCommandMatched<END_COMMAND.length()) {
+            if (c==END_COMMAND.charAt(endCommandMatched)) {
+                endCommandMatched++;
             }
             else {
-                if (matcher.group(1).equals("verbatim")) {
-                    /* (Leaving verbatim should apply to next line) */
-                    verbatimMode = false;
-                }
+                endCommandMatched = c=='\\' ? 1 : 0;
             }
         }
-        /* Account for any initial unindent we found earlier */
-        if (initialUnindent) {
-            indentLevel++;
+        else if (verbatimTerminatorMatched==0 && Character.isWhitespace(c)) {
+            /* Whitespace is allowed after \end */
         }
-        /* Then find all of the \begin{...}s */
-        matcher = BEGIN_PATTERN.matcher(line);
-        while (matcher.find()) {
-            if (!verbatimMode) {
-                if (matcher.group(1).equals("verbatim")) {
-                    verbatimMode = true;
-                }
-                else {
-                    indentLevel++;
-                }
+        else if (c==getVerbatimTerminatorChar(verbatimTerminatorMatched)) {
+            if (++verbatimTerminatorMatched==verbatimEnvironmentName.length() + 2) {
+                verbatimEnvironmentName = null;
+                lexState = LexState.TEXT;
             }
         }
+        else {
+            endCommandMatched = c=='\\' ? 1 : 0;
+            verbatimTerminatorMatched = 0;
+        }
     }
-    
-    private void createIndent(int level) throws IOException {
-        if (level > maxIndentLevel) {
-            level = maxIndentLevel;
+
+    /**
+     * Returns the character at the given index of <tt>{envName}</tt> for the current verbatim
+     * environment.
+     */
+    private char getVerbatimTerminatorChar(final int index) {
+        if (index==0) {
+            return '{';
+        }
+        else if (index<=verbatimEnvironmentName.length()) {
+            return verbatimEnvironmentName.charAt(index-1);
+        }
+        return '}';
+    }
+
+    /**
+     * Returns the name of the verbatim environment whose name has just been read, or null if it
+     * is not a verbatim environment. (We don't create a String for the name here as this happens
+     * for every environment.)
+     */
+    private String findVerbatimEnvironmentName() {
+        for (String name : verbatimEnvironmentNames) {
+            if (isName(name)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private void startName(final char c) {
+        nameBuilder.setLength(0);
+        nameLength = 0;
+        appendName(c);
+    }
+
+    private void appendName(final char c) {
+        if (nameLength<MAX_NAME_LENGTH) {
+            nameBuilder.append(c);
+        }
+        nameLength++;
+    }
+
+    private boolean isName(final String name) {
+        return nameLength==name.length() && name.contentEquals(nameBuilder);
+    }
+
+    private static boolean isLetter(final char c) {
+        return c>='a' && c<='z' || c>='A' && c<='Z';
+    }
+
+    //--------------------------------------------------------------
+    // Output buffering
+
+    private void write(final char c) throws IOException {
+        if (outputLength==outputBuffer.length) {
+            flushOutput();
         }
-        int toIndent = level * indentWidth;
-        for (int i=0; i<toIndent; i++) {
-            outputWriter.write(' ');
+        outputBuffer[outputLength++] = c;
+    }
+
+    private void write(final CharSequence chars) throws IOException {
+        for (int i=0, length=chars.length(); i<length; i++) {
+            write(chars.charAt(i));
         }
     }
+
+    private void flushOutput() throws IOException {
+        outputWriter.write(outputBuffer, 0, outputLength);
+        outputLength = 0;
+    }
 }
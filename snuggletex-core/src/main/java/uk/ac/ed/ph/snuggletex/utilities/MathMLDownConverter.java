@@ -7,15 +7,19 @@ package uk.ac.ed.ph.snuggletex.utilities;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.SnuggleConstants;
 import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
 import uk.ac.ed.ph.snuggletex.definitions.Globals;
+import uk.ac.ed.ph.snuggletex.internal.NativeMathMLDownConverter;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
@@ -28,6 +32,11 @@ import java.util.Properties;
  * <p>
  * More complex MathML expressions are left as-is.
  * <p>
+ * As of SnuggleTeX 1.3.1, the rules in the <tt>mathml-to-xhtml.xsl</tt> stylesheet are
+ * implemented natively in Java for speed, with the stylesheet being used as a fallback for
+ * any MathML islands that the Java implementation does not cover. The stylesheet remains the
+ * reference implementation and can be run directly using {@link #downConvertDOMUsingXSLT(Document)}.
+ * <p>
  * This can be used independently of SnuggleTeX if required; you may want to instantiate and
  * provide your own {@link StylesheetCache} in this case if you already do things with XSLT.
  *
@@ -38,6 +47,7 @@ public final class MathMLDownConverter {
     
     private final Properties cssProperties;
     private final StylesheetManager stylesheetManager;
+    private final NativeMathMLDownConverter nativeDownConverter;
     
     public MathMLDownConverter() {
         this(null, (Properties) null);
@@ -65,9 +75,71 @@ public final class MathMLDownConverter {
     public MathMLDownConverter(final StylesheetManager stylesheetManager, final Properties cssProperties) {
         this.stylesheetManager = stylesheetManager!=null ? stylesheetManager : new StylesheetManager();
         this.cssProperties = cssProperties;
+        this.nativeDownConverter = new NativeMathMLDownConverter(cssProperties);
     }
     
     public Document downConvertDOM(Document document) {
+        Document result = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        new DOMDownConverter(result).copyChildren(document, result);
+        return result;
+    }
+    
+    /**
+     * Down-converts the given {@link Document} by running the <tt>mathml-to-xhtml.xsl</tt>
+     * stylesheet over it. This is the reference implementation of the down-conversion process;
+     * {@link #downConvertDOM(Document)} should always give the same results.
+     * 
+     * @since 1.3.1
+     */
+    public Document downConvertDOMUsingXSLT(Document document) {
+        Document result = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        try {
+            createDownConvertingTransformer().transform(new DOMSource(document), new DOMResult(result));
+        }
+        catch (Exception e) {
+            throw new SnuggleRuntimeException("Unexpected Exception down-converting DOM", e);
+        }
+        return result;
+    }
+    
+    /**
+     * Down-converts the given MathML <tt>math</tt> element, appending the results to the given
+     * outputParentNode. This uses a native Java implementation of the rules in the
+     * <tt>mathml-to-xhtml.xsl</tt> stylesheet where possible, returning false if the island
+     * needs to be down-converted by the XSLT instead (e.g. using a {@link Transformer} obtained
+     * from {@link #createDownConvertingTransformer()}).
+     * 
+     * @since 1.3.1
+     */
+    public boolean downConvertMathIslandNatively(Element mathElement, Node outputParentNode) {
+        return nativeDownConverter.downConvertMathIsland(mathElement, outputParentNode);
+    }
+    
+    /**
+     * Creates a {@link Transformer} that will down-convert a DOM. Callers may use this
+     * to down-convert individual MathML <tt>math</tt> elements, which can be more efficient
+     * than converting a whole document as non-MathML content is left unchanged.
+     * <p>
+     * The resulting {@link Transformer} may be reused serially, but not by multiple Threads
+     * at once.
+     * 
+     * @since 1.3.1
+     */
+    public Transformer createDownConvertingTransformer() {
+        /* Create the conversion XSLT */
+        Templates templates = stylesheetManager.getCompiledStylesheet(Globals.MATHML_TO_XHTML_XSL_RESOURCE_NAME);
+        Transformer transformer;
+        try {
+            transformer = templates.newTransformer();
+        }
+        catch (TransformerConfigurationException e) {
+            throw new SnuggleRuntimeException("Could not instantiate Transformer from Templates", e);
+        }
+        transformer.setURIResolver(createCSSPropertiesURIResolver());
+        return transformer;
+    }
+    
+    private CSSPropertiesURIResolver createCSSPropertiesURIResolver() {
         /* If inlining CSS, create a document to hold the name/value pairs as described in
          * buildCSSPropertiesDocument(). Otherwise, we'll create an empty one to indicate
          * that nothing should be inlined */
@@ -77,20 +149,7 @@ public final class MathMLDownConverter {
         }
         
         /* Create URI Resolver to let the XSLT get at this document */
-        CSSPropertiesURIResolver uriResolver = new CSSPropertiesURIResolver(cssPropertiesDocument);
-
-        /* Run the conversion XSLT */
-        Templates templates = stylesheetManager.getCompiledStylesheet(Globals.MATHML_TO_XHTML_XSL_RESOURCE_NAME);
-        Document result = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
-        try {
-            Transformer transformer = templates.newTransformer();
-            transformer.setURIResolver(uriResolver);
-            transformer.transform(new DOMSource(document), new DOMResult(result));
-        }
-        catch (Exception e) {
-            throw new SnuggleRuntimeException("Unexpected Exception down-converting DOM", e);
-        }
-        return result;
+        return new CSSPropertiesURIResolver(cssPropertiesDocument);
     }
     
     /**
@@ -117,6 +176,63 @@ public final class MathMLDownConverter {
         }
     }
     
+    /**
+     * Walks a DOM, copying everything except comments and processing instructions (as the
+     * XSLT does) and down-converting each MathML island as it is found. Islands that can't be
+     * handled natively are passed to the XSLT, creating the {@link Transformer} on demand.
+     */
+    private final class DOMDownConverter {
+        
+        private final Document outputDocument;
+        private Transformer fallbackTransformer;
+        
+        public DOMDownConverter(final Document outputDocument) {
+            this.outputDocument = outputDocument;
+        }
+        
+        public void copyChildren(final Node inputNode, final Node outputParentNode) {
+            for (Node child = inputNode.getFirstChild(); child!=null; child = child.getNextSibling()) {
+                switch (child.getNodeType()) {
+                    case Node.ELEMENT_NODE:
+                        if (MathMLUtilities.isMathMLElement(child, "math")) {
+                            downConvertMathIsland((Element) child, outputParentNode);
+                        }
+                        else {
+                            Node copy = outputDocument.importNode(child, false);
+                            outputParentNode.appendChild(copy);
+                            copyChildren(child, copy);
+                        }
+                        break;
+                        
+                    case Node.TEXT_NODE:
+                    case Node.CDATA_SECTION_NODE:
+                        if (outputParentNode!=outputDocument) {
+                            outputParentNode.appendChild(outputDocument.createTextNode(child.getNodeValue()));
+                        }
+                        break;
+                        
+                    default:
+                        /* (Comments and PIs are dropped) */
+                        break;
+                }
+            }
+        }
+        
+        private void downConvertMathIsland(final Element mathElement, final Node outputParentNode) {
+            if (!nativeDownConverter.downConvertMathIsland(mathElement, outputParentNode)) {
+                if (fallbackTransformer==null) {
+                    fallbackTransformer = createDownConvertingTransformer();
+                }
+                try {
+                    fallbackTransformer.transform(new DOMSource(mathElement), new DOMResult(outputParentNode));
+                }
+                catch (TransformerException e) {
+                    throw new SnuggleRuntimeException("Unexpected Exception down-converting MathML island", e);
+                }
+            }
+        }
+    }
+    
     /**
      * Trivial {@link URIResolver} that returns an XML Document corresponding to
      * the current session's CSS Properties when the URI
@@ -0,0 +1,540 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.utilities;
+
+import uk.ac.ed.ph.snuggletex.SerializationSpecifier;
+import uk.ac.ed.ph.snuggletex.SnuggleLogicException;
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+import uk.ac.ed.ph.snuggletex.definitions.Globals;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * {@link Writer} that filters serialized XML, replacing the MathML symbol characters listed in
+ * {@link Globals#MATHML_ENTITIES_MAP_XSL_RESOURCE_NAME} with the corresponding named entities
+ * (e.g. <tt>&amp;alpha;</tt>) and passing everything else through unchanged.
+ * <p>
+ * This is used to implement {@link SerializationSpecifier#isUsingNamedEntities()} without needing
+ * an XSLT 2.0 character map, so works with any XSLT processor. Numeric character references
+ * produced by the serializer (e.g. for characters that can't be represented in the chosen
+ * encoding) are also replaced by the named entity, if there is one.
+ * <p>
+ * The mapping is done in a single pass using a fixed lookup table, without creating any
+ * Objects per character. Any '&amp;' that doesn't start a numeric character reference is passed
+ * through unchanged, so this is safe to use on HTML output too.
+ * <p>
+ * Comments, processing instructions and CDATA sections are passed through unchanged, as
+ * entities are not recognised within them. The same goes for the contents of <tt>script</tt>
+ * and <tt>style</tt> elements (and their start tags) when writing HTML, as browsers treat
+ * these as raw text.
+ * <p>
+ * Remember to call {@link #flush()} or {@link #close()} once finished as a partial character
+ * reference may be buffered here.
+ * <p>
+ * Instances of this class are not thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class MathMLEntityWriter extends FilterWriter {
+
+    /** Longest numeric character reference we'll consider, i.e. <tt>&amp;#x10FFFF;</tt> */
+    private static final int MAX_REFERENCE_LENGTH = 10;
+
+    /** Characters following <tt>&lt;![</tt> at the start of a CDATA section */
+    private static final String CDATA_START = "CDATA[";
+
+    /** Names of the HTML elements whose contents are raw text */
+    private static final String[] RAW_TEXT_ELEMENTS = { "script", "style" };
+
+    /** Length of the longest name in {@link #RAW_TEXT_ELEMENTS} */
+    private static final int MAX_RAW_TEXT_ELEMENT_LENGTH = 6;
+
+    /** Where we are with respect to the markup that we pass through unchanged */
+    private static enum MarkupState {
+        /** Normal content, including tags */
+        CONTENT,
+
+        /** Just read <tt>&lt;</tt> */
+        TAG_OPEN,
+
+        /** Just read <tt>&lt;!</tt> */
+        DECLARATION_OPEN,
+
+        /** Just read <tt>&lt;!-</tt> */
+        COMMENT_OPEN,
+
+        /** Read <tt>&lt;![</tt> and possibly some of {@link MathMLEntityWriter#CDATA_START} */
+        CDATA_OPEN,
+
+        /** Inside a comment */
+        COMMENT,
+
+        /** Inside a processing instruction */
+        PI,
+
+        /** Inside a CDATA section */
+        CDATA,
+
+        /** Reading the name of an HTML start tag, which might be one of {@link MathMLEntityWriter#RAW_TEXT_ELEMENTS} */
+        START_TAG_NAME,
+
+        /** Inside the start tag of an HTML raw text element */
+        RAW_TEXT_START_TAG,
+
+        /** Inside the contents of an HTML raw text element */
+        RAW_TEXT,
+    }
+
+    /** Whether we're writing HTML, so need to look out for raw text elements */
+    private final boolean htmlOutput;
+
+    /** Buffers a possible numeric character reference that we're part-way through */
+    private final char[] pendingReference;
+
+    /** Number of characters in {@link #pendingReference}, 0 if not within a reference */
+    private int pendingLength;
+
+    /** Current markup state */
+    private MarkupState markupState;
+
+    /**
+     * Number of characters of {@link #CDATA_START} read, of the characters before the
+     * final <tt>&gt;</tt> of the current comment, processing instruction or CDATA section,
+     * of the current start tag name, or of the end tag of the current raw text element
+     */
+    private int markupMatched;
+
+    /** Lower case name of the start tag being read, when in {@link MarkupState#START_TAG_NAME} */
+    private final char[] tagName;
+
+    /** Name of the current raw text element, null if not inside one */
+    private String rawTextElement;
+
+    /** Quote character of the attribute value we're inside in a raw text element's start tag, 0 if none */
+    private char attributeQuote;
+
+    /** Used to pull characters out of Strings passed to {@link #write(String, int, int)} */
+    private char[] stringBuffer;
+
+    public MathMLEntityWriter(final Writer out) {
+        this(out, false);
+    }
+
+    /**
+     * Creates a new writer.
+     *
+     * @param out underlying {@link Writer}
+     * @param htmlOutput whether HTML is being written, in which case the contents of
+     *   <tt>script</tt> and <tt>style</tt> elements are passed through unchanged
+     */
+    public MathMLEntityWriter(final Writer out, final boolean htmlOutput) {
+        super(out);
+        this.htmlOutput = htmlOutput;
+        this.pendingReference = new char[MAX_REFERENCE_LENGTH];
+        this.pendingLength = 0;
+        this.markupState = MarkupState.CONTENT;
+        this.markupMatched = 0;
+        this.tagName = new char[MAX_RAW_TEXT_ELEMENT_LENGTH];
+        this.rawTextElement = null;
+        this.attributeQuote = 0;
+        this.stringBuffer = null;
+    }
+
+    /**
+     * Returns the named entity (e.g. <tt>&amp;alpha;</tt>) that will be used for the
+     * given character, or null if the character is not mapped.
+     */
+    public static String getEntity(final int c) {
+        if (c<0 || c>Character.MAX_VALUE) {
+            return null;
+        }
+        String[] page = EntityTableHolder.ENTITY_PAGES[c >>> 8];
+        return page!=null ? page[c & 0xff] : null;
+    }
+
+    //-------------------------------------------------------------------
+
+    @Override
+    public void write(final int c) throws IOException {
+        if (markupState!=MarkupState.CONTENT && advanceMarkupState((char) c)) {
+            out.write(c);
+        }
+        else if (pendingLength>0) {
+            continueReference((char) c);
+        }
+        else if (c=='&') {
+            pendingReference[pendingLength++] = '&';
+        }
+        else if (c=='<') {
+            markupState = MarkupState.TAG_OPEN;
+            out.write(c);
+        }
+        else {
+            String entity = getEntity(c);
+            if (entity!=null) {
+                out.write(entity);
+            }
+            else {
+                out.write(c);
+            }
+        }
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+        String[][] entityPages = EntityTableHolder.ENTITY_PAGES;
+        int runStart = off;
+        int end = off + len;
+        for (int i=off; i<end; i++) {
+            char c = cbuf[i];
+            if (markupState!=MarkupState.CONTENT && advanceMarkupState(c)) {
+                /* Markup is passed through, so carry on with current run */
+                continue;
+            }
+            if (pendingLength>0) {
+                continueReference(c);
+                runStart = i + 1;
+                continue;
+            }
+            if (c=='<') {
+                markupState = MarkupState.TAG_OPEN;
+                continue;
+            }
+            String entity = null;
+            if (c!='&') {
+                String[] page = entityPages[c >>> 8];
+                if (page==null || (entity = page[c & 0xff])==null) {
+                    /* Not mapped, so just carry on with current run */
+                    continue;
+                }
+            }
+            /* Write out unmapped run so far, then deal with this character */
+            if (i>runStart) {
+                out.write(cbuf, runStart, i - runStart);
+            }
+            if (entity!=null) {
+                out.write(entity);
+            }
+            else {
+                pendingReference[pendingLength++] = '&';
+            }
+            runStart = i + 1;
+        }
+        if (end>runStart) {
+            out.write(cbuf, runStart, end - runStart);
+        }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        if (stringBuffer==null) {
+            stringBuffer = new char[1024];
+        }
+        int index = off;
+        int end = off + len;
+        while (index<end) {
+            int chunkLength = Math.min(end - index, stringBuffer.length);
+            str.getChars(index, index + chunkLength, stringBuffer, 0);
+            write(stringBuffer, 0, chunkLength);
+            index += chunkLength;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushPendingReference();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushPendingReference();
+        out.close();
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Updates {@link #markupState} for the given character, which follows the start of some
+     * markup. (None of the characters that start or end the markup we're interested in are
+     * mapped, so there's never any need to hold characters back here.)
+     *
+     * @return true if the character should be passed through unchanged, false if it turned out
+     *   not to be part of the markup we thought we were starting, so is normal content.
+     */
+    private boolean advanceMarkupState(final char c) {
+        switch (markupState) {
+            case TAG_OPEN:
+                /* (Element names and other declarations are never mapped) */
+                markupState = c=='!' ? MarkupState.DECLARATION_OPEN
+                    : c=='?' ? MarkupState.PI
+                    : htmlOutput ? MarkupState.START_TAG_NAME
+                    : MarkupState.CONTENT;
+                return markupState!=MarkupState.START_TAG_NAME || advanceStartTagName(c);
+
+            case START_TAG_NAME:
+                return advanceStartTagName(c);
+
+            case RAW_TEXT_START_TAG:
+                if (attributeQuote!=0) {
+                    if (c==attributeQuote) {
+                        attributeQuote = 0;
+                    }
+                }
+                else if (c=='"' || c=='\'') {
+                    attributeQuote = c;
+                }
+                else if (c=='>') {
+                    markupState = MarkupState.RAW_TEXT;
+                }
+                return true;
+
+            case RAW_TEXT:
+                advanceRawTextEndTag(c);
+                return true;
+
+            case DECLARATION_OPEN:
+                markupState = c=='-' ? MarkupState.COMMENT_OPEN
+                    : c=='[' ? MarkupState.CDATA_OPEN
+                    : MarkupState.CONTENT;
+                return true;
+
+            case COMMENT_OPEN:
+                markupState = c=='-' ? MarkupState.COMMENT : MarkupState.CONTENT;
+                return markupState==MarkupState.COMMENT;
+
+            case CDATA_OPEN:
+                if (c!=CDATA_START.charAt(markupMatched)) {
+                    markupState = MarkupState.CONTENT;
+                    markupMatched = 0;
+                    return false;
+                }
+                if (++markupMatched==CDATA_START.length()) {
+                    markupState = MarkupState.CDATA;
+                    markupMatched = 0;
+                }
+                return true;
+
+            case COMMENT:
+                advanceMarkupEnd(c, '-', 2);
+                return true;
+
+            case PI:
+                advanceMarkupEnd(c, '?', 1);
+                return true;
+
+            case CDATA:
+                advanceMarkupEnd(c, ']', 2);
+                return true;
+
+            default:
+                throw new SnuggleLogicException("Unexpected switch case " + markupState);
+        }
+    }
+
+    /**
+     * Reads the next character of an HTML start tag name, moving into
+     * {@link MarkupState#RAW_TEXT_START_TAG} once we've read the name of a raw text element.
+     *
+     * @return true if the character is part of the name (so is passed through), false if
+     *   the name has finished.
+     */
+    private boolean advanceStartTagName(final char c) {
+        if (c=='>' || c=='/' || c<=' ') {
+            String name = new String(tagName, 0, markupMatched);
+            markupState = MarkupState.CONTENT;
+            markupMatched = 0;
+            for (String rawTextElementName : RAW_TEXT_ELEMENTS) {
+                if (rawTextElementName.equals(name)) {
+                    rawTextElement = rawTextElementName;
+                    markupState = c=='>' ? MarkupState.RAW_TEXT : MarkupState.RAW_TEXT_START_TAG;
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (markupMatched==MAX_RAW_TEXT_ELEMENT_LENGTH || !(c>='a' && c<='z' || c>='A' && c<='Z')) {
+            /* Can't be a raw text element */
+            markupState = MarkupState.CONTENT;
+            markupMatched = 0;
+            return false;
+        }
+        tagName[markupMatched++] = Character.toLowerCase(c);
+        return true;
+    }
+
+    /**
+     * Looks for the end tag of the current raw text element, i.e. <tt>&lt;/</tt> followed by
+     * its name (in any case) and then whitespace, <tt>/</tt> or <tt>&gt;</tt>.
+     */
+    private void advanceRawTextEndTag(final char c) {
+        int nameLength = rawTextElement.length();
+        if (markupMatched==nameLength + 2) {
+            if (c=='>' || c=='/' || c<=' ') {
+                markupState = MarkupState.CONTENT;
+                markupMatched = 0;
+                rawTextElement = null;
+                return;
+            }
+        }
+        else if (markupMatched==1 ? c=='/'
+                : markupMatched>1 && Character.toLowerCase(c)==rawTextElement.charAt(markupMatched - 2)) {
+            markupMatched++;
+            return;
+        }
+        markupMatched = c=='<' ? 1 : 0;
+    }
+
+    /**
+     * Looks for the end of the current markup, which is the given number of the given
+     * character followed by <tt>&gt;</tt>.
+     */
+    private void advanceMarkupEnd(final char c, final char endChar, final int endCharCount) {
+        if (c==endChar) {
+            if (markupMatched<endCharCount) {
+                markupMatched++;
+            }
+        }
+        else if (c=='>' && markupMatched==endCharCount) {
+            markupState = MarkupState.CONTENT;
+            markupMatched = 0;
+        }
+        else {
+            markupMatched = 0;
+        }
+    }
+
+    /**
+     * Handles the next character once we've seen an '&amp;', writing out the named entity
+     * once we've read a complete numeric character reference to a mapped character, or
+     * giving up and writing out what we've buffered as soon as it's clear that we haven't.
+     */
+    private void continueReference(final char c) throws IOException {
+        boolean valid;
+        if (pendingLength==1) {
+            valid = c=='#';
+        }
+        else if (c==';') {
+            int code = parsePendingReference();
+            String entity = getEntity(code);
+            if (entity!=null) {
+                out.write(entity);
+                pendingLength = 0;
+                return;
+            }
+            valid = false;
+        }
+        else if (pendingLength==2 && (c=='x' || c=='X')) {
+            valid = true;
+        }
+        else {
+            boolean hex = pendingLength>2 && (pendingReference[2]=='x' || pendingReference[2]=='X');
+            valid = Character.digit(c, hex ? 16 : 10)!=-1 && c<128 && pendingLength<MAX_REFERENCE_LENGTH - 1;
+        }
+        if (valid) {
+            pendingReference[pendingLength++] = c;
+        }
+        else {
+            /* Not a reference to a mapped character, so output what we have as it was */
+            flushPendingReference();
+            write(c);
+        }
+    }
+
+    /**
+     * Works out the code point of the numeric reference in {@link #pendingReference},
+     * returning -1 if it's not well-formed.
+     */
+    private int parsePendingReference() {
+        int radix = 10;
+        int index = 2;
+        if (pendingLength>2 && (pendingReference[2]=='x' || pendingReference[2]=='X')) {
+            radix = 16;
+            index = 3;
+        }
+        if (index>=pendingLength) {
+            return -1;
+        }
+        int code = 0;
+        for (; index<pendingLength; index++) {
+            code = code * radix + Character.digit(pendingReference[index], radix);
+        }
+        return code;
+    }
+
+    private void flushPendingReference() throws IOException {
+        if (pendingLength>0) {
+            out.write(pendingReference, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Holds the lookup table, which is read from the entities map stylesheet (so that the two
+     * never get out of step) the first time it is needed.
+     * <p>
+     * The table is split into pages of 256 characters, most of which are null, indexed by
+     * the high byte of each character.
+     */
+    private static final class EntityTableHolder {
+
+        private static final String XSLT_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
+
+        static final String[][] ENTITY_PAGES = loadEntityPages();
+
+        private static String[][] loadEntityPages() {
+            String resourceLocation = Globals.MATHML_ENTITIES_MAP_XSL_RESOURCE_NAME
+                .substring((ClassPathURIResolver.URI_SCHEME + ":/").length());
+            InputStream resourceStream = MathMLEntityWriter.class.getClassLoader().getResourceAsStream(resourceLocation);
+            if (resourceStream==null) {
+                throw new SnuggleRuntimeException("Could not load resource at " + resourceLocation + " via ClassLoader");
+            }
+            Document document;
+            try {
+                try {
+                    document = XMLUtilities.createNSAwareDocumentBuilder().parse(resourceStream);
+                }
+                finally {
+                    resourceStream.close();
+                }
+            }
+            catch (Exception e) {
+                throw new SnuggleRuntimeException("Could not parse MathML entities map at " + resourceLocation, e);
+            }
+            String[][] result = new String[256][];
+            NodeList outputCharacterElements = document.getElementsByTagNameNS(XSLT_NAMESPACE, "output-character");
+            for (int i=0, size=outputCharacterElements.getLength(); i<size; i++) {
+                Element outputCharacterElement = (Element) outputCharacterElements.item(i);
+                String character = outputCharacterElement.getAttribute("character");
+                String entity = outputCharacterElement.getAttribute("string");
+                if (character.length()!=1) {
+                    throw new SnuggleRuntimeException("Expected a single BMP character in MathML entities map but got " + character);
+                }
+                char c = character.charAt(0);
+                String[] page = result[c >>> 8];
+                if (page==null) {
+                    page = new String[256];
+                    result[c >>> 8] = page;
+                }
+                page[c & 0xff] = entity;
+            }
+            return result;
+        }
+    }
+}
@@ -7,28 +7,59 @@ package uk.ac.ed.ph.snuggletex.utilities;
 
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.DOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.StreamingDOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.ContentHandlerFilter;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+
 import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
 
 /**
  * Convenient base for {@link DOMPostProcessor}s that might want to do interesting
  * things to MathML islands, leaving everything else unchanged.
+ * <p>
+ * This is also a {@link StreamingDOMPostProcessor}. When used in a streaming chain, only
+ * each MathML island is buffered up into a DOM before being passed to
+ * {@link #handleMathMLIsland(Element, Document, Node, int)}; everything else is streamed
+ * straight through.
  *
  * @author  David McKain
  * @version $Revision$
  */
-public abstract class MathMLPostProcessor implements DOMPostProcessor {
+public abstract class MathMLPostProcessor implements StreamingDOMPostProcessor {
     
     public final Document postProcessDOM(Document workDocument, final DOMOutputOptions options,
             StylesheetManager stylesheetManager) {
         Document resultDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
         new DocumentWalker(workDocument, resultDocument).run();
+        finishDocument(resultDocument);
         return resultDocument;
     }
     
+    /**
+     * Creates a filter that streams everything except MathML islands straight through.
+     * <p>
+     * Subclasses that need to use {@link #finishDocument(Document)} should override this to
+     * return a handler that buffers the whole document and calls
+     * {@link #postProcessDOM(Document, DOMOutputOptions, StylesheetManager)} instead.
+     */
+    public ContentHandler createPostProcessingHandler(ContentHandler resultHandler,
+            DOMOutputOptions options, StylesheetManager stylesheetManager) {
+        return new MathMLIslandFilter(resultHandler, stylesheetManager);
+    }
+    
     /**
      * This method is called for each MathML <tt>math</tt> element discovered, in document order.
      * 
@@ -42,6 +73,26 @@ public abstract class MathMLPostProcessor implements DOMPostProcessor {
     protected abstract void handleMathMLIsland(final Element inputMathIsland,
             Document outputDocument, Node outputParentNode, int mathmlCounter);
     
+    /**
+     * This method is called once all MathML islands have been handled when post-processing a
+     * whole {@link Document} via {@link #postProcessDOM(Document, DOMOutputOptions, StylesheetManager)},
+     * allowing subclasses to finish off anything they started in
+     * {@link #handleMathMLIsland(Element, Document, Node, int)}.
+     * <p>
+     * It is <strong>not</strong> called by the streaming filter created by
+     * {@link #createPostProcessingHandler(ContentHandler, DOMOutputOptions, StylesheetManager)},
+     * as the results for each island will already have been passed on.
+     * <p>
+     * The default implementation does nothing.
+     * 
+     * @param outputDocument resulting {@link Document} that has been built up
+     * 
+     * @since 1.3.1
+     */
+    protected void finishDocument(Document outputDocument) {
+        /* (Do nothing by default) */
+    }
+    
     /**
      * This inner class traverses a {@link Document} in document order, calling back on the
      * {@link MathMLPostProcessor#handleMathMLIsland(Element, Document, Node, int)} for
@@ -97,4 +148,186 @@ public abstract class MathMLPostProcessor implements DOMPostProcessor {
             }
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * This SAX filter passes events straight through, except for MathML <tt>math</tt> elements,
+     * which are buffered up into a DOM and passed to
+     * {@link MathMLPostProcessor#handleMathMLIsland(Element, Document, Node, int)}. The
+     * resulting Nodes are then streamed on in place of the original element.
+     */
+    private class MathMLIslandFilter extends ContentHandlerFilter {
+        
+        private final StylesheetManager stylesheetManager;
+        private final Document islandDocument;
+        private Element currentIsland;
+        private Node currentIslandNode;
+        private int mathmlCounter;
+        private Transformer replayTransformer;
+        
+        public MathMLIslandFilter(final ContentHandler targetHandler, final StylesheetManager stylesheetManager) {
+            super(targetHandler);
+            this.stylesheetManager = stylesheetManager;
+            this.islandDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+            this.currentIsland = null;
+            this.currentIslandNode = null;
+            this.mathmlCounter = 0;
+        }
+        
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            /* (Namespaces inside islands are handled by the DOM so don't need passing on) */
+            if (currentIsland==null) {
+                super.startPrefixMapping(prefix, uri);
+            }
+        }
+        
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if (currentIsland==null) {
+                super.endPrefixMapping(prefix);
+            }
+        }
+        
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts)
+                throws SAXException {
+            if (currentIsland==null) {
+                if (W3CConstants.MATHML_NAMESPACE.equals(uri) && "math".equals(localName)) {
+                    /* Start buffering up new island */
+                    currentIsland = createElement(uri, localName, qName, atts);
+                    currentIslandNode = currentIsland;
+                }
+                else {
+                    super.startElement(uri, localName, qName, atts);
+                }
+            }
+            else {
+                currentIslandNode = currentIslandNode.appendChild(createElement(uri, localName, qName, atts));
+            }
+        }
+        
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (currentIsland==null) {
+                super.endElement(uri, localName, qName);
+            }
+            else if (currentIslandNode==currentIsland) {
+                /* Finished island, so let subclass decide what to do and stream the results */
+                DocumentFragment outputFragment = islandDocument.createDocumentFragment();
+                handleMathMLIsland(currentIsland, islandDocument, outputFragment, mathmlCounter++);
+                currentIsland = null;
+                currentIslandNode = null;
+                replayNodes(outputFragment);
+            }
+            else {
+                currentIslandNode = currentIslandNode.getParentNode();
+            }
+        }
+        
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (currentIsland==null) {
+                super.characters(ch, start, length);
+            }
+            else {
+                appendText(ch, start, length);
+            }
+        }
+        
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            if (currentIsland==null) {
+                super.ignorableWhitespace(ch, start, length);
+            }
+            else {
+                appendText(ch, start, length);
+            }
+        }
+        
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            if (currentIsland==null) {
+                super.processingInstruction(target, data);
+            }
+            else {
+                currentIslandNode.appendChild(islandDocument.createProcessingInstruction(target, data));
+            }
+        }
+        
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            if (currentIsland==null) {
+                super.comment(ch, start, length);
+            }
+            else {
+                currentIslandNode.appendChild(islandDocument.createComment(new String(ch, start, length)));
+            }
+        }
+        
+        private Element createElement(String uri, String localName, String qName, Attributes atts) {
+            Element element = islandDocument.createElementNS(uri.length()!=0 ? uri : null,
+                    qName.length()!=0 ? qName : localName);
+            for (int i=0, size=atts.getLength(); i<size; i++) {
+                String attrQName = atts.getQName(i);
+                if (attrQName.equals("xmlns") || attrQName.startsWith("xmlns:")) {
+                    continue;
+                }
+                String attrURI = atts.getURI(i);
+                element.setAttributeNS(attrURI.length()!=0 ? attrURI : null,
+                        attrQName.length()!=0 ? attrQName : atts.getLocalName(i), atts.getValue(i));
+            }
+            return element;
+        }
+        
+        private void appendText(char[] ch, int start, int length) {
+            Node lastChild = currentIslandNode.getLastChild();
+            if (lastChild!=null && lastChild.getNodeType()==Node.TEXT_NODE) {
+                ((Text) lastChild).appendData(new String(ch, start, length));
+            }
+            else {
+                currentIslandNode.appendChild(islandDocument.createTextNode(new String(ch, start, length)));
+            }
+        }
+        
+        private void replayNodes(final DocumentFragment outputFragment) throws SAXException {
+            try {
+                if (replayTransformer==null) {
+                    replayTransformer = stylesheetManager.getTransformerFactory(false).newTransformer();
+                }
+                ContentHandler fragmentHandler = new FragmentFilter(targetHandler);
+                for (Node child = outputFragment.getFirstChild(); child!=null; child = child.getNextSibling()) {
+                    replayTransformer.transform(new DOMSource(child), createSAXResult(fragmentHandler));
+                }
+            }
+            catch (TransformerException e) {
+                throw new SAXException("Could not stream results of handling MathML island", e);
+            }
+        }
+    }
+    
+    /**
+     * Trivial filter that suppresses document-level events, used when passing on the Nodes
+     * created for each MathML island.
+     */
+    private static final class FragmentFilter extends ContentHandlerFilter {
+        
+        public FragmentFilter(final ContentHandler targetHandler) {
+            super(targetHandler);
+        }
+        
+        @Override
+        public void setDocumentLocator(Locator locator) {
+            /* (Ignore) */
+        }
+        
+        @Override
+        public void startDocument() {
+            /* (Ignore) */
+        }
+        
+        @Override
+        public void endDocument() {
+            /* (Ignore) */
+        }
+    }
+}
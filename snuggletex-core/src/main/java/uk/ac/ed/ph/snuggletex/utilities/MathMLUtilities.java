@@ -311,7 +311,7 @@ public final class MathMLUtilities {
 	public static boolean isMathMLElement(final Node node, final String localName) {
 		ConstraintUtilities.ensureNotNull(node, "Node");
 		return node.getNodeType() == ELEMENT_NODE
-				&& node.getNamespaceURI().equals(W3CConstants.MATHML_NAMESPACE)
+				&& W3CConstants.MATHML_NAMESPACE.equals(node.getNamespaceURI())
 				&& (localName == null || localName.equals(node.getLocalName()));
 	}
 
@@ -339,6 +339,11 @@ public final class MathMLUtilities {
 	 * Convenience method to unwrap at MathML DOM Object containing top-level parallel markup,
 	 * as defined Section 5.3.1 of the MathML 2.0 specification.
 	 * <p>
+	 * This locates the first branch and all annotations in a single pass without copying
+	 * anything, so is the best choice if you want to pull out more than one thing. If there
+	 * are several annotations with the same encoding then the first one is used, as with
+	 * {@link #extractAnnotationString(Element, String)} and friends.
+	 * <p>
 	 * If there is no parallel markup detected then null if returned.
 	 * <p>
 	 * If the given element is null or is not a MathML "math" element, then an {@link IllegalArgumentException}
@@ -348,7 +353,7 @@ public final class MathMLUtilities {
 		ensureMathMLContainer(mathElement);
 
 		/* Look for semantics child then annotation child with encoding set appropriately */
-		Node search = mathElement.getFirstChild();
+		Node search = getFirstChildElement(mathElement);
 		if (search == null || !isMathMLElement(search, "semantics")) {
 			/* Didn't get <semantics/> as first and only child so not parallel markup */
 			return null;
@@ -357,45 +362,50 @@ public final class MathMLUtilities {
 		/* OK, this looks like parallel markup */
 		UnwrappedParallelMathMLDOM result = new UnwrappedParallelMathMLDOM();
 		result.setMathElement(mathElement);
+		result.setSemanticsElement((Element) search);
 
-		/* Pull out the first child */
-		Element semantics = (Element) search;
-		NodeList childNodes = semantics.getChildNodes();
-		if (childNodes.getLength() == 0) {
-			return null;
-		}
-		result.setFirstBranch((Element) childNodes.item(0));
-
-		/* Then pull out annotations, which must be the subsequent children */
+		/* Pull out the first child, then annotations, which must be the subsequent children.
+		 * (Text annotations are indexed here and only extracted when asked for.)
+		 */
 		Element searchElement;
-		for (int i = 1, length = childNodes.getLength(); i < length; i++) {
-			search = childNodes.item(i);
-			if (isMathMLElement(search)) {
-				searchElement = (Element) search;
-				if (ANNOTATION_LOCAL_NAME.equals(search.getLocalName())) {
-					result.getTextAnnotations().put(searchElement.getAttribute("encoding"), XMLUtilities.extractTextElementValue(searchElement));
-				} else if (ANNOTATION_XML_LOCAL_NAME.equals(search.getLocalName())) {
-					result.getXmlAnnotations().put(searchElement.getAttribute("encoding"), searchElement.getChildNodes());
-				} else {
-					/* (Just silently ignore this) */
-				}
+		for (search = search.getFirstChild(); search != null; search = search.getNextSibling()) {
+			if (search.getNodeType() != ELEMENT_NODE) {
+				continue;
+			}
+			searchElement = (Element) search;
+			if (result.getFirstBranch() == null) {
+				result.setFirstBranch(searchElement);
+			} else if (isMathMLElement(searchElement, ANNOTATION_LOCAL_NAME)) {
+				result.addTextAnnotation(searchElement);
+			} else if (isMathMLElement(searchElement, ANNOTATION_XML_LOCAL_NAME)) {
+				result.addXmlAnnotation(searchElement);
+			} else {
+				/* (Just silently ignore this) */
 			}
 		}
-		return result;
+		return result.getFirstBranch() != null ? result : null;
 	}
 
 	public static Element extractFirstSemanticsBranch(final Element mathElement) {
 		ensureMathMLContainer(mathElement);
 
 		/* Look for semantics child then annotation child with encoding set appropriately */
-		Node search = mathElement.getFirstChild();
+		Node search = getFirstChildElement(mathElement);
 		if (search == null || !isMathMLElement(search, "semantics")) {
 			/* Didn't get <semantics/> as first and only child so not parallel markup */
 			return null;
 		}
-		Element semantics = (Element) search;
-		NodeList childNodes = semantics.getChildNodes();
-		return childNodes.getLength() == 0 ? null : ((Element) childNodes.item(0));
+		return getFirstChildElement(search);
+	}
+
+	/** Returns the first child Element of the given Node, skipping any whitespace etc. */
+	private static Element getFirstChildElement(final Node node) {
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == ELEMENT_NODE) {
+				return (Element) child;
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -451,7 +461,7 @@ public final class MathMLUtilities {
 		 * directly here.)
 		 */
 		/* Look for semantics child then annotation child with encoding set appropriately */
-		Node search = mathmlElement.getFirstChild();
+		Node search = getFirstChildElement(mathmlElement);
 		if (search == null || !isMathMLElement(search, "semantics")) {
 			/* Didn't get <semantics/> as first and only child */
 			return null;
@@ -555,33 +565,25 @@ public final class MathMLUtilities {
 	 */
 	public static Document isolateAnnotationXML(final UnwrappedParallelMathMLDOM unwrappedDOM, final String encodingAttribute) {
 		ConstraintUtilities.ensureNotNull(unwrappedDOM, "UnwrappedParallelMathMLDOM");
-		NodeList annotationContents = unwrappedDOM.getXmlAnnotations().get(encodingAttribute);
+		NodeList annotationContents = unwrappedDOM.getXmlAnnotation(encodingAttribute);
 		return annotationContents != null ? isolateDescendant(unwrappedDOM.getMathElement(), annotationContents) : null;
 	}
 
 	private static Document isolateDescendant(final Element mathElement, final NodeList descendants) {
 		Document result = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
-		Element resultMathElement = (Element) mathElement.cloneNode(false);
-		result.adoptNode(resultMathElement);
+		Element resultMathElement = (Element) result.importNode(mathElement, false);
 		result.appendChild(resultMathElement);
 		for (int i = 0, size = descendants.getLength(); i < size; i++) {
-			Node annotationNode = descendants.item(i);
-			Node annotationNodeCopy = annotationNode.cloneNode(true);
-			result.adoptNode(annotationNodeCopy);
-			resultMathElement.appendChild(annotationNodeCopy);
+			resultMathElement.appendChild(result.importNode(descendants.item(i), true));
 		}
 		return result;
 	}
 
 	private static Document isolateDescendant(final Element mathElement, final Element descendant) {
 		Document result = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
-		Element resultMathElement = (Element) mathElement.cloneNode(false);
-		result.adoptNode(resultMathElement);
+		Element resultMathElement = (Element) result.importNode(mathElement, false);
 		result.appendChild(resultMathElement);
-
-		Element firstSemanticElementCopy = (Element) descendant.cloneNode(true);
-		result.adoptNode(firstSemanticElementCopy);
-		resultMathElement.appendChild(firstSemanticElementCopy);
+		resultMathElement.appendChild(result.importNode(descendant, true));
 		return result;
 	}
 }
@@ -29,6 +29,7 @@ import java.util.Arrays;
 import java.util.MissingResourceException;
 import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
@@ -39,6 +40,9 @@ import org.w3c.dom.Element;
  * 
  * NOTE: We're using {@link MessageFormat} extensively here, which hasn't been updated to use
  * {@link StringBuilder} so we'll sadly have to make do with {@link StringBuffer}
+ * <p>
+ * The {@link MessageFormat}s used here are parsed once and cached. As they are not thread-safe,
+ * each one is cloned before use, which is much cheaper than parsing the template again.
  *
  * @author  David McKain
  * @version $Revision$
@@ -57,18 +61,62 @@ public final class MessageFormatter {
         }
     }
     
-    /** Constructs an error message for the given {@link InputError}. */
+    /** Template for {@link #appendErrorAsString(StringBuffer, InputError)} */
+    private static final MessageFormat ERROR_AS_STRING_FORMAT = createGeneralMessageFormat("error_as_string");
+    
+    /** Template for describing a location in a {@link SnuggleInputReader} */
+    private static final MessageFormat INPUT_CONTEXT_FORMAT = createGeneralMessageFormat("input_context");
+    
+    /** Template for describing a location within substituted text */
+    private static final MessageFormat SUBS_CONTEXT_FORMAT = createGeneralMessageFormat("subs_context");
+    
+    /** Parsed templates for error messages, keyed on {@link ErrorCode} and created on demand */
+    private static final ConcurrentHashMap<ErrorCode, MessageFormat> errorMessageFormatMap = new ConcurrentHashMap<ErrorCode, MessageFormat>();
+    
+    private static MessageFormat createGeneralMessageFormat(String key) {
+        return new MessageFormat(GENERAL_MESSAGE_BUNDLE.getString(key));
+    }
+    
+    /**
+     * Returns the cached {@link MessageFormat} for the given {@link ErrorCode}, creating it if
+     * required, or null if the code's package has no error message {@link ResourceBundle}.
+     */
+    private static MessageFormat getErrorMessageFormat(ErrorCode errorCode) {
+        MessageFormat result = errorMessageFormatMap.get(errorCode);
+        if (result==null) {
+            ResourceBundle errorMessageBundle = errorCode.getErrorGroup().getPackage().getErrorMessageBundle();
+            if (errorMessageBundle==null) {
+                return null;
+            }
+            result = new MessageFormat(errorMessageBundle.getString(errorCode.toString()));
+            errorMessageFormatMap.putIfAbsent(errorCode, result);
+        }
+        return result;
+    }
+    
+    /** Formats using a copy of the given cached {@link MessageFormat}, which is not thread-safe */
+    private static void format(MessageFormat template, Object[] arguments, StringBuffer resultBuilder) {
+        ((MessageFormat) template.clone()).format(arguments, resultBuilder, null);
+    }
+    
+    /**
+     * Returns the error message for the given {@link InputError}.
+     * <p>
+     * (This is the same as {@link InputError#getMessage()}, which only builds the message once.)
+     */
     public static String getErrorMessage(InputError error) {
-        return getErrorMessage(error.getErrorCode(), error.getArguments());
+        return error.getMessage();
     }
     
     /** Constructs an error message for the given {@link ErrorCode} and arguments. */
     public static String getErrorMessage(ErrorCode errorCode, Object... arguments) {
-        ResourceBundle errorMessageBundle = errorCode.getErrorGroup().getPackage().getErrorMessageBundle();
+        MessageFormat errorMessageFormat = getErrorMessageFormat(errorCode);
         String result;
-        if (errorMessageBundle!=null) {
+        if (errorMessageFormat!=null) {
             /* Use ResourceBundle specified to format error */
-            result = MessageFormat.format(errorMessageBundle.getString(errorCode.toString()), arguments);
+            StringBuffer resultBuilder = new StringBuffer();
+            format(errorMessageFormat, arguments, resultBuilder);
+            result = resultBuilder.toString();
         }
         else {
             /* No ResourceBundle specified, so do as best as we can */
@@ -148,62 +196,87 @@ public final class MessageFormatter {
         result.setAttribute("package", error.getErrorCode().getErrorGroup().getPackage().getName());
         
         if (fullDetails) {
-            /* Nicely format XML error content */
-            StringBuffer messageBuilder = new StringBuffer(getErrorMessage(error));
-            FrozenSlice errorSlice = error.getSlice();
-            if (errorSlice!=null) {
-                appendSliceContext(messageBuilder, errorSlice);
-            }
-            
-            /* Add message as child node */
-            result.appendChild(ownerDocument.createTextNode(messageBuilder.toString()));
+            /* Add message and context as child node */
+            result.appendChild(ownerDocument.createTextNode(getErrorMessageWithContext(error)));
         }
         /* That's it! */
         return result;
     }
     
     public static Element formatErrorAsXHTML(Document ownerDocument, InputError error) {
+        return formatErrorAsXHTML(ownerDocument, error, true);
+    }
+    
+    /**
+     * Creates an XHTML <tt>div</tt> {@link Element} describing the given error, including
+     * either just the {@link ErrorCode} or full details.
+     * 
+     * @param ownerDocument {@link Document} that will contain the resulting element.
+     * @param error {@link InputError} to format
+     * @param fullDetails false if you just want the error code, true for full details.
+     * 
+     * @since 1.3.1
+     */
+    public static Element formatErrorAsXHTML(Document ownerDocument, InputError error, boolean fullDetails) {
         Element result = ownerDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, "div");
         result.setAttribute("class", "error");
         
         Element heading = ownerDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, "h2");
         heading.appendChild(ownerDocument.createTextNode("SnuggleTeX Error (" + formatErrorCodeName(error.getErrorCode()) + ")"));
+        result.appendChild(heading);
         
-        Element pre = ownerDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, "pre");
-        
-        /* Nicely format XML error content */
-        StringBuffer messageBuilder = new StringBuffer(getErrorMessage(error));
-        FrozenSlice errorSlice = error.getSlice();
-        if (errorSlice!=null) {
-            appendSliceContext(messageBuilder, errorSlice);
+        if (fullDetails) {
+            /* Add message and context as child of a <pre/> */
+            Element pre = ownerDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, "pre");
+            pre.appendChild(ownerDocument.createTextNode(getErrorMessageWithContext(error)));
+            result.appendChild(pre);
         }
         
-        /* Add message as child node */
-        pre.appendChild(ownerDocument.createTextNode(messageBuilder.toString()));
-        
         /* That's it! */
-        result.appendChild(heading);
-        result.appendChild(pre);
         return result;
     }
     
     public static void appendErrorAsString(StringBuffer messageBuilder, InputError error) {
-        new MessageFormat(GENERAL_MESSAGE_BUNDLE.getString("error_as_string")).format(new Object[] {
+        format(ERROR_AS_STRING_FORMAT, new Object[] {
                 formatErrorCodeName(error.getErrorCode()), /* Error code/package */
-                getErrorMessage(error) /* Error Message */
-        }, messageBuilder, null);
-        FrozenSlice errorSlice = error.getSlice();
-        if (errorSlice!=null) {
-            appendSliceContext(messageBuilder, errorSlice);
+                error.getMessage() /* Error Message */
+        }, messageBuilder);
+        String sourceContext = error.getSourceContext();
+        if (sourceContext!=null) {
+            appendNewlineIfRequired(messageBuilder);
+            messageBuilder.append(sourceContext);
         }
     }
     
+    /** Returns the message for the given error, followed by its source context (if known) */
+    private static String getErrorMessageWithContext(InputError error) {
+        String message = error.getMessage();
+        String sourceContext = error.getSourceContext();
+        if (sourceContext==null) {
+            return message;
+        }
+        return message.length()>0 ? message + "\n" + sourceContext : sourceContext;
+    }
+    
     private static void appendNewlineIfRequired(StringBuffer messageBuilder) {
         if (messageBuilder.length()>0) {
             messageBuilder.append('\n');
         }
     }
 
+    /**
+     * Describes where the given {@link FrozenSlice} occurred in the input.
+     * <p>
+     * (Use {@link InputError#getSourceContext()} for errors, which only does this once.)
+     * 
+     * @since 1.3.1
+     */
+    public static String formatSliceContext(FrozenSlice slice) {
+        StringBuffer resultBuilder = new StringBuffer();
+        appendSliceContext(resultBuilder, slice);
+        return resultBuilder.toString();
+    }
+
     public static void appendSliceContext(StringBuffer messageBuilder, FrozenSlice slice) {
         WorkingDocument document = slice.getDocument();
         
@@ -229,20 +302,20 @@ public final class MessageFormatter {
             SnuggleInputReader inputContext = (SnuggleInputReader) context;
             int[] location = inputContext.getLineAndColumn(offsetInSource);
             appendNewlineIfRequired(messageBuilder);
-            new MessageFormat(GENERAL_MESSAGE_BUNDLE.getString("input_context")).format(new Object[] {
+            format(INPUT_CONTEXT_FORMAT, new Object[] {
                   location[0], /* Line */
                   location[1], /* Column */
                   inputContext.getInput().getIdentifier() /* Input description */
-            }, messageBuilder, null);
+            }, messageBuilder);
         }
         else if (context instanceof WorkingDocument.SubstitutionContext) {
             WorkingDocument.SubstitutionContext substitutionContext = (WorkingDocument.SubstitutionContext) context;
             appendNewlineIfRequired(messageBuilder);
-            new MessageFormat(GENERAL_MESSAGE_BUNDLE.getString("subs_context")).format(new Object[] {
+            format(SUBS_CONTEXT_FORMAT, new Object[] {
                     offsetInSource, /* Character index */
                     formatText(source.substitutedText), /* Before subs */
                     formatText(substitutionContext.replacement) /* After subs */
-            }, messageBuilder, null);
+            }, messageBuilder);
         }
         else {
             throw new SnuggleLogicException("Unexpected SourceContext " + context.getClass().getName());
@@ -0,0 +1,407 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.utilities;
+
+import uk.ac.ed.ph.snuggletex.SerializationMethod;
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Wraps an identity serializer so that {@link DOMSource}s are moved out of the XHTML namespace
+ * (or out of all namespaces) as they are serialized, which is how {@link StylesheetManager}
+ * implements the {@link SerializationMethod#HTML} and {@link SerializationMethod#STRICTLY_HTML}
+ * methods.
+ * <p>
+ * This gives the same results as the <tt>strip-xhtml-namespace.xsl</tt> and
+ * <tt>strip-all-namespaces.xsl</tt> stylesheets, but works by walking the DOM and feeding
+ * the renamed elements straight into the serializer as SAX events, so there's no stylesheet
+ * to compile or run. In particular:
+ * <ul>
+ *   <li>Stripped elements keep their attributes, except for <tt>xml:*</tt> ones.</li>
+ *   <li>
+ *     Elements that are kept as-is (i.e. non-XHTML elements in {@link SerializationMethod#HTML})
+ *     are copied along with all of their in-scope namespaces, as <tt>xsl:copy</tt> does.
+ *   </li>
+ *   <li>
+ *     The XHTML <tt>html</tt> element keeps any non-XHTML namespaces in scope when using
+ *     {@link SerializationMethod#HTML}.
+ *   </li>
+ * </ul>
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class NamespaceStrippingTransformer extends DelegatingTransformer {
+
+    /** Name of SAX property used to register a {@link LexicalHandler} */
+    private static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+
+    private static final String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+    private static final String NAMESPACE_PREFIXES_FEATURE = "http://xml.org/sax/features/namespace-prefixes";
+
+    /** Set to move all elements into no namespace, rather than just XHTML ones */
+    private final boolean strippingAllNamespaces;
+
+    /** Set to serialize only the children of the source Node, rather than the Node itself */
+    private final boolean childrenOnly;
+
+    public NamespaceStrippingTransformer(final Transformer serializer, final boolean strippingAllNamespaces,
+            final boolean childrenOnly) {
+        super(serializer);
+        this.strippingAllNamespaces = strippingAllNamespaces;
+        this.childrenOnly = childrenOnly;
+    }
+
+    @Override
+    public void transform(final Source xmlSource, final Result outputTarget) throws TransformerException {
+        Node sourceNode;
+        if (xmlSource instanceof DOMSource && ((DOMSource) xmlSource).getNode()!=null) {
+            sourceNode = ((DOMSource) xmlSource).getNode();
+        }
+        else {
+            /* Build a DOM first. This isn't the expected use case so is not particularly efficient! */
+            DOMResult domResult = new DOMResult();
+            serializer.transform(xmlSource, domResult);
+            sourceNode = domResult.getNode();
+        }
+        InputSource inputSource = new InputSource();
+        inputSource.setSystemId(xmlSource.getSystemId());
+        serializer.transform(new SAXSource(new DOMWalker(sourceNode), inputSource), outputTarget);
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Trivial {@link XMLReader} that generates SAX events by walking a DOM, renaming elements
+     * as it goes.
+     */
+    private final class DOMWalker implements XMLReader {
+
+        private final Node sourceNode;
+        private final NamespaceSupport namespaceSupport;
+        private final AttributesImpl attributes;
+        private final List<String> namespaceDeclarations;
+
+        /** Prefixes already considered when copying namespaces for the current element */
+        private final List<String> seenPrefixes;
+
+        private ContentHandler contentHandler;
+        private LexicalHandler lexicalHandler;
+        private DTDHandler dtdHandler;
+        private EntityResolver entityResolver;
+        private ErrorHandler errorHandler;
+        private boolean reportingNamespacePrefixes;
+
+        public DOMWalker(final Node sourceNode) {
+            this.sourceNode = sourceNode;
+            this.namespaceSupport = new NamespaceSupport();
+            this.attributes = new AttributesImpl();
+            this.namespaceDeclarations = new ArrayList<String>();
+            this.seenPrefixes = new ArrayList<String>();
+        }
+
+        public void parse(final InputSource input) throws SAXException {
+            if (contentHandler==null) {
+                throw new SAXException("No ContentHandler has been set");
+            }
+            namespaceSupport.reset();
+            contentHandler.startDocument();
+            if (childrenOnly || sourceNode.getNodeType()==Node.DOCUMENT_NODE
+                    || sourceNode.getNodeType()==Node.DOCUMENT_FRAGMENT_NODE) {
+                walkChildren(sourceNode);
+            }
+            else {
+                walk(sourceNode);
+            }
+            contentHandler.endDocument();
+        }
+
+        public void parse(final String systemId) throws SAXException {
+            parse(new InputSource(systemId));
+        }
+
+        private void walkChildren(final Node node) throws SAXException {
+            for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+                walk(child);
+            }
+        }
+
+        private void walk(final Node node) throws SAXException {
+            switch (node.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    walkElement((Element) node);
+                    break;
+
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    String text = node.getNodeValue();
+                    contentHandler.characters(text.toCharArray(), 0, text.length());
+                    break;
+
+                case Node.COMMENT_NODE:
+                    if (lexicalHandler!=null) {
+                        String comment = node.getNodeValue();
+                        lexicalHandler.comment(comment.toCharArray(), 0, comment.length());
+                    }
+                    break;
+
+                case Node.PROCESSING_INSTRUCTION_NODE:
+                    contentHandler.processingInstruction(node.getNodeName(), node.getNodeValue());
+                    break;
+
+                case Node.ENTITY_REFERENCE_NODE:
+                case Node.DOCUMENT_NODE:
+                case Node.DOCUMENT_FRAGMENT_NODE:
+                    walkChildren(node);
+                    break;
+
+                default:
+                    /* (Ignore anything else, e.g. DOCTYPE) */
+                    break;
+            }
+        }
+
+        private void walkElement(final Element element) throws SAXException {
+            String namespaceUri = element.getNamespaceURI();
+            String localName = element.getLocalName()!=null ? element.getLocalName() : element.getNodeName();
+            boolean isXHTML = W3CConstants.XHTML_NAMESPACE.equals(namespaceUri);
+            boolean stripping = strippingAllNamespaces || isXHTML;
+
+            /* Work out the namespaces the copied element will have, following xsl:copy or
+             * xsl:element */
+            namespaceSupport.pushContext();
+            namespaceDeclarations.clear();
+            seenPrefixes.clear();
+            String resultPrefix, resultNamespaceUri;
+            if (stripping) {
+                resultPrefix = "";
+                resultNamespaceUri = "";
+                requireNamespace("", "");
+            }
+            else {
+                resultPrefix = element.getPrefix()!=null ? element.getPrefix() : "";
+                resultNamespaceUri = namespaceUri!=null ? namespaceUri : "";
+                requireNamespace(resultPrefix, resultNamespaceUri);
+            }
+            if (!stripping || (isXHTML && !strippingAllNamespaces && "html".equals(localName))) {
+                /* Copy in-scope namespaces across, apart from XHTML in the latter case */
+                for (Node node = element; node instanceof Element; node = node.getParentNode()) {
+                    copyNamespaces((Element) node, stripping);
+                }
+            }
+
+            NamedNodeMap attributeMap = element.getAttributes();
+            attributes.clear();
+            for (int i=0, size=attributeMap.getLength(); i<size; i++) {
+                Attr attribute = (Attr) attributeMap.item(i);
+                String attributeNamespaceUri = attribute.getNamespaceURI();
+                String attributePrefix = attribute.getPrefix();
+                if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attributeNamespaceUri)
+                        || attribute.getName().startsWith(XMLConstants.XMLNS_ATTRIBUTE)) {
+                    /* (Namespace declarations are handled separately) */
+                    continue;
+                }
+                if (stripping && attribute.getName().startsWith("xml:")) {
+                    continue;
+                }
+                String attributeLocalName = attribute.getLocalName()!=null ? attribute.getLocalName() : attribute.getName();
+                if (attributeNamespaceUri!=null && attributePrefix!=null) {
+                    requireNamespace(attributePrefix, attributeNamespaceUri);
+                }
+                attributes.addAttribute(attributeNamespaceUri!=null ? attributeNamespaceUri : "",
+                        attributeLocalName, attribute.getName(), "CDATA", attribute.getValue());
+            }
+            /* Fire off SAX events */
+            for (int i=0, size=namespaceDeclarations.size(); i<size; i+=2) {
+                contentHandler.startPrefixMapping(namespaceDeclarations.get(i), namespaceDeclarations.get(i+1));
+                if (reportingNamespacePrefixes) {
+                    String prefix = namespaceDeclarations.get(i);
+                    attributes.addAttribute("", "", prefix.length()>0 ? "xmlns:" + prefix : "xmlns",
+                            "CDATA", namespaceDeclarations.get(i+1));
+                }
+            }
+            String resultQName = resultPrefix.length()>0 ? resultPrefix + ":" + localName : localName;
+            List<String> declaredPrefixes = null;
+            if (!namespaceDeclarations.isEmpty()) {
+                declaredPrefixes = new ArrayList<String>(namespaceDeclarations.size() / 2);
+                for (int i=0, size=namespaceDeclarations.size(); i<size; i+=2) {
+                    declaredPrefixes.add(namespaceDeclarations.get(i));
+                }
+            }
+            contentHandler.startElement(resultNamespaceUri, localName, resultQName, attributes);
+            walkChildren(element);
+            contentHandler.endElement(resultNamespaceUri, localName, resultQName);
+            if (declaredPrefixes!=null) {
+                for (String prefix : declaredPrefixes) {
+                    contentHandler.endPrefixMapping(prefix);
+                }
+            }
+            namespaceSupport.popContext();
+        }
+
+        /**
+         * Adds the namespaces declared on the given element (either explicitly or implicitly via
+         * the names of the element and its attributes) to the current element, unless an
+         * earlier element has already declared the same prefix.
+         */
+        private void copyNamespaces(final Element element, final boolean excludingXHTML) {
+            NamedNodeMap attributeMap = element.getAttributes();
+            int attributeCount = attributeMap.getLength();
+            copyNamespace(element.getPrefix(), element.getNamespaceURI(), excludingXHTML);
+            for (int i=0; i<attributeCount; i++) {
+                String name = ((Attr) attributeMap.item(i)).getName();
+                if (name.equals(XMLConstants.XMLNS_ATTRIBUTE)) {
+                    copyNamespace(null, ((Attr) attributeMap.item(i)).getValue(), excludingXHTML);
+                }
+                else if (name.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+                    copyNamespace(name.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1),
+                            ((Attr) attributeMap.item(i)).getValue(), excludingXHTML);
+                }
+            }
+            for (int i=0; i<attributeCount; i++) {
+                Attr attribute = (Attr) attributeMap.item(i);
+                if (attribute.getNamespaceURI()!=null && attribute.getPrefix()!=null
+                        && !XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                    copyNamespace(attribute.getPrefix(), attribute.getNamespaceURI(), excludingXHTML);
+                }
+            }
+        }
+
+        private void copyNamespace(final String prefix, final String namespaceUri, final boolean excludingXHTML) {
+            String resolvedPrefix = prefix!=null ? prefix : "";
+            String resolvedNamespaceUri = namespaceUri!=null ? namespaceUri : "";
+            if (XMLConstants.XML_NS_PREFIX.equals(resolvedPrefix) || seenPrefixes.contains(resolvedPrefix)) {
+                return;
+            }
+            seenPrefixes.add(resolvedPrefix);
+            if (resolvedNamespaceUri.length()==0
+                    || (excludingXHTML && W3CConstants.XHTML_NAMESPACE.equals(resolvedNamespaceUri))) {
+                return;
+            }
+            requireNamespace(resolvedPrefix, resolvedNamespaceUri);
+        }
+
+        /**
+         * Records that the current element needs the given namespace in scope, declaring it
+         * if it isn't already in scope.
+         */
+        private void requireNamespace(final String prefix, final String namespaceUri) {
+            if (prefix.equals(XMLConstants.XML_NS_PREFIX)) {
+                return;
+            }
+            String currentNamespaceUri = namespaceSupport.getURI(prefix);
+            if (currentNamespaceUri==null) {
+                currentNamespaceUri = "";
+            }
+            if (!currentNamespaceUri.equals(namespaceUri)) {
+                namespaceSupport.declarePrefix(prefix, namespaceUri);
+                namespaceDeclarations.add(prefix);
+                namespaceDeclarations.add(namespaceUri);
+            }
+        }
+
+        //-------------------------------------------------------------------
+
+        public boolean getFeature(final String name) throws SAXNotRecognizedException {
+            if (NAMESPACES_FEATURE.equals(name)) {
+                return true;
+            }
+            else if (NAMESPACE_PREFIXES_FEATURE.equals(name)) {
+                return reportingNamespacePrefixes;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        public void setFeature(final String name, final boolean value) throws SAXNotRecognizedException {
+            if (NAMESPACE_PREFIXES_FEATURE.equals(name)) {
+                reportingNamespacePrefixes = value;
+            }
+            else if (!NAMESPACES_FEATURE.equals(name)) {
+                throw new SAXNotRecognizedException(name);
+            }
+        }
+
+        public Object getProperty(final String name) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+                return lexicalHandler;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        public void setProperty(final String name, final Object value) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER_PROPERTY.equals(name)) {
+                lexicalHandler = (LexicalHandler) value;
+            }
+            else {
+                throw new SAXNotRecognizedException(name);
+            }
+        }
+
+        public void setContentHandler(final ContentHandler handler) {
+            this.contentHandler = handler;
+            if (lexicalHandler==null && handler instanceof LexicalHandler) {
+                lexicalHandler = (LexicalHandler) handler;
+            }
+        }
+
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        public void setDTDHandler(final DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        public DTDHandler getDTDHandler() {
+            return dtdHandler;
+        }
+
+        public void setEntityResolver(final EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        public EntityResolver getEntityResolver() {
+            return entityResolver;
+        }
+
+        public void setErrorHandler(final ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+    }
+}
@@ -178,9 +178,9 @@ public final class SerializationOptions implements SerializationSpecifier, Clone
      * Sets whether to use named entities for certain MathML symbols rather than
      * numeric character references.
      * <p>
-     * Note that this requires an XSLT 2.0-compliant engine (e.g. Saxon, which is in the
-     * "full" SnuggleTeX distribution). This option will be silently ignored if you are
-     * using an XSLT 1.0 engine, such as the one which typically comes bundled with your JDK.
+     * Note that this is done by SnuggleTeX itself as the output is written, so works with
+     * any XSLT processor. (Prior to SnuggleTeX 1.3.1, this required an XSLT 2.0 processor and
+     * was silently ignored otherwise.)
      * <p>
      * (Also note that the resulting XML won't be parseable unless accompanied with a DTD
      * defining the MathML entities!)
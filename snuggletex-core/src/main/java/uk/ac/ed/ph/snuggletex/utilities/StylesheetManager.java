@@ -24,6 +24,8 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamSource;
 
 /**
@@ -205,6 +207,52 @@ public final class StylesheetManager {
         }
     }
     
+    /**
+     * Creates a new {@link TransformerHandler} for the XSLT stylesheet at the given ClassPathURI,
+     * compiling it via {@link #getCompiledStylesheet(String, boolean)}. This is useful for
+     * chaining transforms together without building intermediate DOMs.
+     * <p>
+     * The caller is responsible for setting the {@link javax.xml.transform.Result} of the
+     * resulting handler.
+     * 
+     * @param classPathUri location of the XSLT stylesheet in the ClassPath, following the
+     *   URI scheme in {@link ClassPathURIResolver}.
+     * @param requireXSLT20 if false uses the JAXP default {@link TransformerFactory}, otherwise
+     *   specifies that we require an XSLT 2.0-compliant transformer.
+     *   
+     * @since 1.3.1
+     */
+    public TransformerHandler getTransformerHandler(final String classPathUri, final boolean requireXSLT20) {
+        Templates templates = getCompiledStylesheet(classPathUri, requireXSLT20);
+        try {
+            return getSAXTransformerFactory(requireXSLT20).newTransformerHandler(templates);
+        }
+        catch (TransformerConfigurationException e) {
+            throw new SnuggleRuntimeException("Could not create TransformerHandler for internal stylesheet at " + classPathUri, e);
+        }
+    }
+    
+    /**
+     * Creates a new "identity" {@link TransformerHandler}, which simply passes the SAX events it
+     * receives onto its {@link javax.xml.transform.Result}.
+     * 
+     * @since 1.3.1
+     */
+    public TransformerHandler getIdentityTransformerHandler() {
+        try {
+            return getSAXTransformerFactory(false).newTransformerHandler();
+        }
+        catch (TransformerConfigurationException e) {
+            throw new SnuggleRuntimeException("Could not create identity TransformerHandler", e);
+        }
+    }
+    
+    private SAXTransformerFactory getSAXTransformerFactory(final boolean requireXSLT20) {
+        TransformerFactory transformerFactory = getTransformerFactory(requireXSLT20);
+        XMLUtilities.requireFeature(transformerFactory, SAXTransformerFactory.FEATURE);
+        return (SAXTransformerFactory) transformerFactory;
+    }
+    
     /**
      * Obtains a "driver" XSLT stylesheet that imports the stylesheets having the given
      * ClassPath URIs, using the {@link StylesheetCache} (if set) to cache the resulting driver for efficiency.
@@ -264,6 +312,14 @@ public final class StylesheetManager {
     /**
      * Obtains a serializer stylesheet based on the stylesheet at the given URI, configured
      * as per the given {@link SerializationSpecifier}. (Some options may require XSLT 2.0 support.)
+     * <p>
+     * The {@link SerializationMethod#HTML} and {@link SerializationMethod#STRICTLY_HTML} methods
+     * are handled by renaming elements on the fly as the DOM is serialized, unless a custom
+     * serializer stylesheet is given in which case XSLT is used as before.
+     * <p>
+     * If named entities are requested then the result is a wrapper that maps characters to
+     * entities via a {@link MathMLEntityWriter} when given a {@link javax.xml.transform.stream.StreamResult},
+     * which works with any XSLT processor.
      * 
      * @param serializerUri URI for the required serializing stylesheet, null for the default
      *   serializer.
@@ -273,27 +329,28 @@ public final class StylesheetManager {
      *   was required but could not be obtained.
      */
     public Transformer getSerializer(final String serializerUri, final SerializationSpecifier serializationOptions) {
-        /* Work out whether we need to use any stylesheets to help with serialization */
+        /* Work out whether we need to use any stylesheets to help with serialization. HTML
+         * serialization is done by stripping namespaces directly as we serialize, unless
+         * a custom serializer stylesheet is being used.
+         */
+        SerializationMethod requestedMethod = serializationOptions!=null ? serializationOptions.getSerializationMethod() : null;
+        boolean childrenOnly = Globals.EXTRACT_CHILD_NODES_XSL_RESOURCE_NAME.equals(serializerUri);
+        boolean strippingNamespaces = (requestedMethod==SerializationMethod.HTML || requestedMethod==SerializationMethod.STRICTLY_HTML)
+            && (serializerUri==null || childrenOnly);
         List<String> stylesheetUris = new ArrayList<String>();
-        if (serializerUri!=null) {
-            stylesheetUris.add(serializerUri);
-        }
         boolean supportsXSLT20 = supportsXSLT20();
-        boolean requiresXSLT20 = false;
-        if (serializationOptions!=null) {
-            if (serializationOptions.getSerializationMethod()==SerializationMethod.HTML) {
+        if (!strippingNamespaces) {
+            if (serializerUri!=null) {
+                stylesheetUris.add(serializerUri);
+            }
+            if (requestedMethod==SerializationMethod.HTML) {
                 /* Move XHTML to no namespace, keep MathML and other namespace intact */
                 stylesheetUris.add(Globals.STRIP_XHTML_NAMESPACE_XSL_RESOURCE_NAME);
             }
-            else if (serializationOptions.getSerializationMethod()==SerializationMethod.STRICTLY_HTML) {
+            else if (requestedMethod==SerializationMethod.STRICTLY_HTML) {
                 /* Move *ALL* XML elements to no namespace */
                 stylesheetUris.add(Globals.STRIP_ALL_NAMESPACES_XSL_RESOURCE_NAME);
             }
-            if (serializationOptions.isUsingNamedEntities() && supportsXSLT20) {
-                /* We will perform character mapping here (which requires XSLT 2.0) */
-                stylesheetUris.add(Globals.MATHML_ENTITIES_MAP_XSL_RESOURCE_NAME);
-                requiresXSLT20 = true;
-            }
         }
         
         /* Now create serializer */
@@ -303,10 +360,10 @@ public final class StylesheetManager {
                 serializer = getTransformerFactory(false).newTransformer();
             }
             else if (stylesheetUris.size()==1) {
-                serializer = getCompiledStylesheet(stylesheetUris.get(0), requiresXSLT20).newTransformer();
+                serializer = getCompiledStylesheet(stylesheetUris.get(0), false).newTransformer();
             }
             else {
-                serializer = getCompiledStylesheetDriver(stylesheetUris, requiresXSLT20).newTransformer();
+                serializer = getCompiledStylesheetDriver(stylesheetUris, false).newTransformer();
             }
         }
         catch (TransformerConfigurationException e) {
@@ -335,6 +392,15 @@ public final class StylesheetManager {
             if (serializationOptions.getDoctypeSystem()!=null) {
                 serializer.setOutputProperty(OutputKeys.DOCTYPE_SYSTEM, serializationOptions.getDoctypeSystem());
             }  
+            if (strippingNamespaces) {
+                /* Move elements out of their namespaces as they are serialized */
+                serializer = new NamespaceStrippingTransformer(serializer,
+                        requestedMethod==SerializationMethod.STRICTLY_HTML, childrenOnly);
+            }
+            if (serializationOptions.isUsingNamedEntities()) {
+                /* Map MathML characters to named entities as the output is written */
+                serializer = new EntityMappingTransformer(serializer);
+            }
         }
         return serializer;
     }
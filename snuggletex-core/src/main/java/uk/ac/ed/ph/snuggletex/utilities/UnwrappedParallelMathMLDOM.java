@@ -5,66 +5,172 @@
  */
 package uk.ac.ed.ph.snuggletex.utilities;
 
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 
 /**
- * Trivial wrapper Object that encapsulates the results of
+ * Wrapper Object that encapsulates the results of
  * {@link MathMLUtilities#unwrapParallelMathMLDOM(Element)}.
+ * <p>
+ * This acts as an index into the original DOM: the first branch and all annotations are
+ * located with a single pass over the &lt;semantics/&gt; element, and nothing is copied. Text
+ * annotation values are only pulled out when first asked for. Use {@link #isolateFirstBranch()}
+ * or {@link #isolateAnnotationXML(String)} if you explicitly need a standalone copy as a new
+ * {@link Document}.
+ * <p>
+ * Note that the {@link Element}s and {@link NodeList}s returned here are live parts of the
+ * original DOM, so this Object shouldn't be used once the DOM has been modified. Like the DOM
+ * itself, this is not thread-safe.
  *
  * @author  David McKain
  * @version $Revision$
  */
 public final class UnwrappedParallelMathMLDOM {
-    
+
     /** Containing <math/> element */
     private Element mathElement;
-    
+
+    /**
+     * Top <semantics/> element
+     *
+     * @since 1.3.1
+     */
+    private Element semanticsElement;
+
     /** First branch of the <semantics/> element */
     private Element firstBranch;
-    
+
     /** Map of all <annotation/> contents, keyed on encoding attribute */
     private final Map<String, String> textAnnotations;
-    
+
+    /**
+     * Map of <annotation/> elements whose contents have not been extracted yet, keyed on
+     * encoding attribute.
+     */
+    private final Map<String, Element> pendingTextAnnotations;
+
     /** Map of all <annotation-xml/> contents, keyed on encoding attribute */
     private final Map<String, NodeList> xmlAnnotations;
-    
+
     public UnwrappedParallelMathMLDOM() {
         this.textAnnotations = new HashMap<String, String>();
+        this.pendingTextAnnotations = new HashMap<String, Element>();
         this.xmlAnnotations = new HashMap<String, NodeList>();
     }
-    
+
     /** Returns the containing &lt;math/&gt; element */
     public Element getMathElement() {
         return mathElement;
     }
-    
+
     /** Sets the containing &lt;math/&gt; element */
     public void setMathElement(Element mathElement) {
         this.mathElement = mathElement;
     }
 
+    /**
+     * Returns the top &lt;semantics/&gt; element.
+     *
+     * @since 1.3.1
+     */
+    public Element getSemanticsElement() {
+        return semanticsElement;
+    }
+
+    /**
+     * Sets the top &lt;semantics/&gt; element.
+     *
+     * @since 1.3.1
+     */
+    public void setSemanticsElement(Element semanticsElement) {
+        this.semanticsElement = semanticsElement;
+    }
+
     /** Returns the first branch of the top &lt;semantics/&gt; element. */
     public Element getFirstBranch() {
         return firstBranch;
     }
-    
+
     /** Sets the first branch of the top &lt;semantics/&gt; element. */
     public void setFirstBranch(Element firstBranch) {
         this.firstBranch = firstBranch;
     }
 
+    /**
+     * Registers the given &lt;annotation/&gt; element, unless an annotation with the same
+     * encoding has already been registered. Its text content will be extracted when first
+     * required.
+     */
+    void addTextAnnotation(final Element annotationElement) {
+        String encoding = annotationElement.getAttribute("encoding");
+        if (!textAnnotations.containsKey(encoding) && !pendingTextAnnotations.containsKey(encoding)) {
+            pendingTextAnnotations.put(encoding, annotationElement);
+        }
+    }
+
+    /**
+     * Registers the content of the given &lt;annotation-xml/&gt; element, unless an annotation
+     * with the same encoding has already been registered.
+     */
+    void addXmlAnnotation(final Element annotationXmlElement) {
+        String encoding = annotationXmlElement.getAttribute("encoding");
+        if (!xmlAnnotations.containsKey(encoding)) {
+            xmlAnnotations.put(encoding, annotationXmlElement.getChildNodes());
+        }
+    }
+
+    /**
+     * Returns the text content of the first &lt;annotation/&gt; element having the given
+     * "encoding" attribute, or null if there is no such annotation.
+     *
+     * @since 1.3.1
+     */
+    public String getTextAnnotation(final String encoding) {
+        String result = textAnnotations.get(encoding);
+        if (result==null) {
+            Element annotationElement = pendingTextAnnotations.remove(encoding);
+            if (annotationElement!=null) {
+                result = XMLUtilities.extractTextElementValue(annotationElement);
+                textAnnotations.put(encoding, result);
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns a {@link Map} of &lt;annotation/&gt; elements, keyed on the "encoding" attribute with
      * the text content as values.
+     * <p>
+     * (This extracts the content of all annotations, so use {@link #getTextAnnotation(String)}
+     * if you only want some of them.)
      */
     public Map<String, String> getTextAnnotations() {
+        if (!pendingTextAnnotations.isEmpty()) {
+            for (Entry<String, Element> entry : pendingTextAnnotations.entrySet()) {
+                textAnnotations.put(entry.getKey(), XMLUtilities.extractTextElementValue(entry.getValue()));
+            }
+            pendingTextAnnotations.clear();
+        }
         return textAnnotations;
     }
 
+    /**
+     * Returns the child Nodes of the first &lt;annotation-xml/&gt; element having the given
+     * "encoding" attribute, or null if there is no such annotation.
+     *
+     * @since 1.3.1
+     */
+    public NodeList getXmlAnnotation(final String encoding) {
+        return xmlAnnotations.get(encoding);
+    }
+
     /**
      * Returns a {@link Map} of &lt;annotation-xml/&gt; elements, keyed on the "encoding" attribute with
      * the {@link NodeList} content as values.
@@ -72,4 +178,24 @@ public final class UnwrappedParallelMathMLDOM {
     public Map<String, NodeList> getXmlAnnotations() {
         return xmlAnnotations;
     }
+
+    /**
+     * Creates a standalone copy of the first branch, as per
+     * {@link MathMLUtilities#isolateFirstSemanticsBranch(UnwrappedParallelMathMLDOM)}.
+     *
+     * @since 1.3.1
+     */
+    public Document isolateFirstBranch() {
+        return MathMLUtilities.isolateFirstSemanticsBranch(this);
+    }
+
+    /**
+     * Creates a standalone copy of the XML annotation having the given encoding, as per
+     * {@link MathMLUtilities#isolateAnnotationXML(UnwrappedParallelMathMLDOM, String)}.
+     *
+     * @since 1.3.1
+     */
+    public Document isolateAnnotationXML(final String encoding) {
+        return MathMLUtilities.isolateAnnotationXML(this, encoding);
+    }
 }
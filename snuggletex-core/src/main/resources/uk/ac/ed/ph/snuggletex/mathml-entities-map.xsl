@@ -4,6 +4,9 @@
 This stylesheet defines a character map converting (most of) the MathML
 symbols we generate into named entities compatible with the MathML DTD.
 
+SnuggleTeX itself reads the character map below to build the lookup table
+used by MathMLEntityWriter, so this works with XSLT 1.0 processors too.
+
 $Id$
 
 -->
@@ -0,0 +1,146 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.SnuggleSession.EndOutputAction;
+import uk.ac.ed.ph.snuggletex.WebPageOutputOptions.WebPageType;
+import uk.ac.ed.ph.snuggletex.internal.util.ChannelWriter;
+import uk.ac.ed.ph.snuggletex.utilities.ByteArrayChannel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the methods in {@link SnuggleSession} that write to channels, along with
+ * {@link ByteArrayChannel} and {@link ChannelWriter}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class ChannelOutputTests {
+
+    private static final String INPUT = "Hello $x^2 + \\alpha$ \\textbf{bold} \u00e9\u2200\ud835\udc00";
+
+    @Test
+    public void testWriteXMLString() throws Exception {
+        SnuggleSession session = new SnuggleEngine().createSession();
+        session.parseInput(new SnuggleInput(INPUT));
+        ByteArrayChannel channel = new ByteArrayChannel(4);
+        for (String encoding : new String[] { "UTF-8", "US-ASCII", "UTF-16" }) {
+            XMLStringOutputOptions options = new XMLStringOutputOptions();
+            options.setEncoding(encoding);
+            channel.reset();
+            Assert.assertTrue(session.writeXMLString(options, channel));
+            Assert.assertTrue(Arrays.equals(session.buildXMLString(options).getBytes(encoding), channel.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testWriteWebPage() throws Exception {
+        SnuggleSession session = new SnuggleEngine().createSession();
+        session.parseInput(new SnuggleInput(INPUT));
+        WebPageOutputOptions options = WebPageOutputOptionsBuilder.createHTML5Options();
+        options.setEncoding("US-ASCII");
+        WebPageOutputOptions frozenOptions = WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MOZILLA);
+        frozenOptions.freeze();
+        ByteArrayChannel channel = new ByteArrayChannel();
+        for (WebPageOutputOptions o : new WebPageOutputOptions[] { options, frozenOptions }) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            session.writeWebPage(o, expected);
+            channel.reset();
+            Assert.assertTrue(session.writeWebPage(o, null, channel, EndOutputAction.CLOSE));
+            Assert.assertFalse(channel.isOpen());
+            Assert.assertTrue(Arrays.equals(expected.toByteArray(), channel.toByteArray()));
+            Assert.assertEquals(session.buildWebPageString(o), channel.toString(o.getEncoding()));
+        }
+    }
+
+    /**
+     * Checks that failures writing to the channel come out as the original {@link IOException}s,
+     * both while serializing and when flushing at the end, and that the encoders used can still
+     * be reused afterwards.
+     */
+    @Test
+    public void testFailingChannel() throws Exception {
+        StringBuilder longInput = new StringBuilder();
+        for (int i=0; i<ChannelWriter.BUFFER_SIZE / INPUT.length(); i++) {
+            longInput.append(INPUT).append("\n\n");
+        }
+        WebPageOutputOptions frozenOptions = WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MOZILLA);
+        frozenOptions.freeze();
+        for (String input : new String[] { INPUT, longInput.toString() }) {
+            SnuggleSession session = new SnuggleEngine().createSession();
+            session.parseInput(new SnuggleInput(input));
+            try {
+                session.writeXMLString(new XMLStringOutputOptions(), new FailingChannel());
+                Assert.fail("Expected IOException");
+            }
+            catch (IOException e) {
+                Assert.assertEquals(FailingChannel.MESSAGE, e.getMessage());
+            }
+            for (WebPageOutputOptions options : new WebPageOutputOptions[] { WebPageOutputOptionsBuilder.createHTML5Options(), frozenOptions }) {
+                try {
+                    session.writeWebPage(options, null, new FailingChannel(), EndOutputAction.DO_NOTHING);
+                    Assert.fail("Expected IOException");
+                }
+                catch (IOException e) {
+                    Assert.assertEquals(FailingChannel.MESSAGE, e.getMessage());
+                }
+            }
+        }
+
+        ByteArrayChannel channel = new ByteArrayChannel();
+        ChannelWriter writer = new ChannelWriter(channel, "UTF-8");
+        writer.write("\u00e9");
+        writer.close();
+        Assert.assertEquals("\u00e9", channel.toString("UTF-8"));
+    }
+
+    @Test
+    public void testSplitSurrogates() throws Exception {
+        ByteArrayChannel channel = new ByteArrayChannel();
+        ChannelWriter writer = new ChannelWriter(channel, "UTF-8");
+        writer.write("a\ud835");
+        writer.write("\udc00b");
+        writer.write("\ud835");
+        writer.close();
+        Assert.assertEquals("a\ud835\udc00b?", channel.toString("UTF-8"));
+
+        /* Encoder should be reusable once closed */
+        channel.reset();
+        writer = new ChannelWriter(channel, "UTF-8");
+        writer.write("\u00e9");
+        writer.writeBytes("x".getBytes("UTF-8"));
+        writer.close();
+        Assert.assertEquals("\u00e9x", channel.toString("UTF-8"));
+        Assert.assertEquals(3, channel.getByteBuffer().remaining());
+    }
+
+    /** Channel that fails whenever anything is written to it */
+    private static class FailingChannel implements WritableByteChannel {
+
+        static final String MESSAGE = "Channel is broken";
+
+        public int write(ByteBuffer src) throws IOException {
+            throw new IOException(MESSAGE);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+            /* Nothing to do */
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.testutil.TestFileHelper;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
+
+import java.util.Collection;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Document;
+
+/**
+ * Checks that running {@link StreamingDOMPostProcessor}s as a single streaming chain gives
+ * the same results as running each {@link DOMPostProcessor} over a complete DOM in turn,
+ * using the inputs in <tt>{@link #TEST_RESOURCE_NAME}</tt>.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+@RunWith(Parameterized.class)
+public class DOMPostProcessorChainTests {
+    
+    public static final String TEST_RESOURCE_NAME = "math-tests.txt";
+
+    @Parameters
+    public static Collection<String[]> data() throws Exception {
+        return TestFileHelper.readAndParseSingleLineInputTestResource(TEST_RESOURCE_NAME);
+    }
+
+    private final String inputLaTeXMaths;
+
+    public DOMPostProcessorChainTests(final String inputLaTeXMaths, final String unused) {
+        this.inputLaTeXMaths = inputLaTeXMaths;
+    }
+
+    @Test
+    public void runTest() throws Throwable {
+        SnuggleEngine engine = new SnuggleEngine();
+        SnuggleSession session = engine.createSession();
+        session.parseInput(new SnuggleInput("$" + inputLaTeXMaths + "$ and $" + inputLaTeXMaths + "$"));
+
+        /* Stream through two down-converters */
+        XMLStringOutputOptions streamingOptions = new XMLStringOutputOptions();
+        streamingOptions.setDOMPostProcessors(new DownConvertingPostProcessor(), new DownConvertingPostProcessor());
+
+        /* Force each down-converter to work on a complete DOM */
+        XMLStringOutputOptions domOptions = new XMLStringOutputOptions();
+        domOptions.setDOMPostProcessors(new NonStreamingPostProcessor(new DownConvertingPostProcessor()),
+                new NonStreamingPostProcessor(new DownConvertingPostProcessor()));
+
+        Assert.assertEquals(session.buildXMLString(domOptions), session.buildXMLString(streamingOptions));
+    }
+
+    /**
+     * Hides the fact that the wrapped {@link DOMPostProcessor} might be streamable.
+     */
+    private static final class NonStreamingPostProcessor implements DOMPostProcessor {
+
+        private final DOMPostProcessor wrapped;
+
+        public NonStreamingPostProcessor(final DOMPostProcessor wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        public Document postProcessDOM(Document workDocument, DOMOutputOptions options,
+                StylesheetManager stylesheetManager) {
+            return wrapped.postProcessDOM(workDocument, options, stylesheetManager);
+        }
+    }
+}
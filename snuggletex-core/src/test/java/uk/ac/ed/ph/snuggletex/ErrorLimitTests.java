@@ -0,0 +1,154 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions.ErrorOutputOptions;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Counter;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Stage;
+import uk.ac.ed.ph.snuggletex.definitions.CoreErrorCode;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.MessageFormatter;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests the limiting of recorded errors via {@link SessionConfiguration#getErrorLimit()}, and
+ * the lazy formatting of {@link InputError}s.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class ErrorLimitTests {
+
+    private static final String INPUT = "\\a \\b \\c \\d \\e";
+
+    @Test
+    public void testLimited() throws Exception {
+        SessionConfiguration configuration = new SessionConfiguration();
+        configuration.setErrorLimit(2);
+        SnuggleSession session = new SnuggleEngine().createSession(configuration);
+        session.parseInput(new SnuggleInput(INPUT));
+        Assert.assertEquals(2, session.getErrors().size());
+        Assert.assertEquals(3, session.getOverflowErrorCount());
+
+        /* Only the first 2 errors should be output in full */
+        XMLStringOutputOptions options = new XMLStringOutputOptions();
+        options.setErrorOutputOptions(ErrorOutputOptions.XML_FULL);
+        String result = session.buildXMLString(options);
+        Assert.assertEquals(5, countOccurrences(result, "code=\"TTEC00\""));
+        Assert.assertEquals(2, countOccurrences(result, "Undefined command"));
+
+        options.setErrorOutputOptions(ErrorOutputOptions.XHTML);
+        result = session.buildXMLString(options);
+        Assert.assertEquals(5, countOccurrences(result, "(TTEC00)"));
+        Assert.assertEquals(2, countOccurrences(result, "<pre>"));
+
+        /* Snapshots should keep the overflow count, and resetting should clear it */
+        SnuggleSession copy = session.createSnapshot().createSession();
+        Assert.assertEquals(3, copy.getOverflowErrorCount());
+        copy.parseInput(new SnuggleInput("\\f"));
+        Assert.assertEquals(4, copy.getOverflowErrorCount());
+        copy.reset();
+        Assert.assertEquals(0, copy.getOverflowErrorCount());
+        Assert.assertEquals(0, copy.getErrors().size());
+    }
+
+    @Test
+    public void testMetricsIncludeOverflow() throws Exception {
+        final long[] errorCount = new long[1];
+        SnuggleEngine engine = new SnuggleEngine();
+        engine.setMetricsListener(new SnuggleMetricsListener() {
+            public void stageCompleted(Stage stage, long durationNanos) {
+                /* (Not needed here) */
+            }
+            
+            public void postProcessorCompleted(DOMPostProcessor domPostProcessor, long durationNanos) {
+                /* (Not needed here) */
+            }
+            
+            public void countRecorded(Counter counter, long count) {
+                if (counter==Counter.ERRORS) {
+                    errorCount[0] += count;
+                }
+            }
+        });
+        SessionConfiguration configuration = new SessionConfiguration();
+        configuration.setErrorLimit(1);
+        SnuggleSession session = engine.createSession(configuration);
+        
+        /* The first error is raised while parsing, the others while building the DOM */
+        session.parseInput(new SnuggleInput("\\a \\hspace{x} \\hspace{y}"));
+        Assert.assertEquals(1, errorCount[0]);
+        session.buildXMLString();
+        Assert.assertEquals(1, session.getErrors().size());
+        Assert.assertEquals(2, session.getOverflowErrorCount());
+        Assert.assertEquals(3, errorCount[0]);
+    }
+
+    @Test
+    public void testDefaultUnlimited() throws Exception {
+        SnuggleSession session = new SnuggleEngine().createSession();
+        Assert.assertEquals(SessionConfiguration.DEFAULT_ERROR_LIMIT, session.getConfiguration().getErrorLimit());
+        session.parseInput(new SnuggleInput(INPUT));
+        Assert.assertEquals(5, session.getErrors().size());
+        Assert.assertEquals(0, session.getOverflowErrorCount());
+    }
+
+    @Test
+    public void testUnlimited() throws Exception {
+        SessionConfiguration configuration = new SessionConfiguration();
+        configuration.setErrorLimit(0);
+        SnuggleSession session = new SnuggleEngine().createSession(configuration);
+        session.parseInput(new SnuggleInput(INPUT));
+        Assert.assertEquals(5, session.getErrors().size());
+        Assert.assertEquals(0, session.getOverflowErrorCount());
+    }
+
+    @Test
+    public void testFailingFast() throws Exception {
+        SessionConfiguration configuration = new SessionConfiguration();
+        configuration.setErrorLimit(1);
+        configuration.setFailingFast(true);
+        SnuggleSession session = new SnuggleEngine().createSession(configuration);
+        Assert.assertFalse(session.parseInput(new SnuggleInput(INPUT)));
+        Assert.assertEquals(1, session.getErrors().size());
+        Assert.assertEquals(0, session.getOverflowErrorCount());
+    }
+
+    @Test
+    public void testMessages() throws Exception {
+        SnuggleSession session = new SnuggleEngine().createSession();
+        session.parseInput(new SnuggleInput("\\undefined", "Input"));
+        InputError error = session.getErrors().get(0);
+        Assert.assertEquals(CoreErrorCode.TTEC00, error.getErrorCode());
+
+        String message = error.getMessage();
+        Assert.assertSame(message, error.getMessage());
+        Assert.assertEquals(MessageFormatter.getErrorMessage(CoreErrorCode.TTEC00, error.getArguments()), message);
+
+        String sourceContext = error.getSourceContext();
+        Assert.assertSame(sourceContext, error.getSourceContext());
+        Assert.assertTrue(sourceContext.contains("Input"));
+
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element xmlError = MessageFormatter.formatErrorAsXML(document, error, true);
+        Assert.assertEquals(message + "\n" + sourceContext, xmlError.getTextContent());
+        Assert.assertTrue(MessageFormatter.formatErrorAsString(error).endsWith(message + "\n" + sourceContext));
+        Assert.assertNull(new InputError(CoreErrorCode.TTEC00, null, "x").getSourceContext());
+    }
+
+    private static int countOccurrences(String string, String search) {
+        int count = 0;
+        for (int index = string.indexOf(search); index!=-1; index = string.indexOf(search, index + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,177 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions.ErrorOutputOptions;
+import uk.ac.ed.ph.snuggletex.WebPageOutputOptions.WebPageType;
+import uk.ac.ed.ph.snuggletex.definitions.Globals;
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.SerializationOptions;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Checks that serializing with {@link SerializationMethod#HTML} and
+ * {@link SerializationMethod#STRICTLY_HTML} gives exactly the same results as running the
+ * namespace stripping stylesheets used by earlier versions of SnuggleTeX.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class HTMLSerializationTests {
+
+    private static final String[] INPUTS = {
+        "Hello",
+        "Hello $x^2 + \\alpha$ \\textbf{bold} \\verb|&<>|",
+        "\\[ \\frac{1}{2} \\] \\begin{tabular}{cc} a & b \\\\ c & d \\end{tabular}",
+        "\\section{Title} \\emph{Some} \\href{http://example.com}{link} and $\\mathrm{d}x$",
+        "\\begin{itemize} \\item One \\item $\\sqrt{2}$ \\end{itemize} \\undefined",
+        "\\begin{eqnarray} x &=& 1 \\\\ y &=& \\sin 2 \\end{eqnarray}",
+        "\\anchor{a} \\xmlBlockElement[xmlns:x=\"urn:x\"]{urn:x}{x:thing}{Content}",
+    };
+
+    @Test
+    public void testWebPages() throws Exception {
+        StylesheetManager stylesheetManager = new StylesheetManager();
+        SnuggleEngine engine = new SnuggleEngine(stylesheetManager);
+        for (WebPageOutputOptions options : createWebPageOptions()) {
+            for (String input : INPUTS) {
+                SnuggleSession session = engine.createSession();
+                session.parseInput(new SnuggleInput(input));
+                Document document = session.buildWebPage(options);
+                assertSameAsXSLT(stylesheetManager, document, options);
+            }
+        }
+    }
+
+    @Test
+    public void testPrefixedElements() throws Exception {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element html = document.createElementNS(W3CConstants.XHTML_NAMESPACE, "html");
+        html.setAttributeNS(XMLConstants.XML_NS_URI, "xml:lang", "en");
+        html.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:m", W3CConstants.MATHML_NAMESPACE);
+        html.setAttributeNS("urn:other", "o:thing", "value");
+        document.appendChild(html);
+        Element body = document.createElementNS(W3CConstants.XHTML_NAMESPACE, "body");
+        html.appendChild(body);
+        body.appendChild(document.createComment(" Comment "));
+        body.appendChild(document.createProcessingInstruction("import", "namespace=\"m\""));
+        Element math = document.createElementNS(W3CConstants.MATHML_NAMESPACE, "m:math");
+        math.setAttributeNS(XMLConstants.XML_NS_URI, "xml:lang", "fr");
+        math.setAttributeNS("http://www.w3.org/1999/xlink", "xlink:href", "#x");
+        body.appendChild(math);
+        math.appendChild(document.createElementNS(W3CConstants.MATHML_NAMESPACE, "m:mtext"))
+            .appendChild(document.createTextNode("a < b & c"));
+        Element span = document.createElementNS(W3CConstants.XHTML_NAMESPACE, "span");
+        span.setAttribute("class", "x");
+        span.appendChild(document.createTextNode("\u03b1"));
+        body.appendChild(span);
+        Element other = document.createElementNS("urn:other", "other");
+        other.appendChild(document.createElementNS("urn:other", "child")).appendChild(document.createTextNode("x"));
+        body.appendChild(other);
+
+        /* (Here the namespace declarations made are checked explicitly, as XSLT processors vary
+         * in how they treat the namespace nodes of DOM elements) */
+        SerializationOptions options = new SerializationOptions();
+        options.setSerializationMethod(SerializationMethod.HTML);
+        Assert.assertEquals("<html xmlns:m=\"" + W3CConstants.MATHML_NAMESPACE + "\" xmlns:o=\"urn:other\" o:thing=\"value\">"
+                + "<body><!-- Comment --><?import namespace=\"m\">"
+                + "<m:math xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns=\"" + W3CConstants.XHTML_NAMESPACE + "\""
+                + " xlink:href=\"#x\" xml:lang=\"fr\"><m:mtext>a &lt; b &amp; c</m:mtext></m:math>"
+                + "<span class=\"x\">\u03b1</span><other xmlns=\"urn:other\"><child>x</child></other></body></html>",
+                XMLUtilities.serializeNode(document, options));
+
+        options.setSerializationMethod(SerializationMethod.STRICTLY_HTML);
+        assertSameAsXSLT(new StylesheetManager(), document, options);
+        Assert.assertEquals("<html xmlns:o=\"urn:other\" o:thing=\"value\"><body><!-- Comment --><?import namespace=\"m\">"
+                + "<math xmlns:xlink=\"http://www.w3.org/1999/xlink\" xlink:href=\"#x\"><mtext>a &lt; b &amp; c</mtext></math>"
+                + "<span class=\"x\">\u03b1</span><other><child>x</child></other></body></html>",
+                XMLUtilities.serializeNode(document, options));
+    }
+
+    @Test
+    public void testChildrenOnly() throws Exception {
+        SnuggleEngine engine = new SnuggleEngine();
+        SnuggleSession session = engine.createSession();
+        session.parseInput(new SnuggleInput("Hello $x^2$ \\textbf{bold}"));
+        XMLStringOutputOptions options = new XMLStringOutputOptions();
+        options.setSerializationMethod(SerializationMethod.STRICTLY_HTML);
+        Assert.assertEquals("Hello <math><msup><mi>x</mi><mn>2</mn></msup></math> <b>bold</b>",
+                session.buildXMLString(options));
+        options.setSerializationMethod(SerializationMethod.HTML);
+        options.setPrefixingMathML(true);
+        Assert.assertEquals("Hello <m:math xmlns:m=\"" + W3CConstants.MATHML_NAMESPACE + "\">"
+                + "<m:msup><m:mi>x</m:mi><m:mn>2</m:mn></m:msup></m:math> <b>bold</b>",
+                session.buildXMLString(options));
+    }
+
+    //-------------------------------------------------------------------
+
+    private static List<WebPageOutputOptions> createWebPageOptions() {
+        List<WebPageOutputOptions> result = new ArrayList<WebPageOutputOptions>();
+        result.add(WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MATHPLAYER_HTML));
+        result.add(WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.PROCESSED_HTML));
+        result.add(WebPageOutputOptionsBuilder.createHTML4Options());
+        result.add(WebPageOutputOptionsBuilder.createHTML5Options());
+        result.add(WebPageOutputOptionsBuilder.createHTML5MathJaxOptions());
+        result.add(WebPageOutputOptionsBuilder.createIEMathPlayerSpecificOptions());
+        WebPageOutputOptions options = WebPageOutputOptionsBuilder.createHTML5Options();
+        options.setLang("en");
+        options.setIndenting(true);
+        options.setErrorOutputOptions(ErrorOutputOptions.XHTML);
+        options.setAddingMathSourceAnnotations(true);
+        result.add(options);
+        options = WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MATHPLAYER_HTML);
+        options.setErrorOutputOptions(ErrorOutputOptions.XML_FULL);
+        options.setInliningCSS(true);
+        result.add(options);
+        return result;
+    }
+
+    private static void assertSameAsXSLT(StylesheetManager stylesheetManager, Document document,
+            SerializationSpecifier options) throws Exception {
+        Transformer serializer = stylesheetManager.getSerializer(null, options);
+        StringWriter result = new StringWriter();
+        serializer.transform(new DOMSource(document), new StreamResult(result));
+
+        String stylesheetUri = options.getSerializationMethod()==SerializationMethod.HTML
+            ? Globals.STRIP_XHTML_NAMESPACE_XSL_RESOURCE_NAME : Globals.STRIP_ALL_NAMESPACES_XSL_RESOURCE_NAME;
+        Transformer xsltSerializer = stylesheetManager.getCompiledStylesheet(stylesheetUri).newTransformer();
+        xsltSerializer.setOutputProperties(serializer.getOutputProperties());
+        if (options.isIndenting()) {
+            XMLUtilities.setIndentation(xsltSerializer, options.getIndent());
+        }
+        StringWriter expected = new StringWriter();
+        xsltSerializer.transform(new DOMSource(document), new StreamResult(expected));
+
+        if (options.isIndenting()) {
+            /* (Processors differ in whether they honour the indent amount for compiled stylesheets) */
+            Assert.assertEquals(unindent(expected.toString()), unindent(result.toString()));
+        }
+        else {
+            Assert.assertEquals(expected.toString(), result.toString());
+        }
+    }
+
+    private static String unindent(String xml) {
+        return xml.replaceAll("(?m)^ +", "");
+    }
+}
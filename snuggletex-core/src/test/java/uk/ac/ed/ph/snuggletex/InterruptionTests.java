@@ -0,0 +1,45 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Checks that parsing gives up when the calling thread is interrupted.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class InterruptionTests {
+
+    private static final String INPUT = "\\newcommand{\\x}{y} $\\x+1$";
+
+    @Test
+    public void testUninterrupted() throws Exception {
+        SnuggleSession session = new SnuggleEngine().createSession();
+        Assert.assertTrue(session.parseInput(new SnuggleInput(INPUT)));
+        Assert.assertTrue(session.getErrors().isEmpty());
+    }
+
+    @Test
+    public void testInterrupted() throws Exception {
+        SnuggleSession session = new SnuggleEngine().createSession();
+        Thread.currentThread().interrupt();
+        try {
+            session.parseInput(new SnuggleInput(INPUT));
+            Assert.fail("Expected parsing to be interrupted");
+        }
+        catch (SnuggleRuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof InterruptedException);
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        }
+        finally {
+            Thread.interrupted();
+        }
+    }
+}
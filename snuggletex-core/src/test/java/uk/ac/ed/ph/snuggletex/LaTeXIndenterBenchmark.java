@@ -0,0 +1,101 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.utilities.LaTeXIndenter;
+
+import java.io.StringReader;
+import java.io.Writer;
+
+/**
+ * Measures the throughput of {@link LaTeXIndenter} on large generated inputs. This is not run
+ * as part of the tests; run it by hand, giving the input size in megabytes and the number
+ * of timed runs as optional arguments (default: 1, 4 and 16MB; 5 runs).
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class LaTeXIndenterBenchmark {
+
+    private static final String BLOCK = "\\section{Introduction}\n"
+        + "Some text with $x^2 + \\alpha$ and \\textbf{bold} in it.   % A comment with \\begin{x}\n"
+        + "   \\begin{itemize}\n"
+        + "\\item First \\verb|\\end{itemize}| item\n"
+        + "  \\item Second \\\\% item\n"
+        + "      \\begin{enumerate}\n"
+        + "\t\\item $$\\frac{1}{2}$$\n"
+        + "\\end{enumerate}\n"
+        + "\\end{itemize}\n"
+        + "\n\n\n"
+        + "\\begin{verbatim}\n"
+        + "    Verbatim content \\begin{x} %\n"
+        + "\\end{verbatim}\n"
+        + "\\begin{tabular}{cc} a & b \\\\ c & d \\end{tabular}   \n\n";
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length>0 ? new int[] { Integer.parseInt(args[0]) } : new int[] { 1, 4, 16 };
+        int runs = args.length>1 ? Integer.parseInt(args[1]) : 5;
+        for (int size : sizes) {
+            String input = createInput(size * 1024 * 1024);
+            CountingWriter writer = new CountingWriter();
+            LaTeXIndenter indenter = new LaTeXIndenter(writer);
+
+            /* Warm up */
+            for (int i=0; i<3; i++) {
+                indenter.run(new StringReader(input));
+            }
+
+            /* Timed runs */
+            long bestTime = Long.MAX_VALUE;
+            long totalTime = 0;
+            for (int i=0; i<runs; i++) {
+                writer.count = 0;
+                long startTime = System.nanoTime();
+                indenter.run(new StringReader(input));
+                long time = System.nanoTime() - startTime;
+                bestTime = Math.min(bestTime, time);
+                totalTime += time;
+            }
+            System.out.println(String.format("%dMB input (%d chars -> %d chars): best %.1fMB/s, mean %.1fMB/s",
+                    Integer.valueOf(size), Integer.valueOf(input.length()), Long.valueOf(writer.count),
+                    Double.valueOf(megabytesPerSecond(input.length(), bestTime)),
+                    Double.valueOf(megabytesPerSecond(input.length(), totalTime / runs))));
+        }
+    }
+
+    private static String createInput(int length) {
+        StringBuilder result = new StringBuilder(length + BLOCK.length());
+        while (result.length() < length) {
+            result.append(BLOCK);
+        }
+        return result.toString();
+    }
+
+    private static double megabytesPerSecond(int chars, long nanos) {
+        return (chars / (1024.0 * 1024.0)) / (nanos / 1.0E9);
+    }
+
+    /** Writer that simply counts what is written to it */
+    private static final class CountingWriter extends Writer {
+
+        long count;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void flush() {
+            /* Nothing to do */
+        }
+
+        @Override
+        public void close() {
+            /* Nothing to do */
+        }
+    }
+}
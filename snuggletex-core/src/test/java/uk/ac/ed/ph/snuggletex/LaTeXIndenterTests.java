@@ -0,0 +1,180 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.utilities.LaTeXIndenter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link LaTeXIndenter}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class LaTeXIndenterTests {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    @Test
+    public void testEnvironments() throws Exception {
+        assertIndented("\\begin{itemize}\n  \\item A\n  \\begin{enumerate}\n    \\item B\n  \\end{enumerate}\n\\end{itemize}\n",
+                "\\begin{itemize}\n\\item A\n     \\begin{enumerate}\n\t\\item B   \n\\end{enumerate}\n   \\end{itemize}");
+        assertIndented("\\begin{x}\n  \\endgroup\n\\end{x}\nA\n",
+                "\\begin{x}\n\\endgroup\n\\end{x}\nA\n");
+        assertIndented("\\begin{x} \\begin{y}\n    A\n  \\end{y} \\end{x}\nB\n",
+                "\\begin{x} \\begin{y}\nA\n\\end{y} \\end{x}\nB\n");
+    }
+
+    @Test
+    public void testSplitEnvironments() throws Exception {
+        assertIndented("\\begin\n{itemize}\n  \\item A\n\\end %c\n  {itemize}\nB\n",
+                "\\begin\n  {itemize}\n\\item A\n\\end %c\n{itemize}\nB");
+    }
+
+    @Test
+    public void testMaxIndentLevel() throws Exception {
+        StringWriter result = new StringWriter();
+        LaTeXIndenter indenter = new LaTeXIndenter(result);
+        indenter.setIndentWidth(1);
+        indenter.setMaxIndentLevel(1);
+        indenter.run(new StringReader("\\begin{x}\\begin{y}\nA\n\\end{y}\n\\end{x}\n"));
+        Assert.assertEquals("\\begin{x}\\begin{y}\n A\n \\end{y}\n\\end{x}\n", normalise(result));
+    }
+
+    @Test
+    public void testComments() throws Exception {
+        assertIndented("% \\begin{itemize}\nA \\% \\begin{quote} % \\end{quote}\n  B\n\\end{quote}\nC\n",
+                "% \\begin{itemize}\nA \\% \\begin{quote} % \\end{quote}\nB\n\\end{quote}\nC\n");
+        assertIndented("A\\\\%\\begin{x}\nB\n", "A\\\\%\\begin{x}\nB\n");
+    }
+
+    @Test
+    public void testVerb() throws Exception {
+        assertIndented("\\verb|\\begin{x}| A\n\\verb*+%+ \\begin{y}\n  B\n",
+                "\\verb|\\begin{x}| A  \n\\verb*+%+ \\begin{y}\nB\n");
+
+        /* (\verb content may run on over lines, which are then left alone) */
+        assertIndented("\\begin{x}\n  \\verb|a  \n   b|  \n  c\n",
+                "\\begin{x}\n\\verb|a  \n   b|  \n c\n");
+    }
+
+    @Test
+    public void testVerbatim() throws Exception {
+        assertIndented("\\begin{quote}\n  \\begin{verbatim}  \n    % \\begin{x}  \n\n\n\\end {verbatim}  \n  A\n\\end{quote}\n",
+                "\\begin{quote}\n\\begin{verbatim}  \n    % \\begin{x}  \n\n\n\\end {verbatim}  \nA\n\\end{quote}\n");
+        assertIndented("\\begin{verbatim}\\end{verbatim} \\begin{x}\n  A\n",
+                "\\begin{verbatim}\\end{verbatim} \\begin{x}\nA\n");
+    }
+
+    @Test
+    public void testBlankLines() throws Exception {
+        assertIndented("\nA\n\nB\n", "\n\nA\n\n\n   \nB\n\n");
+
+        StringWriter result = new StringWriter();
+        LaTeXIndenter indenter = new LaTeXIndenter(result);
+        indenter.setCompactingBlankLines(false);
+        indenter.run(new StringReader("A\n\n\n   \nB\n\n"));
+        Assert.assertEquals("A\n\n\n\nB\n", normalise(result));
+    }
+
+    @Test
+    public void testLineTerminators() throws Exception {
+        assertIndented("A\n\\begin{x}\n  B\n\n\\end{x}\n", "A\r\n\\begin{x}\rB\r\n\r\r\\end{x}");
+    }
+
+    /**
+     * Checks that indenting does not change how the input is tokenised, and that indenting
+     * again makes no difference.
+     */
+    @Test
+    public void testCanonical() throws Exception {
+        String input = "\\section{A}  \n  Some text % \\begin{itemize}\n"
+            + "\\begin{itemize}   \n    \\item $x^2$ \\verb|  \\end{itemize}  |\n\n\n"
+            + "  \\item \\begin{verbatim}  A\n    \\begin{quote}\n\\end{verbatim}  more\n"
+            + "\\end{itemize}\n   \\\\% comment\n  end\\%\n";
+        String indented = indent(input);
+        Assert.assertEquals(indented, indent(indented));
+        Assert.assertEquals(buildXMLString(input), buildXMLString(indented));
+    }
+
+    /**
+     * Indents a large input read in small pieces.
+     */
+    @Test
+    public void testLargeInput() throws Exception {
+        String block = "\\begin{itemize}\n\\item A % \\end{itemize}\n\\begin{verbatim}\n  x\n\\end{verbatim}\n\\end{itemize}\n\n\n";
+        String indentedBlock = "\\begin{itemize}\n  \\item A % \\end{itemize}\n  \\begin{verbatim}\n  x\n\\end{verbatim}\n\\end{itemize}\n\n";
+        int repeats = 1024 * 1024 / block.length();
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i=0; i<repeats; i++) {
+            input.append(block);
+            expected.append(indentedBlock);
+        }
+        expected.setLength(expected.length() - 1); /* (Trailing blank line is dropped) */
+
+        StringWriter result = new StringWriter();
+        new LaTeXIndenter(result).run(new TrickleReader(input.toString()));
+        Assert.assertEquals(expected.toString(), normalise(result));
+    }
+
+    //-------------------------------------------------------------------
+
+    private static void assertIndented(String expected, String input) throws IOException {
+        Assert.assertEquals(expected, indent(input));
+    }
+
+    private static String indent(String input) throws IOException {
+        StringWriter result = new StringWriter();
+        new LaTeXIndenter(result).run(new StringReader(input));
+        return normalise(result);
+    }
+
+    private static String normalise(StringWriter result) {
+        return result.toString().replace(LINE_SEPARATOR, "\n");
+    }
+
+    private static String buildXMLString(String input) throws IOException {
+        SnuggleSession session = new SnuggleEngine().createSession();
+        session.parseInput(new SnuggleInput(input));
+        return session.buildXMLString();
+    }
+
+    /** Reader that returns at most a few characters at a time */
+    private static class TrickleReader extends Reader {
+
+        private final String input;
+        private int position;
+
+        public TrickleReader(String input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position==input.length()) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, 7), input.length() - position);
+            input.getChars(position, position + count, buffer, offset);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            /* Nothing to do */
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.ParsePosition;
+import java.util.Locale;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link LocaleNumberMatcher} class, mainly by checking it against
+ * {@link DecimalFormatNumberMatcher} on a large corpus of inputs.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class LocaleNumberMatcherTests {
+
+    /** Locales to try, chosen to cover different decimal separators, minus signs and digits */
+    private static final Locale[] LOCALES = new Locale[] {
+        Locale.UK,
+        Locale.FRANCE,
+        Locale.GERMANY,
+        new Locale("de", "CH"),
+        new Locale("sv", "SE"),
+        new Locale("ar", "EG"),
+        new Locale("fa", "IR"),
+        new Locale("hi", "IN"),
+    };
+
+    /** Fixed inputs, which are tried at every starting index */
+    private static final String[] FIXED_INPUTS = new String[] {
+        "", "x", "1", "10", "1x", "-1", "-0", "-0.0", "-00x", "-0.01", "1.", "1.1", ".23", ".", "..",
+        "1..2", "123", "1,2", "1,2,3", "1.2.3", "1 2", "1E5", "1E", "1Ex", "1E-5", "1E-", "1e5",
+        "12E5", "123E5", "1234E56", "10E-5", "1.5E3", ".E5", "E5", "1E5E5", "1E99999999999999999999",
+        "1E9223372036854775807", "1E9223372036854775808", "1E-9223372036854775808",
+        "1E-9223372036854775809", "12345678901234567890123456789012345678901234567890",
+        "\u0661\u0662\u066b\u0663", "\u06f1\u06f2\u066b\u06f3", "\u0967\u0968", "\uff11\uff12",
+        "\u22121", "\u22120", "1\u00d710^5", "$1$", "x=1.5+2,3",
+    };
+
+    /** Characters used to generate random inputs */
+    private static final String RANDOM_ALPHABET = "0123456789000111..,,,EEEe--\u2212x \u00a0"
+        + "\u0660\u0661\u0669\u066b\u066c\u06f0\u06f5\u0966\u0969\uff10\uff19";
+
+    private static final int RANDOM_INPUT_COUNT = 20000;
+    private static final int RANDOM_INPUT_MAX_LENGTH = 12;
+
+    @Test
+    public void testUKExamples() {
+        LocaleNumberMatcher matcher = new LocaleNumberMatcher(Locale.UK);
+        assertNumberEnd(matcher, "x", 0, -1);
+        assertNumberEnd(matcher, "1", 0, 1);
+        assertNumberEnd(matcher, "1x", 0, 1);
+        assertNumberEnd(matcher, "-1", 0, -1);
+        assertNumberEnd(matcher, "1.", 0, 2);
+        assertNumberEnd(matcher, ".23", 0, 3);
+        assertNumberEnd(matcher, "1,2", 0, 1);
+        assertNumberEnd(matcher, "a12b", 1, 3);
+        assertNumberEnd(matcher, "123E5", 0, 5);
+        assertNumberEnd(matcher, "NaN", 0, -1);
+        assertNumberEnd(matcher, "\u221e", 0, -1);
+    }
+
+    @Test
+    public void testFixedInputs() {
+        for (Locale locale : LOCALES) {
+            LocaleNumberMatcher matcher = new LocaleNumberMatcher(locale);
+            DecimalFormatNumberMatcher referenceMatcher = new DecimalFormatNumberMatcher(locale);
+            for (String input : FIXED_INPUTS) {
+                for (int startIndex=0; startIndex<=input.length(); startIndex++) {
+                    checkAgainstReference(matcher, referenceMatcher, locale, input, startIndex);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRandomInputs() {
+        Random random = new Random(20111004L);
+        for (Locale locale : LOCALES) {
+            LocaleNumberMatcher matcher = new LocaleNumberMatcher(locale);
+            DecimalFormatNumberMatcher referenceMatcher = new DecimalFormatNumberMatcher(locale);
+            DecimalFormatSymbols symbols = new DecimalFormatSymbols(locale);
+            DecimalFormat decimalFormat = new DecimalFormat();
+            decimalFormat.setDecimalFormatSymbols(symbols);
+            String alphabet = RANDOM_ALPHABET + symbols.getZeroDigit() + symbols.getDecimalSeparator()
+                + symbols.getMinusSign() + symbols.getExponentSeparator()
+                + decimalFormat.getNegativePrefix();
+            StringBuilder inputBuilder = new StringBuilder();
+            for (int i=0; i<RANDOM_INPUT_COUNT; i++) {
+                inputBuilder.setLength(0);
+                int length = random.nextInt(RANDOM_INPUT_MAX_LENGTH + 1);
+                for (int j=0; j<length; j++) {
+                    inputBuilder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                String input = inputBuilder.toString();
+                checkAgainstReference(matcher, referenceMatcher, locale, input, random.nextInt(length + 1));
+            }
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    private static void assertNumberEnd(LocaleNumberMatcher matcher, String input, int startIndex,
+            int expectedEndIndex) {
+        Assert.assertEquals("Input " + input, expectedEndIndex,
+                matcher.getNumberEnd(new StringInputContext(input), startIndex));
+    }
+
+    /**
+     * Checks the result of the {@link LocaleNumberMatcher} against {@link DecimalFormatNumberMatcher},
+     * allowing for the documented differences.
+     */
+    private static void checkAgainstReference(LocaleNumberMatcher matcher,
+            DecimalFormatNumberMatcher referenceMatcher, Locale locale, String input, int startIndex) {
+        InputContext inputContext = new StringInputContext(input);
+        int result = matcher.getNumberEnd(inputContext, startIndex);
+        int expected;
+        try {
+            expected = referenceMatcher.getNumberEnd(inputContext, startIndex);
+        }
+        catch (ClassCastException e) {
+            /* DecimalFormat gave NaN or infinity, which we don't match */
+            expected = -1;
+        }
+        String message = "Locale " + locale + ", input \"" + input + "\", start " + startIndex;
+        if (result!=expected) {
+            /* Only allowed difference is where reference matcher didn't see the whole exponent,
+             * in which case we should match what DecimalFormat finds with the whole input */
+            String exponentSeparator = new DecimalFormatSymbols(locale).getExponentSeparator();
+            Assert.assertTrue(message + ": got " + result + ", expected " + expected,
+                    expected!=-1 && input.startsWith(exponentSeparator, expected));
+            Assert.assertEquals(message, parseWholeInput(locale, input, startIndex), result);
+        }
+    }
+
+    /**
+     * Uses a {@link DecimalFormat}, set up in the same way as {@link DecimalFormatNumberMatcher},
+     * to find the end of the number starting at the given index, looking at the whole input.
+     */
+    private static int parseWholeInput(Locale locale, String input, int startIndex) {
+        DecimalFormat decimalFormat = new DecimalFormat();
+        decimalFormat.setDecimalFormatSymbols(new DecimalFormatSymbols(locale));
+        decimalFormat.setGroupingUsed(false);
+        decimalFormat.setParseBigDecimal(true);
+        ParsePosition parsePosition = new ParsePosition(0);
+        Object parsed = decimalFormat.parse(input.substring(startIndex), parsePosition);
+        if (!(parsed instanceof BigDecimal) || ((BigDecimal) parsed).signum() < 0) {
+            return -1;
+        }
+        return startIndex + parsePosition.getIndex();
+    }
+
+    /**
+     * Trivial {@link InputContext} wrapping a String.
+     */
+    private static final class StringInputContext implements InputContext {
+
+        private final String input;
+
+        public StringInputContext(String input) {
+            this.input = input;
+        }
+
+        public SnuggleInput getInput() {
+            return new SnuggleInput(input);
+        }
+
+        public int length() {
+            return input.length();
+        }
+
+        public int charAt(int index) {
+            return index>=0 && index<input.length() ? input.charAt(index) : -1;
+        }
+
+        public boolean matchesAt(int index, char c) {
+            return charAt(index)==c;
+        }
+
+        public boolean matchesAt(int index, String s) {
+            return index>=0 && input.startsWith(s, index);
+        }
+
+        public int indexOf(int startSearchIndex, char c) {
+            return input.indexOf(c, startSearchIndex);
+        }
+
+        public int indexOf(int startSearchIndex, String s) {
+            return input.indexOf(s, startSearchIndex);
+        }
+
+        public boolean isRegionWhitespace(int startIndex, int endIndex) {
+            return input.substring(startIndex, endIndex).trim().length()==0;
+        }
+
+        public CharSequence extract() {
+            return input;
+        }
+
+        public CharSequence extract(int startIndex, int endIndex) {
+            return input.substring(startIndex, endIndex);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.testutil.TestFileHelper;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLDownConverter;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
+
+import java.util.Collection;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Differential test checking that the native Java down-conversion performed by
+ * {@link MathMLDownConverter#downConvertDOM(Document)} gives exactly the same results as the
+ * reference XSLT implementation, using the inputs in <tt>{@link #TEST_RESOURCE_NAME}</tt>.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+@RunWith(Parameterized.class)
+public class MathMLDownConverterTests {
+
+    public static final String TEST_RESOURCE_NAME = "math-tests.txt";
+
+    @Parameters
+    public static Collection<String[]> data() throws Exception {
+        return TestFileHelper.readAndParseSingleLineInputTestResource(TEST_RESOURCE_NAME);
+    }
+
+    private final String inputLaTeXMaths;
+
+    public MathMLDownConverterTests(final String inputLaTeXMaths, final String unused) {
+        this.inputLaTeXMaths = inputLaTeXMaths;
+    }
+
+    @Test
+    public void runTest() throws Throwable {
+        SnuggleEngine engine = new SnuggleEngine();
+        SnuggleSession session = engine.createSession();
+        session.parseInput(new SnuggleInput("$" + inputLaTeXMaths + "$ and \\[" + inputLaTeXMaths + "\\]"));
+
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element rootElement = document.createElementNS(W3CConstants.XHTML_NAMESPACE, "body");
+        document.appendChild(rootElement);
+        session.buildDOMSubtree(rootElement);
+
+        StylesheetManager stylesheetManager = engine.getStylesheetManager();
+        DOMOutputOptions options = new DOMOutputOptions();
+        assertSameResults(new MathMLDownConverter(stylesheetManager, options), document);
+
+        options.setInliningCSS(true);
+        assertSameResults(new MathMLDownConverter(stylesheetManager, options), document);
+    }
+
+    private void assertSameResults(final MathMLDownConverter downConverter, final Document document) {
+        String expected = MathMLUtilities.serializeDocument(downConverter.downConvertDOMUsingXSLT(document), "UTF-8", false);
+        String actual = MathMLUtilities.serializeDocument(downConverter.downConvertDOM(document), "UTF-8", false);
+        Assert.assertEquals(expected, actual);
+    }
+}
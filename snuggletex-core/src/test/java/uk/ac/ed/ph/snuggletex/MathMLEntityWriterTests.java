@@ -0,0 +1,246 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLEntityWriter;
+import uk.ac.ed.ph.snuggletex.utilities.SerializationOptions;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests the {@link MathMLEntityWriter} class, and its use when serializing with named
+ * entities turned on.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class MathMLEntityWriterTests {
+
+    @Test
+    public void testEntityTable() {
+        Assert.assertEquals("&alpha;", MathMLEntityWriter.getEntity('\u03b1'));
+        Assert.assertEquals("&times;", MathMLEntityWriter.getEntity('\u00d7'));
+        Assert.assertEquals("&amalg;", MathMLEntityWriter.getEntity('\u2a3f'));
+        Assert.assertNull(MathMLEntityWriter.getEntity('a'));
+        Assert.assertNull(MathMLEntityWriter.getEntity('&'));
+        Assert.assertNull(MathMLEntityWriter.getEntity(-1));
+        Assert.assertNull(MathMLEntityWriter.getEntity(0x1d504));
+    }
+
+    @Test
+    public void testCharacters() throws IOException {
+        assertMapped("", "");
+        assertMapped("x", "x");
+        assertMapped("&alpha;", "\u03b1");
+        assertMapped("<mi>&alpha;</mi><mo>&times;</mo><mi>y</mi>", "<mi>\u03b1</mi><mo>\u00d7</mo><mi>y</mi>");
+        assertMapped("\u00e9\u2014", "\u00e9\u2014");
+    }
+
+    @Test
+    public void testReferences() throws IOException {
+        assertMapped("&alpha;", "&#x3b1;");
+        assertMapped("&alpha;", "&#X3B1;");
+        assertMapped("&alpha;", "&#945;");
+        assertMapped("a&alpha;&beta;b", "a&#945;&#x3b2;b");
+        assertMapped("&#x41;", "&#x41;");
+        assertMapped("&#65;", "&#65;");
+        assertMapped("&#x1d504;", "&#x1d504;");
+        assertMapped("&#x00000003b1;", "&#x00000003b1;");
+        assertMapped("&amp;&lt;&gt;&quot;", "&amp;&lt;&gt;&quot;");
+        assertMapped("&#;&#x;&#&&#x&alpha;", "&#;&#x;&#&&#x&#945;");
+        assertMapped("a & b", "a & b");
+        assertMapped("&#xg;&#12a;", "&#xg;&#12a;");
+        assertMapped("&", "&");
+        assertMapped("&#x3b1", "&#x3b1");
+    }
+
+    @Test
+    public void testMarkup() throws IOException {
+        assertMapped("<!-- \u03b1 &#945; --><mi>&alpha;</mi>", "<!-- \u03b1 &#945; --><mi>\u03b1</mi>");
+        assertMapped("<?pi \u03b1 &#945; ?>&alpha;", "<?pi \u03b1 &#945; ?>\u03b1");
+        assertMapped("<![CDATA[\u03b1 &#945; ]]]>&alpha;", "<![CDATA[\u03b1 &#945; ]]]>\u03b1");
+        assertMapped("<!--->\u03b1--->&alpha;", "<!--->\u03b1--->\u03b1");
+        assertMapped("<?\u03b1>\u03b1?>&alpha;", "<?\u03b1>\u03b1?>\u03b1");
+        assertMapped("<![CDATA[]]]]>&alpha;", "<![CDATA[]]]]>\u03b1");
+        assertMapped("<![CDATA[]>\u03b1]]>&alpha;", "<![CDATA[]>\u03b1]]>\u03b1");
+        assertMapped("<!DOCTYPE x>&alpha;<![CDAT&alpha;<!-&alpha;", "<!DOCTYPE x>\u03b1<![CDAT\u03b1<!-\u03b1");
+        assertMapped("<mi a=\"&alpha;\">&alpha;&lt;!--&alpha;</mi>", "<mi a=\"\u03b1\">&#945;&lt;!--\u03b1</mi>");
+        assertMapped("&#<!--&#945;-->&alpha;", "&#<!--&#945;-->&#945;");
+
+        /* Check that splitting the input doesn't matter */
+        String input = "\u03b1<!--\u03b1-->&#945;<?x \u03b1?><![CDATA[&#945;]]>\u03b1";
+        String expected = "&alpha;<!--\u03b1-->&alpha;<?x \u03b1?><![CDATA[&#945;]]>&alpha;";
+        for (int split=0; split<=input.length(); split++) {
+            StringWriter result = new StringWriter();
+            MathMLEntityWriter writer = new MathMLEntityWriter(result);
+            writer.write(input, 0, split);
+            writer.write(input.toCharArray(), split, input.length() - split);
+            writer.flush();
+            Assert.assertEquals("Split at " + split, expected, result.toString());
+        }
+        StringWriter result = new StringWriter();
+        MathMLEntityWriter writer = new MathMLEntityWriter(result);
+        for (int i=0; i<input.length(); i++) {
+            writer.write(input.charAt(i));
+        }
+        writer.close();
+        Assert.assertEquals(expected, result.toString());
+    }
+
+    @Test
+    public void testHTMLRawText() throws IOException {
+        assertMappedHTML("<script>\u03b1 &#945;</script>&alpha;", "<script>\u03b1 &#945;</script>\u03b1");
+        assertMappedHTML("<STYLE type=\"a>\u03b1\">\u03b1</Style >&alpha;", "<STYLE type=\"a>\u03b1\">\u03b1</Style >\u03b1");
+        assertMappedHTML("<script>\u03b1</scriptx>\u03b1</style>\u03b1<</script>&alpha;", "<script>\u03b1</scriptx>\u03b1</style>\u03b1<</script>\u03b1");
+        assertMappedHTML("<scripts>&alpha;</scripts><s>&alpha;</s><p:style>&alpha;", "<scripts>\u03b1</scripts><s>\u03b1</s><p:style>\u03b1");
+        assertMappedHTML("<mi>&alpha;</mi><!--<script>-->&alpha;", "<mi>\u03b1</mi><!--<script>-->\u03b1");
+
+        /* Only HTML has raw text elements */
+        assertMapped("<script>&alpha;</script>", "<script>\u03b1</script>");
+
+        /* Check that splitting the input doesn't matter */
+        String input = "\u03b1<script src='\u03b1>'>\u03b1 &#945; </</SCRIPT\n>\u03b1";
+        String expected = "&alpha;<script src='\u03b1>'>\u03b1 &#945; </</SCRIPT\n>&alpha;";
+        for (int split=0; split<=input.length(); split++) {
+            StringWriter result = new StringWriter();
+            MathMLEntityWriter writer = new MathMLEntityWriter(result, true);
+            writer.write(input, 0, split);
+            writer.write(input.toCharArray(), split, input.length() - split);
+            writer.flush();
+            Assert.assertEquals("Split at " + split, expected, result.toString());
+        }
+        StringWriter result = new StringWriter();
+        MathMLEntityWriter writer = new MathMLEntityWriter(result, true);
+        for (int i=0; i<input.length(); i++) {
+            writer.write(input.charAt(i));
+        }
+        writer.close();
+        Assert.assertEquals(expected, result.toString());
+    }
+
+    @Test
+    public void testSerializeHTMLRawText() {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element div = document.createElement("div");
+        Element script = document.createElement("script");
+        script.appendChild(document.createTextNode("var x='\u03b1';"));
+        div.appendChild(script);
+        Element style = document.createElement("style");
+        style.appendChild(document.createTextNode("p:after{content:'\u03b1'}"));
+        div.appendChild(style);
+        div.appendChild(document.createTextNode("\u03b1"));
+        document.appendChild(div);
+
+        SerializationOptions options = new SerializationOptions();
+        options.setSerializationMethod(SerializationMethod.HTML);
+        options.setUsingNamedEntities(true);
+        Assert.assertEquals("<div><script>var x='\u03b1';</script><style>p:after{content:'\u03b1'}</style>&alpha;</div>",
+                XMLUtilities.serializeNode(document, options).trim());
+    }
+
+    @Test
+    public void testSerializeComment() {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element mi = document.createElement("mi");
+        mi.appendChild(document.createComment(" \u03b1 "));
+        mi.appendChild(document.createProcessingInstruction("x", "\u03b1"));
+        mi.appendChild(document.createTextNode("\u03b1"));
+        document.appendChild(mi);
+
+        SerializationOptions options = new SerializationOptions();
+        options.setUsingNamedEntities(true);
+        Assert.assertEquals("<mi><!-- \u03b1 --><?x \u03b1?>&alpha;</mi>", XMLUtilities.serializeNode(document, options));
+    }
+
+    @Test
+    public void testSplitWrites() throws IOException {
+        String input = "x=&#x3b1;\u03b2&amp;&#945;";
+        String expected = "x=&alpha;&beta;&amp;&alpha;";
+        for (int split=0; split<=input.length(); split++) {
+            StringWriter result = new StringWriter();
+            MathMLEntityWriter writer = new MathMLEntityWriter(result);
+            writer.write(input, 0, split);
+            writer.write(input.toCharArray(), split, input.length() - split);
+            writer.flush();
+            Assert.assertEquals("Split at " + split, expected, result.toString());
+        }
+        StringWriter result = new StringWriter();
+        MathMLEntityWriter writer = new MathMLEntityWriter(result);
+        for (int i=0; i<input.length(); i++) {
+            writer.write(input.charAt(i));
+        }
+        writer.close();
+        Assert.assertEquals(expected, result.toString());
+    }
+
+    @Test
+    public void testSerializeNode() {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element mi = document.createElement("mi");
+        mi.setAttribute("alttext", "\u03b1");
+        mi.appendChild(document.createTextNode("\u03b1 < \u00d7 & x"));
+        document.appendChild(mi);
+
+        SerializationOptions options = new SerializationOptions();
+        options.setUsingNamedEntities(true);
+        String expected = "<mi alttext=\"&alpha;\">&alpha; &lt; &times; &amp; x</mi>";
+        Assert.assertEquals(expected, XMLUtilities.serializeNode(document, options));
+
+        /* Characters outside the encoding come out as numeric references, which we map too */
+        options.setEncoding("US-ASCII");
+        Assert.assertEquals(expected, XMLUtilities.serializeNode(document, options));
+    }
+
+    @Test
+    public void testSerializeToStream() throws Exception {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element mi = document.createElementNS(W3CConstants.MATHML_NAMESPACE, "mi");
+        mi.appendChild(document.createTextNode("\u03b1\u00e9"));
+        document.appendChild(mi);
+
+        SerializationOptions options = new SerializationOptions();
+        options.setUsingNamedEntities(true);
+        options.setEncoding("ISO-8859-1");
+        Transformer serializer = new StylesheetManager().getSerializer(null, options);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        serializer.transform(new DOMSource(document), new StreamResult(outputStream));
+        Assert.assertEquals("<mi xmlns=\"" + W3CConstants.MATHML_NAMESPACE + "\">&alpha;\u00e9</mi>",
+                new String(outputStream.toByteArray(), "ISO-8859-1"));
+    }
+
+    //-------------------------------------------------------------------
+
+    private static void assertMapped(String expected, String input) throws IOException {
+        StringWriter result = new StringWriter();
+        MathMLEntityWriter writer = new MathMLEntityWriter(result);
+        writer.write(input);
+        writer.flush();
+        Assert.assertEquals(expected, result.toString());
+    }
+
+    private static void assertMappedHTML(String expected, String input) throws IOException {
+        StringWriter result = new StringWriter();
+        MathMLEntityWriter writer = new MathMLEntityWriter(result, true);
+        writer.write(input);
+        writer.flush();
+        Assert.assertEquals(expected, result.toString());
+    }
+}
@@ -0,0 +1,102 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.SerializationOptions;
+import uk.ac.ed.ph.snuggletex.utilities.UnwrappedParallelMathMLDOM;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests the annotation handling methods in {@link MathMLUtilities}, along with
+ * {@link UnwrappedParallelMathMLDOM}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class MathMLUtilitiesTests {
+
+    private static final String PARALLEL_MATHML = "<math xmlns='" + W3CConstants.MATHML_NAMESPACE + "' display='block'>\n"
+        + "  <semantics>\n"
+        + "    <mi>x</mi>\n"
+        + "    <annotation encoding='Maxima'>x</annotation>\n"
+        + "    <annotation-xml encoding='MathML-Content'><ci>x</ci></annotation-xml>\n"
+        + "    <annotation encoding='Maxima'>ignored</annotation>\n"
+        + "    <annotation encoding='LaTeX'>x &amp; y</annotation>\n"
+        + "  </semantics>\n"
+        + "</math>";
+
+    @Test
+    public void testUnwrap() throws Exception {
+        Document document = MathMLUtilities.parseMathMLDocumentString(PARALLEL_MATHML);
+        Element mathElement = document.getDocumentElement();
+        UnwrappedParallelMathMLDOM unwrapped = MathMLUtilities.unwrapParallelMathMLDOM(mathElement);
+
+        Assert.assertSame(mathElement, unwrapped.getMathElement());
+        Assert.assertTrue(MathMLUtilities.isMathMLElement(unwrapped.getSemanticsElement(), "semantics"));
+        Assert.assertSame(document, unwrapped.getFirstBranch().getOwnerDocument());
+        Assert.assertEquals("mi", unwrapped.getFirstBranch().getLocalName());
+
+        /* First annotation wins, as with the extract methods */
+        Assert.assertEquals("x", unwrapped.getTextAnnotation("Maxima"));
+        Assert.assertEquals("x", MathMLUtilities.extractAnnotationString(mathElement, "Maxima"));
+        Assert.assertNull(unwrapped.getTextAnnotation("Missing"));
+        Assert.assertEquals(2, unwrapped.getTextAnnotations().size());
+        Assert.assertEquals("x & y", unwrapped.getTextAnnotations().get("LaTeX"));
+
+        /* XML annotations are the original Nodes, not copies */
+        NodeList cmathml = unwrapped.getXmlAnnotation("MathML-Content");
+        Assert.assertEquals(1, cmathml.getLength());
+        Assert.assertSame(document, cmathml.item(0).getOwnerDocument());
+        Assert.assertSame(cmathml.item(0), MathMLUtilities.extractAnnotationXML(mathElement, "MathML-Content").item(0));
+        Assert.assertNull(unwrapped.getXmlAnnotation("Maxima"));
+    }
+
+    @Test
+    public void testIsolate() throws Exception {
+        Document document = MathMLUtilities.parseMathMLDocumentString(PARALLEL_MATHML);
+        Element mathElement = document.getDocumentElement();
+        UnwrappedParallelMathMLDOM unwrapped = MathMLUtilities.unwrapParallelMathMLDOM(mathElement);
+
+        String expectedFirstBranch = "<math xmlns=\"" + W3CConstants.MATHML_NAMESPACE + "\" display=\"block\"><mi>x</mi></math>";
+        Document isolated = unwrapped.isolateFirstBranch();
+        Assert.assertNotSame(document, isolated);
+        Assert.assertEquals(expectedFirstBranch, serialize(isolated));
+        Assert.assertEquals(expectedFirstBranch, serialize(MathMLUtilities.isolateFirstSemanticsBranch(mathElement)));
+
+        String expectedAnnotation = "<math xmlns=\"" + W3CConstants.MATHML_NAMESPACE + "\" display=\"block\"><ci>x</ci></math>";
+        Assert.assertEquals(expectedAnnotation, serialize(unwrapped.isolateAnnotationXML("MathML-Content")));
+        Assert.assertEquals(expectedAnnotation, serialize(MathMLUtilities.isolateAnnotationXML(mathElement, "MathML-Content")));
+        Assert.assertNull(unwrapped.isolateAnnotationXML("Missing"));
+
+        /* Original DOM should be left alone */
+        Assert.assertSame(mathElement, unwrapped.getSemanticsElement().getParentNode());
+    }
+
+    @Test
+    public void testNotParallel() throws Exception {
+        Document document = MathMLUtilities.parseMathMLDocumentString("<math xmlns='" + W3CConstants.MATHML_NAMESPACE + "'><mi>x</mi></math>");
+        Assert.assertNull(MathMLUtilities.unwrapParallelMathMLDOM(document.getDocumentElement()));
+        Assert.assertNull(MathMLUtilities.isolateFirstSemanticsBranch(document.getDocumentElement()));
+
+        document = MathMLUtilities.parseMathMLDocumentString("<math xmlns='" + W3CConstants.MATHML_NAMESPACE + "'><semantics> </semantics></math>");
+        Assert.assertNull(MathMLUtilities.unwrapParallelMathMLDOM(document.getDocumentElement()));
+    }
+
+    //-------------------------------------------------------------------
+
+    private static String serialize(Document document) {
+        return XMLUtilities.serializeNode(document, new SerializationOptions());
+    }
+}
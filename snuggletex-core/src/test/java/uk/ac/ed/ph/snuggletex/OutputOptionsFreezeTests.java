@@ -0,0 +1,121 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.WebPageOutputOptions.WebPageType;
+import uk.ac.ed.ph.snuggletex.definitions.Globals;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
+
+import java.io.StringReader;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * Tests the freezing of {@link DOMOutputOptions} and its subclasses, along with the
+ * {@link Templates} and URI stylesheets in {@link WebPageOutputOptions}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class OutputOptionsFreezeTests {
+
+    /** Trivial stylesheet that replaces the page with its "title" parameter */
+    private static final String TITLE_XSLT = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+        + "<xsl:param name='title'/>"
+        + "<xsl:template match='/'><title><xsl:value-of select='$title'/></title></xsl:template>"
+        + "</xsl:stylesheet>";
+
+    @Test
+    public void testFreeze() {
+        XMLStringOutputOptions options = new XMLStringOutputOptions();
+        options.setIndenting(true);
+        Assert.assertFalse(options.isFrozen());
+        options.freeze();
+        Assert.assertTrue(options.isFrozen());
+        Assert.assertTrue(options.isIndenting());
+        try {
+            options.setIndenting(false);
+            Assert.fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            /* Expected */
+        }
+        try {
+            options.addDOMPostProcessors(new DownConvertingPostProcessor());
+            Assert.fail("Expected IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void testClone() {
+        XMLStringOutputOptions options = new XMLStringOutputOptions();
+        options.freeze();
+        XMLStringOutputOptions copy = (XMLStringOutputOptions) options.clone();
+        Assert.assertFalse(copy.isFrozen());
+        copy.setIndenting(true);
+        copy.setEncoding("ISO-8859-1");
+        Assert.assertFalse(options.isIndenting());
+        Assert.assertFalse("ISO-8859-1".equals(options.getEncoding()));
+
+        WebPageOutputOptions webOptions = WebPageOutputOptionsBuilder.createHTML5Options();
+        webOptions.setStylesheetParameter("title", "A");
+        webOptions.freeze();
+        WebPageOutputOptions webCopy = (WebPageOutputOptions) webOptions.clone();
+        webCopy.setStylesheetParameter("title", "B");
+        Assert.assertEquals("A", webOptions.getStylesheetParameters().get("title"));
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testFreezeWithTransformers() throws Exception {
+        WebPageOutputOptions options = WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MOZILLA);
+        options.setStylesheets(new StylesheetManager().getCompiledStylesheet(Globals.STRIP_ALL_NAMESPACES_XSL_RESOURCE_NAME).newTransformer());
+        options.freeze();
+    }
+
+    @Test
+    public void testStylesheetTemplates() throws Exception {
+        StylesheetManager stylesheetManager = new StylesheetManager();
+        Templates templates = stylesheetManager.getTransformerFactory(false)
+            .newTemplates(new StreamSource(new StringReader(TITLE_XSLT)));
+        WebPageOutputOptions options = WebPageOutputOptionsBuilder.createHTML5Options();
+        options.setStylesheetTemplates(templates);
+        options.setStylesheetParameter("title", "Hello");
+        options.freeze();
+
+        SnuggleEngine engine = new SnuggleEngine(stylesheetManager);
+        for (int i=0; i<2; i++) {
+            SnuggleSession session = engine.createSession();
+            session.parseInput(new SnuggleInput("$x$"));
+            Document document = session.buildWebPage(options);
+            Assert.assertEquals("title", document.getDocumentElement().getLocalName());
+            Assert.assertEquals("Hello", document.getDocumentElement().getTextContent());
+        }
+    }
+
+    @Test
+    public void testFrozenDefaultsShared() {
+        SnuggleEngine engine = new SnuggleEngine();
+        XMLStringOutputOptions defaults = new XMLStringOutputOptions();
+        defaults.freeze();
+        engine.setDefaultXMLStringOutputOptions(defaults);
+        SnuggleSession session = engine.createSession();
+        Assert.assertSame(defaults, session.defaultXMLStringOutputOptions);
+        Assert.assertSame(defaults, session.createSnapshot().createSession().defaultXMLStringOutputOptions);
+
+        /* Unfrozen defaults are copied */
+        engine.setDefaultXMLStringOutputOptions(new XMLStringOutputOptions());
+        Assert.assertNotSame(engine.getDefaultXMLStringOutputOptions(), engine.createSession().defaultXMLStringOutputOptions);
+    }
+}
@@ -0,0 +1,89 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Counter;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener.Stage;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the reporting of timings and counts to a {@link SnuggleMetricsListener}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class SnuggleMetricsListenerTests {
+
+    private static final String INPUT = "\\newcommand{\\x}{y} $\\x+1$ and $\\x^2$ \\error";
+
+    @Test
+    public void testMetricsReported() throws Exception {
+        RecordingMetricsListener metricsListener = new RecordingMetricsListener();
+        SnuggleEngine engine = new SnuggleEngine();
+        engine.setMetricsListener(metricsListener);
+
+        XMLStringOutputOptions options = new XMLStringOutputOptions();
+        DownConvertingPostProcessor postProcessor = new DownConvertingPostProcessor();
+        options.setDOMPostProcessors(postProcessor);
+
+        SnuggleSession session = engine.createSession();
+        session.parseInput(new SnuggleInput(INPUT));
+        String result = session.buildXMLString(options);
+
+        /* Check all stages were timed */
+        for (Stage stage : Stage.values()) {
+            Assert.assertTrue("Stage " + stage + " not reported", metricsListener.stages.contains(stage));
+        }
+        Assert.assertEquals(1, metricsListener.postProcessors.size());
+        Assert.assertSame(postProcessor, metricsListener.postProcessors.get(0));
+
+        /* Check counts */
+        Assert.assertEquals(Long.valueOf(INPUT.length()), metricsListener.counts.get(Counter.INPUT_CHARACTERS));
+        Assert.assertEquals(Long.valueOf(2), metricsListener.counts.get(Counter.MACRO_EXPANSIONS));
+        Assert.assertEquals(Long.valueOf(2), metricsListener.counts.get(Counter.MATH_ISLANDS));
+        Assert.assertEquals(Long.valueOf(1), metricsListener.counts.get(Counter.ERRORS));
+        Assert.assertTrue(metricsListener.counts.get(Counter.TOKENS).longValue() > 0);
+
+        /* Make sure the results are the same as without metrics */
+        SnuggleSession plainSession = new SnuggleEngine().createSession();
+        plainSession.parseInput(new SnuggleInput(INPUT));
+        Assert.assertEquals(plainSession.buildXMLString(options), result);
+    }
+
+    /**
+     * Trivial {@link SnuggleMetricsListener} that records everything it receives, summing
+     * up the counts.
+     */
+    private static final class RecordingMetricsListener implements SnuggleMetricsListener {
+
+        final List<Stage> stages = new ArrayList<Stage>();
+        final List<DOMPostProcessor> postProcessors = new ArrayList<DOMPostProcessor>();
+        final Map<Counter, Long> counts = new EnumMap<Counter, Long>(Counter.class);
+
+        public void stageCompleted(Stage stage, long durationNanos) {
+            Assert.assertTrue(durationNanos >= 0);
+            stages.add(stage);
+        }
+
+        public void postProcessorCompleted(DOMPostProcessor domPostProcessor, long durationNanos) {
+            Assert.assertTrue(durationNanos >= 0);
+            postProcessors.add(domPostProcessor);
+        }
+
+        public void countRecorded(Counter counter, long count) {
+            Long current = counts.get(counter);
+            counts.put(counter, Long.valueOf(current!=null ? current.longValue() + count : count));
+        }
+    }
+}
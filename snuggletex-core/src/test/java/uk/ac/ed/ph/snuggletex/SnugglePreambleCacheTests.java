@@ -0,0 +1,86 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import java.io.StringReader;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link SnugglePreambleCache}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class SnugglePreambleCacheTests {
+
+    private static final String PREAMBLE = "\\newcommand{\\x}{y}\\newenvironment{e}{[}{]}";
+
+    private static final String INPUT = "$\\x+1$ \\begin{e}z\\end{e}";
+
+    @Test
+    public void testSessionsMatchFullParse() throws Exception {
+        SnuggleEngine engine = new SnuggleEngine();
+        SnugglePreambleCache preambleCache = new SnugglePreambleCache(engine);
+
+        SnuggleSession fullSession = engine.createSession();
+        fullSession.parseInput(new SnuggleInput(PREAMBLE));
+        fullSession.parseInput(new SnuggleInput(INPUT));
+        String expected = fullSession.buildXMLString();
+
+        for (int i=0; i<3; i++) {
+            SnuggleSession session = preambleCache.createSession(new SnuggleInput(PREAMBLE));
+            session.parseInput(new SnuggleInput(INPUT));
+            Assert.assertEquals(expected, session.buildXMLString());
+            Assert.assertTrue(session.getErrors().isEmpty());
+        }
+        Assert.assertEquals(1, preambleCache.size());
+    }
+
+    @Test
+    public void testKeyedOnContent() throws Exception {
+        SnugglePreambleCache preambleCache = new SnugglePreambleCache(new SnuggleEngine());
+        /* (Character streams are read line by line, so always end up with a trailing newline) */
+        SnuggleSnapshot first = preambleCache.getSnapshot(new SnuggleInput(PREAMBLE + "\n", "First"));
+        SnuggleSnapshot second = preambleCache.getSnapshot(new SnuggleInput(new StringReader(PREAMBLE), "Second"));
+        Assert.assertSame(first, second);
+
+        SnuggleSnapshot other = preambleCache.getSnapshot(new SnuggleInput("\\newcommand{\\x}{w}"));
+        Assert.assertNotSame(first, other);
+        Assert.assertEquals(2, preambleCache.size());
+    }
+
+    @Test
+    public void testSessionsAreIndependent() throws Exception {
+        SnugglePreambleCache preambleCache = new SnugglePreambleCache(new SnuggleEngine());
+        SnuggleSession session1 = preambleCache.createSession(new SnuggleInput(PREAMBLE));
+        session1.getConfiguration().setFailingFast(true);
+        session1.parseInput(new SnuggleInput("\\newcommand{\\x}{z} \\error"));
+        Assert.assertFalse(session1.getErrors().isEmpty());
+
+        SnuggleSession session2 = preambleCache.createSession(new SnuggleInput(PREAMBLE));
+        Assert.assertFalse(session2.getConfiguration().isFailingFast());
+        Assert.assertTrue(session2.getErrors().isEmpty());
+        session2.parseInput(new SnuggleInput("$\\x$"));
+        Assert.assertTrue(session2.buildXMLString().contains("<mi>y</mi>"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        SnugglePreambleCache preambleCache = new SnugglePreambleCache(new SnuggleEngine(), 2);
+        SnuggleSnapshot a = preambleCache.getSnapshot(new SnuggleInput("a"));
+        preambleCache.getSnapshot(new SnuggleInput("b"));
+        Assert.assertSame(a, preambleCache.getSnapshot(new SnuggleInput("a")));
+        preambleCache.getSnapshot(new SnuggleInput("c"));
+        Assert.assertEquals(2, preambleCache.size());
+
+        /* "b" should have been evicted, but "a" kept */
+        Assert.assertSame(a, preambleCache.getSnapshot(new SnuggleInput("a")));
+        Assert.assertEquals(2, preambleCache.size());
+    }
+}
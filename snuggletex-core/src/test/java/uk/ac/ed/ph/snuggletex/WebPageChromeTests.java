@@ -0,0 +1,123 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions.ErrorOutputOptions;
+import uk.ac.ed.ph.snuggletex.WebPageOutputOptions.WebPageType;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Checks that web pages written out using frozen {@link WebPageOutputOptions}, which use
+ * pre-rendered page chrome, are the same as those built in full using equivalent unfrozen
+ * options.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class WebPageChromeTests {
+
+    private static final String[] INPUTS = {
+        "Hello ",
+        "Hello $x^2 + \\alpha$ \\textbf{bold} \\verb|&<>| \u00e9\u2200",
+        "\\[ \\frac{1}{2} \\] \\begin{tabular}{cc} a & b \\\\ c & d \\end{tabular}",
+        "\\section{Title} \\emph{Some} \\href{http://example.com}{link} and $\\mathrm{d}x$",
+        "\\begin{itemize} \\item One \\item $\\sqrt{2}$ \\end{itemize} \\undefined",
+    };
+
+    @Test
+    public void testSameAsFullPage() throws Exception {
+        SnuggleEngine engine = new SnuggleEngine();
+        for (WebPageOutputOptions options : createWebPageOptions()) {
+            WebPageOutputOptions frozenOptions = (WebPageOutputOptions) options.clone();
+            frozenOptions.freeze();
+            for (String input : INPUTS) {
+                SnuggleSession session = engine.createSession();
+                session.parseInput(new SnuggleInput(input));
+
+                assertSamePage(options, session.buildWebPageString(options), session.buildWebPageString(frozenOptions));
+
+                ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+                session.writeWebPage(options, expectedBytes);
+                ByteArrayOutputStream resultBytes = new ByteArrayOutputStream();
+                session.writeWebPage(frozenOptions, resultBytes);
+                assertSamePage(options, expectedBytes.toString(options.getEncoding()), resultBytes.toString(options.getEncoding()));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyPage() throws Exception {
+        /* (Empty body elements always get an end tag here, which is fine in XML) */
+        SnuggleSession session = new SnuggleEngine().createSession();
+        WebPageOutputOptions options = WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MOZILLA);
+        options.freeze();
+        Assert.assertTrue(session.buildWebPageString(options).endsWith("<body></body></html>"));
+    }
+
+    @Test
+    public void testStylesheetsNotChromed() throws Exception {
+        SnuggleEngine engine = new SnuggleEngine();
+        SnuggleSession session = engine.createSession();
+        session.parseInput(new SnuggleInput("$x$"));
+        WebPageOutputOptions options = WebPageOutputOptionsBuilder.createHTML5Options();
+        options.setStylesheetURIs("classpath:/uk/ac/ed/ph/snuggletex/strip-all-namespaces.xsl");
+        String expected = session.buildWebPageString(options);
+        options.freeze();
+        Assert.assertEquals(expected, session.buildWebPageString(options));
+        Assert.assertTrue(engine.getWebPageChromeCache().isEmpty());
+    }
+
+    //-------------------------------------------------------------------
+
+    private static void assertSamePage(WebPageOutputOptions options, String expected, String result) {
+        if (options.isIndenting()) {
+            /* (The serializer may indent the content of the body element slightly differently) */
+            Assert.assertEquals(unindent(expected), unindent(result));
+        }
+        else {
+            Assert.assertEquals(expected, result);
+        }
+    }
+
+    private static String unindent(String xml) {
+        return xml.replaceAll("\\s*\n\\s*", "");
+    }
+
+    private static List<WebPageOutputOptions> createWebPageOptions() {
+        List<WebPageOutputOptions> result = new ArrayList<WebPageOutputOptions>();
+        result.add(WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MOZILLA));
+        result.add(WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.UNIVERSAL_STYLESHEET));
+        result.add(WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MATHPLAYER_HTML));
+        result.add(WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.PROCESSED_HTML));
+        result.add(WebPageOutputOptionsBuilder.createHTML4Options());
+        result.add(WebPageOutputOptionsBuilder.createHTML5Options());
+        result.add(WebPageOutputOptionsBuilder.createHTML5MathJaxOptions());
+        result.add(WebPageOutputOptionsBuilder.createIEMathPlayerSpecificOptions());
+        WebPageOutputOptions options = WebPageOutputOptionsBuilder.createHTML5Options();
+        options.setLang("en");
+        options.setTitle("A & B");
+        options.setAddingTitleHeading(true);
+        options.setErrorOutputOptions(ErrorOutputOptions.XHTML);
+        options.setAddingMathSourceAnnotations(true);
+        options.setEncoding("US-ASCII");
+        result.add(options);
+        options = WebPageOutputOptionsTemplates.createWebPageOptions(WebPageType.MOZILLA);
+        options.setPrefixingXHTML(true);
+        options.setPrefixingMathML(true);
+        options.setIncludingStyleElement(true);
+        options.setIndenting(true);
+        options.setCSSStylesheetURLs("a.css", "b.css");
+        result.add(options);
+        return result;
+    }
+}
@@ -0,0 +1,371 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.samples;
+
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
+import uk.ac.ed.ph.snuggletex.internal.util.IOUtilities;
+import uk.ac.ed.ph.snuggletex.samples.CommandLineBatchRunner.BatchItem;
+import uk.ac.ed.ph.snuggletex.samples.CommandLineBatchRunner.BatchResult;
+import uk.ac.ed.ph.snuggletex.samples.CommandLineBatchRunner.BatchStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link CommandLineBatchRunner}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class CommandLineBatchRunnerTests {
+
+    private static final String STALE_OUTPUT = "stale";
+
+    private File directory;
+    private File inputDirectory;
+    private File outputDirectory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("batchrunner", ".dir");
+        directory.delete();
+        inputDirectory = new File(directory, "in");
+        outputDirectory = new File(directory, "out");
+    }
+
+    @After
+    public void teardown() {
+        delete(directory);
+    }
+
+    //-------------------------------------------------------------------
+    // Glob matching
+
+    @Test
+    public void testGlobWildcards() {
+        Pattern pattern = CommandLineBatchRunner.globToPattern("*.tex");
+        Assert.assertTrue(pattern.matcher("a.tex").matches());
+        Assert.assertTrue(pattern.matcher(".tex").matches());
+        Assert.assertFalse(pattern.matcher("a.txt").matches());
+        Assert.assertFalse(pattern.matcher("d/a.tex").matches());
+
+        pattern = CommandLineBatchRunner.globToPattern("d/?.tex");
+        Assert.assertTrue(pattern.matcher("d/a.tex").matches());
+        Assert.assertFalse(pattern.matcher("d/ab.tex").matches());
+        Assert.assertFalse(pattern.matcher("d//.tex").matches());
+    }
+
+    @Test
+    public void testGlobDirectories() {
+        Pattern pattern = CommandLineBatchRunner.globToPattern("**/*.tex");
+        Assert.assertTrue(pattern.matcher("a.tex").matches());
+        Assert.assertTrue(pattern.matcher("d/a.tex").matches());
+        Assert.assertTrue(pattern.matcher("d/e/a.tex").matches());
+        Assert.assertFalse(pattern.matcher("d/e/a.txt").matches());
+
+        pattern = CommandLineBatchRunner.globToPattern("d/**/x*.tex");
+        Assert.assertTrue(pattern.matcher("d/x.tex").matches());
+        Assert.assertTrue(pattern.matcher("d/e/f/x1.tex").matches());
+        Assert.assertFalse(pattern.matcher("e/x.tex").matches());
+
+        /* '**' not followed by '/' matches anything, including separators */
+        pattern = CommandLineBatchRunner.globToPattern("d/**");
+        Assert.assertTrue(pattern.matcher("d/e/f.tex").matches());
+        Assert.assertFalse(pattern.matcher("e/f.tex").matches());
+    }
+
+    @Test
+    public void testGlobQuoting() {
+        Pattern pattern = CommandLineBatchRunner.globToPattern("a+b.(1)$.tex");
+        Assert.assertTrue(pattern.matcher("a+b.(1)$.tex").matches());
+        Assert.assertFalse(pattern.matcher("aab.(1)$.tex").matches());
+        Assert.assertFalse(pattern.matcher("a+bx(1)$.tex").matches());
+    }
+
+    @Test
+    public void testGlobInputs() throws Exception {
+        writeFile(new File(inputDirectory, "a.tex"), "$x$");
+        writeFile(new File(inputDirectory, "sub/b.tex"), "Hello");
+        writeFile(new File(inputDirectory, "sub/deeper/c.tex"), "World");
+        writeFile(new File(inputDirectory, "sub/d.txt"), "Ignored");
+
+        String glob = inputDirectory.getPath() + File.separator + "sub" + File.separator + "**" + File.separator + "*.tex";
+        Assert.assertEquals(0, createRunner("test").execute(Arrays.asList(glob)));
+
+        /* Paths are relative to the directory before the first wildcard */
+        Assert.assertTrue(new File(outputDirectory, "b.xml").isFile());
+        Assert.assertTrue(new File(outputDirectory, "deeper/c.xml").isFile());
+        Assert.assertFalse(new File(outputDirectory, "a.xml").exists());
+        Assert.assertFalse(new File(outputDirectory, "d.xml").exists());
+        Assert.assertEquals(Arrays.asList("b.xml", "deeper/c.xml"), readManifestKeys());
+    }
+
+    @Test
+    public void testDirectoryInputs() throws Exception {
+        writeFile(new File(inputDirectory, "a.tex"), "$x$");
+        writeFile(new File(inputDirectory, "sub/b.TEX"), "Hello");
+        writeFile(new File(inputDirectory, "sub/c.txt"), "Ignored");
+        writeFile(new File(inputDirectory, ".hidden/d.tex"), "Ignored");
+        Assert.assertEquals(0, createRunner("test").execute(Arrays.asList(inputDirectory.getPath())));
+
+        Assert.assertTrue(readFile(new File(outputDirectory, "a.xml")).contains("<mi>x</mi>"));
+        Assert.assertTrue(new File(outputDirectory, "sub/b.xml").isFile());
+        Assert.assertFalse(new File(outputDirectory, "sub/c.xml").exists());
+        Assert.assertFalse(new File(outputDirectory, ".hidden").exists());
+        Assert.assertEquals(Arrays.asList("a.xml", "sub/b.xml"), readManifestKeys());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNoMatches() throws Exception {
+        inputDirectory.mkdirs();
+        createRunner("test").execute(Arrays.asList(inputDirectory.getPath() + File.separator + "*.tex"));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testOutputClash() throws Exception {
+        File first = new File(inputDirectory, "first/a.tex");
+        File second = new File(inputDirectory, "second/a.tex");
+        writeFile(first, "1");
+        writeFile(second, "2");
+        createRunner("test").execute(Arrays.asList(first.getPath(), second.getPath()));
+    }
+
+    //-------------------------------------------------------------------
+    // Manifest
+
+    @Test
+    public void testUnchangedInputsSkipped() throws Exception {
+        File inputFile = new File(inputDirectory, "a.tex");
+        File outputFile = new File(outputDirectory, "a.xml");
+        writeFile(inputFile, "$x$");
+        List<String> inputs = Arrays.asList(inputDirectory.getPath());
+        Assert.assertEquals(0, createRunner("test").execute(inputs));
+        Assert.assertTrue(readFile(outputFile).contains("<mi>x</mi>"));
+
+        /* Nothing has changed, so the (doctored) output is left alone */
+        writeFile(outputFile, STALE_OUTPUT);
+        Assert.assertEquals(0, createRunner("test").execute(inputs));
+        Assert.assertEquals(STALE_OUTPUT, readFile(outputFile));
+
+        /* Changing the input causes it to be converted again */
+        writeFile(inputFile, "$y$");
+        Assert.assertEquals(0, createRunner("test").execute(inputs));
+        Assert.assertTrue(readFile(outputFile).contains("<mi>y</mi>"));
+    }
+
+    @Test
+    public void testChangedOptionsAndPreamble() throws Exception {
+        File outputFile = new File(outputDirectory, "a.xml");
+        writeFile(new File(inputDirectory, "a.tex"), "$x$");
+        List<String> inputs = Arrays.asList(inputDirectory.getPath());
+        Assert.assertEquals(0, createRunner("test").execute(inputs));
+
+        writeFile(outputFile, STALE_OUTPUT);
+        Assert.assertEquals(0, createRunner("other").execute(inputs));
+        Assert.assertFalse(STALE_OUTPUT.equals(readFile(outputFile)));
+
+        File preambleFile = new File(directory, "preamble.tex");
+        writeFile(preambleFile, "\\newcommand{\\z}{1}");
+        writeFile(outputFile, STALE_OUTPUT);
+        CommandLineBatchRunner runner = createRunner("other");
+        runner.setPreambleFile(preambleFile);
+        Assert.assertEquals(0, runner.execute(inputs));
+        Assert.assertFalse(STALE_OUTPUT.equals(readFile(outputFile)));
+    }
+
+    @Test
+    public void testForcingAndMissingOutput() throws Exception {
+        File outputFile = new File(outputDirectory, "a.xml");
+        writeFile(new File(inputDirectory, "a.tex"), "$x$");
+        List<String> inputs = Arrays.asList(inputDirectory.getPath());
+        Assert.assertEquals(0, createRunner("test").execute(inputs));
+
+        writeFile(outputFile, STALE_OUTPUT);
+        CommandLineBatchRunner runner = createRunner("test");
+        runner.setForcing(true);
+        Assert.assertEquals(0, runner.execute(inputs));
+        Assert.assertFalse(STALE_OUTPUT.equals(readFile(outputFile)));
+
+        /* Outputs that have gone missing are recreated even though the manifest is up to date */
+        Assert.assertTrue(outputFile.delete());
+        Assert.assertEquals(0, createRunner("test").execute(inputs));
+        Assert.assertTrue(outputFile.isFile());
+    }
+
+    @Test
+    public void testInputsWithErrorsAlwaysConverted() throws Exception {
+        File outputFile = new File(outputDirectory, "bad.xml");
+        writeFile(new File(inputDirectory, "bad.tex"), "$\\frac{1}$");
+        writeFile(new File(inputDirectory, "good.tex"), "$x$");
+        List<String> inputs = Arrays.asList(inputDirectory.getPath());
+        CommandLineBatchRunner runner = createRunner("test");
+        runner.setQuiet(true);
+        Assert.assertEquals(0, runner.execute(inputs));
+        Assert.assertEquals(Arrays.asList("good.xml"), readManifestKeys());
+
+        writeFile(outputFile, STALE_OUTPUT);
+        Assert.assertEquals(0, runner.execute(inputs));
+        Assert.assertFalse(STALE_OUTPUT.equals(readFile(outputFile)));
+    }
+
+    @Test
+    public void testRemovedInputsKeptInManifest() throws Exception {
+        File inputFile = new File(inputDirectory, "a.tex");
+        writeFile(inputFile, "$x$");
+        writeFile(new File(inputDirectory, "b.tex"), "$y$");
+        Assert.assertEquals(0, createRunner("test").execute(Arrays.asList(inputDirectory.getPath())));
+        Assert.assertEquals(0, createRunner("test").execute(Arrays.asList(inputFile.getPath())));
+        Assert.assertEquals(Arrays.asList("a.xml", "b.xml"), readManifestKeys());
+    }
+
+    //-------------------------------------------------------------------
+    // Summary
+
+    @Test
+    public void testPercentile() {
+        List<BatchResult> results = createResults(10);
+        Assert.assertEquals(millis(5), CommandLineBatchRunner.percentile(results, 0.50));
+        Assert.assertEquals(millis(9), CommandLineBatchRunner.percentile(results, 0.90));
+        Assert.assertEquals(millis(10), CommandLineBatchRunner.percentile(results, 0.99));
+        Assert.assertEquals(millis(1), CommandLineBatchRunner.percentile(results, 0.0));
+
+        results = createResults(1);
+        Assert.assertEquals(millis(1), CommandLineBatchRunner.percentile(results, 0.50));
+        Assert.assertEquals(millis(1), CommandLineBatchRunner.percentile(results, 0.99));
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+        List<BatchResult> results = createResults(4);
+        Collections.shuffle(results);
+        results.add(createResult("errors", BatchStatus.CONVERTED_WITH_ERRORS, 2));
+        results.add(createResult("skipped", BatchStatus.SKIPPED, 100));
+        results.add(createResult("failed1", BatchStatus.FAILED, 100));
+        results.add(createResult("failed2", BatchStatus.FAILED, 100));
+
+        CommandLineBatchRunner runner = createRunner("test");
+        runner.setThreadCount(3);
+        runner.setSlowestFileCount(2);
+        String[] lines = printSummary(runner, results);
+        Assert.assertTrue(lines[1].startsWith("Converted 5 file(s) (1 with errors), skipped 1 unchanged, 2 failed in "));
+        Assert.assertTrue(lines[1].endsWith(" using 3 thread(s)"));
+        Assert.assertTrue(lines[2].startsWith("Throughput: "));
+        Assert.assertTrue(lines[3].startsWith("Per-file time (ms): "));
+        Assert.assertEquals("Slowest file(s):", lines[4]);
+
+        /* Slowest first, with skipped and failed inputs left out */
+        Assert.assertTrue(lines[5].endsWith(" ms  4.tex"));
+        Assert.assertTrue(lines[6].endsWith(" ms  3.tex"));
+        Assert.assertEquals(7, lines.length);
+    }
+
+    @Test
+    public void testSummaryNothingConverted() throws Exception {
+        List<BatchResult> results = new ArrayList<BatchResult>();
+        results.add(createResult("skipped", BatchStatus.SKIPPED, 1));
+        CommandLineBatchRunner runner = createRunner("test");
+        runner.setThreadCount(1);
+        String[] lines = printSummary(runner, results);
+        Assert.assertTrue(lines[1].startsWith("Converted 0 file(s) (0 with errors), skipped 1 unchanged, 0 failed in "));
+        Assert.assertEquals(2, lines.length);
+    }
+
+    //-------------------------------------------------------------------
+
+    private CommandLineBatchRunner createRunner(String optionsSignature) {
+        CommandLineBatchRunner runner = new CommandLineBatchRunner(new SnuggleEngine(), new WebPageOutputOptions(),
+                false, outputDirectory, optionsSignature);
+        runner.setThreadCount(2);
+        return runner;
+    }
+
+    private static String[] printSummary(CommandLineBatchRunner runner, List<BatchResult> results)
+            throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream printStream = new PrintStream(outputStream, true, "UTF-8");
+        runner.printSummary(results, millis(1000), printStream);
+        printStream.close();
+        return outputStream.toString("UTF-8").split("\r?\n");
+    }
+
+    /** Creates converted results for inputs 1.tex to count.tex, sorted slowest first */
+    private static List<BatchResult> createResults(int count) {
+        List<BatchResult> results = new ArrayList<BatchResult>();
+        for (int i=count; i>=1; i--) {
+            results.add(createResult(Integer.toString(i), BatchStatus.CONVERTED, i));
+        }
+        return results;
+    }
+
+    private static BatchResult createResult(String name, BatchStatus status, int durationMillis) {
+        BatchItem item = new BatchItem(new File(name + ".tex"), name + ".xml", new File(name + ".xml"));
+        return new BatchResult(item, status, null, 10, millis(durationMillis), null, null);
+    }
+
+    private static long millis(int millis) {
+        return millis * 1000000L;
+    }
+
+    private List<String> readManifestKeys() throws IOException {
+        Properties manifest = new Properties();
+        InputStream inputStream = new FileInputStream(new File(outputDirectory, CommandLineBatchRunner.DEFAULT_MANIFEST_NAME));
+        try {
+            manifest.load(inputStream);
+        }
+        finally {
+            inputStream.close();
+        }
+        List<String> result = new ArrayList<String>(manifest.stringPropertyNames());
+        Collections.sort(result);
+        return result;
+    }
+
+    private static String readFile(File file) throws IOException {
+        /* (This adds a newline after each line read) */
+        return IOUtilities.readUnicodeFile(file).trim();
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        IOUtilities.ensureFileCreated(file);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children!=null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
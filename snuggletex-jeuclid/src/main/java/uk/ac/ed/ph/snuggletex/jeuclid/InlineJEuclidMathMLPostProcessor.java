@@ -0,0 +1,397 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.jeuclid;
+
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLPostProcessor;
+
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import net.sourceforge.jeuclid.converter.Converter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Extension of {@link MathMLPostProcessor} that uses JEuclid to replace MathML elements with
+ * renditions embedded directly in the resulting document, rather than with <tt>img</tt>
+ * elements referring to separately saved image files as {@link JEuclidMathMLPostProcessor}
+ * does. This saves a separate HTTP request for each MathML element.
+ * <p>
+ * Structurally identical MathML elements within the same document are only rendered once.
+ * With the {@link InlineMathMLImageFormat#SVG_SYMBOL} and {@link InlineMathMLImageFormat#PNG_SYMBOL}
+ * formats, the rendition itself is only included once too, as an SVG <tt>symbol</tt> that is
+ * referred to from each place the MathML appeared via <tt>use</tt>. These formats need a
+ * browser that supports SVG within (X)HTML, so are not suitable for HTML 4 pages.
+ * <p>
+ * If a MathML element cannot be rendered, it is left unchanged and the failure is logged.
+ * <p>
+ * This works with both whole {@link Document}s and streaming output. (If several SnuggleTeX
+ * outputs are going to be combined into the same page, give each a different ID prefix so
+ * that their <tt>symbol</tt>s don't clash.)
+ * <p>
+ * An instance of this class is thread-safe.
+ *
+ * @see InlineMathMLImageFormat
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class InlineJEuclidMathMLPostProcessor extends MathMLPostProcessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(InlineJEuclidMathMLPostProcessor.class);
+
+    /** Default prefix for the IDs of the generated SVG <tt>symbol</tt>s */
+    public static final String DEFAULT_ID_PREFIX = "snuggletex-math-";
+
+    private static final String SVG_CONTENT_TYPE = "image/svg+xml";
+    private static final String PNG_CONTENT_TYPE = "image/png";
+
+    private final InlineMathMLImageFormat format;
+    private final JEuclidRenderingProfile renderingProfile;
+    private final String idPrefix;
+    private final MathMLImageRenderer pngRenderer;
+
+    /** Renditions used so far in each document currently being processed */
+    private final Map<Document, Map<String, InlineRendition>> renditionMapsByDocument;
+
+    /**
+     * Creates a new post-processor using the given format and the default
+     * {@link JEuclidRenderingProfile}.
+     */
+    public InlineJEuclidMathMLPostProcessor(final InlineMathMLImageFormat format) {
+        this(format, JEuclidRenderingProfile.DEFAULT, DEFAULT_ID_PREFIX);
+    }
+
+    /**
+     * Creates a new post-processor.
+     *
+     * @param format format to use, which must not be null
+     * @param renderingProfile settings used to render MathML, which must not be null
+     * @param idPrefix prefix for the IDs of any SVG <tt>symbol</tt>s created, which must not
+     *   be null
+     */
+    public InlineJEuclidMathMLPostProcessor(final InlineMathMLImageFormat format,
+            final JEuclidRenderingProfile renderingProfile, final String idPrefix) {
+        ConstraintUtilities.ensureNotNull(format, "format");
+        ConstraintUtilities.ensureNotNull(renderingProfile, "renderingProfile");
+        ConstraintUtilities.ensureNotNull(idPrefix, "idPrefix");
+        this.format = format;
+        this.renderingProfile = renderingProfile;
+        this.idPrefix = idPrefix;
+        this.pngRenderer = new MathMLImageRenderer(renderingProfile, PNG_CONTENT_TYPE);
+        this.renditionMapsByDocument = Collections.synchronizedMap(new WeakHashMap<Document, Map<String, InlineRendition>>());
+    }
+
+    public InlineMathMLImageFormat getFormat() {
+        return format;
+    }
+
+    public JEuclidRenderingProfile getRenderingProfile() {
+        return renderingProfile;
+    }
+
+    public String getIdPrefix() {
+        return idPrefix;
+    }
+
+    //-------------------------------------------------
+
+    @Override
+    protected void handleMathMLIsland(final Element inputMathIsland, final Document outputDocument,
+            final Node outputParentNode, final int mathmlCounter) {
+        /* See whether we have already rendered this island in this document. (When streaming,
+         * outputDocument is shared by all islands in the document, so this works then too.) */
+        Map<String, InlineRendition> renditionMap = renditionMapsByDocument.get(outputDocument);
+        if (renditionMap==null) {
+            renditionMap = new HashMap<String, InlineRendition>();
+            renditionMapsByDocument.put(outputDocument, renditionMap);
+        }
+        String islandKey = JEuclidMathMLPostProcessor.createIslandKey(inputMathIsland);
+        InlineRendition rendition = renditionMap.get(islandKey);
+        boolean firstUse = false;
+        if (rendition==null) {
+            rendition = render(inputMathIsland, idPrefix + mathmlCounter);
+            renditionMap.put(islandKey, rendition);
+            firstUse = true;
+        }
+        if (rendition.failed) {
+            /* Leave MathML as it is */
+            outputParentNode.appendChild(outputDocument.importNode(inputMathIsland, true));
+            return;
+        }
+
+        /* Add <div> or <span> to the output Document instead of the input <math/> element */
+        boolean isBlock = inputMathIsland.getAttribute("display").equals("block");
+        Element divOrSpan = outputDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, isBlock ? "div" : "span");
+        divOrSpan.setAttribute("class", "mathml-math");
+        outputParentNode.appendChild(divOrSpan);
+
+        String altText = JEuclidMathMLPostProcessor.extractAltText(inputMathIsland);
+        if (rendition.symbolElement==null) {
+            /* Plain <img/> with data URI */
+            Element imgElement = outputDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, "img");
+            imgElement.setAttribute("src", rendition.dataURI);
+            imgElement.setAttribute("width", Integer.toString(rendition.width));
+            imgElement.setAttribute("height", Integer.toString(rendition.height));
+            if (altText!=null) {
+                imgElement.setAttribute("alt", altText);
+            }
+            divOrSpan.appendChild(imgElement);
+        }
+        else {
+            /* <svg/> defining the <symbol/> (if required) and then using it */
+            Element svgElement = createSVGElement(outputDocument, "svg");
+            svgElement.setAttribute("width", Integer.toString(rendition.width));
+            svgElement.setAttribute("height", Integer.toString(rendition.height));
+            svgElement.setAttribute("viewBox", "0 0 " + rendition.width + " " + rendition.height);
+            svgElement.setAttribute("role", "img");
+            if (altText!=null) {
+                svgElement.setAttribute("aria-label", altText);
+                createSVGElement(outputDocument, svgElement, "title").setTextContent(altText);
+            }
+            if (firstUse) {
+                svgElement.appendChild(outputDocument.importNode(rendition.symbolElement, true));
+            }
+            Element useElement = createSVGElement(outputDocument, svgElement, "use");
+            useElement.setAttributeNS(W3CConstants.XLINK_NAMESPACE, "xlink:href", "#" + rendition.symbolId);
+            useElement.setAttribute("width", Integer.toString(rendition.width));
+            useElement.setAttribute("height", Integer.toString(rendition.height));
+            divOrSpan.appendChild(svgElement);
+        }
+    }
+
+    @Override
+    protected void finishDocument(final Document outputDocument) {
+        renditionMapsByDocument.remove(outputDocument);
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Renders the given MathML element in the required format.
+     */
+    private InlineRendition render(final Element inputMathIsland, final String symbolId) {
+        try {
+            if (format==InlineMathMLImageFormat.SVG_SYMBOL) {
+                InlineRendition result = renderSVGSymbol(inputMathIsland, symbolId);
+                if (result!=null) {
+                    return result;
+                }
+                /* (SVG not available, so fall through to PNG) */
+            }
+            RenderedMathMLImage image = pngRenderer.renderImage(inputMathIsland);
+            String dataURI = createDataURI(PNG_CONTENT_TYPE, image.getImageData());
+            if (format==InlineMathMLImageFormat.PNG_DATA_URI) {
+                return new InlineRendition(image.getWidth(), image.getHeight(), dataURI, null, null);
+            }
+            Document symbolDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+            Element symbolElement = createSymbolElement(symbolDocument, symbolId, image.getWidth(), image.getHeight());
+            symbolDocument.appendChild(symbolElement);
+            Element imageElement = createSVGElement(symbolDocument, symbolElement, "image");
+            imageElement.setAttribute("width", Integer.toString(image.getWidth()));
+            imageElement.setAttribute("height", Integer.toString(image.getHeight()));
+            imageElement.setAttributeNS(W3CConstants.XLINK_NAMESPACE, "xlink:href", dataURI);
+            return new InlineRendition(image.getWidth(), image.getHeight(), null, symbolId, symbolElement);
+        }
+        catch (IOException e) {
+            logger.warn("Failed to render MathML element " + symbolId + ", so leaving it unchanged", e);
+            return InlineRendition.FAILED;
+        }
+        catch (SAXException e) {
+            logger.warn("Failed to parse SVG rendition of MathML element " + symbolId + ", so leaving it unchanged", e);
+            return InlineRendition.FAILED;
+        }
+    }
+
+    /**
+     * Renders the given MathML element as SVG, returning null if JEuclid can't create SVG.
+     */
+    private InlineRendition renderSVGSymbol(final Element inputMathIsland, final String symbolId)
+            throws IOException, SAXException {
+        ByteArrayOutputStream svgOutputStream = new ByteArrayOutputStream();
+        Dimension dimension = Converter.getInstance().convert(inputMathIsland, svgOutputStream,
+                SVG_CONTENT_TYPE, renderingProfile.getLayoutContext());
+        if (dimension==null) {
+            return null;
+        }
+
+        /* Parse the SVG, making sure we don't go off and fetch its DTD */
+        DocumentBuilder documentBuilder = XMLUtilities.createNSAwareDocumentBuilder();
+        documentBuilder.setEntityResolver(new EntityResolver() {
+            public InputSource resolveEntity(String publicId, String systemId) {
+                return new InputSource(new StringReader(""));
+            }
+        });
+        Document svgDocument = documentBuilder.parse(new ByteArrayInputStream(svgOutputStream.toByteArray()));
+
+        /* Move everything inside the SVG root element into a <symbol/> */
+        Element symbolElement = createSymbolElement(svgDocument, symbolId, dimension.width, dimension.height);
+        Element svgRoot = svgDocument.getDocumentElement();
+        for (Node child = svgRoot.getFirstChild(); child!=null; child = svgRoot.getFirstChild()) {
+            symbolElement.appendChild(child);
+        }
+        svgDocument.replaceChild(symbolElement, svgRoot);
+        makeIdsUnique(symbolElement, symbolId + "-");
+        return new InlineRendition(dimension.width, dimension.height, null, symbolId, symbolElement);
+    }
+
+    private static Element createSymbolElement(final Document document, final String symbolId,
+            final int width, final int height) {
+        Element result = createSVGElement(document, "symbol");
+        result.setAttribute("id", symbolId);
+        result.setAttribute("viewBox", "0 0 " + width + " " + height);
+        return result;
+    }
+
+    private static Element createSVGElement(final Document document, final String localName) {
+        return document.createElementNS(W3CConstants.SVG_NAMESPACE, localName);
+    }
+
+    private static Element createSVGElement(final Document document, final Node parent, final String localName) {
+        Element result = createSVGElement(document, localName);
+        parent.appendChild(result);
+        return result;
+    }
+
+    /**
+     * Prefixes all of the IDs defined within the given SVG element (e.g. clip paths) with the
+     * given String, updating any local references to them, so that they don't clash with IDs
+     * in other renditions within the same document.
+     */
+    private static void makeIdsUnique(final Element element, final String prefix) {
+        List<Attr> idAttributes = new ArrayList<Attr>();
+        List<Attr> allAttributes = new ArrayList<Attr>();
+        collectAttributes(element, idAttributes, allAttributes);
+        for (Attr idAttribute : idAttributes) {
+            String oldId = idAttribute.getValue();
+            String newId = prefix + oldId;
+            for (Attr attribute : allAttributes) {
+                String value = attribute.getValue();
+                if (value.equals("#" + oldId)) {
+                    attribute.setValue("#" + newId);
+                }
+                else if (value.indexOf("url(#" + oldId + ")")!=-1) {
+                    attribute.setValue(value.replace("url(#" + oldId + ")", "url(#" + newId + ")"));
+                }
+            }
+            idAttribute.setValue(newId);
+        }
+    }
+
+    private static void collectAttributes(final Element element, final List<Attr> idAttributes,
+            final List<Attr> allAttributes) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i=0, size=attributes.getLength(); i<size; i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            String name = attribute.getLocalName()!=null ? attribute.getLocalName() : attribute.getName();
+            if (name.equals("id") && attribute.getNamespaceURI()==null) {
+                idAttributes.add(attribute);
+            }
+            else {
+                allAttributes.add(attribute);
+            }
+        }
+        for (Node child = element.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (child.getNodeType()==Node.ELEMENT_NODE) {
+                collectAttributes((Element) child, idAttributes, allAttributes);
+            }
+        }
+    }
+
+    //-------------------------------------------------
+
+    private static final char[] BASE64_ALPHABET
+        = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Creates a <tt>data:</tt> URI for the given data, using base 64 encoding.
+     */
+    static String createDataURI(final String contentType, final byte[] data) {
+        StringBuilder result = new StringBuilder(contentType.length() + 13 + ((data.length + 2) / 3) * 4);
+        result.append("data:").append(contentType).append(";base64,");
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i+1] & 0xff) << 8) | (data[i+2] & 0xff);
+            result.append(BASE64_ALPHABET[bits >>> 18])
+                .append(BASE64_ALPHABET[(bits >>> 12) & 0x3f])
+                .append(BASE64_ALPHABET[(bits >>> 6) & 0x3f])
+                .append(BASE64_ALPHABET[bits & 0x3f]);
+        }
+        int remaining = data.length - i;
+        if (remaining==1) {
+            int bits = (data[i] & 0xff) << 16;
+            result.append(BASE64_ALPHABET[bits >>> 18])
+                .append(BASE64_ALPHABET[(bits >>> 12) & 0x3f])
+                .append("==");
+        }
+        else if (remaining==2) {
+            int bits = ((data[i] & 0xff) << 16) | ((data[i+1] & 0xff) << 8);
+            result.append(BASE64_ALPHABET[bits >>> 18])
+                .append(BASE64_ALPHABET[(bits >>> 12) & 0x3f])
+                .append(BASE64_ALPHABET[(bits >>> 6) & 0x3f])
+                .append('=');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Result of rendering a MathML element. This is never changed once created, and the
+     * {@link #symbolElement} is only ever copied into output documents.
+     */
+    private static final class InlineRendition {
+
+        static final InlineRendition FAILED = new InlineRendition(0, 0, null, null, null);
+
+        final int width;
+        final int height;
+
+        /** <tt>data:</tt> URI used with {@link InlineMathMLImageFormat#PNG_DATA_URI} */
+        final String dataURI;
+
+        /** ID of the SVG <tt>symbol</tt>, if used */
+        final String symbolId;
+
+        /** SVG <tt>symbol</tt> element, if used */
+        final Element symbolElement;
+
+        final boolean failed;
+
+        public InlineRendition(final int width, final int height, final String dataURI,
+                final String symbolId, final Element symbolElement) {
+            this.width = width;
+            this.height = height;
+            this.dataURI = dataURI;
+            this.symbolId = symbolId;
+            this.symbolElement = symbolElement;
+            this.failed = dataURI==null && symbolElement==null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.jeuclid;
+
+/**
+ * Enumerates the ways in which {@link InlineJEuclidMathMLPostProcessor} can embed rendered
+ * MathML directly within the resulting document.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public enum InlineMathMLImageFormat {
+
+    /**
+     * Each distinct MathML element is rendered as SVG markup within an SVG <tt>symbol</tt>,
+     * defined where the element first appears, with every appearance shown by an SVG
+     * <tt>use</tt> reference to it.
+     * <p>
+     * This requires JEuclid's SVG support (i.e. Apache Batik) to be available. If it isn't,
+     * {@link #PNG_SYMBOL} is used instead.
+     */
+    SVG_SYMBOL,
+
+    /**
+     * As {@link #SVG_SYMBOL}, but each <tt>symbol</tt> contains an SVG <tt>image</tt> holding
+     * a PNG rendition of the MathML as a <tt>data:</tt> URI.
+     */
+    PNG_SYMBOL,
+
+    /**
+     * Each MathML element is replaced by an XHTML <tt>img</tt> element containing a PNG
+     * rendition of the MathML as a <tt>data:</tt> URI. Identical elements are only rendered
+     * once, but the image data is repeated each time. This is the only format that works in
+     * HTML 4 pages.
+     */
+    PNG_DATA_URI,
+    ;
+}
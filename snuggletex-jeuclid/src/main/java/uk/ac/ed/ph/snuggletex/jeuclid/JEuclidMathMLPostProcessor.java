@@ -5,24 +5,71 @@
  */
 package uk.ac.ed.ph.snuggletex.jeuclid;
 
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
 import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.BufferingPostProcessingHandler;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 import uk.ac.ed.ph.snuggletex.utilities.MathMLPostProcessor;
 import uk.ac.ed.ph.snuggletex.utilities.SnuggleUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 
 import java.awt.Dimension;
 import java.io.File;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
-import net.sourceforge.jeuclid.MutableLayoutContext;
+import javax.xml.parsers.DocumentBuilder;
+
+import net.sourceforge.jeuclid.LayoutContext;
 import net.sourceforge.jeuclid.converter.Converter;
 
+import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.xml.sax.ContentHandler;
 
 /**
  * Extension of {@link MathMLPostProcessor} that uses JEuclid to convert MathML elements into
  * XHTML + image replacements.
+ * <p>
+ * By default, each MathML element is rendered in turn as it is encountered. If an
+ * {@link Executor} is specified then the images are instead rendered concurrently using that
+ * {@link Executor}. In this case:
+ * <ul>
+ *   <li>
+ *     Structurally identical MathML elements within the same document are only rendered once,
+ *     with each resulting <tt>img</tt> element referring to the same image. (This can optionally
+ *     be extended to work across documents, provided the images saved by the
+ *     {@link MathMLImageSavingCallback} remain available at the same URLs.)
+ *   </li>
+ *   <li>
+ *     The {@link MathMLImageSavingCallback} is only asked where to save each distinct image, and
+ *     is only informed about the outcome once all images in the document have been rendered.
+ *     All callbacks happen on the Thread doing the post-processing, in document order.
+ *   </li>
+ *   <li>
+ *     The whole document is buffered when used in a streaming chain, as the sizes of the
+ *     <tt>img</tt> elements can only be filled in once rendering has finished.
+ *   </li>
+ * </ul>
  * 
  * @see MathMLImageSavingCallback
  *
@@ -33,13 +80,81 @@ public final class JEuclidMathMLPostProcessor extends MathMLPostProcessor {
     
     private final MathMLImageSavingCallback imageSavingCallback;
     
+    /** {@link Executor} used to render images concurrently, null to render them one by one */
+    private final Executor executor;
+
+    /** Images shared across documents, keyed on island structure, null if not sharing */
+    private final ConcurrentMap<String, PendingImage> sharedImageMap;
+
+    /** State for each document currently being processed concurrently */
+    private final Map<Document, RenderingState> renderingStateMap;
+
     public JEuclidMathMLPostProcessor(final MathMLImageSavingCallback callback) {
         this.imageSavingCallback = callback;
+        this.executor = null;
+        this.sharedImageMap = null;
+        this.renderingStateMap = null;
+    }
+
+    /**
+     * Creates a post-processor that renders images concurrently using the given {@link Executor},
+     * rendering structurally identical MathML elements only once.
+     *
+     * @param callback callback to use, which must not be null
+     * @param executor {@link Executor} to render images with, which must not be null
+     * @param sharingImagesAcrossDocuments whether to share images across all documents
+     *   processed by this instance, rather than only within each document.
+     *
+     * @since 1.3.1
+     */
+    public JEuclidMathMLPostProcessor(final MathMLImageSavingCallback callback,
+            final Executor executor, final boolean sharingImagesAcrossDocuments) {
+        ConstraintUtilities.ensureNotNull(callback, "callback");
+        ConstraintUtilities.ensureNotNull(executor, "executor");
+        this.imageSavingCallback = callback;
+        this.executor = executor;
+        this.sharedImageMap = sharingImagesAcrossDocuments ? new ConcurrentHashMap<String, PendingImage>() : null;
+        this.renderingStateMap = Collections.synchronizedMap(new WeakHashMap<Document, RenderingState>());
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public boolean isSharingImagesAcrossDocuments() {
+        return sharedImageMap!=null;
+    }
+
+    /**
+     * Forgets about all images shared across documents, so that they will be rendered afresh
+     * if encountered again.
+     *
+     * @since 1.3.1
+     */
+    public void clearSharedImages() {
+        if (sharedImageMap!=null) {
+            sharedImageMap.clear();
+        }
+    }
+
+    @Override
+    public ContentHandler createPostProcessingHandler(ContentHandler resultHandler,
+            DOMOutputOptions options, StylesheetManager stylesheetManager) {
+        if (executor!=null) {
+            /* Image sizes are filled in at the end, so we need the whole document */
+            return new BufferingPostProcessingHandler(this, resultHandler, options, stylesheetManager);
+        }
+        return super.createPostProcessingHandler(resultHandler, options, stylesheetManager);
     }
     
     @Override
     protected void handleMathMLIsland(final Element inputMathIsland, Document outputDocument,
             Node outputParentNode, final int mathmlCounter) {
+        if (executor!=null) {
+            scheduleMathMLIsland(inputMathIsland, outputDocument, outputParentNode, mathmlCounter);
+            return;
+        }
+
         /* We use JEuclid to create image rendition of Node, adding some appropriate XHTML to the
          * outputDocument instead of the original MathML.
          * 
@@ -56,7 +171,7 @@ public final class JEuclidMathMLPostProcessor extends MathMLPostProcessor {
             }
         }
         String contentType = imageSavingCallback.getImageContentType(mathmlCounter);
-        MutableLayoutContext layoutContext = imageSavingCallback.getLayoutContext(mathmlCounter);
+        LayoutContext layoutContext = getLayoutContext(mathmlCounter);
         Dimension imageDimension = null;
         try {
             /* Call up JEuclid, saving to either File or Stream as determine above */
@@ -82,15 +197,22 @@ public final class JEuclidMathMLPostProcessor extends MathMLPostProcessor {
             imageSavingCallback.imageSavingFailed(imageOutputObject, mathmlCounter, contentType, e);
         }
 
-        /* Next we extract the SnuggleTeX annotation within the MathML element, if applicable, which contains the
+        /* Then add the appropriate XHTML */
+        appendImageElement(inputMathIsland, outputDocument, outputParentNode,
+                imageSavingCallback.getImageURL(mathmlCounter), imageDimension);
+    }
+
+    /**
+     * Adds a <tt>div</tt> or <tt>span</tt> containing an <tt>img</tt> element with the given
+     * URL and size to the outputDocument, in place of the given MathML element, returning the
+     * <tt>img</tt> element.
+     */
+    private Element appendImageElement(final Element inputMathIsland, final Document outputDocument,
+            final Node outputParentNode, final String imageURL, final Dimension imageDimension) {
+        /* First we extract the SnuggleTeX annotation within the MathML element, if applicable, which contains the
          * original LaTeX input for this math region. This is used to create an "alt" attribute.
          */
-        String snuggleTeXEncoding = SnuggleUtilities.extractSnuggleTeXAnnotation(inputMathIsland);
-        if (snuggleTeXEncoding!=null) {
-            snuggleTeXEncoding = snuggleTeXEncoding
-                .replaceAll("%\\s+", "") /* Strip LaTeX comments */
-                .replaceAll("\\s+", " "); /* Normalise whitespace */
-        }
+        String snuggleTeXEncoding = extractAltText(inputMathIsland);
         
         /* Next we add <div> or <span> to the output Document instead of the input <math/> element */
         boolean isBlock = inputMathIsland.getAttribute("display").equals("block");
@@ -100,12 +222,321 @@ public final class JEuclidMathMLPostProcessor extends MathMLPostProcessor {
         
         /* Then put an <img/> inside the <div> or <span> */
         Element imgElement = outputDocument.createElementNS(W3CConstants.XHTML_NAMESPACE, "img");
-        imgElement.setAttribute("src", imageSavingCallback.getImageURL(mathmlCounter));
-        imgElement.setAttribute("width", Integer.toString(imageDimension.width));
-        imgElement.setAttribute("height", Integer.toString(imageDimension.height));
+        imgElement.setAttribute("src", imageURL);
+        setImageDimension(imgElement, imageDimension);
         if (snuggleTeXEncoding!=null) {
             imgElement.setAttribute("alt", snuggleTeXEncoding);
         }
         divOrSpan.appendChild(imgElement);
+        return imgElement;
+    }
+
+    /**
+     * Extracts the SnuggleTeX annotation within the given MathML element, if present, tidied
+     * up to make it suitable for use as alternative text. Returns null if there is no such
+     * annotation.
+     */
+    static String extractAltText(final Element inputMathIsland) {
+        String snuggleTeXEncoding = SnuggleUtilities.extractSnuggleTeXAnnotation(inputMathIsland);
+        if (snuggleTeXEncoding!=null) {
+            snuggleTeXEncoding = snuggleTeXEncoding
+                .replaceAll("%\\s+", "") /* Strip LaTeX comments */
+                .replaceAll("\\s+", " "); /* Normalise whitespace */
+        }
+        return snuggleTeXEncoding;
+    }
+
+    private static void setImageDimension(final Element imgElement, final Dimension imageDimension) {
+        imgElement.setAttribute("width", Integer.toString(imageDimension.width));
+        imgElement.setAttribute("height", Integer.toString(imageDimension.height));
+    }
+
+    /**
+     * Returns the JEuclid {@link LayoutContext} to use for the given image, using the shared
+     * context where the callback provides one.
+     */
+    private LayoutContext getLayoutContext(final int mathmlCounter) {
+        if (imageSavingCallback instanceof SimpleMathMLImageSavingCallback) {
+            return ((SimpleMathMLImageSavingCallback) imageSavingCallback).getSharedLayoutContext(mathmlCounter);
+        }
+        return imageSavingCallback.getLayoutContext(mathmlCounter);
+    }
+
+    //---------------------------------------------------------------------
+    // Concurrent rendering
+
+    /**
+     * Adds the XHTML for the given MathML element to the outputDocument, scheduling an image
+     * to be rendered if an identical element has not already been seen.
+     */
+    private void scheduleMathMLIsland(final Element inputMathIsland, final Document outputDocument,
+            final Node outputParentNode, final int mathmlCounter) {
+        RenderingState renderingState = renderingStateMap.get(outputDocument);
+        if (renderingState==null) {
+            renderingState = new RenderingState();
+            renderingStateMap.put(outputDocument, renderingState);
+        }
+
+        /* See if we've already got an image for this island */
+        String islandKey = createIslandKey(inputMathIsland);
+        PendingImage image = renderingState.imageMap.get(islandKey);
+        if (image==null && sharedImageMap!=null) {
+            image = sharedImageMap.get(islandKey);
+        }
+        if (image==null) {
+            /* New image, so claim it. (If sharing, we might race with another document
+             * here, in which case we'll use its image instead.) Only the winner consults the
+             * callback, so that nothing is asked for that won't be used. */
+            PendingImage newImage = new PendingImage(islandKey, mathmlCounter);
+            image = sharedImageMap!=null ? sharedImageMap.putIfAbsent(islandKey, newImage) : null;
+            if (image==null) {
+                image = newImage;
+                try {
+                    image.prepare(inputMathIsland, renderingState.documentBuilder);
+                }
+                catch (RuntimeException e) {
+                    if (sharedImageMap!=null) {
+                        sharedImageMap.remove(islandKey, image);
+                    }
+                    throw e;
+                }
+                renderingState.ownedImages.add(image);
+                try {
+                    executor.execute(image.renderingTask);
+                }
+                catch (RejectedExecutionException e) {
+                    /* Executor is full or shut down, so do it ourselves */
+                    image.renderingTask.run();
+                }
+            }
+        }
+        renderingState.imageMap.put(islandKey, image);
+
+        /* Add XHTML, recording the <img/> element so that its URL and size can be filled in
+         * later. (The URL might not be known yet if another document is preparing the image.) */
+        Element imgElement = appendImageElement(inputMathIsland, outputDocument, outputParentNode,
+                "", new Dimension(0, 0));
+        renderingState.imgElements.add(imgElement);
+        renderingState.imgElementImages.add(image);
+    }
+
+    /**
+     * Waits for all of the images in the given document to be rendered, informing the
+     * {@link MathMLImageSavingCallback} of the outcome and then filling in the URLs and sizes
+     * of the resulting <tt>img</tt> elements.
+     */
+    @Override
+    protected void finishDocument(final Document outputDocument) {
+        if (executor==null) {
+            return;
+        }
+        RenderingState renderingState = renderingStateMap.remove(outputDocument);
+        if (renderingState==null) {
+            /* (No MathML) */
+            return;
+        }
+
+        /* Inform callback about the images we rendered, in document order */
+        for (PendingImage image : renderingState.ownedImages) {
+            Dimension imageDimension = image.awaitDimension();
+            if (imageDimension!=null) {
+                imageSavingCallback.imageSavingSucceeded(image.imageOutputObject, image.mathmlCounter, image.contentType);
+            }
+            else {
+                if (sharedImageMap!=null) {
+                    /* Forget about this one so that it will be retried next time */
+                    sharedImageMap.remove(image.islandKey, image);
+                }
+                imageSavingCallback.imageSavingFailed(image.imageOutputObject, image.mathmlCounter,
+                        image.contentType, image.failure);
+            }
+        }
+
+        /* Then fill in URLs and sizes */
+        for (int i=0, size=renderingState.imgElements.size(); i<size; i++) {
+            PendingImage image = renderingState.imgElementImages.get(i);
+            Dimension imageDimension = image.awaitDimension();
+            Element imgElement = renderingState.imgElements.get(i);
+            imgElement.setAttribute("src", image.imageURL!=null ? image.imageURL : "");
+            setImageDimension(imgElement, imageDimension!=null ? imageDimension : new Dimension(0, 0));
+        }
+    }
+
+    /**
+     * Creates a String that is the same for structurally identical MathML elements. (This
+     * includes any annotations, so that any source LaTeX must match too.)
+     */
+    static String createIslandKey(final Element inputMathIsland) {
+        StringBuilder result = new StringBuilder();
+        appendIslandKey(result, inputMathIsland);
+        return result.toString();
+    }
+
+    private static void appendIslandKey(final StringBuilder result, final Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                result.append('<').append(node.getNamespaceURI())
+                    .append(' ').append(node.getLocalName()!=null ? node.getLocalName() : node.getNodeName());
+                NamedNodeMap attributes = node.getAttributes();
+                Attr[] sortedAttributes = new Attr[attributes.getLength()];
+                for (int i=0; i<sortedAttributes.length; i++) {
+                    sortedAttributes[i] = (Attr) attributes.item(i);
+                }
+                Arrays.sort(sortedAttributes, attributeComparator);
+                for (Attr attribute : sortedAttributes) {
+                    result.append(' ').append(attribute.getNamespaceURI())
+                        .append(' ').append(attribute.getName())
+                        .append("=\"");
+                    appendEscaped(result, attribute.getValue());
+                    result.append('"');
+                }
+                result.append('>');
+                for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+                    appendIslandKey(result, child);
+                }
+                result.append("</>");
+                break;
+
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                appendEscaped(result, node.getNodeValue());
+                break;
+
+            default:
+                /* (Ignore comments and PIs) */
+                break;
+        }
+    }
+
+    private static void appendEscaped(final StringBuilder result, final String value) {
+        for (int i=0, length=value.length(); i<length; i++) {
+            char c = value.charAt(i);
+            if (c=='<' || c=='"' || c=='&') {
+                result.append('&').append((int) c).append(';');
+            }
+            else {
+                result.append(c);
+            }
+        }
+    }
+
+    private static final Comparator<Attr> attributeComparator = new Comparator<Attr>() {
+        public int compare(Attr a1, Attr a2) {
+            String ns1 = a1.getNamespaceURI()!=null ? a1.getNamespaceURI() : "";
+            String ns2 = a2.getNamespaceURI()!=null ? a2.getNamespaceURI() : "";
+            int result = ns1.compareTo(ns2);
+            return result!=0 ? result : a1.getName().compareTo(a2.getName());
+        }
+    };
+
+    /**
+     * State for each document being processed concurrently.
+     */
+    private static final class RenderingState {
+
+        /** Used to create a separate copy of each island for rendering */
+        final DocumentBuilder documentBuilder = XMLUtilities.createNSAwareDocumentBuilder();
+
+        /** Images used in this document, keyed on island structure */
+        final Map<String, PendingImage> imageMap = new HashMap<String, PendingImage>();
+
+        /** Images rendered on behalf of this document, in document order */
+        final List<PendingImage> ownedImages = new ArrayList<PendingImage>();
+
+        /** <tt>img</tt> elements created, in document order */
+        final List<Element> imgElements = new ArrayList<Element>();
+
+        /** Images used by each of the {@link #imgElements} */
+        final List<PendingImage> imgElementImages = new ArrayList<PendingImage>();
+    }
+
+    /**
+     * Represents an image being rendered. This is cheap to create, so that it can be put into
+     * the shared Map before {@link #prepare(Element, DocumentBuilder)} consults the
+     * {@link MathMLImageSavingCallback}, which must happen on the post-processing Thread.
+     * <p>
+     * The fields set by {@link #prepare(Element, DocumentBuilder)} are safe for other Threads
+     * to read once {@link #awaitDimension()} has returned.
+     */
+    private final class PendingImage {
+
+        final String islandKey;
+        final int mathmlCounter;
+        final FutureTask<Dimension> renderingTask;
+        String contentType;
+        String imageURL;
+        Object imageOutputObject;
+        Throwable failure;
+
+        private Document islandDocument;
+        private LayoutContext layoutContext;
+        private RuntimeException preparationFailure;
+
+        public PendingImage(final String islandKey, final int mathmlCounter) {
+            this.islandKey = islandKey;
+            this.mathmlCounter = mathmlCounter;
+            this.renderingTask = new FutureTask<Dimension>(new Callable<Dimension>() {
+                public Dimension call() throws Exception {
+                    return render();
+                }
+            });
+        }
+
+        /**
+         * Consults the {@link MathMLImageSavingCallback} about this image, ready for it to be
+         * rendered. If this fails then this image is also marked as having failed, so that
+         * nothing waits for it forever.
+         */
+        public void prepare(final Element inputMathIsland, final DocumentBuilder documentBuilder) {
+            try {
+                /* DOMs aren't safe to read from multiple Threads, so we render a copy of the island */
+                islandDocument = documentBuilder.newDocument();
+                islandDocument.appendChild(islandDocument.importNode(inputMathIsland, true));
+
+                /* Work out whether we're saving to File (first choice) or OutputStream */
+                File imageOutputFile = imageSavingCallback.getImageOutputFile(mathmlCounter);
+                OutputStream imageOutputStream = imageOutputFile==null ? imageSavingCallback.getImageOutputStream(mathmlCounter) : null;
+                if (imageOutputFile==null && imageOutputStream==null) {
+                    throw new IllegalArgumentException("Both getImageOutputFile() and getImageOutputStream() returned null");
+                }
+                imageOutputObject = imageOutputFile!=null ? imageOutputFile : imageOutputStream;
+                contentType = imageSavingCallback.getImageContentType(mathmlCounter);
+                imageURL = imageSavingCallback.getImageURL(mathmlCounter);
+                layoutContext = getLayoutContext(mathmlCounter);
+            }
+            catch (RuntimeException e) {
+                preparationFailure = e;
+                renderingTask.run();
+                throw e;
+            }
+        }
+
+        private Dimension render() throws Exception {
+            if (preparationFailure!=null) {
+                throw preparationFailure;
+            }
+            Converter converter = Converter.getInstance();
+            if (imageOutputObject instanceof File) {
+                return converter.convert(islandDocument, (File) imageOutputObject, contentType, layoutContext);
+            }
+            return converter.convert(islandDocument, (OutputStream) imageOutputObject, contentType, layoutContext);
+        }
+
+        /**
+         * Waits for this image to be rendered, returning its size or null if rendering failed.
+         */
+        public Dimension awaitDimension() {
+            try {
+                return renderingTask.get();
+            }
+            catch (ExecutionException e) {
+                failure = e.getCause();
+                return null;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SnuggleRuntimeException("Interrupted while waiting for MathML image to be rendered", e);
+            }
+        }
     }
 }
\ No newline at end of file
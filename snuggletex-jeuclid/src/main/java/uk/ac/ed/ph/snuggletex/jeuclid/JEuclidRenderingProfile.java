@@ -0,0 +1,261 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.jeuclid;
+
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+
+import java.awt.Color;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sourceforge.jeuclid.LayoutContext;
+import net.sourceforge.jeuclid.context.LayoutContextImpl;
+import net.sourceforge.jeuclid.context.Parameter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Describes the JEuclid settings used to render MathML images (font size, colours and
+ * anti-aliasing), and provides a shared, read-only JEuclid {@link LayoutContext} for them.
+ * <p>
+ * Layout contexts are created once per distinct profile and then reused, so rendering lots
+ * of images with the same settings does not keep setting up new contexts. Call
+ * {@link #warmUp()} (e.g. when an application starts) to load the AWT fonts and the JEuclid
+ * and ImageIO machinery before the first "real" image is rendered, which otherwise makes
+ * that image much slower than the rest.
+ * <p>
+ * An instance of this class is immutable and thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class JEuclidRenderingProfile implements Serializable {
+
+    private static final long serialVersionUID = 3203469587683584106L;
+
+    /**
+     * Profile using the default font size and anti-aliasing settings from
+     * {@link SimpleMathMLImageSavingCallback}, with black text on a transparent background.
+     */
+    public static final JEuclidRenderingProfile DEFAULT = new JEuclidRenderingProfile(
+            Float.parseFloat(SimpleMathMLImageSavingCallback.DEFAULT_FONT_SIZE),
+            SimpleMathMLImageSavingCallback.DEFAULT_ANTI_ALIASING, Color.BLACK, null);
+
+    /** Shared layout contexts for each profile that has been used so far */
+    private static final ConcurrentMap<JEuclidRenderingProfile, LayoutContext> layoutContextMap
+        = new ConcurrentHashMap<JEuclidRenderingProfile, LayoutContext>();
+
+    /** Set once the AWT fonts have been loaded */
+    private static volatile boolean fontsLoaded = false;
+
+    private final float fontSize;
+    private final boolean antiAliasing;
+    private final Color foreground;
+    private final Color background;
+
+    /**
+     * Creates a new profile.
+     *
+     * @param fontSize font size in points, which must be positive
+     * @param antiAliasing whether to anti-alias text
+     * @param foreground colour of the text, which must not be null
+     * @param background colour of the background, which may be null to indicate transparency
+     */
+    public JEuclidRenderingProfile(final float fontSize, final boolean antiAliasing,
+            final Color foreground, final Color background) {
+        if (!(fontSize > 0.0f)) {
+            throw new IllegalArgumentException("fontSize must be positive");
+        }
+        ConstraintUtilities.ensureNotNull(foreground, "foreground");
+        this.fontSize = fontSize;
+        this.antiAliasing = antiAliasing;
+        this.foreground = foreground;
+        this.background = background;
+    }
+
+    public float getFontSize() {
+        return fontSize;
+    }
+
+    public boolean isAntiAliasing() {
+        return antiAliasing;
+    }
+
+    public Color getForeground() {
+        return foreground;
+    }
+
+    public Color getBackground() {
+        return background;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Returns the shared JEuclid {@link LayoutContext} for this profile, creating it if this
+     * is the first time it has been asked for.
+     * <p>
+     * The result is read-only; build a new {@link LayoutContextImpl} from it if you need to
+     * change anything else.
+     */
+    public LayoutContext getLayoutContext() {
+        LayoutContext result = layoutContextMap.get(this);
+        if (result==null) {
+            LayoutContext newContext = new ReadOnlyLayoutContext(createLayoutContext());
+            result = layoutContextMap.putIfAbsent(this, newContext);
+            if (result==null) {
+                result = newContext;
+            }
+        }
+        return result;
+    }
+
+    private LayoutContextImpl createLayoutContext() {
+        LayoutContextImpl result = new LayoutContextImpl(LayoutContextImpl.getDefaultLayoutContext());
+        result.setParameter(Parameter.MATHSIZE, Float.valueOf(fontSize));
+        result.setParameter(Parameter.ANTIALIAS, Boolean.valueOf(antiAliasing));
+        result.setParameter(Parameter.MATHCOLOR, foreground);
+        result.setParameter(Parameter.MATHBACKGROUND, background);
+        return result;
+    }
+
+    /**
+     * Warms up the rendering of images using this profile by loading the AWT fonts (if this
+     * has not already been done) and rendering a small sample expression, discarding the
+     * result.
+     * <p>
+     * This is safe to call more than once, and from any thread, but is only really worth
+     * calling once per profile, typically from a background thread at startup.
+     *
+     * @param contentType MIME type of the images that will be rendered, e.g. <tt>image/png</tt>
+     */
+    public void warmUp(final String contentType) {
+        ConstraintUtilities.ensureNotNull(contentType, "contentType");
+        loadFonts();
+        MathMLImageRenderer renderer = new MathMLImageRenderer(getLayoutContext(), contentType);
+        try {
+            renderer.renderImage(createWarmUpMathElement());
+        }
+        catch (IOException e) {
+            throw new SnuggleRuntimeException("Could not render warm-up image", e);
+        }
+    }
+
+    /**
+     * Warms up the rendering of PNG images using this profile.
+     *
+     * @see #warmUp(String)
+     */
+    public void warmUp() {
+        warmUp(SimpleMathMLImageSavingCallback.DEFAULT_CONTENT_TYPE);
+    }
+
+    /**
+     * Loads the available AWT fonts, which is slow the first time it happens. JEuclid looks
+     * through these when choosing fonts for each new layout context and font size.
+     */
+    public static void loadFonts() {
+        if (!fontsLoaded) {
+            GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
+            fontsLoaded = true;
+        }
+    }
+
+    /**
+     * Creates a small MathML expression using a reasonable mix of elements and characters
+     * (i.e. both serif and symbol fonts, fractions, scripts and stretchy operators).
+     */
+    private static Element createWarmUpMathElement() {
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element math = appendMathMLElement(document, document, "math");
+        Element mrow = appendMathMLElement(document, math, "mrow");
+        Element munderover = appendMathMLElement(document, mrow, "munderover");
+        appendMathMLElement(document, munderover, "mo").setTextContent("\u2211");
+        appendMathMLElement(document, munderover, "mi").setTextContent("i");
+        appendMathMLElement(document, munderover, "mi").setTextContent("n");
+        Element mfrac = appendMathMLElement(document, mrow, "mfrac");
+        Element msup = appendMathMLElement(document, mfrac, "msup");
+        appendMathMLElement(document, msup, "mi").setTextContent("\u03b1");
+        appendMathMLElement(document, msup, "mn").setTextContent("2");
+        Element msqrt = appendMathMLElement(document, mfrac, "msqrt");
+        appendMathMLElement(document, msqrt, "mi").setTextContent("x");
+        appendMathMLElement(document, mrow, "mo").setTextContent("\u2264");
+        Element mfenced = appendMathMLElement(document, mrow, "mfenced");
+        appendMathMLElement(document, mfenced, "mn").setTextContent("1.5");
+        return math;
+    }
+
+    private static Element appendMathMLElement(final Document document, final Node parent,
+            final String localName) {
+        Element result = document.createElementNS(W3CConstants.MATHML_NAMESPACE, localName);
+        parent.appendChild(result);
+        return result;
+    }
+
+    //-------------------------------------------------
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof JEuclidRenderingProfile)) {
+            return false;
+        }
+        JEuclidRenderingProfile other = (JEuclidRenderingProfile) obj;
+        return Float.floatToIntBits(fontSize)==Float.floatToIntBits(other.fontSize)
+            && antiAliasing==other.antiAliasing
+            && foreground.equals(other.foreground)
+            && (background!=null ? background.equals(other.background) : other.background==null);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Float.floatToIntBits(fontSize);
+        result = 31 * result + (antiAliasing ? 1 : 0);
+        result = 31 * result + foreground.hashCode();
+        result = 31 * result + (background!=null ? background.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this))
+            + "(fontSize=" + fontSize
+            + ",antiAliasing=" + antiAliasing
+            + ",foreground=" + foreground
+            + ",background=" + background
+            + ")";
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Read-only view of a {@link LayoutContext} that is never changed after it has been
+     * created, so is safe to share between threads.
+     */
+    private static final class ReadOnlyLayoutContext implements LayoutContext, Serializable {
+
+        private static final long serialVersionUID = -4011563466153233516L;
+
+        private final LayoutContext delegate;
+
+        public ReadOnlyLayoutContext(final LayoutContext delegate) {
+            this.delegate = delegate;
+        }
+
+        public Object getParameter(final Parameter which) {
+            return delegate.getParameter(which);
+        }
+    }
+}
@@ -11,11 +11,14 @@ import uk.ac.ed.ph.snuggletex.DownConvertingPostProcessor;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptionsBuilder;
 
+import java.util.concurrent.Executor;
+
 /**
  * Some utility methods for using the JEuclid-based "MathML to Image" conversion
  * functionality.
  *
  * @see WebPageOutputOptionsBuilder
+ * @see MathMLImageRenderer
  *
  * @author  David McKain
  * @version $Revision$
@@ -48,6 +51,59 @@ public final class JEuclidUtilities {
         }
     }
     
+    /**
+     * Version of {@link #setupJEuclidPostProcessors(DOMOutputOptions, boolean, MathMLImageSavingCallback)}
+     * that renders images concurrently using the given {@link Executor}, rendering
+     * structurally identical MathML elements within each document only once.
+     * 
+     * @see JEuclidMathMLPostProcessor#JEuclidMathMLPostProcessor(MathMLImageSavingCallback, Executor, boolean)
+     * 
+     * @param options existing {@link DOMOutputOptions} Object
+     * @param downConvertFirst
+     * @param callback
+     * @param executor {@link Executor} used to render images
+     * 
+     * @since 1.3.1
+     */
+    public static void setupJEuclidPostProcessors(DOMOutputOptions options,
+            boolean downConvertFirst, MathMLImageSavingCallback callback, Executor executor) {
+        JEuclidMathMLPostProcessor jeuclidPostProcessor = new JEuclidMathMLPostProcessor(callback, executor, false);
+        if (downConvertFirst) {
+            options.setDOMPostProcessors(new DownConvertingPostProcessor(), jeuclidPostProcessor);
+        }
+        else {
+            options.setDOMPostProcessors(jeuclidPostProcessor);
+        }
+    }
+    
+    /**
+     * Takes an existing {@link DOMOutputOptions} and configures it to replace MathML with
+     * renditions embedded directly in the resulting document using JEuclid, optionally
+     * down-converting simple expressions to HTML+CSS beforehand.
+     * <p>
+     * This works by <strong>replacing</strong> any existing {@link DOMPostProcessor}s.
+     * 
+     * @see InlineJEuclidMathMLPostProcessor
+     * 
+     * @param options existing {@link DOMOutputOptions} Object
+     * @param downConvertFirst
+     * @param format how to embed the rendered MathML
+     * @param renderingProfile settings used to render MathML
+     * 
+     * @since 1.3.1
+     */
+    public static void setupInlineJEuclidPostProcessors(DOMOutputOptions options,
+            boolean downConvertFirst, InlineMathMLImageFormat format, JEuclidRenderingProfile renderingProfile) {
+        InlineJEuclidMathMLPostProcessor inlinePostProcessor = new InlineJEuclidMathMLPostProcessor(format,
+                renderingProfile, InlineJEuclidMathMLPostProcessor.DEFAULT_ID_PREFIX);
+        if (downConvertFirst) {
+            options.setDOMPostProcessors(new DownConvertingPostProcessor(), inlinePostProcessor);
+        }
+        else {
+            options.setDOMPostProcessors(inlinePostProcessor);
+        }
+    }
+    
     /**
      * Creates a new {@link WebPageOutputOptions} suitably configured for converting MathML
      * to images, with optional down-conversion.
@@ -0,0 +1,272 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.jeuclid;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import net.sourceforge.jeuclid.LayoutContext;
+import net.sourceforge.jeuclid.MutableLayoutContext;
+import net.sourceforge.jeuclid.context.LayoutContextImpl;
+import net.sourceforge.jeuclid.context.Parameter;
+import net.sourceforge.jeuclid.converter.Converter;
+import net.sourceforge.jeuclid.layout.JEuclidView;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Renders MathML elements (or simple SnuggleTeX inputs) directly to images using JEuclid,
+ * returning the image data along with its dimensions and baseline.
+ * <p>
+ * This is much more direct than using {@link JEuclidMathMLPostProcessor} with a
+ * {@link MathMLImageSavingCallback}, which only creates images as a side effect of building
+ * a web page, so is the better choice when you just want an image.
+ * <p>
+ * Raster image types supported by {@link ImageIO} (e.g. PNG) are drawn directly; other types
+ * (e.g. SVG, where available) are passed on to JEuclid's {@link Converter}.
+ * <p>
+ * An instance of this class is thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class MathMLImageRenderer {
+
+    /** Background used for images supporting transparency, if no background has been specified */
+    private static final Color TRANSPARENT = new Color(255, 255, 255, 0);
+
+    private final LayoutContext layoutContext;
+    private final String contentType;
+
+    /**
+     * Creates a renderer producing PNG images, using the shared layout context for
+     * {@link JEuclidRenderingProfile#DEFAULT}.
+     */
+    public MathMLImageRenderer() {
+        this(JEuclidRenderingProfile.DEFAULT, SimpleMathMLImageSavingCallback.DEFAULT_CONTENT_TYPE);
+    }
+
+    /**
+     * Creates a renderer using the shared layout context for the given
+     * {@link JEuclidRenderingProfile}, producing images of the given MIME type.
+     */
+    public MathMLImageRenderer(final JEuclidRenderingProfile renderingProfile, final String contentType) {
+        this(renderingProfile.getLayoutContext(), contentType);
+    }
+
+    /**
+     * Creates a renderer using the given JEuclid {@link LayoutContext}, which should not be
+     * changed afterwards, producing images of the given MIME type.
+     */
+    public MathMLImageRenderer(final LayoutContext layoutContext, final String contentType) {
+        ConstraintUtilities.ensureNotNull(layoutContext, "layoutContext");
+        ConstraintUtilities.ensureNotNull(contentType, "contentType");
+        this.layoutContext = layoutContext;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Creates a new {@link MutableLayoutContext} using the default font size and anti-aliasing
+     * settings from {@link SimpleMathMLImageSavingCallback}.
+     * <p>
+     * Only use this if you need to change further settings, as
+     * {@link JEuclidRenderingProfile#getLayoutContext()} returns shared contexts.
+     */
+    public static MutableLayoutContext createDefaultLayoutContext() {
+        MutableLayoutContext result = new LayoutContextImpl(LayoutContextImpl.getDefaultLayoutContext());
+        result.setParameter(Parameter.MATHSIZE, Float.valueOf(SimpleMathMLImageSavingCallback.DEFAULT_FONT_SIZE));
+        result.setParameter(Parameter.ANTIALIAS, Boolean.valueOf(SimpleMathMLImageSavingCallback.DEFAULT_ANTI_ALIASING));
+        return result;
+    }
+
+    public LayoutContext getLayoutContext() {
+        return layoutContext;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Renders the given MathML <tt>math</tt> element, returning the image data as a byte array
+     * in the resulting {@link RenderedMathMLImage}.
+     *
+     * @param mathElement element to render, which must not be null
+     * @throws IOException if the image could not be created
+     */
+    public RenderedMathMLImage renderImage(final Element mathElement) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        RenderedMathMLImage metrics = writeImage(mathElement, outputStream);
+        return new RenderedMathMLImage(contentType, metrics.getWidth(), metrics.getHeight(),
+                metrics.getBaseline(), outputStream.toByteArray());
+    }
+
+    /**
+     * Renders the given MathML <tt>math</tt> element, writing the image to the given
+     * {@link OutputStream}, which is left open.
+     *
+     * @param mathElement element to render, which must not be null
+     * @param outputStream stream to write the image to, which must not be null
+     * @return {@link RenderedMathMLImage} describing the image, without any image data
+     * @throws IOException if the image could not be created or written
+     */
+    public RenderedMathMLImage writeImage(final Element mathElement, final OutputStream outputStream)
+            throws IOException {
+        ConstraintUtilities.ensureNotNull(mathElement, "mathElement");
+        ConstraintUtilities.ensureNotNull(outputStream, "outputStream");
+
+        /* Lay out the MathML, which tells us how big things are */
+        boolean hasAlpha = "image/png".equals(contentType);
+        int imageType = hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage layoutImage = new BufferedImage(1, 1, imageType);
+        Graphics2D layoutGraphics = layoutImage.createGraphics();
+        JEuclidView view;
+        try {
+            view = new JEuclidView(mathElement, layoutContext, layoutGraphics);
+        }
+        finally {
+            layoutGraphics.dispose();
+        }
+        int width = Math.max(1, (int) Math.ceil(view.getWidth()));
+        int ascent = (int) Math.ceil(view.getAscentHeight());
+        int height = Math.max(1, ascent + (int) Math.ceil(view.getDescentHeight()));
+
+        /* Then draw and write out the image if ImageIO can handle it */
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(contentType);
+        if (writers.hasNext()) {
+            BufferedImage image = new BufferedImage(width, height, imageType);
+            Graphics2D graphics = image.createGraphics();
+            try {
+                graphics.setColor(getColor(Parameter.MATHBACKGROUND, hasAlpha ? TRANSPARENT : Color.WHITE));
+                graphics.fillRect(0, 0, width, height);
+                graphics.setColor(getColor(Parameter.MATHCOLOR, Color.BLACK));
+                view.draw(graphics, 0, ascent);
+            }
+            finally {
+                graphics.dispose();
+            }
+            ImageWriter writer = writers.next();
+            ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream);
+            try {
+                writer.setOutput(imageOutputStream);
+                writer.write(image);
+            }
+            finally {
+                writer.dispose();
+                imageOutputStream.close();
+            }
+        }
+        else {
+            /* Let JEuclid work out what to do */
+            if (Converter.getInstance().convert(mathElement, outputStream, contentType, layoutContext)==null) {
+                throw new IOException("JEuclid could not convert MathML to " + contentType);
+            }
+        }
+        return new RenderedMathMLImage(contentType, width, height, ascent, null);
+    }
+
+    /**
+     * Returns the colour specified by the given {@link Parameter} of the layout context,
+     * or the given default if it has not been set.
+     */
+    private Color getColor(final Parameter parameter, final Color defaultColor) {
+        Object value = layoutContext.getParameter(parameter);
+        return value instanceof Color ? (Color) value : defaultColor;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Parses the given {@link SnuggleInput} using the given {@link SnuggleSession}, then
+     * renders the first resulting MathML <tt>math</tt> element, returning the image data
+     * as a byte array.
+     *
+     * @param session session to parse with, which must not be null
+     * @param input input to parse, which must not be null
+     * @param domOutputOptions options for creating the MathML, which must not be null
+     * @return resulting image, or null if the input contained errors or did not yield any MathML.
+     *   Use {@link SnuggleSession#getErrors()} to find out about any errors.
+     * @throws IOException if the input could not be read or the image could not be created
+     */
+    public RenderedMathMLImage renderImage(final SnuggleSession session, final SnuggleInput input,
+            final DOMOutputOptions domOutputOptions) throws IOException {
+        Element mathElement = buildMathElement(session, input, domOutputOptions);
+        return mathElement!=null ? renderImage(mathElement) : null;
+    }
+
+    /**
+     * Parses the given {@link SnuggleInput} using the given {@link SnuggleSession}, then
+     * renders the first resulting MathML <tt>math</tt> element, writing the image to the given
+     * {@link OutputStream}, which is left open.
+     *
+     * @param session session to parse with, which must not be null
+     * @param input input to parse, which must not be null
+     * @param domOutputOptions options for creating the MathML, which must not be null
+     * @param outputStream stream to write the image to, which must not be null
+     * @return {@link RenderedMathMLImage} describing the image, without any image data, or null
+     *   if the input contained errors or did not yield any MathML, in which case nothing will
+     *   have been written. Use {@link SnuggleSession#getErrors()} to find out about any errors.
+     * @throws IOException if the input could not be read or the image could not be created
+     */
+    public RenderedMathMLImage writeImage(final SnuggleSession session, final SnuggleInput input,
+            final DOMOutputOptions domOutputOptions, final OutputStream outputStream)
+            throws IOException {
+        Element mathElement = buildMathElement(session, input, domOutputOptions);
+        return mathElement!=null ? writeImage(mathElement, outputStream) : null;
+    }
+
+    private Element buildMathElement(final SnuggleSession session, final SnuggleInput input,
+            final DOMOutputOptions domOutputOptions) throws IOException {
+        ConstraintUtilities.ensureNotNull(session, "session");
+        ConstraintUtilities.ensureNotNull(input, "input");
+        ConstraintUtilities.ensureNotNull(domOutputOptions, "domOutputOptions");
+        if (!session.parseInput(input) || !session.getErrors().isEmpty()) {
+            return null;
+        }
+        NodeList nodeList = session.buildDOMSubtree(domOutputOptions);
+        if (!session.getErrors().isEmpty()) {
+            return null;
+        }
+        return findMathElement(nodeList);
+    }
+
+    private static Element findMathElement(final NodeList nodeList) {
+        for (int i=0, size=nodeList.getLength(); i<size; i++) {
+            Node node = nodeList.item(i);
+            if (MathMLUtilities.isMathMLElement(node, "math")) {
+                return (Element) node;
+            }
+            if (node.getNodeType()==Node.ELEMENT_NODE) {
+                Element result = findMathElement(node.getChildNodes());
+                if (result!=null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+}
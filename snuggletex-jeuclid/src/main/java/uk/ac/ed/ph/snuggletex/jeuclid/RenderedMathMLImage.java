@@ -0,0 +1,81 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.jeuclid;
+
+/**
+ * Encapsulates the result of rendering a MathML element to an image using a
+ * {@link MathMLImageRenderer}.
+ * <p>
+ * All measurements are in pixels. The baseline is useful for aligning the resulting image
+ * with surrounding text, e.g. by setting the CSS <tt>vertical-align</tt> property to minus
+ * the value of {@link #getDepth()}.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class RenderedMathMLImage {
+
+    private final String contentType;
+    private final int width;
+    private final int height;
+    private final int baseline;
+    private final byte[] imageData;
+
+    RenderedMathMLImage(final String contentType, final int width, final int height,
+            final int baseline, final byte[] imageData) {
+        this.contentType = contentType;
+        this.width = width;
+        this.height = height;
+        this.baseline = baseline;
+        this.imageData = imageData;
+    }
+
+    /** Returns the MIME type of the image */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /** Returns the width of the image */
+    public int getWidth() {
+        return width;
+    }
+
+    /** Returns the height of the image */
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns the distance from the top of the image down to the baseline of the math */
+    public int getBaseline() {
+        return baseline;
+    }
+
+    /** Returns the distance from the baseline of the math down to the bottom of the image */
+    public int getDepth() {
+        return height - baseline;
+    }
+
+    /**
+     * Returns the image data, or null if the image was written to an
+     * {@link java.io.OutputStream} instead.
+     */
+    public byte[] getImageData() {
+        return imageData;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "@" + Integer.toHexString(hashCode())
+            + "(contentType=" + contentType
+            + ",width=" + width
+            + ",height=" + height
+            + ",baseline=" + baseline
+            + ",dataLength=" + (imageData!=null ? Integer.toString(imageData.length) : "n/a")
+            + ")";
+    }
+}
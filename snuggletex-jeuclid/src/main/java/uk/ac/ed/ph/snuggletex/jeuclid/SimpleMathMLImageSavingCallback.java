@@ -5,17 +5,24 @@
  */
 package uk.ac.ed.ph.snuggletex.jeuclid;
 
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+
+import java.awt.Color;
 import java.io.File;
 import java.io.OutputStream;
 
+import net.sourceforge.jeuclid.LayoutContext;
 import net.sourceforge.jeuclid.MutableLayoutContext;
 import net.sourceforge.jeuclid.context.LayoutContextImpl;
-import net.sourceforge.jeuclid.context.Parameter;
 
 /**
  * Partial convenience implementation of {@link MathMLImageSavingCallback} that
  * assumes that the same Content Type will be used to produce each MathML image and
  * restricts the number of configurable features somewhat.
+ * <p>
+ * (As of SnuggleTeX 1.3.1, {@link JEuclidMathMLPostProcessor} uses a JEuclid {@link LayoutContext}
+ * that is shared between all callbacks using the same settings; see
+ * {@link #getSharedLayoutContext(int)} and {@link JEuclidRenderingProfile}.)
  *
  * @author  David McKain
  * @version $Revision$
@@ -28,12 +35,19 @@ public abstract class SimpleMathMLImageSavingCallback implements MathMLImageSavi
     
     private String fontSize;
     private boolean antiAliasing;
+    private Color foreground;
+    private Color background;
     private String imageContentType;
     
-    private final LayoutContextImpl layoutContext;
+    /** Profile for the current settings, worked out lazily when first needed */
+    private JEuclidRenderingProfile renderingProfile;
+    
+    /** Mutable layout context for the current settings, created if asked for */
+    private MutableLayoutContext layoutContext;
     
     public SimpleMathMLImageSavingCallback() {
-        this.layoutContext = new LayoutContextImpl(LayoutContextImpl.getDefaultLayoutContext());
+        this.foreground = Color.BLACK;
+        this.background = null;
         setFontSize(DEFAULT_FONT_SIZE);
         setImageContentType(DEFAULT_CONTENT_TYPE);
         setAntiAliasing(DEFAULT_ANTI_ALIASING);
@@ -45,7 +59,8 @@ public abstract class SimpleMathMLImageSavingCallback implements MathMLImageSavi
 
     public void setFontSize(String fontSize) {
         this.fontSize = fontSize;
-        this.layoutContext.setParameter(Parameter.MATHSIZE, Float.valueOf(fontSize));
+        this.renderingProfile = null;
+        this.layoutContext = null;
     }
 
 
@@ -55,7 +70,44 @@ public abstract class SimpleMathMLImageSavingCallback implements MathMLImageSavi
 
     public void setAntiAliasing(boolean antiAliasing) {
         this.antiAliasing = antiAliasing;
-        this.layoutContext.setParameter(Parameter.ANTIALIAS, Boolean.valueOf(antiAliasing));
+        this.renderingProfile = null;
+        this.layoutContext = null;
+    }
+
+    
+    /** @since 1.3.1 */
+    public Color getForeground() {
+        return foreground;
+    }
+    
+    /**
+     * Sets the colour of the text, which must not be null. Defaults to black.
+     * 
+     * @since 1.3.1
+     */
+    public void setForeground(Color foreground) {
+        ConstraintUtilities.ensureNotNull(foreground, "foreground");
+        this.foreground = foreground;
+        this.renderingProfile = null;
+        this.layoutContext = null;
+    }
+
+    
+    /** @since 1.3.1 */
+    public Color getBackground() {
+        return background;
+    }
+    
+    /**
+     * Sets the colour of the background, which may be null to indicate transparency
+     * (the default).
+     * 
+     * @since 1.3.1
+     */
+    public void setBackground(Color background) {
+        this.background = background;
+        this.renderingProfile = null;
+        this.layoutContext = null;
     }
 
     
@@ -73,10 +125,43 @@ public abstract class SimpleMathMLImageSavingCallback implements MathMLImageSavi
         return imageContentType;
     }
     
+    /**
+     * Returns the {@link JEuclidRenderingProfile} corresponding to the current settings.
+     * 
+     * @since 1.3.1
+     */
+    public final JEuclidRenderingProfile getRenderingProfile() {
+        if (renderingProfile==null) {
+            renderingProfile = new JEuclidRenderingProfile(Float.parseFloat(fontSize), antiAliasing,
+                    foreground, background);
+        }
+        return renderingProfile;
+    }
+    
+    /**
+     * Returns a {@link MutableLayoutContext} for the current settings. The same context is
+     * returned until the settings are changed, and any further changes made to it will be
+     * used for subsequent images.
+     */
     public final MutableLayoutContext getLayoutContext(int mathmlCounter) {
+        if (layoutContext==null) {
+            layoutContext = new LayoutContextImpl(getRenderingProfile().getLayoutContext());
+        }
         return layoutContext;
     }
     
+    /**
+     * Returns the JEuclid {@link LayoutContext} to actually use when rendering images, which
+     * is the shared, read-only context for the current {@link JEuclidRenderingProfile}, unless
+     * {@link #getLayoutContext(int)} has been called, in which case its result is returned
+     * so that any changes made to it are respected.
+     * 
+     * @since 1.3.1
+     */
+    public final LayoutContext getSharedLayoutContext(int mathmlCounter) {
+        return layoutContext!=null ? layoutContext : getRenderingProfile().getLayoutContext();
+    }
+    
     //----------------------------------------------------
     
     /** @see MathMLImageSavingCallback#getImageOutputFile(int) */
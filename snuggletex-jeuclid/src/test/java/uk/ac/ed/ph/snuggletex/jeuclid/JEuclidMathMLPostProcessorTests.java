@@ -0,0 +1,447 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.jeuclid;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+import uk.ac.ed.ph.snuggletex.XMLStringOutputOptions;
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tests {@link JEuclidMathMLPostProcessor}, concentrating on concurrent rendering and on
+ * the callbacks made when identical MathML elements are only rendered once.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class JEuclidMathMLPostProcessorTests {
+
+    /** Input containing three MathML elements, the first and last of which are identical */
+    private static final String REPEATED_INPUT = "$x^2$ and $\\frac{1}{y}$ and $x^2$";
+
+    /** Input containing three distinct MathML elements */
+    private static final String DISTINCT_INPUT = "$x^2$ and $\\frac{1}{y}$ and $z_1$";
+
+    private SnuggleEngine engine;
+    private ExecutorService executorService;
+    private CountingExecutor executor;
+
+    @Before
+    public void setup() {
+        engine = new SnuggleEngine();
+        executorService = Executors.newFixedThreadPool(4);
+        executor = new CountingExecutor(executorService);
+    }
+
+    @After
+    public void teardown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        RecordingCallback callback = new RecordingCallback("image/png");
+        List<Element> imgElements = process(new JEuclidMathMLPostProcessor(callback), REPEATED_INPUT);
+
+        /* Each element gets its own image */
+        Assert.assertEquals(Arrays.asList(0, 1, 2), callback.outputStreamCounters);
+        Assert.assertEquals(Arrays.asList(0, 1, 2), callback.succeededCounters);
+        Assert.assertEquals(3, imgElements.size());
+        for (int i=0; i<3; i++) {
+            Assert.assertEquals("image" + i + ".png", imgElements.get(i).getAttribute("src"));
+        }
+        Assert.assertEquals("$x^2$", imgElements.get(0).getAttribute("alt"));
+    }
+
+    @Test
+    public void testConcurrentMatchesSequential() throws Exception {
+        /* With no repeated elements, rendering concurrently should make no difference at all */
+        RecordingCallback sequentialCallback = new RecordingCallback("image/png");
+        RecordingCallback concurrentCallback = new RecordingCallback("image/png");
+        String sequentialResult = processToString(new JEuclidMathMLPostProcessor(sequentialCallback), DISTINCT_INPUT);
+        String concurrentResult = processToString(new JEuclidMathMLPostProcessor(concurrentCallback, executor, false),
+                DISTINCT_INPUT);
+        Assert.assertEquals(sequentialResult, concurrentResult);
+        Assert.assertEquals(3, executor.getExecuteCount());
+        Assert.assertEquals(sequentialCallback.outputStreamCounters, concurrentCallback.outputStreamCounters);
+        Assert.assertEquals(sequentialCallback.succeededCounters, concurrentCallback.succeededCounters);
+        for (int i=0; i<3; i++) {
+            Assert.assertTrue(Arrays.equals(sequentialCallback.getImageData(i), concurrentCallback.getImageData(i)));
+        }
+    }
+
+    @Test
+    public void testConcurrentDeduplicated() throws Exception {
+        RecordingCallback callback = new RecordingCallback("image/png");
+        List<Element> imgElements = process(new JEuclidMathMLPostProcessor(callback, executor, false), REPEATED_INPUT);
+
+        /* The repeated element is only rendered once, with the callback only told about that */
+        Assert.assertEquals(2, executor.getExecuteCount());
+        Assert.assertEquals(Arrays.asList(0, 1), callback.outputStreamCounters);
+        Assert.assertEquals(Arrays.asList(0, 1), callback.urlCounters);
+        Assert.assertEquals(Arrays.asList(0, 1), callback.succeededCounters);
+        Assert.assertTrue(callback.failedCounters.isEmpty());
+
+        /* Both copies refer to the same image, and have their sizes filled in */
+        Assert.assertEquals(3, imgElements.size());
+        Assert.assertEquals("image0.png", imgElements.get(0).getAttribute("src"));
+        Assert.assertEquals("image1.png", imgElements.get(1).getAttribute("src"));
+        Assert.assertEquals("image0.png", imgElements.get(2).getAttribute("src"));
+        for (Element imgElement : imgElements) {
+            Assert.assertTrue(Integer.parseInt(imgElement.getAttribute("width")) > 0);
+            Assert.assertTrue(Integer.parseInt(imgElement.getAttribute("height")) > 0);
+        }
+        Assert.assertEquals(imgElements.get(0).getAttribute("width"), imgElements.get(2).getAttribute("width"));
+        Assert.assertEquals(imgElements.get(0).getAttribute("height"), imgElements.get(2).getAttribute("height"));
+        Assert.assertEquals(imgElements.get(0).getAttribute("alt"), imgElements.get(2).getAttribute("alt"));
+    }
+
+    @Test
+    public void testConcurrentCallbackThread() throws Exception {
+        /* Rendering happens elsewhere, but all callbacks happen on this Thread */
+        RecordingCallback callback = new RecordingCallback("image/png");
+        process(new JEuclidMathMLPostProcessor(callback, executor, false), REPEATED_INPUT);
+        Assert.assertFalse(callback.callbackThreads.isEmpty());
+        for (Thread thread : callback.callbackThreads) {
+            Assert.assertSame(Thread.currentThread(), thread);
+        }
+        Assert.assertFalse(executor.executingThreads.isEmpty());
+        Assert.assertFalse(executor.executingThreads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void testConcurrentWithinDocumentOnly() throws Exception {
+        /* Without sharing, each document renders its own images */
+        JEuclidMathMLPostProcessor postProcessor = new JEuclidMathMLPostProcessor(new RecordingCallback("image/png"),
+                executor, false);
+        Assert.assertFalse(postProcessor.isSharingImagesAcrossDocuments());
+        Assert.assertSame(executor, postProcessor.getExecutor());
+        process(postProcessor, REPEATED_INPUT);
+        process(postProcessor, REPEATED_INPUT);
+        Assert.assertEquals(4, executor.getExecuteCount());
+    }
+
+    @Test
+    public void testSharingAcrossDocuments() throws Exception {
+        RecordingCallback callback = new RecordingCallback("image/png");
+        JEuclidMathMLPostProcessor postProcessor = new JEuclidMathMLPostProcessor(callback, executor, true);
+        Assert.assertTrue(postProcessor.isSharingImagesAcrossDocuments());
+        process(postProcessor, REPEATED_INPUT);
+        Assert.assertEquals(2, executor.getExecuteCount());
+
+        /* Second document reuses the images from the first, so the callback hears nothing */
+        callback.clear();
+        List<Element> imgElements = process(postProcessor, "$\\frac{1}{y}$ and $x^2$");
+        Assert.assertEquals(2, executor.getExecuteCount());
+        Assert.assertTrue(callback.outputStreamCounters.isEmpty());
+        Assert.assertTrue(callback.succeededCounters.isEmpty());
+        Assert.assertEquals("image1.png", imgElements.get(0).getAttribute("src"));
+        Assert.assertEquals("image0.png", imgElements.get(1).getAttribute("src"));
+        Assert.assertTrue(Integer.parseInt(imgElements.get(0).getAttribute("width")) > 0);
+
+        /* Once cleared, images are rendered afresh */
+        postProcessor.clearSharedImages();
+        process(postProcessor, "$x^2$");
+        Assert.assertEquals(3, executor.getExecuteCount());
+        Assert.assertEquals(Arrays.asList(0), callback.succeededCounters);
+    }
+
+    @Test
+    public void testConcurrentFailure() throws Exception {
+        /* JEuclid can't make this type of image */
+        RecordingCallback callback = new RecordingCallback("image/x-unknown");
+        JEuclidMathMLPostProcessor postProcessor = new JEuclidMathMLPostProcessor(callback, executor, true);
+        List<Element> imgElements = process(postProcessor, REPEATED_INPUT);
+        Assert.assertTrue(callback.succeededCounters.isEmpty());
+        Assert.assertEquals(Arrays.asList(0, 1), callback.failedCounters);
+        Assert.assertEquals("0", imgElements.get(2).getAttribute("width"));
+
+        /* Failed images aren't shared, so are tried again next time */
+        callback.clear();
+        process(postProcessor, "$x^2$");
+        Assert.assertEquals(3, executor.getExecuteCount());
+        Assert.assertEquals(Arrays.asList(0), callback.failedCounters);
+    }
+
+    @Test
+    public void testRejectedExecution() throws Exception {
+        /* Images are rendered on this Thread if the Executor won't take them */
+        Executor rejectingExecutor = new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+        RecordingCallback callback = new RecordingCallback("image/png");
+        List<Element> imgElements = process(new JEuclidMathMLPostProcessor(callback, rejectingExecutor, false),
+                REPEATED_INPUT);
+        Assert.assertEquals(Arrays.asList(0, 1), callback.succeededCounters);
+        Assert.assertTrue(Integer.parseInt(imgElements.get(2).getAttribute("width")) > 0);
+    }
+
+    @Test
+    public void testConcurrentDocuments() throws Exception {
+        /* Lots of documents being processed at once, sharing images */
+        String expected = processToString(new JEuclidMathMLPostProcessor(new RecordingCallback("image/png"),
+                executorService, false), REPEATED_INPUT);
+        RecordingCallback callback = new SynchronizedRecordingCallback("image/png");
+        final JEuclidMathMLPostProcessor postProcessor = new JEuclidMathMLPostProcessor(callback, executor, true);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService documentExecutor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i=0; i<32; i++) {
+                results.add(documentExecutor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        startLatch.await();
+                        return processToString(postProcessor, REPEATED_INPUT);
+                    }
+                }));
+            }
+            startLatch.countDown();
+            for (Future<String> result : results) {
+                Assert.assertEquals(expected, result.get(10, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            documentExecutor.shutdownNow();
+        }
+        Assert.assertEquals(2, executor.getExecuteCount());
+
+        /* Documents that lost the race for an image must not have asked the callback about it.
+         * (Different documents may win each image, so the order can vary.) */
+        synchronized (callback) {
+            Assert.assertEquals(Arrays.asList(0, 1), sorted(callback.outputStreamCounters));
+            Assert.assertEquals(Arrays.asList(0, 1), sorted(callback.urlCounters));
+            Assert.assertEquals(2, callback.succeededCounters.size());
+            for (int i=0; i<2; i++) {
+                Assert.assertTrue(callback.getImageData(i).length > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testCallbackFailure() throws Exception {
+        /* Callback fails to provide anywhere to save the first image */
+        RecordingCallback callback = new RecordingCallback("image/png") {
+            @Override
+            public OutputStream getImageOutputStream(int mathmlCounter) {
+                OutputStream result = super.getImageOutputStream(mathmlCounter);
+                return outputStreamCounters.size()==1 ? null : result;
+            }
+        };
+        JEuclidMathMLPostProcessor postProcessor = new JEuclidMathMLPostProcessor(callback, executor, true);
+        try {
+            process(postProcessor, "$x^2$");
+            Assert.fail("Expected SnuggleRuntimeException");
+        }
+        catch (SnuggleRuntimeException e) {
+            Throwable cause = e;
+            while (cause.getCause()!=null) {
+                cause = cause.getCause();
+            }
+            Assert.assertTrue(cause instanceof IllegalArgumentException);
+        }
+        Assert.assertEquals(0, executor.getExecuteCount());
+
+        /* The failed image isn't shared, so it is tried again next time */
+        List<Element> imgElements = process(postProcessor, "$x^2$");
+        Assert.assertEquals(1, executor.getExecuteCount());
+        Assert.assertEquals("image0.png", imgElements.get(0).getAttribute("src"));
+        Assert.assertTrue(Integer.parseInt(imgElements.get(0).getAttribute("width")) > 0);
+    }
+
+    //-------------------------------------------------------------------
+
+    private List<Element> process(JEuclidMathMLPostProcessor postProcessor, String input) throws IOException {
+        SnuggleSession session = engine.createSession();
+        Assert.assertTrue(session.parseInput(new SnuggleInput(input)));
+        DOMOutputOptions options = new DOMOutputOptions();
+        options.setAddingMathSourceAnnotations(true);
+        options.setDOMPostProcessors(postProcessor);
+        NodeList nodeList = session.buildDOMSubtree(options);
+        Assert.assertNotNull(nodeList);
+        NodeList imgNodes = ((Element) nodeList.item(0).getParentNode())
+            .getElementsByTagNameNS(W3CConstants.XHTML_NAMESPACE, "img");
+        List<Element> result = new ArrayList<Element>();
+        for (int i=0, size=imgNodes.getLength(); i<size; i++) {
+            result.add((Element) imgNodes.item(i));
+        }
+        return result;
+    }
+
+    private String processToString(JEuclidMathMLPostProcessor postProcessor, String input) throws IOException {
+        SnuggleSession session = engine.createSession();
+        Assert.assertTrue(session.parseInput(new SnuggleInput(input)));
+        XMLStringOutputOptions options = new XMLStringOutputOptions();
+        options.setAddingMathSourceAnnotations(true);
+        options.setDOMPostProcessors(postProcessor);
+        String result = session.buildXMLString(options);
+        Assert.assertNotNull(result);
+        return result;
+    }
+
+    private static List<Integer> sorted(List<Integer> list) {
+        List<Integer> result = new ArrayList<Integer>(list);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * {@link Executor} that counts the tasks it is given and records the Threads they run on.
+     */
+    private static final class CountingExecutor implements Executor {
+
+        private final Executor delegate;
+        private final AtomicInteger executeCount;
+        final List<Thread> executingThreads;
+
+        public CountingExecutor(Executor delegate) {
+            this.delegate = delegate;
+            this.executeCount = new AtomicInteger();
+            this.executingThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        }
+
+        public int getExecuteCount() {
+            return executeCount.get();
+        }
+
+        public void execute(final Runnable command) {
+            executeCount.incrementAndGet();
+            delegate.execute(new Runnable() {
+                public void run() {
+                    executingThreads.add(Thread.currentThread());
+                    command.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Callback that saves images in memory and records what it was asked about.
+     */
+    private static class RecordingCallback extends SimpleMathMLImageSavingCallback {
+
+        final List<Integer> outputStreamCounters = new ArrayList<Integer>();
+        final List<Integer> urlCounters = new ArrayList<Integer>();
+        final List<Integer> succeededCounters = new ArrayList<Integer>();
+        final List<Integer> failedCounters = new ArrayList<Integer>();
+        final List<Thread> callbackThreads = new ArrayList<Thread>();
+        final List<ByteArrayOutputStream> outputStreams = new ArrayList<ByteArrayOutputStream>();
+
+        public RecordingCallback(String contentType) {
+            setImageContentType(contentType);
+        }
+
+        public void clear() {
+            outputStreamCounters.clear();
+            urlCounters.clear();
+            succeededCounters.clear();
+            failedCounters.clear();
+            callbackThreads.clear();
+            outputStreams.clear();
+        }
+
+        public byte[] getImageData(int index) {
+            return outputStreams.get(index).toByteArray();
+        }
+
+        @Override
+        public File getImageOutputFile(int mathmlCounter) {
+            return null;
+        }
+
+        @Override
+        public OutputStream getImageOutputStream(int mathmlCounter) {
+            callbackThreads.add(Thread.currentThread());
+            outputStreamCounters.add(Integer.valueOf(mathmlCounter));
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            outputStreams.add(result);
+            return result;
+        }
+
+        @Override
+        public String getImageURL(int mathmlCounter) {
+            callbackThreads.add(Thread.currentThread());
+            urlCounters.add(Integer.valueOf(mathmlCounter));
+            return "image" + mathmlCounter + ".png";
+        }
+
+        @Override
+        public void imageSavingSucceeded(Object imageFileOrOutputStream, int mathmlCounter,
+                String contentType) {
+            callbackThreads.add(Thread.currentThread());
+            succeededCounters.add(Integer.valueOf(mathmlCounter));
+        }
+
+        public void imageSavingFailed(Object imageFileOrOutputStream, int mathmlCounter,
+                String contentType, Throwable exception) {
+            callbackThreads.add(Thread.currentThread());
+            failedCounters.add(Integer.valueOf(mathmlCounter));
+        }
+    }
+
+    /**
+     * Version of {@link RecordingCallback} that may be shared by documents being processed
+     * on different Threads.
+     */
+    private static final class SynchronizedRecordingCallback extends RecordingCallback {
+
+        public SynchronizedRecordingCallback(String contentType) {
+            super(contentType);
+        }
+
+        @Override
+        public synchronized OutputStream getImageOutputStream(int mathmlCounter) {
+            return super.getImageOutputStream(mathmlCounter);
+        }
+
+        @Override
+        public synchronized String getImageURL(int mathmlCounter) {
+            return super.getImageURL(mathmlCounter);
+        }
+
+        @Override
+        public synchronized void imageSavingSucceeded(Object imageFileOrOutputStream, int mathmlCounter,
+                String contentType) {
+            super.imageSavingSucceeded(imageFileOrOutputStream, mathmlCounter, contentType);
+        }
+
+        @Override
+        public synchronized void imageSavingFailed(Object imageFileOrOutputStream, int mathmlCounter,
+                String contentType, Throwable exception) {
+            super.imageSavingFailed(imageFileOrOutputStream, mathmlCounter, contentType, exception);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.jeuclid;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.Assert;
+
+import net.sourceforge.jeuclid.MutableLayoutContext;
+import net.sourceforge.jeuclid.context.Parameter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MathMLImageRenderer}, checking the reported metrics against the images
+ * actually produced.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class MathMLImageRendererTests {
+
+    private SnuggleEngine engine;
+    private DOMOutputOptions domOutputOptions;
+
+    @Before
+    public void setup() {
+        engine = new SnuggleEngine();
+        domOutputOptions = new DOMOutputOptions();
+    }
+
+    @Test
+    public void testPNG() throws Exception {
+        RenderedMathMLImage result = render(new MathMLImageRenderer(), "$\\frac{1}{x}$");
+        Assert.assertEquals("image/png", result.getContentType());
+        BufferedImage image = decode(result);
+        assertMetrics(result, image);
+
+        /* The default background is transparent, with the maths drawn over it */
+        Assert.assertTrue(image.getColorModel().hasAlpha());
+        Assert.assertTrue(countPixels(image, 0x00000000, 0xff000000) > 0);
+        Assert.assertTrue(countPixels(image, 0xff000000, 0xff000000) > 0);
+    }
+
+    @Test
+    public void testColors() throws Exception {
+        MutableLayoutContext layoutContext = MathMLImageRenderer.createDefaultLayoutContext();
+        layoutContext.setParameter(Parameter.MATHBACKGROUND, Color.RED);
+        layoutContext.setParameter(Parameter.MATHCOLOR, Color.BLUE);
+        layoutContext.setParameter(Parameter.ANTIALIAS, Boolean.FALSE);
+        BufferedImage image = decode(render(new MathMLImageRenderer(layoutContext, "image/png"), "$x$"));
+
+        /* (Anti-aliasing is off, so every pixel should be one colour or the other) */
+        int red = countPixels(image, Color.RED.getRGB(), 0xffffffff);
+        int blue = countPixels(image, Color.BLUE.getRGB(), 0xffffffff);
+        Assert.assertTrue(red > 0);
+        Assert.assertTrue(blue > 0);
+        Assert.assertEquals(image.getWidth() * image.getHeight(), red + blue);
+    }
+
+    @Test
+    public void testWidth() throws Exception {
+        MathMLImageRenderer renderer = new MathMLImageRenderer();
+        RenderedMathMLImage narrow = render(renderer, "$x$");
+        RenderedMathMLImage wide = render(renderer, "$xxxx$");
+        Assert.assertTrue(wide.getWidth() > narrow.getWidth());
+        Assert.assertEquals(narrow.getHeight(), wide.getHeight());
+        Assert.assertEquals(narrow.getBaseline(), wide.getBaseline());
+    }
+
+    @Test
+    public void testBaseline() throws Exception {
+        MathMLImageRenderer renderer = new MathMLImageRenderer();
+        RenderedMathMLImage plain = render(renderer, "$x$");
+        RenderedMathMLImage superscript = render(renderer, "$x^2$");
+        RenderedMathMLImage subscript = render(renderer, "$x_2$");
+        assertMetrics(plain, decode(plain));
+        assertMetrics(superscript, decode(superscript));
+        assertMetrics(subscript, decode(subscript));
+
+        /* Superscripts rise above the baseline, subscripts drop below it */
+        Assert.assertTrue(superscript.getBaseline() > plain.getBaseline());
+        Assert.assertTrue(subscript.getDepth() > plain.getDepth());
+        Assert.assertEquals(plain.getHeight() - plain.getBaseline(), plain.getDepth());
+    }
+
+    @Test
+    public void testJPEG() throws Exception {
+        /* JPEG has no alpha channel, so a white background is used by default */
+        RenderedMathMLImage result = render(new MathMLImageRenderer(JEuclidRenderingProfile.DEFAULT, "image/jpeg"), "$x^2$");
+        Assert.assertEquals("image/jpeg", result.getContentType());
+        BufferedImage image = decode(result);
+        assertMetrics(result, image);
+        Assert.assertFalse(image.getColorModel().hasAlpha());
+    }
+
+    @Test(expected=IOException.class)
+    public void testConverterFallback() throws Exception {
+        /* ImageIO can't write this, so it is handed to JEuclid's Converter, which can't either */
+        render(new MathMLImageRenderer(JEuclidRenderingProfile.DEFAULT, "image/x-unknown"), "$x$");
+    }
+
+    @Test
+    public void testWriteImage() throws Exception {
+        MathMLImageRenderer renderer = new MathMLImageRenderer();
+        RenderedMathMLImage rendered = render(renderer, "$x^2$");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        RenderedMathMLImage written = renderer.writeImage(engine.createSession(), new SnuggleInput("$x^2$"),
+                domOutputOptions, outputStream);
+        Assert.assertNull(written.getImageData());
+        Assert.assertEquals(rendered.getWidth(), written.getWidth());
+        Assert.assertEquals(rendered.getHeight(), written.getHeight());
+        Assert.assertEquals(rendered.getBaseline(), written.getBaseline());
+        Assert.assertTrue(Arrays.equals(rendered.getImageData(), outputStream.toByteArray()));
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        MathMLImageRenderer renderer = new MathMLImageRenderer();
+        SnuggleSession session = engine.createSession();
+        Assert.assertNull(renderer.renderImage(session, new SnuggleInput("$\\frac{1}$"), domOutputOptions));
+        Assert.assertFalse(session.getErrors().isEmpty());
+
+        session = engine.createSession();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Assert.assertNull(renderer.writeImage(session, new SnuggleInput("$\\frac{1}$"), domOutputOptions, outputStream));
+        Assert.assertFalse(session.getErrors().isEmpty());
+        Assert.assertEquals(0, outputStream.size());
+    }
+
+    @Test
+    public void testNoMath() throws Exception {
+        SnuggleSession session = engine.createSession();
+        Assert.assertNull(new MathMLImageRenderer().renderImage(session, new SnuggleInput("Hello"), domOutputOptions));
+        Assert.assertTrue(session.getErrors().isEmpty());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNullElement() throws Exception {
+        new MathMLImageRenderer().renderImage(null);
+    }
+
+    //-------------------------------------------------------------------
+
+    private RenderedMathMLImage render(MathMLImageRenderer renderer, String input) throws IOException {
+        SnuggleSession session = engine.createSession();
+        RenderedMathMLImage result = renderer.renderImage(session, new SnuggleInput(input), domOutputOptions);
+        Assert.assertNotNull(result);
+        Assert.assertTrue(session.getErrors().isEmpty());
+        return result;
+    }
+
+    private static BufferedImage decode(RenderedMathMLImage result) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(result.getImageData()));
+        Assert.assertNotNull(image);
+        return image;
+    }
+
+    private static void assertMetrics(RenderedMathMLImage result, BufferedImage image) {
+        Assert.assertEquals(image.getWidth(), result.getWidth());
+        Assert.assertEquals(image.getHeight(), result.getHeight());
+        Assert.assertTrue(result.getBaseline() > 0);
+        Assert.assertTrue(result.getBaseline() <= result.getHeight());
+    }
+
+    /** Counts the pixels whose ARGB value matches the given one in the bits set in mask */
+    private static int countPixels(BufferedImage image, int argb, int mask) {
+        int result = 0;
+        for (int y=0; y<image.getHeight(); y++) {
+            for (int x=0; x<image.getWidth(); x++) {
+                if ((image.getRGB(x, y) & mask)==(argb & mask)) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+}
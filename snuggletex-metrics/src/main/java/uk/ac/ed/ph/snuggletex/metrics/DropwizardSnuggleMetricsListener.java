@@ -0,0 +1,102 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.metrics;
+
+import uk.ac.ed.ph.snuggletex.DOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.SnuggleMetricsListener;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Implementation of {@link SnuggleMetricsListener} that records everything in a
+ * Dropwizard (formerly Coda Hale) Metrics {@link MetricRegistry}, so that it can then
+ * be reported using any of the usual Metrics reporters.
+ * <p>
+ * The following metrics are registered, all named using the given prefix:
+ * <ul>
+ *   <li>a {@link Timer} called <tt>prefix.stage.name</tt> for each {@link Stage}</li>
+ *   <li>
+ *     a {@link Timer} called <tt>prefix.postprocessor.className</tt> for each class of
+ *     {@link DOMPostProcessor} used
+ *   </li>
+ *   <li>a {@link Histogram} called <tt>prefix.count.name</tt> for each {@link Counter}</li>
+ * </ul>
+ * Register an instance with a {@link SnuggleEngine} via
+ * {@link SnuggleEngine#setMetricsListener(SnuggleMetricsListener)}.
+ * <p>
+ * An instance of this class is thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class DropwizardSnuggleMetricsListener implements SnuggleMetricsListener {
+
+    /** Default prefix for the names of the metrics registered by this class */
+    public static final String DEFAULT_PREFIX = "snuggletex";
+
+    private final MetricRegistry metricRegistry;
+    private final String prefix;
+    private final Map<Stage, Timer> stageTimers;
+    private final Map<Counter, Histogram> counterHistograms;
+
+    public DropwizardSnuggleMetricsListener(final MetricRegistry metricRegistry) {
+        this(metricRegistry, DEFAULT_PREFIX);
+    }
+
+    public DropwizardSnuggleMetricsListener(final MetricRegistry metricRegistry, final String prefix) {
+        ConstraintUtilities.ensureNotNull(metricRegistry, "metricRegistry");
+        ConstraintUtilities.ensureNotNull(prefix, "prefix");
+        this.metricRegistry = metricRegistry;
+        this.prefix = prefix;
+
+        /* Register metrics for the fixed stages and counters up front */
+        this.stageTimers = new EnumMap<Stage, Timer>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, metricRegistry.timer(MetricRegistry.name(prefix, "stage", toMetricName(stage))));
+        }
+        this.counterHistograms = new EnumMap<Counter, Histogram>(Counter.class);
+        for (Counter counter : Counter.values()) {
+            counterHistograms.put(counter, metricRegistry.histogram(MetricRegistry.name(prefix, "count", toMetricName(counter))));
+        }
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void stageCompleted(Stage stage, long durationNanos) {
+        stageTimers.get(stage).update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void postProcessorCompleted(DOMPostProcessor domPostProcessor, long durationNanos) {
+        /* (The registry caches these, so there's no need for us to do so as well) */
+        metricRegistry.timer(MetricRegistry.name(prefix, "postprocessor", domPostProcessor.getClass().getName()))
+            .update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void countRecorded(Counter counter, long count) {
+        counterHistograms.get(counter).update(count);
+    }
+
+    private static String toMetricName(final Enum<?> value) {
+        return value.name().toLowerCase(Locale.ENGLISH).replace('_', '-');
+    }
+}
@@ -7,20 +7,29 @@ package uk.ac.ed.ph.snuggletex.upconversion;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import uk.ac.ed.ph.snuggletex.*;
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.upconversion.internal.NativeMathMLUpConverter;
 import uk.ac.ed.ph.snuggletex.utilities.*;
 
+import javax.xml.transform.Result;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.TransformerHandler;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Standalone utility class for "up-converting" MathML Documents created by either SnuggleTeX
@@ -33,6 +42,13 @@ import java.io.StringReader;
  * This can be invoked within the normal SnuggleTeX parsing process using by adding a
  * {@link UpConvertingPostProcessor} to the List returned by
  * {@link DOMOutputOptions#getDOMPostProcessors()}.
+ * <p>
+ * As of SnuggleTeX 1.3.1, the up-conversion XSLT is also implemented natively in Java for
+ * speed. This is opt-in, via {@link UpConversionOptions#setUsingNativeUpConversion(boolean)},
+ * in which case the XSLT is used as a fallback for any inputs that the Java implementation
+ * does not cover (currently those requiring bracketed Presentation MathML). The XSLT remains
+ * the default and reference implementation, and can always be run directly using
+ * {@link #upConvertSnuggleTeXMathMLUsingXSLT(Document, UpConversionOptions)}.
  * 
  * <h2>Usage Notes</h2>
  * 
@@ -146,6 +162,28 @@ public class MathMLUpConverter {
      *   use defaults.
      */
     public Document upConvertSnuggleTeXMathML(final Document document, final UpConversionOptions upConversionOptions) {
+        if (isUsingNativeUpConversion(upConversionOptions)) {
+            NativeMathMLUpConverter nativeUpConverter = new NativeMathMLUpConverter(createUpConversionOptionsElement(upConversionOptions));
+            Document resultDocument = nativeUpConverter.upConvertDocument(document);
+            if (resultDocument!=null) {
+                return resultDocument;
+            }
+        }
+        return upConvertSnuggleTeXMathMLUsingXSLT(document, upConversionOptions);
+    }
+    
+    /**
+     * Up-converts the SnuggleTeX XHTML output Document using the reference XSLT implementation,
+     * regardless of the setting of {@link UpConversionOptions#isUsingNativeUpConversion()}.
+     * 
+     * @param document DOM {@link Document}, assumed to have been generated by
+     *   {@link SnuggleSession#buildDOMSubtree()} or similar.
+     * @param upConversionOptions {@link UpConversionOptions} to use, or null to
+     *   use defaults.
+     *   
+     * @since 1.3.1
+     */
+    public Document upConvertSnuggleTeXMathMLUsingXSLT(final Document document, final UpConversionOptions upConversionOptions) {
         Document resultDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
         try {
             /* Create required XSLT */
@@ -153,8 +191,7 @@ public class MathMLUpConverter {
             Transformer upconverter = upconverterStylesheet.newTransformer();
             
             /* Pass UpConversionOptions, using default as required */
-            upconverter.setParameter("{" + SnuggleConstants.SNUGGLETEX_NAMESPACE + "}global-upconversion-options",
-                    createUpConversionOptionsElement(upConversionOptions));
+            setUpConversionOptionsParameter(upconverter, upConversionOptions);
             
             /* Do the transform */
             upconverter.transform(new DOMSource(document), new DOMResult(resultDocument));
@@ -168,12 +205,133 @@ public class MathMLUpConverter {
         return resultDocument;
     }
     
+    /**
+     * Up-converts a batch of MathML <tt>&lt;math/&gt;</tt> elements created by SnuggleTeX,
+     * each with its own {@link UpConversionOptions}. This is much more efficient than calling
+     * {@link #upConvertSnuggleTeXMathML(Document, UpConversionOptions)} on each one separately.
+     * <p>
+     * Each item is up-converted natively where possible (as described above), sharing the
+     * options set-up between items with the same {@link UpConversionOptions} Object. Any
+     * items needing the XSLT are then up-converted together using a single transform.
+     * <p>
+     * The results are all created within the returned {@link Document} and are recorded
+     * in each {@link UpConversionBatchItem}, along with any {@link UpConversionFailure}s.
+     * 
+     * @param batchItems {@link UpConversionBatchItem}s to process, which must not be null.
+     * @return {@link Document} owning the results, whose document element contains the
+     *   resulting <tt>&lt;math/&gt;</tt> elements in the same order as the batch.
+     *   
+     * @since 1.3.1
+     */
+    public Document upConvertSnuggleTeXMathMLBatch(final List<UpConversionBatchItem> batchItems) {
+        ConstraintUtilities.ensureNotNull(batchItems, "batchItems");
+        Document resultDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element resultRoot = (Element) resultDocument.appendChild(resultDocument.createElementNS(SnuggleConstants.SNUGGLETEX_NAMESPACE, "s:batch"));
+        Element[] resultElements = new Element[batchItems.size()];
+        
+        /* Do everything we can natively first, remembering which items need the XSLT */
+        List<Integer> xsltItemIndices = new ArrayList<Integer>();
+        Map<UpConversionOptions, NativeMathMLUpConverter> nativeUpConverterMap = new IdentityHashMap<UpConversionOptions, NativeMathMLUpConverter>();
+        for (int i=0; i<resultElements.length; i++) {
+            UpConversionBatchItem batchItem = batchItems.get(i);
+            UpConversionOptions upConversionOptions = batchItem.getUpConversionOptions();
+            if (isUsingNativeUpConversion(upConversionOptions)) {
+                NativeMathMLUpConverter nativeUpConverter = nativeUpConverterMap.get(upConversionOptions);
+                if (nativeUpConverter==null) {
+                    nativeUpConverter = new NativeMathMLUpConverter(createUpConversionOptionsElement(upConversionOptions));
+                    nativeUpConverterMap.put(upConversionOptions, nativeUpConverter);
+                }
+                resultElements[i] = nativeUpConverter.upConvertMathElement(batchItem.getMathElement(), resultDocument);
+            }
+            if (resultElements[i]==null) {
+                xsltItemIndices.add(Integer.valueOf(i));
+            }
+        }
+        
+        /* Then do the rest in a single XSLT pass */
+        if (!xsltItemIndices.isEmpty()) {
+            List<Element> xsltResults = upConvertBatchUsingXSLT(batchItems, xsltItemIndices);
+            for (int i=0; i<xsltResults.size(); i++) {
+                resultElements[xsltItemIndices.get(i).intValue()] = (Element) resultDocument.adoptNode(xsltResults.get(i));
+            }
+        }
+        
+        /* Finally assemble the results */
+        for (int i=0; i<resultElements.length; i++) {
+            resultRoot.appendChild(resultElements[i]);
+            batchItems.get(i).setResult(resultElements[i]);
+        }
+        return resultDocument;
+    }
+    
+    /**
+     * Up-converts the {@link UpConversionBatchItem}s at the given indices using a single
+     * XSLT transform. Each item is preceded by an <tt>&lt;s:upconversion-options/&gt;</tt> element
+     * containing its full set of options, which overrides the (default) global options.
+     */
+    private List<Element> upConvertBatchUsingXSLT(final List<UpConversionBatchItem> batchItems,
+            final List<Integer> itemIndices) {
+        Document batchDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element batchRoot = (Element) batchDocument.appendChild(batchDocument.createElementNS(SnuggleConstants.SNUGGLETEX_NAMESPACE, "s:batch"));
+        for (Integer itemIndex : itemIndices) {
+            UpConversionBatchItem batchItem = batchItems.get(itemIndex.intValue());
+            UpConversionUtilities.appendUpConversionOptionsElement(batchDocument, batchRoot, batchItem.getUpConversionOptions(), true);
+            batchRoot.appendChild(batchDocument.importNode(batchItem.getMathElement(), true));
+        }
+        Document resultDocument = upConvertSnuggleTeXMathMLUsingXSLT(batchDocument, null);
+        List<Element> result = new ArrayList<Element>(itemIndices.size());
+        for (Node child = resultDocument.getDocumentElement().getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (child.getNodeType()==Node.ELEMENT_NODE) {
+                result.add((Element) child);
+            }
+        }
+        if (result.size()!=itemIndices.size()) {
+            throw new SnuggleLogicException("Expected " + itemIndices.size() + " results from batch up-conversion but got " + result.size());
+        }
+        return result;
+    }
+    
+    /**
+     * Creates a {@link TransformerHandler} that up-converts the SnuggleTeX XHTML output described
+     * by the SAX events it receives, sending the results to the given {@link Result}. This is
+     * used by {@link UpConvertingPostProcessor} to allow up-conversion to be chained with other
+     * post-processors without creating intermediate DOMs.
+     * 
+     * @param upConversionOptions {@link UpConversionOptions} to use, or null to
+     *   use defaults.
+     * @param result {@link Result} to send the up-converted document to
+     * 
+     * @since 1.3.1
+     */
+    public TransformerHandler createUpConvertingHandler(final UpConversionOptions upConversionOptions,
+            final Result result) {
+        TransformerHandler upconvertingHandler = stylesheetManager.getTransformerHandler(UPCONVERTER_XSL_LOCATION, true);
+        setUpConversionOptionsParameter(upconvertingHandler.getTransformer(), upConversionOptions);
+        upconvertingHandler.setResult(result);
+        return upconvertingHandler;
+    }
+    
+    /**
+     * Returns whether the native Java up-conversion process should be tried for the given
+     * {@link UpConversionOptions}, which may be null.
+     * 
+     * @since 1.3.1
+     */
+    static boolean isUsingNativeUpConversion(final UpConversionOptions upConversionOptions) {
+        return upConversionOptions!=null && upConversionOptions.isUsingNativeUpConversion();
+    }
+    
+    private void setUpConversionOptionsParameter(final Transformer upconverter, final UpConversionOptions upConversionOptions) {
+        upconverter.setParameter("{" + SnuggleConstants.SNUGGLETEX_NAMESPACE + "}global-upconversion-options",
+                createUpConversionOptionsElement(upConversionOptions));
+    }
+    
     /**
      * DEVELOPER NOTE: I have included the default value for this parameter within the XSLT as well
      * so that people can reuse it easier in a standalone fashion. Make sure you update the XSLT
      * if any of the defaults change here.
      */
-    private Element createUpConversionOptionsElement(final UpConversionOptions upConversionOptions) {
+    static Element createUpConversionOptionsElement(final UpConversionOptions upConversionOptions) {
         Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
         Element root = (Element) document.appendChild(document.createElementNS(SnuggleConstants.SNUGGLETEX_NAMESPACE, "root"));
         UpConversionUtilities.appendUpConversionOptionsElement(document, root, upConversionOptions, true);
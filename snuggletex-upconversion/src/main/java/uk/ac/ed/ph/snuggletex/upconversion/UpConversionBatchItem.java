@@ -0,0 +1,81 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion;
+
+import uk.ac.ed.ph.snuggletex.internal.util.ConstraintUtilities;
+
+import java.util.List;
+
+import org.w3c.dom.Element;
+
+/**
+ * Represents a single MathML <tt>&lt;math/&gt;</tt> element to be up-converted as part of a
+ * batch via {@link MathMLUpConverter#upConvertSnuggleTeXMathMLBatch(List)}, together with the
+ * {@link UpConversionOptions} to use for it.
+ * <p>
+ * Once the batch has been processed, the resulting up-converted <tt>&lt;math/&gt;</tt>
+ * element and any up-conversion failures can be obtained from here.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class UpConversionBatchItem {
+
+    /** MathML <tt>&lt;math/&gt;</tt> element to up-convert, as created by SnuggleTeX */
+    private final Element mathElement;
+
+    /** {@link UpConversionOptions} to use for this item, null to use defaults */
+    private final UpConversionOptions upConversionOptions;
+
+    /** Resulting up-converted element, set once the batch has been processed */
+    private Element resultMathElement;
+
+    /** Failures extracted from {@link #resultMathElement} */
+    private List<UpConversionFailure> upConversionFailures;
+
+    public UpConversionBatchItem(final Element mathElement) {
+        this(mathElement, null);
+    }
+
+    public UpConversionBatchItem(final Element mathElement, final UpConversionOptions upConversionOptions) {
+        ConstraintUtilities.ensureNotNull(mathElement, "mathElement");
+        this.mathElement = mathElement;
+        this.upConversionOptions = upConversionOptions;
+    }
+
+    public Element getMathElement() {
+        return mathElement;
+    }
+
+    public UpConversionOptions getUpConversionOptions() {
+        return upConversionOptions;
+    }
+
+    /**
+     * Returns the up-converted <tt>&lt;math/&gt;</tt> element, or null if this item has not
+     * been processed yet. This will belong to the {@link org.w3c.dom.Document} returned by
+     * {@link MathMLUpConverter#upConvertSnuggleTeXMathMLBatch(List)}.
+     */
+    public Element getResultMathElement() {
+        return resultMathElement;
+    }
+
+    /**
+     * Returns the {@link UpConversionFailure}s recorded in the result, as extracted by
+     * {@link UpConversionUtilities#extractUpConversionFailures(Element)}, or null if this
+     * item has not been processed yet.
+     */
+    public List<UpConversionFailure> getUpConversionFailures() {
+        return upConversionFailures;
+    }
+
+    void setResult(final Element resultMathElement) {
+        this.resultMathElement = resultMathElement;
+        this.upConversionFailures = UpConversionUtilities.extractUpConversionFailures(resultMathElement);
+    }
+}
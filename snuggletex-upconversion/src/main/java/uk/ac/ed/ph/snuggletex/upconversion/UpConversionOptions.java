@@ -33,9 +33,18 @@ public final class UpConversionOptions implements Cloneable {
     
     private final Map<ElementWrapper, String> symbolAssumptions;
     
+    /** 
+     * Whether to use the native Java up-conversion process, falling back to the XSLT
+     * only for inputs it cannot handle.
+     * 
+     * @since 1.3.1
+     */
+    private boolean usingNativeUpConversion;
+    
     public UpConversionOptions() {
         this.specifiedOptionMap = new HashMap<String, String>();
         this.symbolAssumptions = new HashMap<ElementWrapper, String>();
+        this.usingNativeUpConversion = false;
     }
     
     //-------------------------------------------------------------
@@ -128,11 +137,38 @@ public final class UpConversionOptions implements Cloneable {
     
     //-------------------------------------------------------------
     
+    /**
+     * Returns whether up-conversion will be performed using the native Java implementation,
+     * with the XSLT used as a fallback. Returns false if the XSLT will always be used, which
+     * is the default.
+     * 
+     * @since 1.3.1
+     */
+    public boolean isUsingNativeUpConversion() {
+        return usingNativeUpConversion;
+    }
+    
+    /**
+     * Sets whether up-conversion will be performed using the native Java implementation,
+     * with the XSLT used as a fallback. Leave this as false to always use the XSLT.
+     * <p>
+     * Note that the native implementation works on DOMs, so the whole document will be
+     * buffered when {@link UpConvertingPostProcessor} is used in a streaming chain.
+     * 
+     * @since 1.3.1
+     */
+    public void setUsingNativeUpConversion(boolean usingNativeUpConversion) {
+        this.usingNativeUpConversion = usingNativeUpConversion;
+    }
+    
+    //-------------------------------------------------------------
+    
     @Override
     public Object clone() {
         UpConversionOptions result = new UpConversionOptions();
         result.specifiedOptionMap.putAll(specifiedOptionMap);
         result.symbolAssumptions.putAll(symbolAssumptions);
+        result.usingNativeUpConversion = usingNativeUpConversion;
         return result;
     }
 }
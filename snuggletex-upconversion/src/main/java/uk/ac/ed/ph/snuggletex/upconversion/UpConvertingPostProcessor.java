@@ -7,13 +7,21 @@ package uk.ac.ed.ph.snuggletex.upconversion;
 
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.DOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.StreamingDOMPostProcessor;
+import uk.ac.ed.ph.snuggletex.internal.BufferingPostProcessingHandler;
+import uk.ac.ed.ph.snuggletex.internal.util.ContentHandlerFilter;
 import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 
 import org.w3c.dom.Document;
+import org.xml.sax.ContentHandler;
 
 /**
  * Implementation of {@link DOMPostProcessor} that bootstraps into {@link MathMLUpConverter},
  * providing the functionality offered by it.
+ * <p>
+ * As of SnuggleTeX 1.3.1, this is also a {@link StreamingDOMPostProcessor}, so it may be
+ * chained with other post-processors without creating intermediate DOMs. (This only applies
+ * when the XSLT is being used; the native Java up-conversion needs a DOM to work on.)
  * 
  * @since 1.1.0
  * 
@@ -22,7 +30,7 @@ import org.w3c.dom.Document;
  * @author  David McKain
  * @version $Revision$
  */
-public final class UpConvertingPostProcessor implements DOMPostProcessor {
+public final class UpConvertingPostProcessor implements StreamingDOMPostProcessor {
     
     private UpConversionOptions upconversionOptions;
     
@@ -47,4 +55,14 @@ public final class UpConvertingPostProcessor implements DOMPostProcessor {
         return new MathMLUpConverter(stylesheetManager)
             .upConvertSnuggleTeXMathML(workDocument, upconversionOptions);
     }
+    
+    public ContentHandler createPostProcessingHandler(ContentHandler resultHandler,
+            final DOMOutputOptions unused, StylesheetManager stylesheetManager) {
+        if (MathMLUpConverter.isUsingNativeUpConversion(upconversionOptions)) {
+            /* The native up-converter works on DOMs, so buffer up the incoming document */
+            return new BufferingPostProcessingHandler(this, resultHandler, unused, stylesheetManager);
+        }
+        return new MathMLUpConverter(stylesheetManager)
+            .createUpConvertingHandler(upconversionOptions, ContentHandlerFilter.createSAXResult(resultHandler));
+    }
 }
@@ -0,0 +1,616 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion.internal;
+
+import uk.ac.ed.ph.snuggletex.upconversion.UpConversionOptionDefinitions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Hand-written Java implementation of <tt>cmathml-to-maxima.xsl</tt>, which converts the
+ * (restricted) Content MathML produced by {@link PMathMLToCMathMLConverter} into Maxima
+ * input syntax.
+ * <p>
+ * The XSLT produces a sequence of strings and failure elements. Here, the strings are
+ * appended to a {@link StringBuilder} and the failures are collected separately, which is
+ * all that the caller needs.
+ * <p>
+ * An instance of this class should only be used for one conversion.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class CMathMLToMaximaConverter extends NativeUpConversionStage {
+
+    /** Java equivalent of the elements in <tt>local:operators</tt> */
+    private static final class Operator {
+
+        final String unappliedOperator;
+        final String naryInfixOperator;
+        final String unaryPrefixOperator;
+        final String unaryPostfixOperator;
+        final String unaryFunction;
+        final String naryFunction;
+
+        Operator(final String unappliedOperator, final String naryInfixOperator,
+                final String unaryPrefixOperator, final String unaryPostfixOperator,
+                final String unaryFunction, final String naryFunction) {
+            this.unappliedOperator = unappliedOperator;
+            this.naryInfixOperator = naryInfixOperator;
+            this.unaryPrefixOperator = unaryPrefixOperator;
+            this.unaryPostfixOperator = unaryPostfixOperator;
+            this.unaryFunction = unaryFunction;
+            this.naryFunction = naryFunction;
+        }
+    }
+
+    /** Java equivalent of the elements in <tt>local:supported-functions</tt> */
+    private static final class Function {
+
+        final String maximaFunction;
+        final boolean requireNary;
+
+        Function(final String maximaFunction, final boolean requireNary) {
+            this.maximaFunction = maximaFunction;
+            this.requireNary = requireNary;
+        }
+    }
+
+    private static final Pattern SAFE_IDENTIFIER_PATTERN = Pattern.compile("^[a-zA-Z_][a-zA-Z0-9_]*$");
+
+    private static final String UNITS_DEFINITION_URL = "http://www.ph.ed.ac.uk/snuggletex/units";
+
+    /** Supported non-alphanumeric identifiers, mapping Unicode character to Maxima input */
+    private static final Map<String, String> IDENTIFIER_DICTIONARY;
+
+    /** Supported functions, keyed on Content MathML element local name */
+    private static final Map<String, Function> SUPPORTED_FUNCTIONS;
+
+    /** Supported prefix/infix/postfix operators, keyed on Content MathML element local name */
+    private static final Map<String, Operator> OPERATORS;
+
+    static {
+        Map<String, String> identifierDictionary = new HashMap<String, String>();
+        identifierDictionary.put("\u03b1", "%alpha");
+        identifierDictionary.put("\u03b2", "%beta");
+        identifierDictionary.put("\u03b3", "%gamma");
+        identifierDictionary.put("\u03b4", "%delta");
+        identifierDictionary.put("\u03f5", "%epsilon");
+        identifierDictionary.put("\u03b6", "%zeta");
+        identifierDictionary.put("\u03b7", "%eta");
+        identifierDictionary.put("\u03b8", "%theta");
+        identifierDictionary.put("\u03b9", "%iota");
+        identifierDictionary.put("\u03ba", "%kappa");
+        identifierDictionary.put("\u03bb", "%lambda");
+        identifierDictionary.put("\u03bc", "%mu");
+        identifierDictionary.put("\u03bd", "%nu");
+        identifierDictionary.put("\u03be", "%xi");
+        identifierDictionary.put("\u03c0", "%pi");
+        identifierDictionary.put("\u03c1", "%rho");
+        identifierDictionary.put("\u03c3", "%sigma");
+        identifierDictionary.put("\u03c4", "%tau");
+        identifierDictionary.put("\u03c5", "%upsilon");
+        identifierDictionary.put("\u03c6", "%phi");
+        identifierDictionary.put("\u03c7", "%chi");
+        identifierDictionary.put("\u03c8", "%psi");
+        identifierDictionary.put("\u03c9", "%omega");
+        identifierDictionary.put("\u0393", "%Gamma");
+        identifierDictionary.put("\u0394", "%Delta");
+        identifierDictionary.put("\u0398", "%Theta");
+        identifierDictionary.put("\u039b", "%Lambda");
+        identifierDictionary.put("\u039e", "%Xi");
+        identifierDictionary.put("\u03a0", "%Pi");
+        identifierDictionary.put("\u03a3", "%Sigma");
+        identifierDictionary.put("\u03a5", "%Upsilon");
+        identifierDictionary.put("\u03a6", "%Phi");
+        identifierDictionary.put("\u03a8", "%Psi");
+        identifierDictionary.put("\u03a9", "%Omega");
+        IDENTIFIER_DICTIONARY = Collections.unmodifiableMap(identifierDictionary);
+
+        Map<String, Function> supportedFunctions = new HashMap<String, Function>();
+        String[][] unaryFunctions = {
+            { "sin", "sin" }, { "cos", "cos" }, { "tan", "tan" },
+            { "sec", "sec" }, { "csc", "csc" }, { "cot", "cot" },
+            { "arcsin", "asin" }, { "arccos", "acos" }, { "arctan", "atan" },
+            { "arcsec", "asec" }, { "arccsc", "acsc" }, { "arccot", "acot" },
+            { "sinh", "sinh" }, { "cosh", "cosh" }, { "tanh", "tanh" },
+            { "sech", "sech" }, { "csch", "csch" }, { "coth", "coth" },
+            { "arcsinh", "asinh" }, { "arccosh", "acosh" }, { "arctanh", "atanh" },
+            { "arcsech", "asech" }, { "arccsch", "acsch" }, { "arccoth", "acoth" },
+            { "exp", "exp" }, { "ln", "log" }, { "determinant", "determinant" },
+            { "real", "realpart" }, { "imaginary", "imagpart" }
+        };
+        for (String[] unaryFunction : unaryFunctions) {
+            supportedFunctions.put(unaryFunction[0], new Function(unaryFunction[1], false));
+        }
+        for (String naryFunction : new String[] { "gcd", "lcm", "max", "min" }) {
+            supportedFunctions.put(naryFunction, new Function(naryFunction, true));
+        }
+        SUPPORTED_FUNCTIONS = Collections.unmodifiableMap(supportedFunctions);
+
+        Map<String, Operator> operators = new HashMap<String, Operator>();
+        operators.put("eq", new Operator("=", " = ", null, null, null, null));
+        operators.put("neq", new Operator("#", " # ", null, null, null, null));
+        operators.put("lt", new Operator("<", " < ", null, null, null, null));
+        operators.put("gt", new Operator(">", " > ", null, null, null, null));
+        operators.put("leq", new Operator("<=", " <= ", null, null, null, null));
+        operators.put("geq", new Operator(">=", " >= ", null, null, null, null));
+        operators.put("plus", new Operator("+", " + ", "+", null, null, null));
+        operators.put("minus", new Operator("-", " - ", "-", null, null, null));
+        operators.put("times", new Operator("*", " * ", null, null, null, null));
+        operators.put("divide", new Operator("/", " / ", null, null, null, null));
+        operators.put("power", new Operator("^", "^", null, null, null, null));
+        operators.put("factorial", new Operator("!", null, null, "!", null, null));
+        operators.put("not", new Operator("not", null, null, null, "not", null));
+        operators.put("and", new Operator("and", " and ", null, null, null, null));
+        operators.put("or", new Operator("or", " or ", null, null, null, null));
+        operators.put("union", new Operator("union", null, null, null, null, "union"));
+        operators.put("intersect", new Operator("intersection", null, null, null, null, "intersection"));
+        operators.put("setdiff", new Operator("setdifference", null, null, null, null, "setdifference"));
+        OPERATORS = Collections.unmodifiableMap(operators);
+    }
+
+    private final StringBuilder maximaBuilder;
+    private final List<Element> failures;
+
+    public CMathMLToMaximaConverter(final Document resultDocument, final EffectiveUpConversionOptions options) {
+        super(resultDocument, options);
+        this.maximaBuilder = new StringBuilder();
+        this.failures = new ArrayList<Element>();
+    }
+
+    /**
+     * Entry point, equivalent to the <tt>s:cmathml-to-maxima</tt> template.
+     * Call {@link #getFailures()} and {@link #getMaximaInput()} afterwards to get the results.
+     */
+    public void convertToMaxima(final List<Element> elements) {
+        for (Element element : elements) {
+            toMaxima(element);
+        }
+    }
+
+    /** Returns any failures generated during conversion, in the order they were produced. */
+    public List<Element> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns the resulting Maxima input, without the outer pair of brackets if present,
+     * or null if there were failures.
+     */
+    public String getMaximaInput() {
+        if (!failures.isEmpty()) {
+            return null;
+        }
+        String maximaWithBrackets = maximaBuilder.toString();
+        if (maximaWithBrackets.startsWith("(") && maximaWithBrackets.endsWith(")")) {
+            return maximaWithBrackets.length() > 1
+                ? maximaWithBrackets.substring(1, maximaWithBrackets.length()-1)
+                : "";
+        }
+        return maximaWithBrackets;
+    }
+
+    //-----------------------------------------------------------
+    // Output helpers
+
+    private void output(final String text) {
+        maximaBuilder.append(text);
+    }
+
+    private void fail(final String code, final Element context, final String... arguments) {
+        failures.add(createFailure(code, context, arguments));
+    }
+
+    private void toMaximaMap(final List<Element> elements, final String joiner) {
+        for (int i=0; i<elements.size(); i++) {
+            toMaxima(elements.get(i));
+            if (i != elements.size()-1) {
+                output(joiner);
+            }
+        }
+    }
+
+    //-----------------------------------------------------------
+    // Lookups
+
+    private static Operator getOperator(final Element element) {
+        return element!=null ? OPERATORS.get(getLocalName(element)) : null;
+    }
+
+    private static boolean isOperatorElement(final Element element) {
+        return getOperator(element)!=null;
+    }
+
+    private static Function getSupportedFunction(final Element element) {
+        return element!=null ? SUPPORTED_FUNCTIONS.get(getLocalName(element)) : null;
+    }
+
+    private static boolean isSupportedFunction(final Element element) {
+        return getSupportedFunction(element)!=null;
+    }
+
+    private static boolean isCustomFunction(final Element element) {
+        return isMathMLElement(element, "ci") && "function".equals(element.getAttribute("type"));
+    }
+
+    private static boolean isUnitsSemantics(final Node node) {
+        return isMathMLElement(node, "semantics")
+            && UNITS_DEFINITION_URL.equals(((Element) node).getAttribute("definitionURL"));
+    }
+
+    private String unapplyOperator(final Operator operator, final boolean negate) {
+        return makeUnappliedOperator(negate ? "not" + operator.unappliedOperator : operator.unappliedOperator);
+    }
+
+    private String makeUnappliedOperator(final String operator) {
+        return options.getRequiredOption(UpConversionOptionDefinitions.MAXIMA_OPERATOR_FUNCTION_NAME) + "(\"" + operator + "\")";
+    }
+
+    //-----------------------------------------------------------
+    // Templates (mode="cmathml-to-maxima")
+
+    private void toMaxima(final Element element) {
+        if (isMathMLElement(element, "apply")) {
+            handleApply(element);
+        }
+        else if (isOperatorElement(element)) {
+            /* Unapplied infix operator */
+            output(unapplyOperator(getOperator(element), false));
+        }
+        else if (isSupportedFunction(element)) {
+            /* Unapplied function */
+            output(getSupportedFunction(element).maximaFunction);
+        }
+        else if (isMathMLElement(element, "interval")) {
+            /* Maxima doesn't actually support intervals! */
+            fail("UMFG02", element);
+        }
+        else if (isMathMLElement(element, "set")) {
+            output("{");
+            toMaximaMap(getChildElements(element), ", ");
+            output("}");
+        }
+        else if (isMathMLElement(element, "list") || isMathMLElement(element, "vector")) {
+            output("[");
+            toMaximaMap(getChildElements(element), ", ");
+            output("]");
+        }
+        else if (isUnitsSemantics(element)) {
+            for (Element child : getChildElements(element)) {
+                toMaxima(child);
+            }
+        }
+        else if (isMathMLElement(element, "csymbol") && isUnitsSemantics(element.getParentNode())) {
+            output(options.getRequiredOption(UpConversionOptionDefinitions.MAXIMA_UNITS_FUNCTION_NAME) + "(\"" + getStringValue(element) + "\")");
+        }
+        else if (isMathMLElement(element, "emptyset")) {
+            output("{}");
+        }
+        else if (isMathMLElement(element, "infinity")) {
+            /* NB: This represents real positive infinity only! */
+            output("inf");
+        }
+        else if (isMathMLElement(element, "exponentiale")) {
+            output("%e");
+        }
+        else if (isMathMLElement(element, "imaginaryi")) {
+            output("%i");
+        }
+        else if (isMathMLElement(element, "pi")) {
+            output("%pi");
+        }
+        else if (isMathMLElement(element, "eulergamma")) {
+            output("%gamma");
+        }
+        else if (isMathMLElement(element, "ci")) {
+            handleCi(element);
+        }
+        else if (isMathMLElement(element, "cn")) {
+            String string = getStringValue(element);
+            output(string.startsWith("-") ? "(" + string + ")" : string);
+        }
+        else {
+            /* Default catch-all for everything else */
+            fail("UMFG00", element, getLocalName(element));
+        }
+    }
+
+    private void handleApply(final Element apply) {
+        List<Element> children = getChildElements(apply);
+        int count = children.size();
+        Element first = count > 0 ? children.get(0) : null;
+        Element second = count > 1 ? children.get(1) : null;
+        Element third = count > 2 ? children.get(2) : null;
+        List<Element> arguments = count > 1 ? children.subList(1, count) : Collections.<Element>emptyList();
+
+        if (count==3 && isMathMLElement(first, "power") && isCustomFunction(second)) {
+            /* Unapplied power of custom function (NB: this template has a higher priority) */
+            output("lambda([x], ");
+            toMaxima(second);
+            output("(x)^");
+            toMaxima(third);
+            output(")");
+        }
+        else if (count==2 && isMathMLElement(first, "inverse") && isCustomFunction(second)) {
+            /* Unapplied inverse of custom function */
+            output(getInverseFunction());
+            output("[");
+            toMaxima(second);
+            output("]");
+        }
+        else if (count >= 2 && isMathMLElement(first, "apply")
+                && isMathMLElement(getChildElement(first, 1), "power")
+                && isCustomFunction(getChildElement(first, 2))) {
+            /* Power of custom function application */
+            toMaxima(getChildElement(first, 2));
+            output("(");
+            toMaximaMap(arguments, ", ");
+            output(")^");
+            toMaxima(requireChildElement(first, 3));
+        }
+        else if (count >= 2 && isMathMLElement(first, "apply")
+                && isMathMLElement(getChildElement(first, 1), "inverse")
+                && isCustomFunction(getChildElement(first, 2))) {
+            /* Inverse of custom function application */
+            output(getInverseFunction());
+            output("[");
+            toMaxima(getChildElement(first, 2));
+            output("](");
+            toMaximaMap(arguments, ", ");
+            output(")");
+        }
+        else if (count >= 2 && isCustomFunction(first)) {
+            /* Custom function application */
+            toMaxima(first);
+            output("(");
+            toMaximaMap(arguments, ", ");
+            output(")");
+        }
+        else if (count==1 && isPowerOfSupportedFunction(first)) {
+            throw new NativeUpConversionException("Power of function was expected to take at least one argument");
+        }
+        else if (count >= 2 && isPowerOfSupportedFunction(first)) {
+            /* Power of a function */
+            Function function = getSupportedFunction(getChildElement(first, 2));
+            if (arguments.size()==1 && function.requireNary) {
+                /* Fail: function must be used in n-ary context */
+                fail("UMFFX0", apply, function.maximaFunction);
+            }
+            else {
+                output(function.maximaFunction);
+                output("(");
+                toMaximaMap(arguments, ", ");
+                output(")^");
+                toMaxima(getChildElement(first, 3));
+            }
+        }
+        else if (count==1 && isSupportedFunction(first)) {
+            /* Half-arsed applied function, treated as unapplied */
+            output(getSupportedFunction(first).maximaFunction);
+        }
+        else if (count >= 2 && isSupportedFunction(first)) {
+            /* Applied function, allowing n-ary application when supported */
+            Function function = getSupportedFunction(first);
+            if (arguments.size()==1 && function.requireNary) {
+                /* Fail: function cannot be used in a unary context */
+                fail("UMFFX0", apply, function.maximaFunction);
+            }
+            else {
+                output(function.maximaFunction);
+                output("(");
+                toMaximaMap(arguments, ", ");
+                output(")");
+            }
+        }
+        else if (count==3 && isMathMLElement(first, "root") && hasChildElement(apply, "degree")) {
+            /* nth root */
+            List<Element> degreeContent = getChildElements(getChildElementByName(apply, "degree"));
+            if (degreeContent.size()!=1) {
+                throw new NativeUpConversionException("Expected exactly 1 element inside <degree/>");
+            }
+            output("((");
+            toMaxima(third);
+            output(")^(1/");
+            toMaxima(degreeContent.get(0));
+            output("))");
+        }
+        else if (count==2 && isMathMLElement(first, "root") && !hasChildElement(apply, "degree")) {
+            /* Square root */
+            output("sqrt(");
+            toMaxima(second);
+            output(")");
+        }
+        else if (count > 1 && isOperatorElement(first) && !isOperatorElement(second)) {
+            handleAppliedOperator(apply, getOperator(first), arguments);
+        }
+        else if (count==1 && isOperatorElement(first)) {
+            /* Half-arsed applied infix operator, treated as unapplied */
+            output(unapplyOperator(getOperator(first), false));
+        }
+        else if (count==2 && isMathMLElement(first, "not") && isOperatorElement(second)) {
+            /* Unapplied and negated infix operator */
+            output(unapplyOperator(getOperator(second), true));
+        }
+        else {
+            /* Catch-all for the <apply/> cases we can't or won't handle here */
+            fail("UMFG01", apply, first!=null ? getLocalName(first) : "");
+        }
+    }
+
+    private void handleAppliedOperator(final Element apply, final Operator operator, final List<Element> operands) {
+        if (operands.size()==1) {
+            /* Unary case */
+            if (operator.unaryPrefixOperator!=null) {
+                output("(");
+                output(operator.unaryPrefixOperator);
+                toMaxima(operands.get(0));
+                output(")");
+            }
+            else if (operator.unaryFunction!=null) {
+                output(operator.unaryFunction);
+                output("(");
+                toMaxima(operands.get(0));
+                output(")");
+            }
+            else if (operator.unaryPostfixOperator!=null) {
+                output("(");
+                toMaxima(operands.get(0));
+                output(operator.unaryPostfixOperator);
+                output(")");
+            }
+            else {
+                fail("UMFOP0", apply, "");
+            }
+        }
+        else if (operator.naryInfixOperator!=null) {
+            output("(");
+            toMaximaMap(operands, operator.naryInfixOperator);
+            output(")");
+        }
+        else if (operator.naryFunction!=null) {
+            output(operator.naryFunction);
+            output("(");
+            toMaximaMap(operands, ", ");
+            output(")");
+        }
+        else {
+            throw new NativeUpConversionException("Operator cannot be used in an n-ary context");
+        }
+    }
+
+    private static boolean isPowerOfSupportedFunction(final Element element) {
+        return isMathMLElement(element, "apply")
+            && isMathMLElement(getChildElement(element, 1), "power")
+            && isSupportedFunction(getChildElement(element, 2))
+            && isMathMLElement(getChildElement(element, 3), "cn");
+    }
+
+    private static boolean hasChildElement(final Element parent, final String localName) {
+        return getChildElementByName(parent, localName)!=null;
+    }
+
+    private static Element getChildElementByName(final Element parent, final String localName) {
+        for (Element child : getChildElements(parent)) {
+            if (isMathMLElement(child, localName)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private String getInverseFunction() {
+        String inverseFunction = options.getOption(UpConversionOptionDefinitions.MAXIMA_INVERSE_FUNCTION_NAME);
+        return inverseFunction!=null ? inverseFunction : "";
+    }
+
+    //-----------------------------------------------------------
+    // Identifiers
+
+    private void handleCi(final Element ci) {
+        Node onlyChild = ci.getFirstChild();
+        if (onlyChild!=null && onlyChild.getNextSibling()==null) {
+            if (onlyChild.getNodeType()==Node.TEXT_NODE || onlyChild.getNodeType()==Node.CDATA_SECTION_NODE) {
+                /* Map simple identifiers and unapplied functions over as-is */
+                mapIdentifier(ci, getStringValue(ci));
+                return;
+            }
+            else if (isMathMLElement(onlyChild, "msub")) {
+                /* Map subscripts in a reasonable (but rather limited) way */
+                handleCiSubscripted((Element) onlyChild, ci);
+                return;
+            }
+        }
+        throw new NativeUpConversionException("Did not expect <ci/> element with this content");
+    }
+
+    /** Equivalent of <tt>local:map-identifier</tt> */
+    private void mapIdentifier(final Element ci, final String flattened) {
+        String name = normalizeSpace(flattened);
+        if (SAFE_IDENTIFIER_PATTERN.matcher(name).matches()) {
+            /* Safe to map to a Maxima variable of the same name */
+            output(name);
+            return;
+        }
+        String maximaInput = IDENTIFIER_DICTIONARY.get(name);
+        if (maximaInput!=null) {
+            output(maximaInput);
+        }
+        else {
+            /* Fail: no suitable Maxima input form for identifier */
+            fail("UMFG03", ci, name);
+        }
+    }
+
+    /** Templates in the <tt>ci-subscripted</tt> mode, which process (PMathML!) subscripts */
+    private void handleCiSubscripted(final Element element, final Element ci) {
+        if (isMathMLElement(element, "msub") && isMathMLElement(getChildElement(element, 1), "mi")) {
+            mapIdentifier(ci, getStringValue(getChildElement(element, 1)));
+            output("[");
+            Element subscript = getChildElement(element, 2);
+            if (subscript!=null) {
+                handleCiSubscripted(subscript, ci);
+            }
+            output("]");
+        }
+        else if (isMathMLElement(element, "mn")) {
+            if (element.getFirstChild()==null) {
+                throw new NativeUpConversionException("Expected <mn/> to have content");
+            }
+            output(getStringValue(element));
+        }
+        else if (isMathMLElement(element, "mi")) {
+            mapIdentifier(ci, getStringValue(element));
+        }
+        else if (isMathMLElement(element, "mfenced")) {
+            List<Element> children = getChildElements(element);
+            if (children.isEmpty()) {
+                throw new NativeUpConversionException("Expected <mfenced/> to have content");
+            }
+            for (int i=0; i<children.size(); i++) {
+                handleCiSubscripted(children.get(i), ci);
+                if (i != children.size()-1) {
+                    output(",");
+                }
+            }
+        }
+        else {
+            /* Fail: cannot create subscripted variable */
+            fail("UMFG04", ci);
+        }
+    }
+
+    /** Equivalent of the XPath <tt>normalize-space()</tt> function */
+    private static String normalizeSpace(final String string) {
+        StringBuilder result = new StringBuilder(string.length());
+        boolean pendingSpace = false;
+        for (int i=0, length=string.length(); i<length; i++) {
+            char c = string.charAt(i);
+            if (c==' ' || c=='\t' || c=='\n' || c=='\r') {
+                pendingSpace = result.length() > 0;
+            }
+            else {
+                if (pendingSpace) {
+                    result.append(' ');
+                    pendingSpace = false;
+                }
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
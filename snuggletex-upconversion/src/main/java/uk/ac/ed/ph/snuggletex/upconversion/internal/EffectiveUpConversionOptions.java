@@ -0,0 +1,158 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Element;
+
+/**
+ * Java equivalent of the <tt>&lt;s:upconversion-options/&gt;</tt> element passed around by
+ * the up-conversion XSLT, together with the helper functions from <tt>upconversion-options.xsl</tt>
+ * that query it.
+ * <p>
+ * This keeps hold of the underlying <tt>&lt;s:option/&gt;</tt> and <tt>&lt;s:symbol/&gt;</tt>
+ * elements (in order) so that the options annotation can be generated exactly as the XSLT
+ * would do it.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class EffectiveUpConversionOptions {
+
+    private final List<Element> optionElements;
+    private final List<Element> symbolElements;
+
+    private EffectiveUpConversionOptions(final List<Element> optionElements, final List<Element> symbolElements) {
+        this.optionElements = Collections.unmodifiableList(optionElements);
+        this.symbolElements = Collections.unmodifiableList(symbolElements);
+    }
+
+    /**
+     * Creates a new instance from the given <tt>&lt;s:upconversion-options/&gt;</tt> element.
+     */
+    public static EffectiveUpConversionOptions fromElement(final Element upConversionOptionsElement) {
+        List<Element> optionElements = new ArrayList<Element>();
+        List<Element> symbolElements = new ArrayList<Element>();
+        for (Element child : NativeUpConversionStage.getChildElements(upConversionOptionsElement)) {
+            if (NativeUpConversionStage.isSnuggleTeXElement(child, "option")) {
+                optionElements.add(child);
+            }
+            else if (NativeUpConversionStage.isSnuggleTeXElement(child, "symbol")) {
+                symbolElements.add(child);
+            }
+        }
+        return new EffectiveUpConversionOptions(optionElements, symbolElements);
+    }
+
+    /**
+     * Merges the given (local) <tt>&lt;s:upconversion-options/&gt;</tt> element over these
+     * (global) options, as done by <tt>local:compute-effective-upconversion-options</tt>
+     * in the XSLT.
+     */
+    public EffectiveUpConversionOptions mergeLocalOptions(final Element localUpConversionOptionsElement) {
+        EffectiveUpConversionOptions localOptions = fromElement(localUpConversionOptionsElement);
+
+        /* Options have fixed names, so iterate over the global ones */
+        List<Element> mergedOptionElements = new ArrayList<Element>(optionElements.size());
+        for (Element globalOption : optionElements) {
+            Element override = localOptions.getOptionElement(globalOption.getAttribute("name"));
+            mergedOptionElements.add(override!=null ? override : globalOption);
+        }
+
+        /* Take local symbols, then global ones that haven't been overridden */
+        List<Element> mergedSymbolElements = new ArrayList<Element>(localOptions.symbolElements);
+        for (Element globalSymbol : symbolElements) {
+            List<Element> globalTarget = NativeUpConversionStage.getChildElements(globalSymbol);
+            boolean overridden = false;
+            for (Element localSymbol : localOptions.symbolElements) {
+                if (NativeUpConversionStage.deepEqual(globalTarget, NativeUpConversionStage.getChildElements(localSymbol))) {
+                    overridden = true;
+                    break;
+                }
+            }
+            if (!overridden) {
+                mergedSymbolElements.add(globalSymbol);
+            }
+        }
+        return new EffectiveUpConversionOptions(mergedOptionElements, mergedSymbolElements);
+    }
+
+    public List<Element> getOptionElements() {
+        return optionElements;
+    }
+
+    public List<Element> getSymbolElements() {
+        return symbolElements;
+    }
+
+    private Element getOptionElement(final String name) {
+        for (Element optionElement : optionElements) {
+            if (name.equals(optionElement.getAttribute("name"))) {
+                return optionElement;
+            }
+        }
+        return null;
+    }
+
+    /** Equivalent of <tt>s:get-upconversion-option</tt>, returning null for an empty result */
+    public String getOption(final String name) {
+        Element optionElement = getOptionElement(name);
+        return optionElement!=null && optionElement.hasAttribute("value") ? optionElement.getAttribute("value") : null;
+    }
+
+    /**
+     * Version of {@link #getOption(String)} used in places where the XSLT would raise a type
+     * error if the option was not defined.
+     */
+    public String getRequiredOption(final String name) {
+        String value = getOption(name);
+        if (value==null) {
+            throw new NativeUpConversionException("Up-conversion option " + name + " has not been defined");
+        }
+        return value;
+    }
+
+    /** Equivalent of <tt>s:get-boolean-option</tt> */
+    public boolean getBooleanOption(final String name) {
+        return "true".equals(getOption(name));
+    }
+
+    /** Equivalent of <tt>s:get-symbol-assumption</tt>, returning null for an empty result */
+    public Element getSymbolAssumption(final Element element) {
+        for (Element symbolElement : symbolElements) {
+            if (isTargetOf(symbolElement, element)) {
+                return symbolElement;
+            }
+        }
+        return null;
+    }
+
+    /** Equivalent of <tt>s:is-assumed-symbol</tt> */
+    public boolean isAssumedSymbol(final Element element, final String assumptionType) {
+        for (Element symbolElement : symbolElements) {
+            if (assumptionType.equals(symbolElement.getAttribute("assume")) && isTargetOf(symbolElement, element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Equivalent of <tt>s:is-assumed-function</tt> */
+    public boolean isAssumedFunction(final Element element) {
+        return isAssumedSymbol(element, "function");
+    }
+
+    private static boolean isTargetOf(final Element symbolElement, final Element element) {
+        Element target = NativeUpConversionStage.getChildElement(symbolElement, 1);
+        return target!=null && NativeUpConversionStage.getChildElement(symbolElement, 2)==null
+            && NativeUpConversionStage.deepEqual(target, element);
+    }
+}
@@ -0,0 +1,380 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion.internal;
+
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.upconversion.MathMLUpConverter;
+import uk.ac.ed.ph.snuggletex.upconversion.UpConversionOptionDefinitions;
+import uk.ac.ed.ph.snuggletex.upconversion.UpConversionUtilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Hand-written Java implementation of <tt>snuggletex-upconverter.xsl</tt>, used by
+ * {@link MathMLUpConverter} as a fast path that avoids running XSLT.
+ * <p>
+ * The work is split into stages that mirror the imported stylesheets:
+ * {@link PMathMLEnhancer}, {@link PMathMLToCMathMLConverter} and {@link CMathMLToMaximaConverter}.
+ * The XSLT remains the reference implementation, and {@link #upConvertDocument(Document)}
+ * returns null whenever the Java code can't reproduce its results, in which case the caller
+ * should run the XSLT instead. This currently happens if:
+ * <ul>
+ *   <li>bracketed Presentation MathML has been requested (which has not been ported)</li>
+ *   <li>the XSLT would have terminated or raised a dynamic error for the given input</li>
+ * </ul>
+ * <p>
+ * An instance of this class is immutable and may be shared by multiple Threads.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class NativeMathMLUpConverter {
+
+    /** Name of the annotation containing the up-conversion options, as used by the XSLT */
+    private static final String UPCONVERSION_OPTIONS_ANNOTATION_NAME = "SnuggleTeX-upconversion-options";
+
+    private final EffectiveUpConversionOptions globalOptions;
+
+    /**
+     * Creates a new up-converter using the given global options.
+     *
+     * @param globalUpConversionOptionsElement <tt>&lt;s:upconversion-options/&gt;</tt> element,
+     *   as passed to the XSLT as the <tt>s:global-upconversion-options</tt> parameter.
+     */
+    public NativeMathMLUpConverter(final Element globalUpConversionOptionsElement) {
+        this.globalOptions = EffectiveUpConversionOptions.fromElement(globalUpConversionOptionsElement);
+    }
+
+    /**
+     * Up-converts the given SnuggleTeX output {@link Document}, creating a new result
+     * {@link Document}.
+     *
+     * @return resulting {@link Document}, or null if the XSLT should be used for this
+     *   input instead.
+     */
+    public Document upConvertDocument(final Document document) {
+        Document resultDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        try {
+            new DocumentUpConverter(resultDocument).traverseChildren(document, resultDocument, null);
+        }
+        catch (NativeUpConversionException e) {
+            return null;
+        }
+        return resultDocument;
+    }
+
+    /**
+     * Up-converts a single MathML <tt>&lt;math/&gt;</tt> element using the global options,
+     * creating the resulting element in the given result {@link Document}. (The result is not
+     * attached to the result {@link Document}.)
+     *
+     * @return resulting <tt>&lt;math/&gt;</tt> element, or null if the XSLT should be used
+     *   for this input instead.
+     *
+     * @since 1.3.1
+     */
+    public Element upConvertMathElement(final Element mathElement, final Document resultDocument) {
+        try {
+            return new DocumentUpConverter(resultDocument).processMath(mathElement, globalOptions);
+        }
+        catch (NativeUpConversionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Does the work for a single {@link Document}, building up the results in the given
+     * result {@link Document}.
+     */
+    private final class DocumentUpConverter extends NativeUpConversionStage {
+
+        DocumentUpConverter(final Document resultDocument) {
+            super(resultDocument, globalOptions);
+        }
+
+        /**
+         * Equivalent of the <tt>sibling-traversal</tt> templates, which copy everything
+         * apart from <tt>&lt;s:upconversion-options/&gt;</tt> elements (which change the
+         * options for subsequent nodes) and MathML <tt>&lt;math/&gt;</tt> elements
+         * (which get up-converted).
+         */
+        void traverseChildren(final Node sourceParent, final Node resultParent,
+                final Element currentUpConversionOptions) {
+            Element current = currentUpConversionOptions;
+            for (Node child = sourceParent.getFirstChild(); child!=null; child = child.getNextSibling()) {
+                switch (child.getNodeType()) {
+                    case Node.ELEMENT_NODE:
+                        Element element = (Element) child;
+                        if (isSnuggleTeXElement(element, UpConversionUtilities.UPCONVERSION_OPTIONS_XML_LOCAL_NAME)) {
+                            current = element;
+                        }
+                        else if (isMathMLElement(element, "math")) {
+                            EffectiveUpConversionOptions effectiveOptions = current!=null
+                                ? globalOptions.mergeLocalOptions(current)
+                                : globalOptions;
+                            resultParent.appendChild(processMath(element, effectiveOptions));
+                        }
+                        else {
+                            Node copy = resultParent.appendChild(shallowCopy(element));
+                            traverseChildren(element, copy, current);
+                        }
+                        break;
+
+                    case Node.TEXT_NODE:
+                    case Node.CDATA_SECTION_NODE:
+                        if (!isStrippedWhitespace(child)) {
+                            resultParent.appendChild(resultDocument.importNode(child, false));
+                        }
+                        break;
+
+                    case Node.COMMENT_NODE:
+                    case Node.PROCESSING_INSTRUCTION_NODE:
+                        resultParent.appendChild(resultDocument.importNode(child, false));
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /** Equivalent of the <tt>process-math</tt> template */
+        private Element processMath(final Element math, final EffectiveUpConversionOptions effectiveOptions) {
+            if (effectiveOptions.getBooleanOption(UpConversionOptionDefinitions.DO_BRACKETED_PRESENTATION_MATHML)) {
+                throw new NativeUpConversionException("Bracketed Presentation MathML is only supported by the XSLT");
+            }
+            boolean doContentMathML = effectiveOptions.getBooleanOption(UpConversionOptionDefinitions.DO_CONTENT_MATHML_NAME);
+            boolean doMaxima = effectiveOptions.getBooleanOption(UpConversionOptionDefinitions.DO_MAXIMA_NAME);
+            boolean addOptionsAnnotation = effectiveOptions.getBooleanOption(UpConversionOptionDefinitions.ADD_OPTIONS_ANNOTATION_NAME);
+
+            /* Extract the actual PMathML content and any existing annotations */
+            List<Element> presentationMathML = new ArrayList<Element>();
+            List<Element> annotations = new ArrayList<Element>();
+            extractPresentationMathMLAndAnnotations(math, presentationMathML, annotations);
+
+            /* Enhance the Presentation MathML, putting the results in a new fragment */
+            DocumentFragment enhancedPMathML = resultDocument.createDocumentFragment();
+            for (Element element : new PMathMLEnhancer(resultDocument, effectiveOptions).enhancePMathML(presentationMathML)) {
+                enhancedPMathML.appendChild(element);
+            }
+
+            /* Maybe convert to Content MathML, creating another new fragment */
+            DocumentFragment cmathml = resultDocument.createDocumentFragment();
+            if (doContentMathML || doMaxima) {
+                List<Element> converted = new PMathMLToCMathMLConverter(resultDocument, effectiveOptions)
+                    .convertToCMathML(getChildElements(enhancedPMathML), math);
+                for (Element element : converted) {
+                    cmathml.appendChild(element);
+                }
+            }
+            List<Element> cmathmlFailures = getFailureDescendants(cmathml);
+
+            /* Maybe convert Content MathML to Maxima input */
+            List<Element> maximaFailures = new ArrayList<Element>();
+            String maxima = null;
+            if (doMaxima && cmathmlFailures.isEmpty()) {
+                CMathMLToMaximaConverter maximaConverter = new CMathMLToMaximaConverter(resultDocument, effectiveOptions);
+                maximaConverter.convertToMaxima(getChildElements(cmathml));
+                maximaFailures = maximaConverter.getFailures();
+                maxima = maximaConverter.getMaximaInput();
+            }
+
+            /* Build up the resulting MathML math element */
+            Element result = createMathMLElement("math");
+            for (Attr attribute : getAttributes(math)) {
+                result.setAttributeNodeNS((Attr) resultDocument.importNode(attribute, false));
+            }
+            if (addOptionsAnnotation || doContentMathML || doMaxima || !annotations.isEmpty()) {
+                Element semantics = (Element) result.appendChild(createMathMLElement("semantics"));
+
+                /* Put in the enhanced Presentation MathML first */
+                semantics.appendChild(maybeWrapInMrow(getChildElements(enhancedPMathML)));
+
+                /* Maybe add Content MathML or failure annotation */
+                if (!cmathmlFailures.isEmpty()) {
+                    semantics.appendChild(createAnnotationXML(MathMLUpConverter.CONTENT_FAILURES_ANNOTATION_NAME,
+                            copy(cmathmlFailures)));
+                }
+                else if (doContentMathML) {
+                    semantics.appendChild(createAnnotationXML(MathMLUpConverter.CONTENT_MATHML_ANNOTATION_NAME,
+                            getChildElements(cmathml)));
+                }
+
+                /* Copy existing annotations, then any "SnuggleTeX" annotation as a "LaTeX" annotation */
+                Element snuggleTeXAnnotation = null;
+                for (Element annotation : annotations) {
+                    semantics.appendChild(copy(annotation));
+                    if (snuggleTeXAnnotation==null && isMathMLElement(annotation, "annotation")
+                            && MathMLUpConverter.SNUGGLETEX_ANNOTATION_NAME.equals(annotation.getAttribute("encoding"))) {
+                        snuggleTeXAnnotation = annotation;
+                    }
+                }
+                if (snuggleTeXAnnotation!=null) {
+                    semantics.appendChild(createAnnotation(MathMLUpConverter.LATEX_ANNOTATION_NAME,
+                            getStringValue(snuggleTeXAnnotation)));
+                }
+
+                /* Maybe add Maxima or failure annotation */
+                if (!maximaFailures.isEmpty()) {
+                    semantics.appendChild(createAnnotationXML(MathMLUpConverter.MAXIMA_FAILURES_ANNOTATION_NAME,
+                            maximaFailures));
+                }
+                else if (doMaxima && cmathmlFailures.isEmpty()) {
+                    semantics.appendChild(createAnnotation(MathMLUpConverter.MAXIMA_ANNOTATION_NAME, maxima));
+                }
+
+                /* Maybe add options annotation */
+                if (addOptionsAnnotation) {
+                    Element optionsAnnotation = createAnnotationXML(UPCONVERSION_OPTIONS_ANNOTATION_NAME,
+                            new ArrayList<Element>());
+                    optionsAnnotation.appendChild(createOptionsElement(effectiveOptions));
+                    semantics.appendChild(optionsAnnotation);
+                }
+            }
+            else {
+                /* All we did was enhance the PMathML, so strip off any redundant top-level <mrow/> */
+                List<Element> enhancedElements = getChildElements(enhancedPMathML);
+                if (enhancedElements.size()==1 && isMathMLElement(enhancedElements.get(0), "mrow")) {
+                    enhancedElements = getChildElements(enhancedElements.get(0));
+                }
+                appendChildren(result, enhancedElements);
+            }
+
+            /* Finally make sure all MathML elements have the same prefix as the original */
+            String prefix = math.getPrefix();
+            if (prefix!=null && prefix.length()>0) {
+                applyMathMLPrefix(result, prefix);
+            }
+            return result;
+        }
+
+        /**
+         * The criterion for whether there are any top level annotations is that we have a
+         * <tt>&lt;semantics/&gt;</tt> element with at least 2 children.
+         */
+        private void extractPresentationMathMLAndAnnotations(final Element math,
+                final List<Element> presentationMathML, final List<Element> annotations) {
+            List<Element> children = getChildElements(math);
+            List<Element> semanticsElements = new ArrayList<Element>();
+            boolean hasAnnotations = false;
+            boolean hasMrow = false;
+            for (Element child : children) {
+                if (isMathMLElement(child, "semantics")) {
+                    semanticsElements.add(child);
+                    hasAnnotations |= getChildElement(child, 2)!=null;
+                    for (Element semanticsChild : getChildElements(child)) {
+                        hasMrow |= isMathMLElement(semanticsChild, "mrow");
+                    }
+                }
+            }
+            if (!hasAnnotations) {
+                presentationMathML.addAll(children);
+                return;
+            }
+            for (Element semantics : semanticsElements) {
+                List<Element> semanticsChildren = getChildElements(semantics);
+                for (int i=0; i<semanticsChildren.size(); i++) {
+                    Element semanticsChild = semanticsChildren.get(i);
+                    if (hasMrow) {
+                        if (isMathMLElement(semanticsChild, "mrow")) {
+                            presentationMathML.addAll(getChildElements(semanticsChild));
+                        }
+                    }
+                    else if (i==0) {
+                        presentationMathML.add(semanticsChild);
+                    }
+                    if (i > 0) {
+                        annotations.add(semanticsChild);
+                    }
+                }
+            }
+        }
+
+        private List<Element> getFailureDescendants(final DocumentFragment fragment) {
+            List<Element> result = new ArrayList<Element>();
+            for (Element element : getChildElements(fragment)) {
+                if (isFailure(element)) {
+                    result.add(element);
+                }
+                NodeList descendants = element.getElementsByTagNameNS(SNUGGLETEX_NAMESPACE, "fail");
+                for (int i=0, length=descendants.getLength(); i<length; i++) {
+                    result.add((Element) descendants.item(i));
+                }
+            }
+            return result;
+        }
+
+        private Element createAnnotationXML(final String encoding, final List<Element> content) {
+            Element result = createMathMLElement("annotation-xml");
+            result.setAttribute("encoding", encoding);
+            appendChildren(result, content);
+            return result;
+        }
+
+        private Element createAnnotation(final String encoding, final String content) {
+            Element result = createMathMLElement("annotation");
+            result.setAttribute("encoding", encoding);
+            if (content!=null) {
+                appendText(result, content);
+            }
+            return result;
+        }
+
+        /** Equivalent of applying the <tt>apply-snuggletex-prefix</tt> templates to the options */
+        private Element createOptionsElement(final EffectiveUpConversionOptions effectiveOptions) {
+            Element result = createSnuggleTeXElement(UpConversionUtilities.UPCONVERSION_OPTIONS_XML_LOCAL_NAME);
+            for (Element optionElement : effectiveOptions.getOptionElements()) {
+                result.appendChild(applySnuggleTeXPrefix(optionElement));
+            }
+            for (Element symbolElement : effectiveOptions.getSymbolElements()) {
+                result.appendChild(applySnuggleTeXPrefix(symbolElement));
+            }
+            return result;
+        }
+
+        private Node applySnuggleTeXPrefix(final Node node) {
+            Node result;
+            if (node.getNodeType()==Node.ELEMENT_NODE && SNUGGLETEX_NAMESPACE.equals(node.getNamespaceURI())) {
+                Element element = createSnuggleTeXElement(getLocalName(node));
+                for (Attr attribute : getAttributes((Element) node)) {
+                    element.setAttributeNodeNS((Attr) resultDocument.importNode(attribute, false));
+                }
+                result = element;
+            }
+            else {
+                result = resultDocument.importNode(node, false);
+            }
+            for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+                if (!isStrippedWhitespace(child)) {
+                    result.appendChild(applySnuggleTeXPrefix(child));
+                }
+            }
+            return result;
+        }
+
+        /** Equivalent of the <tt>apply-mathml-prefix</tt> templates */
+        private void applyMathMLPrefix(final Element element, final String prefix) {
+            Element renamed = element;
+            if (isMathMLElement(element)) {
+                renamed = (Element) resultDocument.renameNode(element, MATHML_NAMESPACE,
+                        prefix + ":" + getLocalName(element));
+            }
+            for (Element child : getChildElements(renamed)) {
+                applyMathMLPrefix(child, prefix);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion.internal;
+
+/**
+ * Thrown internally by the native up-conversion classes when they reach a situation
+ * that the reference XSLT would either not handle (e.g. an <tt>xsl:message terminate="yes"</tt>
+ * or a type error) or that has not been ported to Java. {@link NativeMathMLUpConverter} catches
+ * this so that the caller can fall back to the XSLT, which will then behave as it always has.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class NativeUpConversionException extends RuntimeException {
+
+    private static final long serialVersionUID = -4362905816279361017L;
+
+    public NativeUpConversionException(final String message) {
+        super(message);
+    }
+}
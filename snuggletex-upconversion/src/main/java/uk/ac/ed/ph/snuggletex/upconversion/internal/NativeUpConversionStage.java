@@ -0,0 +1,490 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion.internal;
+
+import uk.ac.ed.ph.snuggletex.SnuggleConstants;
+import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
+import uk.ac.ed.ph.snuggletex.upconversion.UpConversionUtilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Base for the stages of the native up-conversion process, providing Java equivalents of
+ * the helpers in <tt>snuggletex-utilities.xsl</tt> and <tt>pmathml-utilities.xsl</tt>, as
+ * well as the bits of XPath semantics (string values, <tt>deep-equal()</tt>, <tt>number()</tt>
+ * and <tt>xsl:strip-space</tt>) that the XSLT relies on.
+ * <p>
+ * Each stage creates its results as parentless {@link Element}s owned by the result
+ * {@link Document}. Elements from the input are always copied, whereas results from earlier
+ * calls may simply be moved into their new parent.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+abstract class NativeUpConversionStage {
+
+    static final String MATHML_NAMESPACE = W3CConstants.MATHML_NAMESPACE;
+    static final String SNUGGLETEX_NAMESPACE = SnuggleConstants.SNUGGLETEX_NAMESPACE;
+
+    /** Invisible times (U+2062) */
+    static final String INVISIBLE_TIMES = "\u2062";
+
+    /** Apply function (U+2061) */
+    static final String APPLY_FUNCTION = "\u2061";
+
+    /** Lexical form of an <tt>xs:double</tt>, as used by the XPath <tt>number()</tt> function */
+    private static final Pattern DOUBLE_PATTERN = Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+
+    protected final Document resultDocument;
+    protected final EffectiveUpConversionOptions options;
+
+    protected NativeUpConversionStage(final Document resultDocument, final EffectiveUpConversionOptions options) {
+        this.resultDocument = resultDocument;
+        this.options = options;
+    }
+
+    //-----------------------------------------------------------
+    // Navigation helpers
+
+    static String getLocalName(final Node node) {
+        String localName = node.getLocalName();
+        return localName!=null ? localName : node.getNodeName();
+    }
+
+    static boolean isMathMLElement(final Node node) {
+        return node!=null && node.getNodeType()==Node.ELEMENT_NODE
+            && MATHML_NAMESPACE.equals(node.getNamespaceURI());
+    }
+
+    static boolean isMathMLElement(final Node node, final String localName) {
+        return isMathMLElement(node) && localName.equals(getLocalName(node));
+    }
+
+    static boolean isSnuggleTeXElement(final Node node, final String localName) {
+        return node!=null && node.getNodeType()==Node.ELEMENT_NODE
+            && SNUGGLETEX_NAMESPACE.equals(node.getNamespaceURI())
+            && localName.equals(getLocalName(node));
+    }
+
+    /** Equivalent of <tt>*</tt> */
+    static List<Element> getChildElements(final Node parent) {
+        List<Element> result = new ArrayList<Element>();
+        for (Node child = parent.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (child.getNodeType()==Node.ELEMENT_NODE) {
+                result.add((Element) child);
+            }
+        }
+        return result;
+    }
+
+    /** Equivalent of <tt>*[position]</tt>, returning null if there is no such child. */
+    static Element getChildElement(final Node parent, final int position) {
+        int index = 0;
+        for (Node child = parent.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (child.getNodeType()==Node.ELEMENT_NODE && ++index==position) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Equivalent of <tt>*[position]</tt> in situations where the XSLT would raise a type error
+     * if there were no such child.
+     */
+    static Element requireChildElement(final Node parent, final int position) {
+        return require(getChildElement(parent, position));
+    }
+
+    static Element getLastChildElement(final Node parent) {
+        for (Node child = parent.getLastChild(); child!=null; child = child.getPreviousSibling()) {
+            if (child.getNodeType()==Node.ELEMENT_NODE) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    /** Equivalent of <tt>preceding-sibling::*[1]</tt> */
+    static Element getPreviousElementSibling(final Element element) {
+        for (Node sibling = element.getPreviousSibling(); sibling!=null; sibling = sibling.getPreviousSibling()) {
+            if (sibling.getNodeType()==Node.ELEMENT_NODE) {
+                return (Element) sibling;
+            }
+        }
+        return null;
+    }
+
+    static Element require(final Element element) {
+        if (element==null) {
+            throw new NativeUpConversionException("Expected an element but got an empty sequence");
+        }
+        return element;
+    }
+
+    //-----------------------------------------------------------
+    // XPath semantics
+
+    /**
+     * Returns whether the given node would have been removed from the input by the
+     * <tt>&lt;xsl:strip-space elements="m:*"/&gt;</tt> declaration in the XSLT.
+     */
+    static boolean isStrippedWhitespace(final Node node) {
+        short nodeType = node.getNodeType();
+        return (nodeType==Node.TEXT_NODE || nodeType==Node.CDATA_SECTION_NODE)
+            && isMathMLElement(node.getParentNode())
+            && isWhitespace(node.getNodeValue());
+    }
+
+    static boolean isWhitespace(final String string) {
+        for (int i=0, length=string.length(); i<length; i++) {
+            char c = string.charAt(i);
+            if (!(c==' ' || c=='\t' || c=='\n' || c=='\r')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the XPath string value of the given Node. */
+    static String getStringValue(final Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+            case Node.DOCUMENT_FRAGMENT_NODE:
+                StringBuilder result = new StringBuilder();
+                appendStringValue(result, node);
+                return result.toString();
+
+            default:
+                return node.getNodeValue();
+        }
+    }
+
+    private static void appendStringValue(final StringBuilder result, final Node parent) {
+        for (Node child = parent.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    if (!isStrippedWhitespace(child)) {
+                        result.append(child.getNodeValue());
+                    }
+                    break;
+
+                case Node.ELEMENT_NODE:
+                    appendStringValue(result, child);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** Equivalent of the XPath <tt>number()</tt> function */
+    static double toNumber(final String string) {
+        String trimmed = string.trim();
+        if (DOUBLE_PATTERN.matcher(trimmed).matches()) {
+            return Double.parseDouble(trimmed);
+        }
+        else if ("INF".equals(trimmed)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        else if ("-INF".equals(trimmed)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.NaN;
+    }
+
+    /** Equivalent of the XPath <tt>deep-equal()</tt> function applied to two sequences of elements */
+    static boolean deepEqual(final List<Element> first, final List<Element> second) {
+        if (first.size()!=second.size()) {
+            return false;
+        }
+        for (int i=0; i<first.size(); i++) {
+            if (!deepEqual(first.get(i), second.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Equivalent of the XPath <tt>deep-equal()</tt> function applied to two elements */
+    static boolean deepEqual(final Element first, final Element second) {
+        if (!getLocalName(first).equals(getLocalName(second))
+                || !equalNamespaces(first.getNamespaceURI(), second.getNamespaceURI())) {
+            return false;
+        }
+        /* Compare attributes, ignoring namespace declarations */
+        List<Attr> firstAttributes = getAttributes(first);
+        if (firstAttributes.size()!=getAttributes(second).size()) {
+            return false;
+        }
+        for (Attr attribute : firstAttributes) {
+            Attr other = attribute.getNamespaceURI()!=null
+                ? second.getAttributeNodeNS(attribute.getNamespaceURI(), getLocalName(attribute))
+                : second.getAttributeNode(attribute.getName());
+            if (other==null || !attribute.getValue().equals(other.getValue())) {
+                return false;
+            }
+        }
+        /* Then compare element and (merged) text children */
+        List<Object> firstChildren = getDeepEqualChildren(first);
+        List<Object> secondChildren = getDeepEqualChildren(second);
+        if (firstChildren.size()!=secondChildren.size()) {
+            return false;
+        }
+        for (int i=0; i<firstChildren.size(); i++) {
+            Object firstChild = firstChildren.get(i);
+            Object secondChild = secondChildren.get(i);
+            if (firstChild instanceof String) {
+                if (!firstChild.equals(secondChild)) {
+                    return false;
+                }
+            }
+            else if (!(secondChild instanceof Element && deepEqual((Element) firstChild, (Element) secondChild))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalNamespaces(final String first, final String second) {
+        return first!=null ? first.equals(second) : second==null;
+    }
+
+    /** Returns the attributes of the given element, excluding namespace declarations */
+    static List<Attr> getAttributes(final Element element) {
+        NamedNodeMap attributes = element.getAttributes();
+        List<Attr> result = new ArrayList<Attr>(attributes.getLength());
+        for (int i=0, length=attributes.getLength(); i<length; i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                result.add(attribute);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the child elements (as {@link Element}s) and text (as {@link String}s, merging
+     * adjacent text nodes) that are considered by <tt>deep-equal()</tt>.
+     */
+    private static List<Object> getDeepEqualChildren(final Element element) {
+        List<Object> result = new ArrayList<Object>();
+        StringBuilder textBuilder = null;
+        for (Node child = element.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    if (!isStrippedWhitespace(child)) {
+                        if (textBuilder==null) {
+                            textBuilder = new StringBuilder();
+                        }
+                        textBuilder.append(child.getNodeValue());
+                    }
+                    break;
+
+                case Node.ELEMENT_NODE:
+                    if (textBuilder!=null) {
+                        result.add(textBuilder.toString());
+                        textBuilder = null;
+                    }
+                    result.add(child);
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        if (textBuilder!=null) {
+            result.add(textBuilder.toString());
+        }
+        return result;
+    }
+
+    //-----------------------------------------------------------
+    // Result building
+
+    Element createMathMLElement(final String localName) {
+        return resultDocument.createElementNS(MATHML_NAMESPACE, localName);
+    }
+
+    Element createMathMLElement(final String localName, final String text) {
+        Element result = createMathMLElement(localName);
+        appendText(result, text);
+        return result;
+    }
+
+    Element createMathMLElement(final String localName, final List<Element> children) {
+        Element result = createMathMLElement(localName);
+        appendChildren(result, children);
+        return result;
+    }
+
+    static void appendChildren(final Element parent, final List<Element> children) {
+        for (Element child : children) {
+            parent.appendChild(child);
+        }
+    }
+
+    /** Appends a text Node, as long as the text is not empty (mirroring XSLT behaviour) */
+    void appendText(final Element parent, final String text) {
+        if (text.length()>0) {
+            parent.appendChild(resultDocument.createTextNode(text));
+        }
+    }
+
+    /**
+     * Equivalent of <tt>xsl:copy-of</tt>, which creates a deep copy of the given element
+     * in the result Document, omitting any whitespace stripped from the input by the XSLT.
+     */
+    Element copy(final Element element) {
+        return (Element) copyNode(element);
+    }
+
+    private Node copyNode(final Node node) {
+        Node result = resultDocument.importNode(node, false);
+        for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (!isStrippedWhitespace(child)) {
+                result.appendChild(copyNode(child));
+            }
+        }
+        return result;
+    }
+
+    List<Element> copy(final List<Element> elements) {
+        List<Element> result = new ArrayList<Element>(elements.size());
+        for (Element element : elements) {
+            result.add(copy(element));
+        }
+        return result;
+    }
+
+    /**
+     * Equivalent of <tt>xsl:copy</tt> followed by <tt>xsl:copy-of select="@*"</tt>, which
+     * creates a shallow copy of the given element.
+     */
+    Element shallowCopy(final Element element) {
+        return (Element) resultDocument.importNode(element, false);
+    }
+
+    /** Equivalent of the <tt>s:maybe-wrap-in-mrow</tt> template */
+    Element maybeWrapInMrow(final List<Element> elements) {
+        if (elements.size()==1) {
+            return elements.get(0);
+        }
+        return createMathMLElement("mrow", elements);
+    }
+
+    /** Equivalent of the <tt>s:make-error</tt> function */
+    Element createFailure(final String code, final Element context, final String... arguments) {
+        List<Element> contextList = new ArrayList<Element>(1);
+        contextList.add(context);
+        return createFailure(code, contextList, arguments);
+    }
+
+    /** Equivalent of the <tt>s:make-error</tt> function */
+    Element createFailure(final String code, final List<Element> context, final String... arguments) {
+        Element result = createSnuggleTeXElement("fail");
+        result.setAttribute("code", code);
+        result.setAttribute("message", UpConversionUtilities.getErrorMessage(code, (Object[]) arguments));
+        for (String argument : arguments) {
+            appendText((Element) result.appendChild(createSnuggleTeXElement("arg")), argument);
+        }
+        appendText((Element) result.appendChild(createSnuggleTeXElement("xpath")), makeMathXPath(context.get(0)));
+        Element contextElement = (Element) result.appendChild(createSnuggleTeXElement("context"));
+        for (Element element : context) {
+            contextElement.appendChild(copy(element));
+        }
+        return result;
+    }
+
+    Element createSnuggleTeXElement(final String localName) {
+        return resultDocument.createElementNS(SNUGGLETEX_NAMESPACE, "s:" + localName);
+    }
+
+    static boolean isFailure(final Element element) {
+        return isSnuggleTeXElement(element, "fail");
+    }
+
+    /** Equivalent of the <tt>s:make-math-xpath</tt> function */
+    static String makeMathXPath(final Element element) {
+        StringBuilder result = new StringBuilder();
+        Node current = element;
+        do {
+            String localName = getLocalName(current);
+            int position = 1;
+            for (Node sibling = current.getPreviousSibling(); sibling!=null; sibling = sibling.getPreviousSibling()) {
+                if (sibling.getNodeType()==Node.ELEMENT_NODE && localName.equals(getLocalName(sibling))) {
+                    position++;
+                }
+            }
+            if (result.length()>0) {
+                result.insert(0, '/');
+            }
+            result.insert(0, localName + "[" + position + "]");
+            current = current.getParentNode();
+        } while (isMathMLElement(current));
+        return result.toString();
+    }
+
+    //-----------------------------------------------------------
+    // Helpers shared by the PMathML stages (pmathml-utilities.xsl)
+
+    static boolean isOperator(final Element element) {
+        return isMathMLElement(element, "mo");
+    }
+
+    static boolean isPower(final Element element) {
+        return isMathMLElement(element, "msup") || isMathMLElement(element, "msubsup");
+    }
+
+    /** Equivalent of <tt>s:get-power-base</tt>, returning null for an empty result */
+    Element getPowerBase(final Element element) {
+        if (isMathMLElement(element, "msup")) {
+            return getChildElement(element, 1);
+        }
+        else if (isMathMLElement(element, "msubsup")) {
+            Element result = createMathMLElement("msub");
+            List<Element> children = getChildElements(element);
+            for (int i=0; i<children.size(); i++) {
+                if (i!=2) {
+                    result.appendChild(copy(children.get(i)));
+                }
+            }
+            return result;
+        }
+        return null;
+    }
+
+    /** Equivalent of <tt>s:get-power-exponent</tt>, returning null for an empty result */
+    static Element getPowerExponent(final Element element) {
+        if (isMathMLElement(element, "msup")) {
+            return getChildElement(element, 2);
+        }
+        else if (isMathMLElement(element, "msubsup")) {
+            return getChildElement(element, 3);
+        }
+        return null;
+    }
+
+    /** Equivalent of <tt>s:is-power(.) and s:is-assumed-function(s:get-power-base(.))</tt> */
+    boolean isPowerOfAssumedFunction(final Element element) {
+        return isPower(element) && options.isAssumedFunction(require(getPowerBase(element)));
+    }
+}
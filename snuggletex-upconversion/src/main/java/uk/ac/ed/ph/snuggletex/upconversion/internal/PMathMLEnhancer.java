@@ -0,0 +1,526 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Hand-written Java implementation of <tt>pmathml-enhancer.xsl</tt>, which "enhances" the
+ * Presentation MathML created by SnuggleTeX by inferring the grouping of operators and
+ * operands, implicit products and function applications.
+ * <p>
+ * The methods here are named after the templates in the XSLT, which remains the reference
+ * implementation.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class PMathMLEnhancer extends NativeUpConversionStage {
+
+    private static final Set<String> PREDEFINED_FUNCTIONS = makeSet(
+        "sin", "cos", "tan",
+        "sec", "csc" ,"cot",
+        "sinh", "cosh", "tanh",
+        "sech", "csch", "coth",
+        "arcsin", "arccos", "arctan",
+        "arcsec", "arccsc", "arccot",
+        "arcsinh", "arccosh", "arctanh",
+        "arcsech", "arccsch", "arccoth",
+        "ln", "log", "exp",
+        "gcd", "lcm", "min", "max", "det",
+        "\u2111" /* imaginary part */,
+        "\u211c" /* real part */
+    );
+
+    private static final Set<String> COMMA = makeSet(",");
+    private static final Set<String> VEE = makeSet("\u2228");
+    private static final Set<String> WEDGE = makeSet("\u2227");
+    private static final Set<String> CUP = makeSet("\u222a");
+    private static final Set<String> CAP = makeSet("\u2229");
+    private static final Set<String> PLUS_MINUS = makeSet("\u00b1");
+    private static final Set<String> PLUS = makeSet("+");
+    private static final Set<String> MINUS = makeSet("-");
+
+    private static final Set<String> RELATION_CHARACTERS = makeSet(
+        "=", "<", ">", "|",
+        "\u2192" /* \rightarrow */,
+        "\u21d2" /* \Rightarrow */,
+        "\u2208" /* \in */,
+        "\u2209" /* \not\in */,
+        "\u2224" /* \not\mid */,
+        "\u2248" /* \approx */,
+        "\u2249" /* \not\approx */,
+        "\u2264" /* \leq */,
+        "\u2265" /* \geq */,
+        "\u2260" /* \not= */,
+        "\u2261" /* \equiv */,
+        "\u2262" /* \not\equiv */,
+        "\u226e" /* \not< */,
+        "\u226f" /* \not> */,
+        "\u2270" /* \not\leq */,
+        "\u2271" /* \not\geq */,
+        "\u2282" /* \subset */,
+        "\u2284" /* \not\subset */,
+        "\u2286" /* \subseteq */,
+        "\u2288" /* \not\subseteq */
+    );
+
+    private static final Set<String> EXPLICIT_MULTIPLICATION_CHARACTERS = makeSet(
+        "*",
+        "\u00d7" /* \times */,
+        "\u22c5" /* \cdot */
+    );
+
+    private static final Set<String> EXPLICIT_DIVISION_CHARACTERS = makeSet(
+        "/",
+        "\u00f7" /* \div */
+    );
+
+    private static final Set<String> PREFIX_OPERATORS = makeSet(
+        "\u00ac" /* logical not */
+    );
+
+    private static final Set<String> INFIX_SETDIFF_CHARACTERS = makeSet(
+        "\\",
+        "\u2216" /* \smallsetminus */,
+        "\u29f5" /* \setminus */
+    );
+
+    private static final Set<String> INFIX_OPERATORS;
+    static {
+        Set<String> infixOperators = new HashSet<String>();
+        infixOperators.addAll(Arrays.asList(",", "\u2228", "\u2227"));
+        infixOperators.addAll(RELATION_CHARACTERS);
+        infixOperators.addAll(Arrays.asList("\u222a", "\u2229"));
+        infixOperators.addAll(INFIX_SETDIFF_CHARACTERS);
+        infixOperators.addAll(Arrays.asList("+", "-", "\u00b1"));
+        infixOperators.addAll(EXPLICIT_MULTIPLICATION_CHARACTERS);
+        infixOperators.addAll(EXPLICIT_DIVISION_CHARACTERS);
+        INFIX_OPERATORS = Collections.unmodifiableSet(infixOperators);
+    }
+
+    private static final Set<String> POSTFIX_OPERATORS = makeSet("!");
+
+    private static Set<String> makeSet(final String... strings) {
+        return Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(strings)));
+    }
+
+    public PMathMLEnhancer(final Document resultDocument, final EffectiveUpConversionOptions options) {
+        super(resultDocument, options);
+    }
+
+    /** Entry point, equivalent to the <tt>s:enhance-pmathml</tt> template */
+    public List<Element> enhancePMathML(final List<Element> elements) {
+        return processGroup(elements);
+    }
+
+    //-----------------------------------------------------------
+    // Predicates
+
+    private static boolean isPredefinedFunction(final Element element) {
+        return isMathMLElement(element, "mi") && PREDEFINED_FUNCTIONS.contains(getStringValue(element));
+    }
+
+    private static boolean isLogarithm(final Element element) {
+        Element first = getChildElement(element, 1);
+        return isMathMLElement(first, "mi") && "log".equals(getStringValue(first));
+    }
+
+    private boolean isLegalFunctionConstruct(final Element element) {
+        return isPredefinedFunction(element)
+            || (isMathMLElement(element, "msup") && isPredefinedFunction(requireChildElement(element, 1)))
+            || (isMathMLElement(element, "msub") && isLogarithm(element))
+            || (isMathMLElement(element, "msubsup") && isLogarithm(element))
+            || options.isAssumedFunction(element)
+            || isPowerOfAssumedFunction(element);
+    }
+
+    private static boolean isInfixOperator(final Element element) {
+        return isOperator(element) && INFIX_OPERATORS.contains(getStringValue(element));
+    }
+
+    private static boolean isStrictInfixOperator(final Element element) {
+        Element previous = getPreviousElementSibling(element);
+        return isInfixOperator(element) && !(previous!=null && isOperator(previous));
+    }
+
+    private static boolean isMatchingStrictInfixOperator(final Element element, final Set<String> match) {
+        return isStrictInfixOperator(element) && match.contains(getStringValue(element));
+    }
+
+    private static boolean containsMatchingStrictInfixOperator(final List<Element> elements, final Set<String> match) {
+        for (Element element : elements) {
+            if (isMatchingStrictInfixOperator(element, match)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPrefixOperator(final Element element) {
+        return isOperator(element) && PREFIX_OPERATORS.contains(getStringValue(element));
+    }
+
+    private boolean isPrefixOrFunction(final Element element) {
+        return isLegalFunctionConstruct(element) || isPrefixOperator(element);
+    }
+
+    /**
+     * (NB: The XSLT has separate notions of factorial and postfix operators, but they're
+     * currently the same thing.)
+     */
+    private static boolean isPostfixOperator(final Element element) {
+        return isOperator(element) && POSTFIX_OPERATORS.contains(getStringValue(element));
+    }
+
+    private boolean isImplicitProductStarter(final Element element) {
+        Element previous = getPreviousElementSibling(element);
+        return previous==null /* case 1 */
+            || isMathMLElement(previous, "mfenced") /* case 2 */
+            || (isPrefixOrFunction(element) && !isPrefixOrFunction(previous)) /* case 3 */
+            || (!isPostfixOperator(element) && isPostfixOperator(previous)); /* case 4 */
+    }
+
+    //-----------------------------------------------------------
+    // Grouping
+
+    private List<Element> processGroup(final List<Element> elements) {
+        if (containsMatchingStrictInfixOperator(elements, COMMA)) {
+            return groupInfixComma(elements);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, VEE)) {
+            return groupAssociativeInfixMo(elements, VEE);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, WEDGE)) {
+            return groupAssociativeInfixMo(elements, WEDGE);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, RELATION_CHARACTERS)) {
+            return groupAssociativeInfixMo(elements, RELATION_CHARACTERS);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, CUP)) {
+            return groupAssociativeInfixMo(elements, CUP);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, CAP)) {
+            return groupAssociativeInfixMo(elements, CAP);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, INFIX_SETDIFF_CHARACTERS)) {
+            return groupLeftAssociativeInfixMo(elements, INFIX_SETDIFF_CHARACTERS);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, PLUS_MINUS)) {
+            return groupLeftAssociativeInfixMo(elements, PLUS_MINUS);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, PLUS)) {
+            return groupAssociativeInfixMo(elements, PLUS);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, MINUS)) {
+            return groupLeftAssociativeInfixMo(elements, MINUS);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, EXPLICIT_MULTIPLICATION_CHARACTERS)) {
+            return groupAssociativeInfixMo(elements, EXPLICIT_MULTIPLICATION_CHARACTERS);
+        }
+        else if (containsMatchingStrictInfixOperator(elements, EXPLICIT_DIVISION_CHARACTERS)) {
+            return groupLeftAssociativeInfixMo(elements, EXPLICIT_DIVISION_CHARACTERS);
+        }
+        else if (containsMSpace(elements)) {
+            return handleMSpaceGroup(elements);
+        }
+        else if (elements.size() > 1) {
+            return inferImplicitProductSubgroups(elements);
+        }
+        else if (elements.size()==1) {
+            return Collections.singletonList(enhanceElement(elements.get(0)));
+        }
+        return Collections.emptyList();
+    }
+
+    private static boolean containsMSpace(final List<Element> elements) {
+        for (Element element : elements) {
+            if (isMathMLElement(element, "mspace")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Element> groupInfixComma(final List<Element> elements) {
+        Element mfenced = createMathMLElement("mfenced");
+        mfenced.setAttribute("open", "");
+        mfenced.setAttribute("close", "");
+        List<Element> group = new ArrayList<Element>();
+        for (Element element : elements) {
+            if (isMatchingStrictInfixOperator(element, COMMA)) {
+                if (!group.isEmpty()) {
+                    mfenced.appendChild(maybeWrapInMrow(processGroup(group)));
+                    group = new ArrayList<Element>();
+                }
+            }
+            else {
+                group.add(element);
+            }
+        }
+        if (!group.isEmpty()) {
+            mfenced.appendChild(maybeWrapInMrow(processGroup(group)));
+        }
+        return Collections.singletonList(mfenced);
+    }
+
+    private List<Element> groupAssociativeInfixMo(final List<Element> elements, final Set<String> match) {
+        List<Element> result = new ArrayList<Element>();
+        List<Element> group = new ArrayList<Element>();
+        boolean lastWasOperator = false;
+        for (Element element : elements) {
+            boolean isMatchingOperator = isMatchingStrictInfixOperator(element, match);
+            if (isMatchingOperator) {
+                if (!group.isEmpty()) {
+                    result.add(maybeWrapInMrow(processGroup(group)));
+                    group = new ArrayList<Element>();
+                }
+                /* (Adjacent operators form a single group, of which only the first is copied) */
+                if (!lastWasOperator) {
+                    result.add(copy(element));
+                }
+            }
+            else {
+                group.add(element);
+            }
+            lastWasOperator = isMatchingOperator;
+        }
+        if (!group.isEmpty()) {
+            result.add(maybeWrapInMrow(processGroup(group)));
+        }
+        return result;
+    }
+
+    private List<Element> groupLeftAssociativeInfixMo(final List<Element> elements, final Set<String> match) {
+        List<Integer> operatorIndices = new ArrayList<Integer>();
+        for (int i=0; i<elements.size(); i++) {
+            if (isMatchingStrictInfixOperator(elements.get(i), match)) {
+                operatorIndices.add(Integer.valueOf(i));
+            }
+        }
+        List<Element> result = new ArrayList<Element>();
+        if (operatorIndices.size()!=1) {
+            int lastOperatorIndex = operatorIndices.get(operatorIndices.size()-1).intValue();
+            List<Element> beforeLastOperator = elements.subList(0, lastOperatorIndex);
+            List<Element> afterLastOperator = elements.subList(lastOperatorIndex+1, elements.size());
+            require(beforeLastOperator.isEmpty() ? null : beforeLastOperator.get(0));
+            result.add(createMathMLElement("mrow", groupLeftAssociativeInfixMo(beforeLastOperator, match)));
+            result.add(copy(elements.get(lastOperatorIndex)));
+
+            /* (The XSLT requires exactly one element to be passed to s:maybe-wrap-in-mrow here) */
+            List<Element> processedAfter = processGroup(afterLastOperator);
+            if (processedAfter.size()!=1) {
+                throw new NativeUpConversionException("Expected exactly 1 element after last operator, got "
+                        + processedAfter.size());
+            }
+            result.add(maybeWrapInMrow(processedAfter));
+        }
+        else {
+            int operatorIndex = operatorIndices.get(0).intValue();
+            List<Element> leftOperand = elements.subList(0, operatorIndex);
+            List<Element> rightOperand = elements.subList(operatorIndex+1, elements.size());
+            if (!leftOperand.isEmpty()) {
+                result.add(maybeWrapInMrow(processGroup(leftOperand)));
+            }
+            result.add(copy(elements.get(operatorIndex)));
+            if (!rightOperand.isEmpty()) {
+                result.add(maybeWrapInMrow(processGroup(rightOperand)));
+            }
+        }
+        return result;
+    }
+
+    private List<Element> handleMSpaceGroup(final List<Element> elements) {
+        List<Element> result = new ArrayList<Element>();
+        int groupIndex = 0;
+        int i = 0;
+        while (i < elements.size()) {
+            boolean isMSpaceGroup = isMathMLElement(elements.get(i), "mspace");
+            int groupEnd = i + 1;
+            while (groupEnd < elements.size() && isMathMLElement(elements.get(groupEnd), "mspace")==isMSpaceGroup) {
+                groupEnd++;
+            }
+            if (isMSpaceGroup) {
+                /* (Only the first mspace in each group is kept) */
+                result.add(copy(elements.get(i)));
+            }
+            else {
+                if (groupIndex!=0) {
+                    result.add(createMathMLElement("mo", INVISIBLE_TIMES));
+                }
+                result.add(maybeWrapInMrow(processGroup(elements.subList(i, groupEnd))));
+            }
+            groupIndex++;
+            i = groupEnd;
+        }
+        return result;
+    }
+
+    private List<Element> inferImplicitProductSubgroups(final List<Element> elements) {
+        List<Element> result = new ArrayList<Element>();
+        int groupStart = 0;
+        for (int i=1; i<=elements.size(); i++) {
+            if (i==elements.size() || isImplicitProductStarter(elements.get(i))) {
+                if (groupStart!=0) {
+                    result.add(createMathMLElement("mo", INVISIBLE_TIMES));
+                }
+                result.add(maybeWrapInMrow(applyPrefixFunctionsAndOperators(elements.subList(groupStart, i))));
+                groupStart = i;
+            }
+        }
+        return result;
+    }
+
+    private List<Element> applyPrefixFunctionsAndOperators(final List<Element> elements) {
+        Element firstElement = elements.get(0);
+        List<Element> afterFirstElement = elements.subList(1, elements.size());
+        List<Element> result = new ArrayList<Element>();
+        if (isLegalFunctionConstruct(firstElement) && !afterFirstElement.isEmpty()) {
+            result.add(copy(firstElement));
+            result.add(createMathMLElement("mo", APPLY_FUNCTION));
+            result.add(maybeWrapInMrow(applyPrefixFunctionsAndOperators(afterFirstElement)));
+        }
+        else if (isInfixOperator(firstElement)) {
+            if (!afterFirstElement.isEmpty()) {
+                Element mrow = createMathMLElement("mrow");
+                mrow.appendChild(copy(firstElement));
+                mrow.appendChild(maybeWrapInMrow(applyPrefixFunctionsAndOperators(afterFirstElement)));
+                result.add(mrow);
+            }
+            else {
+                result.add(copy(firstElement));
+            }
+        }
+        else if (isPrefixOperator(firstElement)) {
+            result.add(copy(firstElement));
+            if (!afterFirstElement.isEmpty()) {
+                result.add(maybeWrapInMrow(applyPrefixFunctionsAndOperators(afterFirstElement)));
+            }
+        }
+        else {
+            result.add(maybeWrapInMrow(applyPostfixOperators(elements)));
+        }
+        return result;
+    }
+
+    private List<Element> applyPostfixOperators(final List<Element> elements) {
+        if (elements.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Element lastElement = elements.get(elements.size()-1);
+        if (isPostfixOperator(lastElement)) {
+            return applyFactorial(applyPostfixOperators(elements.subList(0, elements.size()-1)));
+        }
+        return handleImplicitMultiplicativeGroup(elements);
+    }
+
+    private List<Element> applyFactorial(final List<Element> elements) {
+        if (elements.isEmpty()) {
+            return Collections.singletonList(createMathMLElement("mo", "!"));
+        }
+        Element lastElement = elements.get(elements.size()-1);
+        List<Element> beforeLastElement = elements.subList(0, elements.size()-1);
+        if (isMathMLElement(lastElement, "mrow")
+                && !isPostfixOperator(require(getLastChildElement(lastElement)))
+                && beforeLastElement.isEmpty()) {
+            return applyFactorial(getChildElements(lastElement));
+        }
+        List<Element> result = new ArrayList<Element>(beforeLastElement);
+        Element mrow = createMathMLElement("mrow");
+        mrow.appendChild(lastElement);
+        mrow.appendChild(createMathMLElement("mo", "!"));
+        result.add(mrow);
+        return result;
+    }
+
+    private List<Element> handleImplicitMultiplicativeGroup(final List<Element> elements) {
+        List<Element> result = new ArrayList<Element>();
+        for (Element element : elements) {
+            if (!result.isEmpty()) {
+                result.add(createMathMLElement("mo", INVISIBLE_TIMES));
+            }
+            result.add(enhanceElement(element));
+        }
+        return Collections.singletonList(maybeWrapInMrow(result));
+    }
+
+    //-----------------------------------------------------------
+    // Templates (mode="enhance-pmathml")
+
+    private Element enhanceElement(final Element element) {
+        if (isMathMLElement(element, "mrow")) {
+            List<Element> children = getChildElements(element);
+            if (children.size()==3
+                    && isMathMLElement(children.get(0), "mi")
+                    && isOperator(children.get(1)) && APPLY_FUNCTION.equals(getStringValue(children.get(1)))
+                    && isMathMLElement(children.get(2), "mfenced")) {
+                /* Function application that SnuggleTeX has already worked out */
+                Element result = resultDocument.createElementNS(element.getNamespaceURI(), element.getNodeName());
+                result.appendChild(copy(children.get(0)));
+                result.appendChild(copy(children.get(1)));
+                Element sourceMfenced = children.get(2);
+                Element mfenced = createMathMLElement("mfenced");
+                mfenced.setAttribute("open", sourceMfenced.getAttribute("open"));
+                mfenced.setAttribute("close", sourceMfenced.getAttribute("close"));
+                for (Element fencedChild : getChildElements(sourceMfenced)) {
+                    mfenced.appendChild(enhanceElement(fencedChild));
+                }
+                result.appendChild(mfenced);
+                return result;
+            }
+            return maybeWrapInMrow(processGroup(children));
+        }
+        else if (isMathMLElement(element, "msqrt")) {
+            List<Element> processedContents = processGroup(getChildElements(element));
+            Element result = shallowCopy(element);
+            if (processedContents.size()==1 && isMathMLElement(processedContents.get(0), "mrow")) {
+                appendChildren(result, getChildElements(processedContents.get(0)));
+            }
+            else {
+                appendChildren(result, processedContents);
+            }
+            return result;
+        }
+        else if (isMathMLElement(element, "mfrac") || isMathMLElement(element, "mfenced")) {
+            Element result = shallowCopy(element);
+            for (Element child : getChildElements(element)) {
+                result.appendChild(maybeWrapInMrow(processGroup(Collections.singletonList(child))));
+            }
+            return result;
+        }
+        /* Default template: keep element and text, dropping comments and PIs */
+        Element result = shallowCopy(element);
+        for (Node child = element.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    result.appendChild(enhanceElement((Element) child));
+                    break;
+
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    if (!isStrippedWhitespace(child)) {
+                        result.appendChild(resultDocument.importNode(child, false));
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        return result;
+    }
+}
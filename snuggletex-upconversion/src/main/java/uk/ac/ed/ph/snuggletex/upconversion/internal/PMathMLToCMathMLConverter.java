@@ -0,0 +1,935 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion.internal;
+
+import uk.ac.ed.ph.snuggletex.upconversion.UpConversionOptionDefinitions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Hand-written Java implementation of <tt>pmathml-to-cmathml.xsl</tt>, which converts the
+ * output from {@link PMathMLEnhancer} into Content MathML.
+ * <p>
+ * The XSLT uses the current context item when generating some failures, so this is passed
+ * around explicitly here as the <tt>context</tt> argument.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class PMathMLToCMathMLConverter extends NativeUpConversionStage {
+
+    /** Java equivalent of the <tt>local:operator</tt> elements in the XSLT */
+    private static final class Operator {
+
+        final String input;
+        final String inputNegated;
+        final String output;
+        final boolean nary;
+        final boolean allowUnary;
+
+        Operator(final String input, final String inputNegated, final String output,
+                final boolean nary, final boolean allowUnary) {
+            this.input = input;
+            this.inputNegated = inputNegated;
+            this.output = output;
+            this.nary = nary;
+            this.allowUnary = allowUnary;
+        }
+    }
+
+    /** Java equivalent of the <tt>local:function</tt> elements in the XSLT */
+    private static final class Function {
+
+        final String input;
+        final String output;
+        final String inverseOutput;
+        final boolean nary;
+
+        Function(final String input, final String output, final String inverseOutput, final boolean nary) {
+            this.input = input;
+            this.output = output;
+            this.inverseOutput = inverseOutput;
+            this.nary = nary;
+        }
+    }
+
+    /** Result of mapping a supported function, equivalent to <tt>local:function-mapping</tt> */
+    private static final class FunctionMapping {
+
+        final List<Element> cmathml;
+        final Function function;
+
+        FunctionMapping(final List<Element> cmathml, final Function function) {
+            this.cmathml = cmathml;
+            this.function = function;
+        }
+    }
+
+    private static final Operator[] SUPPORTED_STANDARD_OPERATORS = {
+        new Operator("+", null, "plus", true, true),
+        new Operator("-", null, "minus", false, true),
+        new Operator("\u00b1", null, "csymbol\u00b1", false, true),
+        new Operator("*\u00d7\u22c5\u2062", null, "times", true, false),
+        new Operator("/\u00f7", null, "divide", false, false),
+        new Operator("\u2228", null, "or", true, false),
+        new Operator("\u2227", null, "and", true, false),
+        new Operator("\u222a", null, "union", true, false),
+        new Operator("\u2229", null, "intersect", true, false),
+        new Operator("\\\u2216\u29f5", null, "setdiff", false, false)
+    };
+
+    private static final String STANDARD_OPERATOR_CHARACTERS;
+    static {
+        StringBuilder characters = new StringBuilder();
+        for (Operator operator : SUPPORTED_STANDARD_OPERATORS) {
+            characters.append(operator.input);
+        }
+        STANDARD_OPERATOR_CHARACTERS = characters.toString();
+    }
+
+    private static final Operator[] SUPPORTED_RELATION_OPERATORS = {
+        new Operator("=", null, "eq", false, false),
+        new Operator("\u2260", null, "neq", false, false),
+        new Operator("<", "\u226e", "lt", false, false),
+        new Operator(">", "\u226f", "gt", false, false),
+        new Operator("\u2264", "\u2270", "leq", false, false),
+        new Operator("\u2265", "\u2271", "geq", false, false),
+        new Operator("\u2261", "\u2262", "equivalent", false, false),
+        new Operator("\u2248", "\u2249", "approx", false, false),
+        new Operator("|", "\u2224", "factorof", false, false),
+        new Operator("\u2208", null, "in", false, false),
+        new Operator("\u2209", null, "notin", false, false),
+        new Operator("\u2282", null, "prsubset", false, false),
+        new Operator("\u2284", null, "notprsubset", false, false),
+        new Operator("\u2286", null, "subset", false, false),
+        new Operator("\u2288", null, "notsubset", false, false),
+        new Operator("\u2192", null, "tendsto", false, false),
+        new Operator("\u21d2", null, "implies", false, false)
+    };
+
+    private static final Operator[] PREFIX_OPERATORS = {
+        new Operator("\u00ac", null, "not", false, false)
+    };
+
+    /*
+     * NB: The XSLT has "inout" instead of "input" for cosh, tanh, csch and coth, so these
+     * are never matched. That behaviour is preserved here by giving them a null input.
+     */
+    private static final Function[] SUPPORTED_FUNCTIONS = {
+        new Function("sin", "sin", "arcsin", false),
+        new Function("cos", "cos", "arccos", false),
+        new Function("tan", "tan", "arctan", false),
+        new Function("sec", "csc", "arcsec", false),
+        new Function("cot", "cot", "arccot", false),
+        new Function("sinh", "sinh", "arcsinh", false),
+        new Function(null, "cosh", "arccosh", false),
+        new Function(null, "tanh", "arctanh", false),
+        new Function("sech", "sech", "arcsech", false),
+        new Function(null, "csch", "arccsch", false),
+        new Function(null, "coth", "arccoth", false),
+        new Function("arcsin", "arcsin", null, false),
+        new Function("arccos", "arccos", null, false),
+        new Function("arctan", "arctan", null, false),
+        new Function("arcsec", "arcsec", null, false),
+        new Function("arccsc", "arccsc", null, false),
+        new Function("arccot", "arccot", null, false),
+        new Function("arcsinh", "arcsinh", null, false),
+        new Function("arccosh", "arccosh", null, false),
+        new Function("arctanh", "arctanh", null, false),
+        new Function("arcsech", "arcsech", null, false),
+        new Function("arccsch", "arccsch", null, false),
+        new Function("arccoth", "arccoth", null, false),
+        new Function("ln", "ln", null, false),
+        new Function("log", "log", null, false),
+        new Function("exp", "exp", null, false),
+        new Function("det", "determinant", null, false),
+        new Function("gcd", "gcd", null, true),
+        new Function("lcm", "lcm", null, true),
+        new Function("max", "max", null, true),
+        new Function("min", "min", null, true),
+        new Function("\u2111", "imaginary", null, false),
+        new Function("\u211c", "real", null, false)
+    };
+
+    private static final Function LOG_FUNCTION = getSupportedFunction("log");
+
+    private static final String UNITS_DEFINITION_URL = "http://www.ph.ed.ac.uk/snuggletex/units";
+
+    public PMathMLToCMathMLConverter(final Document resultDocument, final EffectiveUpConversionOptions options) {
+        super(resultDocument, options);
+    }
+
+    /**
+     * Entry point, equivalent to the <tt>s:pmathml-to-cmathml</tt> template.
+     *
+     * @param elements enhanced Presentation MathML elements to convert
+     * @param context element acting as the XSLT context item, which is the source
+     *   <tt>&lt;math/&gt;</tt> element
+     */
+    public List<Element> convertToCMathML(final List<Element> elements, final Element context) {
+        return processGroup(elements, context);
+    }
+
+    //-----------------------------------------------------------
+    // Lookups
+
+    private Element toCMathML(final Operator operator) {
+        if (operator.output.startsWith("csymbol")) {
+            Element csymbol = createMathMLElement("csymbol");
+            csymbol.appendChild(createMathMLElement("mo", operator.output.substring("csymbol".length())));
+            return csymbol;
+        }
+        return createMathMLElement(operator.output);
+    }
+
+    private static boolean isStandardOperator(final Element element) {
+        return isOperator(element) && STANDARD_OPERATOR_CHARACTERS.contains(getStringValue(element));
+    }
+
+    private static boolean isMatchingStandardOperator(final Element element, final Operator operator) {
+        return isOperator(element) && operator.input.contains(getStringValue(element));
+    }
+
+    private static Operator getRelationOperator(final String string) {
+        for (Operator operator : SUPPORTED_RELATION_OPERATORS) {
+            if (string.equals(operator.input)) {
+                return operator;
+            }
+        }
+        return null;
+    }
+
+    private static Operator getNegatedRelationOperator(final String string) {
+        for (Operator operator : SUPPORTED_RELATION_OPERATORS) {
+            if (string.equals(operator.inputNegated)) {
+                return operator;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isRelationOperator(final Element element) {
+        if (!isOperator(element)) {
+            return false;
+        }
+        String string = getStringValue(element);
+        return getRelationOperator(string)!=null || getNegatedRelationOperator(string)!=null;
+    }
+
+    private static Operator getPrefixOperator(final String string) {
+        for (Operator operator : PREFIX_OPERATORS) {
+            if (string.equals(operator.input)) {
+                return operator;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPrefixOperator(final Element element) {
+        return isOperator(element) && getPrefixOperator(getStringValue(element))!=null;
+    }
+
+    private static boolean isFactorialOperator(final Element element) {
+        return isOperator(element) && "!".equals(getStringValue(element));
+    }
+
+    private static Function getSupportedFunction(final String string) {
+        for (Function function : SUPPORTED_FUNCTIONS) {
+            if (string.equals(function.input)) {
+                return function;
+            }
+        }
+        return null;
+    }
+
+    private static Function getSupportedFunction(final Element element) {
+        return isMathMLElement(element, "mi") ? getSupportedFunction(getStringValue(element)) : null;
+    }
+
+    private static boolean isSupportedFunction(final Element element) {
+        return getSupportedFunction(element)!=null;
+    }
+
+    private boolean isAssumedFunctionConstruct(final Element element) {
+        return options.isAssumedFunction(element) || isPowerOfAssumedFunction(element);
+    }
+
+    private static boolean isLogarithm(final Element element) {
+        Element first = getChildElement(element, 1);
+        return isMathMLElement(first, "mi") && "log".equals(getStringValue(first));
+    }
+
+    private boolean isFunctionConstruct(final Element element) {
+        return isSupportedFunction(element)
+            || (isMathMLElement(element, "msup") && isSupportedFunction(requireChildElement(element, 1)))
+            || (isMathMLElement(element, "msub") && isLogarithm(element))
+            || (isMathMLElement(element, "msubsup") && isLogarithm(element))
+            || isAssumedFunctionConstruct(element);
+    }
+
+    //-----------------------------------------------------------
+    // Grouping
+
+    private List<Element> processGroup(final List<Element> elements, final Element context) {
+        boolean hasMSpace = false;
+        boolean hasStandardOperator = false;
+        boolean hasRelationOperator = false;
+        for (Element element : elements) {
+            hasMSpace |= isMathMLElement(element, "mspace");
+            hasStandardOperator |= isStandardOperator(element);
+            hasRelationOperator |= isRelationOperator(element);
+        }
+        if (hasMSpace) {
+            /* Strip off <mspace/> and reapply to whatever is left */
+            List<Element> withoutMSpace = new ArrayList<Element>(elements.size());
+            for (Element element : elements) {
+                if (!isMathMLElement(element, "mspace")) {
+                    withoutMSpace.add(element);
+                }
+            }
+            return processGroup(withoutMSpace, context);
+        }
+        else if (hasStandardOperator) {
+            /* Pull off the first supported operator (precedence has already been established) */
+            Operator firstStandardOperator = null;
+            for (Operator operator : SUPPORTED_STANDARD_OPERATORS) {
+                for (Element element : elements) {
+                    if (isMatchingStandardOperator(element, operator)) {
+                        firstStandardOperator = operator;
+                        break;
+                    }
+                }
+                if (firstStandardOperator!=null) {
+                    break;
+                }
+            }
+            if (firstStandardOperator==null) {
+                throw new NativeUpConversionException("Could not determine first standard operator");
+            }
+            return firstStandardOperator.nary
+                ? handleStandardNaryOperator(elements, firstStandardOperator, context)
+                : Collections.singletonList(handleStandardBinaryOperator(elements, firstStandardOperator, context));
+        }
+        else if (hasRelationOperator) {
+            return handleSupportedRelationOperators(elements);
+        }
+        else if (!elements.isEmpty() && isFunctionConstruct(elements.get(0))) {
+            return handleLegalFunctionGroup(elements);
+        }
+        else if (!elements.isEmpty() && isPrefixOperator(elements.get(0))) {
+            return Collections.singletonList(handlePrefixGroup(elements, context));
+        }
+        else if (!elements.isEmpty() && isFactorialOperator(elements.get(elements.size()-1))) {
+            return Collections.singletonList(handleFactorialGroup(elements, context));
+        }
+        else if (elements.size()==1) {
+            return handleAtom(elements.get(0));
+        }
+        else if (elements.isEmpty()) {
+            return Collections.emptyList();
+        }
+        /* Fail: unhandled group */
+        return Collections.singletonList(createFailure("UCFG01", elements));
+    }
+
+    private List<Element> processSingle(final Element element, final Element context) {
+        return processGroup(Collections.singletonList(element), context);
+    }
+
+    private List<Element> handleStandardNaryOperator(final List<Element> elements, final Operator operator,
+            final Element context) {
+        if (elements.size()==1 && isMatchingStandardOperator(elements.get(0), operator)) {
+            /* Unapplied operator */
+            return Collections.singletonList(toCMathML(operator));
+        }
+        else if (elements.size()==2 && isMatchingStandardOperator(elements.get(0), operator)
+                && !isOperator(elements.get(1))) {
+            return Collections.singletonList(handlePrefixApplication(elements, operator, context));
+        }
+        /* Expecting legal infix content */
+        List<Element> content = new ArrayList<Element>();
+        if (elements.size() % 2 == 0) {
+            /* Fail: Unsupported n-ary infix grouping */
+            content.add(createFailure("UCFOP1", elements, operator.output));
+        }
+        for (int i=0; i<elements.size(); i++) {
+            Element element = elements.get(i);
+            if (i % 2 == 0) {
+                /* Odd (XPath) position, so expecting operand */
+                if (isMatchingStandardOperator(element, operator)) {
+                    content.add(createFailure("UCFOP1", elements, operator.output));
+                }
+                else {
+                    content.addAll(processSingle(element, element));
+                }
+            }
+            else if (!isMatchingStandardOperator(element, operator)) {
+                /* Even position, so expecting operator */
+                content.add(createFailure("UCFOP4", elements));
+            }
+        }
+        if (containsFailure(content)) {
+            return keepFirstFailure(content);
+        }
+        Element apply = createMathMLElement("apply");
+        apply.appendChild(toCMathML(operator));
+        appendChildren(apply, content);
+        return Collections.singletonList(apply);
+    }
+
+    private Element handleStandardBinaryOperator(final List<Element> elements, final Operator operator,
+            final Element context) {
+        if (elements.size()==1 && isMatchingStandardOperator(elements.get(0), operator)) {
+            /* Unapplied operator */
+            return toCMathML(operator);
+        }
+        else if (elements.size()==2 && isMatchingStandardOperator(elements.get(0), operator)
+                && !isOperator(elements.get(1))) {
+            return handlePrefixApplication(elements, operator, context);
+        }
+        else if (elements.size() > 3) {
+            /* Fail: n-ary with n>2 not allowed */
+            return createFailure("UCFOP3", elements, operator.output);
+        }
+        else if (elements.size() < 3 || isOperator(elements.get(0)) || isOperator(elements.get(2))
+                || !isMatchingStandardOperator(elements.get(1), operator)) {
+            /* Fail: bad grouping for binary operator */
+            return createFailure("UCFOP2", elements, operator.output);
+        }
+        Element apply = createMathMLElement("apply");
+        apply.appendChild(toCMathML(operator));
+        appendChildren(apply, processSingle(elements.get(0), context));
+        appendChildren(apply, processSingle(elements.get(2), context));
+        return apply;
+    }
+
+    /** Handles the unary/prefix case common to both n-ary and binary operators */
+    private Element handlePrefixApplication(final List<Element> elements, final Operator operator,
+            final Element context) {
+        if (!operator.allowUnary) {
+            /* Fail: operator is not a prefix operator */
+            return createFailure("UCFOP0", context, operator.output);
+        }
+        Element apply = createMathMLElement("apply");
+        apply.appendChild(toCMathML(operator));
+        appendChildren(apply, processSingle(elements.get(1), context));
+        return apply;
+    }
+
+    private List<Element> handleSupportedRelationOperators(final List<Element> elements) {
+        if (elements.size()==1 && isRelationOperator(elements.get(0))) {
+            /* Unapplied relation */
+            return Collections.singletonList(createRelationElement(elements.get(0), Collections.<Element>emptyList()));
+        }
+        List<Element> paired = new ArrayList<Element>();
+        if (elements.size() % 2 == 0) {
+            /* Fail: Relation operators must be strictly infix */
+            paired.add(createFailure("UCFOP4", elements));
+        }
+        for (int i=0; i<elements.size(); i++) {
+            Element element = elements.get(i);
+            if (i % 2 == 0) {
+                /* Odd (XPath) position, so expecting operand */
+                if (isRelationOperator(element)) {
+                    paired.add(createFailure("UCFOP4", elements));
+                }
+            }
+            else if (!isRelationOperator(element)) {
+                paired.add(createFailure("UCFOP4", elements));
+            }
+            else {
+                /* Group what came before and what comes after */
+                List<Element> arguments = new ArrayList<Element>();
+                arguments.addAll(processSingle(elements.get(i-1), element));
+                if (i+1 < elements.size()) {
+                    arguments.addAll(processSingle(elements.get(i+1), element));
+                }
+                paired.add(createRelationElement(element, arguments));
+            }
+        }
+        if (containsFailure(paired)) {
+            return keepFirstFailure(paired);
+        }
+        else if (paired.size()==1) {
+            return paired;
+        }
+        /* More than one operator, so group as a logical 'and' */
+        Element apply = createMathMLElement("apply");
+        apply.appendChild(createMathMLElement("and"));
+        appendChildren(apply, paired);
+        return Collections.singletonList(apply);
+    }
+
+    private Element createRelationElement(final Element mo, final List<Element> arguments) {
+        String string = getStringValue(mo);
+        Operator positiveNative = getRelationOperator(string);
+        Operator negatedSynthetic = getNegatedRelationOperator(string);
+        if (positiveNative!=null) {
+            if (!arguments.isEmpty()) {
+                Element apply = createMathMLElement("apply");
+                apply.appendChild(toCMathML(positiveNative));
+                appendChildren(apply, arguments);
+                return apply;
+            }
+            return toCMathML(positiveNative);
+        }
+        else if (negatedSynthetic!=null) {
+            Element apply = createMathMLElement("apply");
+            apply.appendChild(createMathMLElement("not"));
+            if (!arguments.isEmpty()) {
+                Element innerApply = createMathMLElement("apply");
+                innerApply.appendChild(toCMathML(negatedSynthetic));
+                appendChildren(innerApply, arguments);
+                apply.appendChild(innerApply);
+            }
+            else {
+                apply.appendChild(toCMathML(negatedSynthetic));
+            }
+            return apply;
+        }
+        throw new NativeUpConversionException("Unexpected logic branch");
+    }
+
+    //-----------------------------------------------------------
+    // Functions
+
+    private List<Element> handleLegalFunctionGroup(final List<Element> elements) {
+        Element firstFunction = elements.get(0);
+        if (elements.size()==1) {
+            if (isAssumedFunctionConstruct(firstFunction)) {
+                return Collections.singletonList(mapAssumedFunctionConstruct(firstFunction));
+            }
+            /* Just return resulting CMathML as there are no operands here */
+            return mapSupportedFunction(firstFunction).cmathml;
+        }
+        Element second = elements.get(1);
+        if (!(isOperator(second) && APPLY_FUNCTION.equals(getStringValue(second)))) {
+            /* Fail (unlikely): Expected "apply function" operator as second element */
+            return Collections.singletonList(createFailure("UCFFX0", elements));
+        }
+        else if (elements.size() < 3) {
+            /* Fail (unlikely): Nothing following "apply function" operator */
+            return Collections.singletonList(createFailure("UCFFX1", elements));
+        }
+        List<Element> operands = handleFunctionOperands(elements.subList(2, elements.size()));
+        Element apply = createMathMLElement("apply");
+        if (isAssumedFunctionConstruct(firstFunction)) {
+            apply.appendChild(mapAssumedFunctionConstruct(firstFunction));
+            appendChildren(apply, operands);
+            return Collections.singletonList(apply);
+        }
+        FunctionMapping functionOutput = mapSupportedFunction(firstFunction);
+        if (functionOutput.cmathml.isEmpty()) {
+            throw new NativeUpConversionException("Expected at least one element in function output form");
+        }
+        Function function = functionOutput.function;
+        if (operands.size() > 1 && !(function!=null && function.nary)) {
+            /* Fail: Function is not n-ary */
+            String operandCount = Integer.toString(operands.size());
+            return Collections.singletonList(function!=null
+                ? createFailure("UCFFX2", elements, "function", operandCount)
+                : createFailure("UCFFX2", elements, operandCount));
+        }
+        appendChildren(apply, functionOutput.cmathml);
+        appendChildren(apply, operands);
+        return Collections.singletonList(apply);
+    }
+
+    private List<Element> handleFunctionOperands(final List<Element> afterApplyFunction) {
+        if (afterApplyFunction.size()==1 && isMathMLElement(afterApplyFunction.get(0), "mfenced")) {
+            List<Element> result = new ArrayList<Element>();
+            for (Element child : getChildElements(afterApplyFunction.get(0))) {
+                result.addAll(processSingle(child, child));
+            }
+            return result;
+        }
+        return processGroup(afterApplyFunction, afterApplyFunction.get(0));
+    }
+
+    private FunctionMapping mapSupportedFunction(final Element operatorElement) {
+        if (isMathMLElement(operatorElement, "msup") && isMathMLElement(getChildElement(operatorElement, 1), "mi")) {
+            Function function = requireFunction(getSupportedFunction(getChildElement(operatorElement, 1)));
+            Element superscript = requireChildElement(operatorElement, 2);
+            if (isMathMLElement(superscript, "mn") && "-1".equals(getStringValue(superscript))) {
+                /* It looks like an inverse function. Make sure we know about it */
+                Element cmathml = function.inverseOutput!=null
+                    ? createMathMLElement(function.inverseOutput)
+                    : createFailure("UCFFN1", operatorElement, "");
+                return new FunctionMapping(Collections.singletonList(cmathml), function);
+            }
+            else if (isMathMLElement(superscript, "mn") && toNumber(getStringValue(superscript)) >= 1) {
+                /* This looks like sin^2, which we will interpret as such */
+                Element apply = createMathMLElement("apply");
+                apply.appendChild(createMathMLElement("power"));
+                apply.appendChild(createMathMLElement(function.output));
+                appendChildren(apply, applyTemplates(superscript));
+                return new FunctionMapping(Collections.singletonList(apply), function);
+            }
+            /* Fail: unsupported superscript */
+            return new FunctionMapping(Collections.singletonList(createFailure("UCFFN2", operatorElement,
+                    getStringValue(superscript), "")), null);
+        }
+        else if (isLogarithmWithBase(operatorElement, "msub")) {
+            /* Log to a different base */
+            List<Element> cmathml = new ArrayList<Element>(2);
+            cmathml.add(createMathMLElement("log"));
+            cmathml.add(createMathMLElement("logbase", applyTemplates(getChildElement(operatorElement, 2))));
+            return new FunctionMapping(cmathml, LOG_FUNCTION);
+        }
+        else if (isLogarithmWithBase(operatorElement, "msubsup")) {
+            /* Log to a different base with a power */
+            Element superscript = requireChildElement(operatorElement, 3);
+            if (isMathMLElement(superscript, "mn") && toNumber(getStringValue(superscript)) >= 1) {
+                Element log = createMathMLElement("apply");
+                log.appendChild(createMathMLElement("log"));
+                log.appendChild(createMathMLElement("logbase", applyTemplates(getChildElement(operatorElement, 2))));
+                Element apply = createMathMLElement("apply");
+                apply.appendChild(createMathMLElement("power"));
+                apply.appendChild(log);
+                appendChildren(apply, applyTemplates(superscript));
+                return new FunctionMapping(Collections.singletonList(apply), LOG_FUNCTION);
+            }
+            /* Fail: unsupported superscript */
+            return new FunctionMapping(Collections.singletonList(createFailure("UCFFN2", operatorElement,
+                    getStringValue(superscript), "log")), null);
+        }
+        else if (isMathMLElement(operatorElement, "mi")) {
+            /* Unapplied case */
+            Function function = requireFunction(getSupportedFunction(operatorElement));
+            return new FunctionMapping(Collections.singletonList(createMathMLElement(function.output)), function);
+        }
+        throw new NativeUpConversionException("Unexpected logic branch");
+    }
+
+    private static boolean isLogarithmWithBase(final Element element, final String localName) {
+        if (!(isMathMLElement(element, localName) && isLogarithm(element))) {
+            return false;
+        }
+        Element base = getChildElement(element, 2);
+        return isMathMLElement(base, "mi") || isMathMLElement(base, "mn");
+    }
+
+    private static Function requireFunction(final Function function) {
+        if (function==null) {
+            throw new NativeUpConversionException("Expected a supported function");
+        }
+        return function;
+    }
+
+    private Element mapAssumedFunctionConstruct(final Element construct) {
+        if (isPower(construct)) {
+            Element base = require(getPowerBase(construct));
+            Element exponent = require(getPowerExponent(construct));
+            if (isMathMLElement(exponent, "mn") && "-1".equals(getStringValue(exponent))) {
+                /* Inverse function */
+                Element apply = createMathMLElement("apply");
+                apply.appendChild(createMathMLElement("inverse"));
+                apply.appendChild(createCMathMLFunction(base));
+                return apply;
+            }
+            else if (isMathMLElement(exponent, "mn") && toNumber(getStringValue(exponent)) >= 1) {
+                /* Function to a power */
+                Element apply = createMathMLElement("apply");
+                apply.appendChild(createMathMLElement("power"));
+                apply.appendChild(createCMathMLFunction(base));
+                appendChildren(apply, applyTemplates(exponent));
+                return apply;
+            }
+            /* Error: bad exponent */
+            return createFailure("UCFFN2", construct, getStringValue(exponent), getStringValue(base));
+        }
+        return createCMathMLFunction(construct);
+    }
+
+    private Element createCMathMLFunction(final Element element) {
+        Element ci = createMathMLElement("ci");
+        ci.setAttribute("type", "function");
+        if (isMathMLElement(element, "mi")) {
+            appendText(ci, getStringValue(element));
+        }
+        else {
+            ci.appendChild(copy(element));
+        }
+        return ci;
+    }
+
+    //-----------------------------------------------------------
+    // Prefix and postfix operators
+
+    private Element handlePrefixGroup(final List<Element> elements, final Element context) {
+        Operator prefixOperator = getPrefixOperator(getStringValue(elements.get(0)));
+        if (elements.size()==1) {
+            return toCMathML(prefixOperator);
+        }
+        List<Element> operands = elements.subList(1, elements.size());
+        for (Element operand : operands) {
+            if (isOperator(operand)) {
+                /* Fail: bad combination of operators */
+                return createFailure("UCFOP5", elements);
+            }
+        }
+        Element apply = createMathMLElement("apply");
+        apply.appendChild(toCMathML(prefixOperator));
+        appendChildren(apply, processGroup(operands, context));
+        return apply;
+    }
+
+    private Element handleFactorialGroup(final List<Element> elements, final Element context) {
+        int factorialCount = 0;
+        for (Element element : elements) {
+            if (isFactorialOperator(element)) {
+                factorialCount++;
+            }
+        }
+        if (elements.size()==1) {
+            /* Unapplied factorial */
+            return createMathMLElement("factorial");
+        }
+        else if (factorialCount > 1) {
+            /* Fail: Bad combination of operators */
+            return createFailure("UCFOP5", elements);
+        }
+        else if (elements.size()==2) {
+            Element apply = createMathMLElement("apply");
+            apply.appendChild(createMathMLElement("factorial"));
+            appendChildren(apply, processSingle(elements.get(0), context));
+            return apply;
+        }
+        throw new NativeUpConversionException("Expected factorial operator to be preceded by 1 element");
+    }
+
+    //-----------------------------------------------------------
+    // Atoms
+
+    private List<Element> handleAtom(final Element element) {
+        Element symbol = options.getSymbolAssumption(element);
+        if (symbol!=null) {
+            String assume = symbol.getAttribute("assume");
+            if ("exponentialNumber".equals(assume)) {
+                return Collections.singletonList(createMathMLElement("exponentiale"));
+            }
+            else if ("imaginaryNumber".equals(assume)) {
+                return Collections.singletonList(createMathMLElement("imaginaryi"));
+            }
+            else if ("constantPi".equals(assume)) {
+                return Collections.singletonList(createMathMLElement("pi"));
+            }
+            else if ("eulerGamma".equals(assume)) {
+                return Collections.singletonList(createMathMLElement("eulergamma"));
+            }
+            throw new NativeUpConversionException("Unhandled symbol assumption " + assume);
+        }
+        return applyTemplates(element);
+    }
+
+    /** Equivalent of <tt>xsl:apply-templates mode="pmathml-to-cmathml"</tt> */
+    private List<Element> applyTemplates(final Element element) {
+        if (isMathMLElement(element, "mrow")) {
+            List<Element> children = getChildElements(element);
+            if (children.isEmpty()) {
+                /* Fail: empty grouping */
+                return Collections.singletonList(createFailure("UCFG04", element));
+            }
+            return processGroup(children, element);
+        }
+        else if (isMathMLElement(element, "mfenced")) {
+            return handleMfenced(element);
+        }
+        else if (isMathMLElement(element, "mn")) {
+            return Collections.singletonList(createMathMLElement("cn", getStringValue(element)));
+        }
+        else if (isMathMLElement(element, "mi")) {
+            String string = getStringValue(element);
+            if ("\u221e".equals(string)) {
+                return Collections.singletonList(createMathMLElement("infinity"));
+            }
+            else if ("\u2205".equals(string)) {
+                return Collections.singletonList(createMathMLElement("emptyset"));
+            }
+            else if ("MathML-Unit".equals(element.getAttribute("class"))) {
+                /* Special units created using the units macro */
+                Element semantics = createMathMLElement("semantics");
+                semantics.setAttribute("definitionURL", UNITS_DEFINITION_URL);
+                semantics.appendChild(createMathMLElement("csymbol", string));
+                return Collections.singletonList(semantics);
+            }
+            return Collections.singletonList(createMathMLElement("ci", string));
+        }
+        else if (isMathMLElement(element, "mfrac")) {
+            Element apply = createMathMLElement("apply");
+            apply.appendChild(createMathMLElement("divide"));
+            appendChildren(apply, processChild(element, 1));
+            appendChildren(apply, processChild(element, 2));
+            return Collections.singletonList(apply);
+        }
+        else if (isMathMLElement(element, "msup")) {
+            Element apply = createMathMLElement("apply");
+            if (options.isAssumedSymbol(requireChildElement(element, 1), "exponentialNumber")) {
+                /* It's e^x */
+                apply.appendChild(createMathMLElement("exp"));
+                appendChildren(apply, processChild(element, 2));
+            }
+            else {
+                /* Standard power construct */
+                apply.appendChild(createMathMLElement("power"));
+                appendChildren(apply, processChild(element, 1));
+                appendChildren(apply, processChild(element, 2));
+            }
+            return Collections.singletonList(apply);
+        }
+        else if (isMathMLElement(element, "msqrt")) {
+            Element apply = createMathMLElement("apply");
+            apply.appendChild(createMathMLElement("root"));
+            appendChildren(apply, processGroup(getChildElements(element), element));
+            return Collections.singletonList(apply);
+        }
+        else if (isMathMLElement(element, "mroot")) {
+            Element apply = createMathMLElement("apply");
+            apply.appendChild(createMathMLElement("root"));
+            apply.appendChild(createMathMLElement("degree", processChild(element, 2)));
+            appendChildren(apply, processChild(element, 1));
+            return Collections.singletonList(apply);
+        }
+        else if (isMathMLElement(element, "msub") && isSpecialIdentifier(element)) {
+            /* Subscripts made of identifiers and numbers are treated as special identifiers */
+            Element ci = createMathMLElement("ci");
+            ci.appendChild(copy(element));
+            return Collections.singletonList(ci);
+        }
+        /* Failure: cannot up-convert this presentation MathML element */
+        return Collections.singletonList(createFailure("UCFG00", element));
+    }
+
+    /** Processes <tt>*[position]</tt> of the given element, as the XSLT does for fixed arity elements */
+    private List<Element> processChild(final Element parent, final int position) {
+        Element child = getChildElement(parent, position);
+        if (child==null) {
+            return Collections.emptyList();
+        }
+        return processSingle(child, parent);
+    }
+
+    private static boolean isSpecialIdentifier(final Element msub) {
+        boolean allSimple = true;
+        for (Element child : getChildElements(msub)) {
+            if (!isSimpleSubscriptPart(child)) {
+                allSimple = false;
+                break;
+            }
+        }
+        return allSimple
+            || (isMathMLElement(getChildElement(msub, 2), "mfenced")
+                    && isSimpleSubscriptPart(getChildElement(msub, 1)));
+    }
+
+    private static boolean isSimpleSubscriptPart(final Element element) {
+        return isMathMLElement(element, "mi") || isMathMLElement(element, "mn") || isMathMLElement(element, "msub");
+    }
+
+    private List<Element> handleMfenced(final Element mfenced) {
+        String open = mfenced.getAttribute("open");
+        String close = mfenced.getAttribute("close");
+        boolean hasOpen = mfenced.hasAttribute("open");
+        boolean hasClose = mfenced.hasAttribute("close");
+        String value;
+        if ("(".equals(open) && ")".equals(close) && getChildElements(mfenced).size()==1) {
+            value = options.getOption(UpConversionOptionDefinitions.ROUND_BRACKET_HANDLING);
+        }
+        else if ("(".equals(open) && ")".equals(close)) {
+            value = options.getOption(UpConversionOptionDefinitions.ROUND_FENCE_HANDLING);
+        }
+        else if ("[".equals(open) && "]".equals(close)) {
+            value = options.getOption(UpConversionOptionDefinitions.SQUARE_FENCE_HANDLING);
+        }
+        else if ("{".equals(open) && "}".equals(close)) {
+            value = options.getOption(UpConversionOptionDefinitions.CURLY_FENCE_HANDLING);
+        }
+        else if (hasOpen && hasClose && open.length()==0 && close.length()==0) {
+            value = options.getOption(UpConversionOptionDefinitions.EMPTY_FENCE_HANDLING);
+        }
+        else {
+            value = null;
+        }
+        if ("error".equals(value)) {
+            /* Failure: handling of this type of fence has been forbidden by assumption */
+            return Collections.singletonList(createFailure("UCFG03", mfenced,
+                    getFenceArguments(mfenced, hasOpen, hasClose)));
+        }
+        else if ("grouping".equals(value)) {
+            /* Brackets are grouping only, so descend into children */
+            List<Element> result = new ArrayList<Element>();
+            for (Element child : getChildElements(mfenced)) {
+                result.addAll(processSingle(child, child));
+            }
+            return result;
+        }
+        else if ("list".equals(value) || "set".equals(value) || "vector".equals(value)) {
+            /* Special meaning, which maps to Content MathML container of the same name */
+            Element result = createMathMLElement(value);
+            for (Element child : getChildElements(mfenced)) {
+                appendChildren(result, processSingle(child, child));
+            }
+            return Collections.singletonList(result);
+        }
+        else if (value==null) {
+            /* Failure: can't handle this type of fence */
+            return Collections.singletonList(createFailure("UCFG02", mfenced,
+                    getFenceArguments(mfenced, hasOpen, hasClose)));
+        }
+        throw new NativeUpConversionException("Did not expect fence handling value to be " + value);
+    }
+
+    private static String[] getFenceArguments(final Element mfenced, final boolean hasOpen, final boolean hasClose) {
+        List<String> result = new ArrayList<String>(2);
+        if (hasOpen) {
+            result.add(mfenced.getAttribute("open"));
+        }
+        if (hasClose) {
+            result.add(mfenced.getAttribute("close"));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    //-----------------------------------------------------------
+    // Failure helpers
+
+    private static boolean containsFailure(final List<Element> elements) {
+        for (Element element : elements) {
+            if (isFailure(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Equivalent of <tt>$content[self::s:fail][1] | $content[not(self::s:fail)]</tt>, which
+     * keeps the first failure and all non-failures, in their original order.
+     */
+    private static List<Element> keepFirstFailure(final List<Element> elements) {
+        List<Element> result = new ArrayList<Element>(elements.size());
+        boolean seenFailure = false;
+        for (Element element : elements) {
+            if (isFailure(element)) {
+                if (!seenFailure) {
+                    result.add(element);
+                    seenFailure = true;
+                }
+            }
+            else {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+}
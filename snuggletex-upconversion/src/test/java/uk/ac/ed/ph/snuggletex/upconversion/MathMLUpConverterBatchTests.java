@@ -0,0 +1,112 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.SimpleNumberMatcher;
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.testutil.TestFileHelper;
+import uk.ac.ed.ph.snuggletex.testutil.TestUtilities;
+import uk.ac.ed.ph.snuggletex.upconversion.internal.UpConversionPackageDefinitions;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Tests {@link MathMLUpConverter#upConvertSnuggleTeXMathMLBatch(List)}, checking that each
+ * item in a batch comes out the same as when up-converted on its own.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class MathMLUpConverterBatchTests {
+
+    @Test
+    public void testBatchMatchesIndividualUpConversion() throws Throwable {
+        /* Create a few different sets of options, including ones requiring the XSLT */
+        UpConversionOptions maximaOptions = new UpConversionOptions();
+        maximaOptions.setUsingNativeUpConversion(true);
+        maximaOptions.setSpecifiedOption(UpConversionOptionDefinitions.DO_CONTENT_MATHML_NAME, "true");
+        maximaOptions.setSpecifiedOption(UpConversionOptionDefinitions.DO_MAXIMA_NAME, "true");
+
+        UpConversionOptions xsltOptions = (UpConversionOptions) maximaOptions.clone();
+        xsltOptions.setUsingNativeUpConversion(false);
+
+        UpConversionOptions bracketedOptions = new UpConversionOptions();
+        bracketedOptions.setUsingNativeUpConversion(true);
+        bracketedOptions.setSpecifiedOption(UpConversionOptionDefinitions.DO_BRACKETED_PRESENTATION_MATHML, "true");
+
+        UpConversionOptions[] optionsCycle = new UpConversionOptions[] {
+            null, maximaOptions, xsltOptions, bracketedOptions
+        };
+
+        /* Build up batch from the Maxima test inputs */
+        List<UpConversionBatchItem> batchItems = new ArrayList<UpConversionBatchItem>();
+        int i = 0;
+        for (String[] testData : TestFileHelper.readAndParseSingleLineInputTestResource(MathUpConversionToMaximaTests.TEST_RESOURCE_NAME)) {
+            batchItems.add(new UpConversionBatchItem(createMathElement(testData[0]), optionsCycle[i++ % optionsCycle.length]));
+        }
+
+        MathMLUpConverter upConverter = new MathMLUpConverter();
+        Document resultDocument = upConverter.upConvertSnuggleTeXMathMLBatch(batchItems);
+
+        /* Check each result against the individual up-conversion */
+        for (UpConversionBatchItem batchItem : batchItems) {
+            Element resultMathElement = batchItem.getResultMathElement();
+            Assert.assertNotNull(resultMathElement);
+            Assert.assertSame(resultDocument, resultMathElement.getOwnerDocument());
+
+            Document individualDocument = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+            individualDocument.appendChild(individualDocument.importNode(batchItem.getMathElement(), true));
+            Document individualResult = upConverter.upConvertSnuggleTeXMathML(individualDocument, batchItem.getUpConversionOptions());
+
+            Assert.assertEquals(NativeMathMLUpConverterTests.canonicalise(individualResult.getDocumentElement()),
+                    NativeMathMLUpConverterTests.canonicalise(resultMathElement));
+            Assert.assertEquals(UpConversionUtilities.extractUpConversionFailures(individualResult).size(),
+                    batchItem.getUpConversionFailures().size());
+        }
+    }
+
+    private Element createMathElement(String inputFragment) throws Exception {
+        String inputLaTeX = inputFragment.endsWith("$") ? inputFragment : "$" + inputFragment + "$";
+        SnuggleEngine engine = new SnuggleEngine();
+        engine.getDefaultSessionConfiguration().setNumberMatcher(new SimpleNumberMatcher(Locale.ENGLISH));
+        engine.addPackage(UpConversionPackageDefinitions.getPackage());
+
+        SnuggleSession session = engine.createSession();
+        session.parseInput(new SnuggleInput(TestUtilities.massageInputLaTeX(inputLaTeX)));
+
+        DOMOutputOptions domOutputOptions = new DOMOutputOptions();
+        domOutputOptions.setMathVariantMapping(true);
+        domOutputOptions.setPrefixingSnuggleXML(true);
+
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element rootElement = document.createElement("temp");
+        document.appendChild(rootElement);
+        session.buildDOMSubtree(rootElement, domOutputOptions);
+        TestUtilities.assertNoErrors(session);
+
+        for (Node child = rootElement.getFirstChild(); child!=null; child = child.getNextSibling()) {
+            if (MathMLUtilities.isMathMLElement(child, "math")) {
+                return (Element) child;
+            }
+        }
+        Assert.fail("No <math/> element was created");
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.upconversion;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions.ErrorOutputOptions;
+import uk.ac.ed.ph.snuggletex.SimpleNumberMatcher;
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
+import uk.ac.ed.ph.snuggletex.testutil.TestFileHelper;
+import uk.ac.ed.ph.snuggletex.testutil.TestUtilities;
+import uk.ac.ed.ph.snuggletex.upconversion.internal.NativeMathMLUpConverter;
+import uk.ac.ed.ph.snuggletex.upconversion.internal.UpConversionPackageDefinitions;
+import uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.xml.XMLConstants;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Differential test checking that the native Java up-conversion process produces the same
+ * results as the reference XSLT, using the inputs from all of the other up-conversion tests.
+ * The {@link NativeMathMLUpConverter} is called directly so that it can't fall back to the
+ * XSLT without us noticing.
+ * <p>
+ * The inputs from {@link MathUpConversionErrorTests} are complete documents that generate
+ * errors. These are included in the output so that we check how both processes handle them.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+@RunWith(Parameterized.class)
+public class NativeMathMLUpConverterTests {
+
+    private static final Logger log = Logger.getLogger(NativeMathMLUpConverterTests.class.getName());
+
+    @Parameters
+    public static Collection<Object[]> data() throws Exception {
+        Collection<Object[]> result = new ArrayList<Object[]>();
+        addTests(result, MathUpConversionPMathMLTests.TEST_RESOURCE_NAME, false);
+        addTests(result, MathUpConversionCMathMLTests.TEST_RESOURCE_NAME, false);
+        addTests(result, MathUpConversionToMaximaTests.TEST_RESOURCE_NAME, false);
+        addTests(result, MathUpConversionErrorTests.TEST_RESOURCE_NAME, true);
+        return result;
+    }
+
+    private static void addTests(Collection<Object[]> result, String resourceName, boolean expectingErrors)
+            throws Exception {
+        for (String[] test : TestFileHelper.readAndParseSingleLineInputTestResource(resourceName)) {
+            result.add(new Object[] { test[0], Boolean.valueOf(expectingErrors) });
+        }
+    }
+
+    private final String inputLaTeX;
+    private final boolean expectingErrors;
+
+    public NativeMathMLUpConverterTests(final String inputFragment, final Boolean expectingErrors) {
+        this.expectingErrors = expectingErrors.booleanValue();
+        if (this.expectingErrors || inputFragment.endsWith("$")) {
+            this.inputLaTeX = inputFragment;
+        }
+        else {
+            this.inputLaTeX = "$" + inputFragment + "$";
+        }
+    }
+
+    @Test
+    public void runTest() throws Throwable {
+        /* Build raw SnuggleTeX output, without any up-conversion */
+        SnuggleEngine engine = new SnuggleEngine();
+        engine.getDefaultSessionConfiguration().setNumberMatcher(new SimpleNumberMatcher(Locale.ENGLISH));
+        engine.addPackage(UpConversionPackageDefinitions.getPackage());
+
+        SnuggleSession session = engine.createSession();
+        session.parseInput(new SnuggleInput(TestUtilities.massageInputLaTeX(inputLaTeX)));
+
+        DOMOutputOptions domOutputOptions = new DOMOutputOptions();
+        domOutputOptions.setMathVariantMapping(true);
+        domOutputOptions.setPrefixingSnuggleXML(true);
+        domOutputOptions.setErrorOutputOptions(ErrorOutputOptions.XML_FULL);
+
+        Document document = XMLUtilities.createNSAwareDocumentBuilder().newDocument();
+        Element rootElement = document.createElement("temp");
+        document.appendChild(rootElement);
+        session.buildDOMSubtree(rootElement, domOutputOptions);
+        if (expectingErrors) {
+            Assert.assertFalse(session.getErrors().isEmpty());
+        }
+        else {
+            TestUtilities.assertNoErrors(session);
+        }
+
+        /* Up-convert as far as possible, both natively and using the XSLT */
+        UpConversionOptions upConversionOptions = new UpConversionOptions();
+        upConversionOptions.setSpecifiedOption(UpConversionOptionDefinitions.DO_CONTENT_MATHML_NAME, "true");
+        upConversionOptions.setSpecifiedOption(UpConversionOptionDefinitions.DO_MAXIMA_NAME, "true");
+        upConversionOptions.setSpecifiedOption(UpConversionOptionDefinitions.ADD_OPTIONS_ANNOTATION_NAME, "true");
+
+        NativeMathMLUpConverter nativeUpConverter = new NativeMathMLUpConverter(
+                MathMLUpConverter.createUpConversionOptionsElement(upConversionOptions));
+        Document nativeResult = nativeUpConverter.upConvertDocument(document);
+        Document xsltResult = new MathMLUpConverter().upConvertSnuggleTeXMathMLUsingXSLT(document, upConversionOptions);
+
+        /* The native process should handle everything except bracketed PMathML, so make sure
+         * it hasn't given up (which would normally make us quietly fall back to the XSLT) */
+        if (inputLaTeX.contains(UpConversionOptionDefinitions.DO_BRACKETED_PRESENTATION_MATHML)) {
+            Assert.assertNull(nativeResult);
+            return;
+        }
+        Assert.assertNotNull("Native up-conversion gave up on input " + inputLaTeX, nativeResult);
+
+        try {
+            Assert.assertEquals(canonicalise(xsltResult.getDocumentElement()), canonicalise(nativeResult.getDocumentElement()));
+        }
+        catch (Throwable e) {
+            log.severe("Native and XSLT up-conversion differ on input " + inputLaTeX);
+            log.severe("XSLT result:   " + MathMLUtilities.serializeDocument(xsltResult));
+            log.severe("Native result: " + MathMLUtilities.serializeDocument(nativeResult));
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a canonical String form of the given {@link Element}, ignoring namespace prefixes
+     * and declarations and the order of attributes.
+     */
+    static String canonicalise(Element element) {
+        StringBuilder resultBuilder = new StringBuilder();
+        canonicalise(element, resultBuilder);
+        return resultBuilder.toString();
+    }
+
+    private static void canonicalise(Node node, StringBuilder resultBuilder) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                Map<String, String> attributeMap = new TreeMap<String, String>();
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i=0, length=attributes.getLength(); i<length; i++) {
+                    Node attribute = attributes.item(i);
+                    if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                        attributeMap.put("{" + attribute.getNamespaceURI() + "}" + attribute.getLocalName(),
+                                attribute.getNodeValue());
+                    }
+                }
+                resultBuilder.append("<{").append(node.getNamespaceURI()).append('}')
+                    .append(node.getLocalName()).append(attributeMap).append('>');
+                for (Node child = node.getFirstChild(); child!=null; child = child.getNextSibling()) {
+                    canonicalise(child, resultBuilder);
+                }
+                resultBuilder.append("</>");
+                break;
+
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                resultBuilder.append(node.getNodeValue());
+                break;
+
+            default:
+                break;
+        }
+    }
+}
@@ -48,6 +48,12 @@ public final class ASCIIMathMLUpConversionDemoServlet extends BaseServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        executeConversion(request, response);
+    }
+    
+    @Override
+    protected void doConversion(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
         /* Get the raw ASCIIMathML input and Presentation MathML created by the ASCIIMathML
          * JavaScript code.
          */
@@ -92,8 +98,7 @@ public final class ASCIIMathMLUpConversionDemoServlet extends BaseServlet {
         options.setIndenting(true);
         options.setIncludingStyleElement(false);
         
-        SnuggleEngine engine = createSnuggleEngine();
-        SnuggleSession session = engine.createSession();
+        SnuggleSession session = getSnuggleEngine().createSession();
         session.parseInput(new SnuggleInput("", "Dummy Input"));
         
         /* Create XSLT to generate the resulting page */
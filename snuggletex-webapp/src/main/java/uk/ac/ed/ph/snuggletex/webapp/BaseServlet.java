@@ -20,9 +20,11 @@ import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
+import java.io.IOException;
 import java.io.InputStream;
 
 import static uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities.isMathMLElement;
@@ -69,8 +71,50 @@ abstract class BaseServlet extends HttpServlet {
         return getStylesheetManager().getStylesheetCache();
     }
     
-    protected SnuggleEngine createSnuggleEngine() {
-        return new SnuggleEngine(getStylesheetManager());
+    /**
+     * Returns the standard {@link SnuggleEngine} shared by the whole webapp.
+     */
+    protected SnuggleEngine getSnuggleEngine() {
+        return (SnuggleEngine) getServletContext().getAttribute(ContextInitialiser.SNUGGLE_ENGINE_ATTRIBUTE_NAME);
+    }
+    
+    /**
+     * Returns the shared {@link SnuggleEngine} that also includes the up-conversion package,
+     * for use by the servlets that up-convert.
+     */
+    protected SnuggleEngine getUpConversionSnuggleEngine() {
+        return (SnuggleEngine) getServletContext().getAttribute(ContextInitialiser.UP_CONVERSION_SNUGGLE_ENGINE_ATTRIBUTE_NAME);
+    }
+    
+    protected ConversionExecutor getConversionExecutor() {
+        return (ConversionExecutor) getServletContext().getAttribute(ContextInitialiser.CONVERSION_EXECUTOR_ATTRIBUTE_NAME);
+    }
+    
+    /**
+     * Hands the given request over to the shared {@link ConversionExecutor}, which will
+     * eventually call {@link #doConversion(HttpServletRequest, HttpServletResponse)} on one
+     * of its worker threads.
+     * <p>
+     * Servlets doing expensive conversions should call this from their <tt>doGet()</tt> and/or
+     * <tt>doPost()</tt> methods.
+     */
+    protected void executeConversion(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        getConversionExecutor().execute(request, response, new ConversionExecutor.Conversion() {
+            public void run(HttpServletRequest conversionRequest, HttpServletResponse conversionResponse)
+                    throws ServletException, IOException {
+                doConversion(conversionRequest, conversionResponse);
+            }
+        });
+    }
+    
+    /**
+     * Subclasses using {@link #executeConversion(HttpServletRequest, HttpServletResponse)}
+     * should override this to do the actual work of handling the request.
+     */
+    protected void doConversion(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        throw new SnuggleLogicException("Servlet " + getServletName() + " does not implement doConversion()");
     }
     
     /**
@@ -86,6 +130,17 @@ abstract class BaseServlet extends HttpServlet {
      * @throws ServletException if XSLT could not be found or could not be compiled.
      */
     protected Transformer getStylesheet(HttpServletRequest request, String classPathUri) throws ServletException {
+        return getStylesheet(request.getContextPath(), classPathUri);
+    }
+    
+    /**
+     * Version of {@link #getStylesheet(HttpServletRequest, String)} for use when there is
+     * no request available, taking the webapp's context path explicitly.
+     * 
+     * @param contextPath context path of the webapp
+     * @param classPathUri location of XSLT to compile.
+     */
+    protected Transformer getStylesheet(String contextPath, String classPathUri) throws ServletException {
         Transformer result;
         try {
             result = getStylesheetManager().getCompiledStylesheet(classPathUri).newTransformer();
@@ -93,12 +148,26 @@ abstract class BaseServlet extends HttpServlet {
         catch (TransformerConfigurationException e) {
             throw new ServletException("Could not create Transformer from Templates", e);
         }
-        result.setParameter("context-path", request.getContextPath());
+        result.setParameter("context-path", contextPath);
         result.setParameter("snuggletex-version", ensureGetContextInitParam(ContextInitialiser.SNUGGLETEX_VERSION_PROPERTY_NAME));
         result.setParameter("maven-site-url", ensureGetContextInitParam(ContextInitialiser.MAVEN_SITE_URL_PROPERTY_NAME));
         return result;
     }
     
+    /**
+     * Sets the standard stylesheet parameters used by {@link #getStylesheet(String, String)}
+     * on the given {@link WebPageOutputOptions}, for use with any stylesheets specified via
+     * {@link WebPageOutputOptions#setStylesheetURIs(String...)}.
+     * 
+     * @param options options to configure
+     * @param contextPath context path of the webapp
+     */
+    protected void setStylesheetParameters(WebPageOutputOptions options, String contextPath) throws ServletException {
+        options.setStylesheetParameter("context-path", contextPath);
+        options.setStylesheetParameter("snuggletex-version", ensureGetContextInitParam(ContextInitialiser.SNUGGLETEX_VERSION_PROPERTY_NAME));
+        options.setStylesheetParameter("maven-site-url", ensureGetContextInitParam(ContextInitialiser.MAVEN_SITE_URL_PROPERTY_NAME));
+    }
+    
     protected SerializationSpecifier createMathMLSourceSerializationOptions() {
         SerializationSpecifier result = new SerializationOptions();
         result.setIndenting(true);
@@ -0,0 +1,611 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import static uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities.serializeDocument;
+import static uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities.serializeElement;
+import static uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities.unwrapParallelMathMLDOM;
+
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
+import uk.ac.ed.ph.snuggletex.InputError;
+import uk.ac.ed.ph.snuggletex.SerializationSpecifier;
+import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnugglePreambleCache;
+import uk.ac.ed.ph.snuggletex.SnuggleSession;
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions.ErrorOutputOptions;
+import uk.ac.ed.ph.snuggletex.upconversion.MathMLUpConverter;
+import uk.ac.ed.ph.snuggletex.upconversion.UpConvertingPostProcessor;
+import uk.ac.ed.ph.snuggletex.utilities.MessageFormatter;
+import uk.ac.ed.ph.snuggletex.utilities.SerializationOptions;
+import uk.ac.ed.ph.snuggletex.utilities.UnwrappedParallelMathMLDOM;
+import uk.ac.ed.ph.snuggletex.webapp.JSONUtilities.JSONLimitException;
+import uk.ac.ed.ph.snuggletex.webapp.JSONUtilities.JSONParseException;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Converts a whole batch of inputs in one request, for clients that want to convert lots of
+ * things without making a round-trip per input.
+ * <p>
+ * The batch is POSTed as a JSON object of the following form:
+ * <pre>
+ * {
+ *   "inputType": "latex",
+ *   "upConvert": true,
+ *   "assumptions": "\\assumeSymbol{f}{function}",
+ *   "items": [ "x^2", { "id": "q2", "input": "\\frac{1}{f(x)}" } ]
+ * }
+ * </pre>
+ * Only <tt>items</tt> is required. Each item is either a String or an object with an
+ * <tt>input</tt> and an optional <tt>id</tt>, which is echoed back in the result.
+ * <tt>inputType</tt> is one of:
+ * <ul>
+ *   <li><tt>latex</tt> (default): Each input is parsed in Math mode, after any
+ *     <tt>assumptions</tt> (which are parsed only once). The result contains Presentation
+ *     MathML and, if <tt>upConvert</tt> is true, Content MathML and Maxima input.</li>
+ *   <li><tt>asciimathml</tt>: Each input is the MathML produced by ASCIIMathML, as in the
+ *     {@link ASCIIMathMLUpConversionDemoServlet}, and is always up-converted. (ASCIIMathML
+ *     itself runs in the browser, so we can't convert raw ASCIIMath input here.)</li>
+ * </ul>
+ * Items are converted in parallel and the results are streamed back as newline-delimited
+ * JSON (one object per line) in the order they finish, each containing the <tt>index</tt> of
+ * the item in the request. A result contains either <tt>mathml</tt> (plus <tt>cmathml</tt>
+ * and <tt>maxima</tt> when up-converting), <tt>errors</tt> (a list of SnuggleTeX input errors)
+ * or <tt>failure</tt> (a message explaining why the item could not be converted, e.g. because
+ * it took too long).
+ * <p>
+ * The size of a batch is limited by the <tt>maxItems</tt> and <tt>maxBodySize</tt> init-params;
+ * larger batches get a <tt>413</tt> response.
+ * <p>
+ * Batches are long-running, so are not run on the {@link ConversionExecutor} used by the
+ * other demos. Instead, this servlet has its own pool of worker threads and limits the number
+ * of batches being processed at once, sending a <tt>429</tt> response once this has been
+ * reached, before reading the batch. Each item is subject to the same deadline as conversions
+ * done by the other demos, counted from when a worker starts converting it.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class BatchConversionServlet extends BaseServlet {
+
+    private static final long serialVersionUID = -3394633245530372165L;
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchConversionServlet.class);
+
+    /** Name of init-param specifying the number of worker threads */
+    public static final String THREADS_PARAM = "threads";
+
+    /** Name of init-param specifying the maximum number of batches processed at once */
+    public static final String MAX_CONCURRENT_BATCHES_PARAM = "maxConcurrentBatches";
+
+    /** Name of init-param specifying the maximum number of items in a batch */
+    public static final String MAX_ITEMS_PARAM = "maxItems";
+
+    /** Name of init-param specifying the maximum size of a batch request body, in bytes */
+    public static final String MAX_BODY_SIZE_PARAM = "maxBodySize";
+
+    public static final int DEFAULT_MAX_CONCURRENT_BATCHES = 4;
+    public static final int DEFAULT_MAX_ITEMS = 10000;
+    public static final int DEFAULT_MAX_BODY_SIZE = 4 * 1024 * 1024;
+
+    /** MIME type for the results */
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    /** Workers that convert items, shared by all batches */
+    private ExecutorService itemExecutor;
+
+    /** Number of threads in {@link #itemExecutor} */
+    private int threadCount;
+
+    /** Limits the number of batches being processed at once */
+    private Semaphore batchPermits;
+
+    private int maxItems;
+
+    private int maxBodySize;
+
+    /** Caches the results of parsing assumptions */
+    private SnugglePreambleCache preambleCache;
+
+    /** Options for serializing results, which are not changed after creation */
+    private SerializationSpecifier serializationOptions;
+
+    @Override
+    public void init() throws ServletException {
+        threadCount = getIntInitParameter(THREADS_PARAM, Runtime.getRuntime().availableProcessors());
+        batchPermits = new Semaphore(getIntInitParameter(MAX_CONCURRENT_BATCHES_PARAM, DEFAULT_MAX_CONCURRENT_BATCHES));
+        maxItems = getIntInitParameter(MAX_ITEMS_PARAM, DEFAULT_MAX_ITEMS);
+        maxBodySize = getIntInitParameter(MAX_BODY_SIZE_PARAM, DEFAULT_MAX_BODY_SIZE);
+        itemExecutor = Executors.newFixedThreadPool(threadCount);
+        preambleCache = new SnugglePreambleCache(getUpConversionSnuggleEngine());
+        serializationOptions = new SerializationOptions();
+    }
+
+    @Override
+    public void destroy() {
+        itemExecutor.shutdownNow();
+    }
+
+    private int getIntInitParameter(final String paramName, final int defaultValue) throws ServletException {
+        String value = getServletConfig().getInitParameter(paramName);
+        if (value==null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value.trim());
+            if (result<=0) {
+                throw new ServletException("init-param " + paramName + " must be positive");
+            }
+            return result;
+        }
+        catch (NumberFormatException e) {
+            throw new ServletException("init-param " + paramName + " must be an integer");
+        }
+    }
+
+    //-------------------------------------------------
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        /* Make sure we're not too busy before reading anything */
+        if (!batchPermits.tryAcquire()) {
+            response.setHeader("Retry-After", Integer.toString(ConversionExecutor.RETRY_AFTER_SECONDS));
+            response.sendError(ConversionExecutor.SC_TOO_MANY_REQUESTS, "Too many batches are being processed; please try again shortly");
+            return;
+        }
+        try {
+            /* Read and check the batch */
+            if (request.getCharacterEncoding()==null) {
+                request.setCharacterEncoding("UTF-8");
+            }
+            Batch batch;
+            try {
+                batch = readBatch(request);
+            }
+            catch (JSONParseException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad JSON: " + e.getMessage());
+                return;
+            }
+            catch (BadBatchException e) {
+                response.sendError(e.statusCode, e.getMessage());
+                return;
+            }
+
+            /* Then convert it */
+            response.setContentType(NDJSON_CONTENT_TYPE);
+            response.setCharacterEncoding("UTF-8");
+            convertBatch(batch, response.getWriter());
+        }
+        finally {
+            batchPermits.release();
+        }
+    }
+
+    /**
+     * Converts the items in the given {@link Batch}, writing results out as they finish.
+     * <p>
+     * Only a few items are handed over to the workers at a time, so that large batches don't
+     * hog the workers or fill up memory with waiting items. Each item's deadline starts when
+     * a worker starts converting it, as the workers are shared with other batches.
+     */
+    private void convertBatch(final Batch batch, final PrintWriter writer) {
+        long deadlineMillis = getConversionExecutor().getDeadlineMillis();
+        int window = threadCount * 2;
+        CompletionService<String> completionService = new ExecutorCompletionService<String>(itemExecutor);
+        Map<Future<String>, PendingItem> pendingItems = new LinkedHashMap<Future<String>, PendingItem>();
+        int nextItemIndex = 0;
+        try {
+            while (nextItemIndex < batch.items.size() || !pendingItems.isEmpty()) {
+                /* Top up the items being converted */
+                while (pendingItems.size() < window && nextItemIndex < batch.items.size()) {
+                    BatchItem item = batch.items.get(nextItemIndex++);
+                    ItemConversion conversion = new ItemConversion(batch, item);
+                    pendingItems.put(completionService.submit(conversion), new PendingItem(item, conversion));
+                }
+
+                /* Wait until something finishes or the first running item runs out of time.
+                 * (Items that haven't started yet can't run out of time before then.) */
+                long now = System.currentTimeMillis();
+                long firstDeadline = now + deadlineMillis;
+                for (PendingItem pendingItem : pendingItems.values()) {
+                    firstDeadline = Math.min(firstDeadline, pendingItem.conversion.getDeadline(deadlineMillis));
+                }
+                long waitMillis = Math.max(1L, firstDeadline - now);
+                Future<String> future = completionService.poll(waitMillis, TimeUnit.MILLISECONDS);
+                while (future!=null) {
+                    /* (Cancelled items also end up here, but will already have been reported) */
+                    PendingItem pendingItem = pendingItems.remove(future);
+                    if (pendingItem!=null) {
+                        writer.println(getResultLine(future, pendingItem.item));
+                    }
+                    future = completionService.poll();
+                }
+
+                /* Give up on anything that has run out of time */
+                now = System.currentTimeMillis();
+                for (Iterator<Map.Entry<Future<String>, PendingItem>> iter = pendingItems.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<Future<String>, PendingItem> entry = iter.next();
+                    if (entry.getValue().conversion.getDeadline(deadlineMillis) > now) {
+                        continue;
+                    }
+                    entry.getKey().cancel(true);
+                    iter.remove();
+                    writer.println(createFailureLine(entry.getValue().item,
+                            "Conversion did not finish within " + deadlineMillis + "ms"));
+                }
+
+                /* Send what we've got so far, stopping if the client has gone away */
+                writer.flush();
+                if (writer.checkError()) {
+                    logger.info("Client stopped reading batch results; abandoning {} remaining item(s)",
+                            Integer.valueOf(batch.items.size() - nextItemIndex + pendingItems.size()));
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            for (Future<String> future : pendingItems.keySet()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private String getResultLine(final Future<String> future, final BatchItem item) throws InterruptedException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            logger.warn("Conversion of batch item " + item.index + " failed", e.getCause());
+            return createFailureLine(item, "Conversion failed: " + e.getCause().getMessage());
+        }
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Converts a single item, returning the resulting line of JSON.
+     */
+    private final class ItemConversion implements Callable<String> {
+
+        private final Batch batch;
+        private final BatchItem item;
+
+        /** Time this started running, 0 if it hasn't started yet */
+        private volatile long startTime;
+
+        public ItemConversion(final Batch batch, final BatchItem item) {
+            this.batch = batch;
+            this.item = item;
+        }
+
+        /**
+         * Returns the time by which this should finish, given the deadline for each item, or
+         * {@link Long#MAX_VALUE} if this hasn't started running yet.
+         */
+        public long getDeadline(final long deadlineMillis) {
+            long started = startTime;
+            return started!=0L ? started + deadlineMillis : Long.MAX_VALUE;
+        }
+
+        public String call() throws Exception {
+            startTime = System.currentTimeMillis();
+            return batch.asciiMathML ? convertASCIIMathML() : convertLaTeX();
+        }
+
+        private String convertLaTeX() throws IOException {
+            SnuggleSession session;
+            if (batch.assumptions!=null) {
+                session = preambleCache.createSession(new SnuggleInput(batch.assumptions, "Assumptions Input"));
+            }
+            else {
+                session = getUpConversionSnuggleEngine().createSession();
+            }
+            session.parseInput(new SnuggleInput("\\[ " + item.input + " \\]", "Batch Item " + item.index));
+
+            DOMOutputOptions domOptions = new DOMOutputOptions();
+            domOptions.setMathVariantMapping(true);
+            domOptions.setAddingMathSourceAnnotations(true);
+            domOptions.setErrorOutputOptions(ErrorOutputOptions.NO_OUTPUT);
+            if (batch.upConverting) {
+                domOptions.setDOMPostProcessors(new UpConvertingPostProcessor());
+            }
+            NodeList resultNodeList = session.buildDOMSubtree(domOptions);
+            List<InputError> errors = session.getErrors();
+            if (!errors.isEmpty()) {
+                return createErrorsLine(item, errors);
+            }
+            Element mathElement = extractMathMLElement(resultNodeList, true);
+            if (mathElement==null) {
+                return createFailureLine(item, "Input did not produce a single MathML element");
+            }
+            return batch.upConverting ? createUpConvertedLine(item, mathElement)
+                    : createMathMLLine(item, serializeElement(mathElement, serializationOptions));
+        }
+
+        private String convertASCIIMathML() {
+            MathMLUpConverter upConverter = new MathMLUpConverter(getStylesheetManager());
+            Document upConvertedMathDocument = upConverter.upConvertASCIIMathML(item.input, null);
+            return createUpConvertedLine(item, upConvertedMathDocument.getDocumentElement());
+        }
+    }
+
+    private String createUpConvertedLine(final BatchItem item, final Element mathElement) {
+        /* Index the annotations once, only copying the bits we need to serialize */
+        UnwrappedParallelMathMLDOM unwrappedDOM = unwrapParallelMathMLDOM(mathElement);
+        if (unwrappedDOM==null) {
+            return createMathMLLine(item, serializeElement(mathElement, serializationOptions));
+        }
+        StringBuilder result = startLine(item);
+        result.append(",\"mathml\":");
+        JSONUtilities.appendString(result, serializeDocument(unwrappedDOM.isolateFirstBranch(), serializationOptions));
+        Document cMathMLDocument = unwrappedDOM.isolateAnnotationXML(MathMLUpConverter.CONTENT_MATHML_ANNOTATION_NAME);
+        result.append(",\"cmathml\":");
+        JSONUtilities.appendString(result, cMathMLDocument!=null ? serializeDocument(cMathMLDocument, serializationOptions) : null);
+        result.append(",\"maxima\":");
+        JSONUtilities.appendString(result, unwrappedDOM.getTextAnnotation(MathMLUpConverter.MAXIMA_ANNOTATION_NAME));
+        return result.append('}').toString();
+    }
+
+    private static String createMathMLLine(final BatchItem item, final String mathML) {
+        StringBuilder result = startLine(item);
+        result.append(",\"mathml\":");
+        JSONUtilities.appendString(result, mathML);
+        return result.append('}').toString();
+    }
+
+    private static String createErrorsLine(final BatchItem item, final List<InputError> errors) {
+        StringBuilder result = startLine(item);
+        result.append(",\"errors\":[");
+        for (int i=0, size=errors.size(); i<size; i++) {
+            InputError error = errors.get(i);
+            if (i>0) {
+                result.append(',');
+            }
+            result.append("{\"code\":");
+            JSONUtilities.appendString(result, error.getErrorCode().getName());
+            result.append(",\"message\":");
+            JSONUtilities.appendString(result, MessageFormatter.formatErrorAsString(error));
+            result.append('}');
+        }
+        return result.append("]}").toString();
+    }
+
+    private static String createFailureLine(final BatchItem item, final String message) {
+        StringBuilder result = startLine(item);
+        result.append(",\"failure\":");
+        JSONUtilities.appendString(result, message);
+        return result.append('}').toString();
+    }
+
+    private static StringBuilder startLine(final BatchItem item) {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"index\":").append(item.index);
+        if (item.id!=null) {
+            result.append(",\"id\":");
+            JSONUtilities.appendString(result, item.id);
+        }
+        return result;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Reads and checks the batch in the given request. The size of the request body and
+     * the number of items are checked while reading, so that oversized batches are rejected
+     * without reading or parsing all of them.
+     */
+    private Batch readBatch(final HttpServletRequest request) throws IOException, BadBatchException {
+        if (request.getContentLength() > maxBodySize) {
+            throw createBodyTooLargeException();
+        }
+        Reader reader = new BufferedReader(new InputStreamReader(new LimitedInputStream(request.getInputStream(), maxBodySize),
+                request.getCharacterEncoding()));
+        Object json;
+        try {
+            json = JSONUtilities.parse(reader, maxItems);
+        }
+        catch (BodyTooLargeException e) {
+            throw createBodyTooLargeException();
+        }
+        catch (JSONLimitException e) {
+            throw new BadBatchException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Batches may contain at most " + maxItems + " items");
+        }
+        if (!(json instanceof Map)) {
+            throw new BadBatchException("Batch must be a JSON object");
+        }
+        Map<?, ?> batchObject = (Map<?, ?>) json;
+        Batch result = new Batch();
+
+        Object inputType = batchObject.get("inputType");
+        if (inputType==null || "latex".equals(inputType)) {
+            result.asciiMathML = false;
+        }
+        else if ("asciimathml".equals(inputType)) {
+            result.asciiMathML = true;
+        }
+        else {
+            throw new BadBatchException("inputType must be 'latex' or 'asciimathml'");
+        }
+        Object upConvert = batchObject.get("upConvert");
+        if (upConvert!=null && !(upConvert instanceof Boolean)) {
+            throw new BadBatchException("upConvert must be a boolean");
+        }
+        result.upConverting = result.asciiMathML || Boolean.TRUE.equals(upConvert);
+        Object assumptions = batchObject.get("assumptions");
+        if (assumptions!=null && !(assumptions instanceof String)) {
+            throw new BadBatchException("assumptions must be a string");
+        }
+        result.assumptions = (String) assumptions;
+
+        Object items = batchObject.get("items");
+        if (!(items instanceof List)) {
+            throw new BadBatchException("items must be a list");
+        }
+        List<?> itemList = (List<?>) items;
+        result.items = new ArrayList<BatchItem>(itemList.size());
+        for (int i=0, size=itemList.size(); i<size; i++) {
+            Object itemObject = itemList.get(i);
+            Object id = null;
+            Object input = itemObject;
+            if (itemObject instanceof Map) {
+                id = ((Map<?, ?>) itemObject).get("id");
+                input = ((Map<?, ?>) itemObject).get("input");
+            }
+            if (!(input instanceof String)) {
+                throw new BadBatchException("Item " + i + " does not have a string input");
+            }
+            if (id!=null && !(id instanceof String)) {
+                throw new BadBatchException("Item " + i + " has a non-string id");
+            }
+            result.items.add(new BatchItem(i, (String) id, (String) input));
+        }
+        return result;
+    }
+
+    private BadBatchException createBodyTooLargeException() {
+        return new BadBatchException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                "Batches may be at most " + maxBodySize + " bytes long");
+    }
+
+    private static final class Batch {
+        boolean asciiMathML;
+        boolean upConverting;
+        String assumptions;
+        List<BatchItem> items;
+    }
+
+    private static final class BatchItem {
+        final int index;
+        final String id;
+        final String input;
+
+        public BatchItem(final int index, final String id, final String input) {
+            this.index = index;
+            this.id = id;
+            this.input = input;
+        }
+    }
+
+    private static final class PendingItem {
+        final BatchItem item;
+        final ItemConversion conversion;
+
+        public PendingItem(final BatchItem item, final ItemConversion conversion) {
+            this.item = item;
+            this.conversion = conversion;
+        }
+    }
+
+    /**
+     * Stream that fails with a {@link BodyTooLargeException} once more than a given number of
+     * bytes have been read from it.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        public LimitedInputStream(final InputStream inputStream, final long limit) {
+            super(inputStream);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result!=-1) {
+                consume(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            /* (Read one byte more than allowed so that overflowing is noticed) */
+            int count = super.read(buffer, offset, (int) Math.min(length, remaining + 1));
+            if (count!=-1) {
+                consume(count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            long result = super.skip(Math.min(count, remaining + 1));
+            consume(result);
+            return result;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void consume(final long count) throws BodyTooLargeException {
+            remaining -= count;
+            if (remaining<0) {
+                throw new BodyTooLargeException();
+            }
+        }
+    }
+
+    private static final class BodyTooLargeException extends IOException {
+
+        private static final long serialVersionUID = -6413502862163851257L;
+    }
+
+    private static final class BadBatchException extends Exception {
+
+        private static final long serialVersionUID = 4580913456720147963L;
+
+        final int statusCode;
+
+        public BadBatchException(final String message) {
+            this(HttpServletResponse.SC_BAD_REQUEST, message);
+        }
+
+        public BadBatchException(final int statusCode, final String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * {@link HttpServletResponse} that records everything done to it in memory rather than
+ * passing it on to the wrapped response, so that it can be sent later (or discarded) via
+ * {@link #sendTo(HttpServletResponse)}.
+ * <p>
+ * This is used by {@link ConversionExecutor} so that conversions running on worker threads
+ * never touch the real response, which may already have been used to send an error by the
+ * time a conversion finishes.
+ * <p>
+ * An instance of this class should only be used by one thread at a time.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class BufferedHttpServletResponse extends HttpServletResponseWrapper {
+
+    /** Default character encoding for text responses, as specified by the Servlet API */
+    private static final String DEFAULT_CHARACTER_ENCODING = "ISO-8859-1";
+
+    private int status;
+    private String errorMessage;
+    private boolean errorSent;
+    private String redirectLocation;
+    private final Map<String, List<String>> headers;
+    private final List<Cookie> cookies;
+    private String contentType;
+    private String characterEncoding;
+    private int contentLength;
+    private Locale locale;
+    private final ByteArrayOutputStream content;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    public BufferedHttpServletResponse(final HttpServletResponse response) {
+        super(response);
+        this.headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        this.cookies = new ArrayList<Cookie>();
+        this.content = new ByteArrayOutputStream();
+        reset();
+    }
+
+    /**
+     * Sends everything that has been recorded to the given response, which should not have
+     * been used yet.
+     */
+    public void sendTo(final HttpServletResponse response) throws IOException {
+        if (writer!=null) {
+            writer.flush();
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            for (String value : entry.getValue()) {
+                response.addHeader(entry.getKey(), value);
+            }
+        }
+        for (Cookie cookie : cookies) {
+            response.addCookie(cookie);
+        }
+        if (locale!=null) {
+            response.setLocale(locale);
+        }
+        if (errorSent) {
+            if (errorMessage!=null) {
+                response.sendError(status, errorMessage);
+            }
+            else {
+                response.sendError(status);
+            }
+            return;
+        }
+        if (redirectLocation!=null) {
+            response.sendRedirect(redirectLocation);
+            return;
+        }
+        response.setStatus(status);
+        if (contentType!=null) {
+            response.setContentType(contentType);
+        }
+        if (characterEncoding!=null) {
+            response.setCharacterEncoding(characterEncoding);
+        }
+        if (contentLength>=0) {
+            response.setContentLength(contentLength);
+        }
+        else if (content.size()>0) {
+            response.setContentLength(content.size());
+        }
+        if (content.size()>0) {
+            content.writeTo(response.getOutputStream());
+        }
+    }
+
+    //-------------------------------------------------
+    // Status and errors
+
+    @Override
+    public void setStatus(final int status) {
+        if (!errorSent) {
+            this.status = status;
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(final int status, final String message) {
+        setStatus(status);
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public void sendError(final int status, final String message) {
+        ensureNotCommitted();
+        resetBuffer();
+        this.status = status;
+        this.errorMessage = message;
+        this.errorSent = true;
+    }
+
+    @Override
+    public void sendError(final int status) {
+        sendError(status, null);
+    }
+
+    @Override
+    public void sendRedirect(final String location) {
+        ensureNotCommitted();
+        resetBuffer();
+        this.status = HttpServletResponse.SC_FOUND;
+        this.redirectLocation = location;
+    }
+
+    /**
+     * Returns true once an error or redirect has been sent, mirroring a real response.
+     * (Nothing else commits this response, as its content is only sent once it has finished.)
+     */
+    @Override
+    public boolean isCommitted() {
+        return errorSent || redirectLocation!=null;
+    }
+
+    //-------------------------------------------------
+    // Headers
+
+    @Override
+    public void setHeader(final String name, final String value) {
+        if (value!=null) {
+            List<String> values = new ArrayList<String>();
+            values.add(value);
+            headers.put(name, values);
+        }
+        else {
+            headers.remove(name);
+        }
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+        List<String> values = headers.get(name);
+        if (values==null) {
+            values = new ArrayList<String>();
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    @Override
+    public void setDateHeader(final String name, final long date) {
+        setHeader(name, formatDate(date));
+    }
+
+    @Override
+    public void addDateHeader(final String name, final long date) {
+        addHeader(name, formatDate(date));
+    }
+
+    @Override
+    public void setIntHeader(final String name, final int value) {
+        setHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void addIntHeader(final String name, final int value) {
+        addHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public boolean containsHeader(final String name) {
+        return headers.containsKey(name);
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        List<String> values = headers.get(name);
+        return values!=null ? values.get(0) : null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(final String name) {
+        List<String> values = headers.get(name);
+        return values!=null ? new ArrayList<String>(values) : new ArrayList<String>();
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return new ArrayList<String>(headers.keySet());
+    }
+
+    @Override
+    public void addCookie(final Cookie cookie) {
+        cookies.add(cookie);
+    }
+
+    @Override
+    public void setLocale(final Locale locale) {
+        this.locale = locale;
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locale!=null ? locale : super.getLocale();
+    }
+
+    //-------------------------------------------------
+    // Content
+
+    @Override
+    public void setContentType(final String contentType) {
+        this.contentType = contentType;
+        if (contentType!=null) {
+            int charsetIndex = contentType.toLowerCase(Locale.US).indexOf("charset=");
+            if (charsetIndex!=-1) {
+                String charset = contentType.substring(charsetIndex + "charset=".length()).trim();
+                int endIndex = charset.indexOf(';');
+                characterEncoding = (endIndex!=-1 ? charset.substring(0, endIndex) : charset).trim();
+            }
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public void setCharacterEncoding(final String characterEncoding) {
+        if (writer==null) {
+            this.characterEncoding = characterEncoding;
+        }
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding!=null ? characterEncoding : DEFAULT_CHARACTER_ENCODING;
+    }
+
+    @Override
+    public void setContentLength(final int contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer!=null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if (outputStream==null) {
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    content.write(b);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) {
+                    content.write(buffer, offset, length);
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (outputStream!=null) {
+            throw new IllegalStateException("getOutputStream() has already been called");
+        }
+        if (writer==null) {
+            writer = new PrintWriter(new OutputStreamWriter(content, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    /** Returns the content written so far */
+    public byte[] getContent() {
+        if (writer!=null) {
+            writer.flush();
+        }
+        return content.toByteArray();
+    }
+
+    @Override
+    public void setBufferSize(final int size) {
+        /* (Everything is buffered anyway) */
+    }
+
+    @Override
+    public int getBufferSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void flushBuffer() {
+        /* (Content is only sent once the response has finished) */
+    }
+
+    @Override
+    public void resetBuffer() {
+        ensureNotCommitted();
+        if (writer!=null) {
+            writer.flush();
+        }
+        content.reset();
+    }
+
+    /**
+     * Clears everything recorded so far. (Unlike a real response, this is allowed after an
+     * error has been sent, so that the error can be replaced.)
+     */
+    @Override
+    public void reset() {
+        status = HttpServletResponse.SC_OK;
+        errorMessage = null;
+        errorSent = false;
+        redirectLocation = null;
+        headers.clear();
+        cookies.clear();
+        contentType = null;
+        characterEncoding = null;
+        contentLength = -1;
+        locale = null;
+        content.reset();
+    }
+
+    //-------------------------------------------------
+
+    private void ensureNotCommitted() {
+        if (isCommitted()) {
+            throw new IllegalStateException("Response has already been committed");
+        }
+    }
+
+    private static String formatDate(final long date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+}
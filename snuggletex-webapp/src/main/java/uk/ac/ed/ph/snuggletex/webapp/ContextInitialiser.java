@@ -5,6 +5,9 @@
  */
 package uk.ac.ed.ph.snuggletex.webapp;
 
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.jeuclid.JEuclidRenderingProfile;
+import uk.ac.ed.ph.snuggletex.upconversion.internal.UpConversionPackageDefinitions;
 import uk.ac.ed.ph.snuggletex.utilities.SaxonTransformerFactoryChooser;
 import uk.ac.ed.ph.snuggletex.utilities.SimpleStylesheetCache;
 import uk.ac.ed.ph.snuggletex.utilities.StylesheetManager;
@@ -30,7 +33,22 @@ public final class ContextInitialiser implements ServletContextListener {
     public static final String SNUGGLETEX_VERSION_PROPERTY_NAME = "snuggletex.version";
     public static final String MAVEN_SITE_URL_PROPERTY_NAME = "maven.site.url";
     
+    /** Number of conversion worker threads, defaulting to the number of processors */
+    public static final String CONVERSION_THREADS_PROPERTY_NAME = "conversion.threads";
+    
+    /** Maximum number of conversions waiting for a worker before we start turning requests away */
+    public static final String CONVERSION_QUEUE_CAPACITY_PROPERTY_NAME = "conversion.queueCapacity";
+    
+    /** Maximum time in milliseconds that a conversion may take */
+    public static final String CONVERSION_DEADLINE_PROPERTY_NAME = "conversion.deadline";
+    
+    public static final int DEFAULT_CONVERSION_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_CONVERSION_DEADLINE = 10000L;
+    
     public static final String STYLESHEET_MANAGER_ATTRIBUTE_NAME = "stylesheetManager";
+    public static final String SNUGGLE_ENGINE_ATTRIBUTE_NAME = "snuggleEngine";
+    public static final String UP_CONVERSION_SNUGGLE_ENGINE_ATTRIBUTE_NAME = "upConversionSnuggleEngine";
+    public static final String CONVERSION_EXECUTOR_ATTRIBUTE_NAME = "conversionExecutor";
     
     public void contextInitialized(ServletContextEvent servletContextEvent) {
         ServletContext servletContext = servletContextEvent.getServletContext();
@@ -42,10 +60,74 @@ public final class ContextInitialiser implements ServletContextListener {
         stylesheetManager.setStylesheetCache(new SimpleStylesheetCache());
         stylesheetManager.setTransformerFactoryChooser(SaxonTransformerFactoryChooser.getInstance());
         servletContext.setAttribute(STYLESHEET_MANAGER_ATTRIBUTE_NAME, stylesheetManager);
+        
+        /* Create and store the SnuggleEngines shared by all servlets. The up-conversion
+         * package goes into a separate engine so that only the up-conversion demos accept
+         * its commands. */
+        SnuggleEngine engine = new SnuggleEngine(stylesheetManager);
+        servletContext.setAttribute(SNUGGLE_ENGINE_ATTRIBUTE_NAME, engine);
+        
+        SnuggleEngine upConversionEngine = new SnuggleEngine(stylesheetManager);
+        upConversionEngine.addPackage(UpConversionPackageDefinitions.getPackage());
+        servletContext.setAttribute(UP_CONVERSION_SNUGGLE_ENGINE_ATTRIBUTE_NAME, upConversionEngine);
+        
+        /* Create and store the executor that the demos use to run conversions */
+        int threadCount = (int) getLongInitParameter(servletContext, CONVERSION_THREADS_PROPERTY_NAME,
+                Runtime.getRuntime().availableProcessors());
+        int queueCapacity = (int) getLongInitParameter(servletContext, CONVERSION_QUEUE_CAPACITY_PROPERTY_NAME,
+                DEFAULT_CONVERSION_QUEUE_CAPACITY);
+        long deadlineMillis = getLongInitParameter(servletContext, CONVERSION_DEADLINE_PROPERTY_NAME,
+                DEFAULT_CONVERSION_DEADLINE);
+        ConversionExecutor conversionExecutor = new ConversionExecutor(threadCount, queueCapacity, deadlineMillis);
+        servletContext.setAttribute(CONVERSION_EXECUTOR_ATTRIBUTE_NAME, conversionExecutor);
+        logger.info("Created conversion executor with {} threads, queue capacity {} and deadline {}ms",
+                new Object[] { Integer.valueOf(threadCount), Integer.valueOf(queueCapacity), Long.valueOf(deadlineMillis) });
+        
+        /* Load fonts and warm up JEuclid in the background so that the first images rendered
+         * by the demos and documentation don't have to pay for this */
+        startJEuclidWarmUp();
         logger.info("Context initialised");
     }
     
     public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        ServletContext servletContext = servletContextEvent.getServletContext();
+        ConversionExecutor conversionExecutor = (ConversionExecutor) servletContext.getAttribute(CONVERSION_EXECUTOR_ATTRIBUTE_NAME);
+        if (conversionExecutor!=null) {
+            conversionExecutor.shutdown();
+        }
         logger.info("Context destroyed");
     }
+    
+    private static void startJEuclidWarmUp() {
+        Thread warmUpThread = new Thread(new Runnable() {
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    JEuclidRenderingProfile.DEFAULT.warmUp();
+                    logger.info("JEuclid warmed up in {}ms", Long.valueOf(System.currentTimeMillis() - startTime));
+                }
+                catch (Throwable e) {
+                    /* (Not fatal as images will still be rendered, just more slowly at first) */
+                    logger.warn("Could not warm up JEuclid", e);
+                }
+            }
+        }, "SnuggleTeX-JEuclid-warm-up");
+        warmUpThread.setDaemon(true);
+        warmUpThread.setPriority(Thread.MIN_PRIORITY);
+        warmUpThread.start();
+    }
+    
+    private static long getLongInitParameter(ServletContext servletContext, String propertyName, long defaultValue) {
+        String value = servletContext.getInitParameter(propertyName);
+        if (value==null || value.trim().length()==0) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Context init-param " + propertyName
+                    + " must be an integer, not " + value, e);
+        }
+    }
 }
\ No newline at end of file
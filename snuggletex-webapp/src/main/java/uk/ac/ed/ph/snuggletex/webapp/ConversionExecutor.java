@@ -0,0 +1,310 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import uk.ac.ed.ph.snuggletex.SnuggleRuntimeException;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the (potentially expensive) conversion work done by the demo servlets on a bounded
+ * pool of worker threads, shared by the whole webapp and created by {@link ContextInitialiser}.
+ * <p>
+ * Requests are handed over to the pool using Servlet 3.0 asynchronous processing so that
+ * container threads are not tied up while conversions run. Admission is controlled by the
+ * size of the pool's queue: once it is full, new requests are turned away immediately with a
+ * <tt>429 Too Many Requests</tt> response rather than piling up. Each conversion also has a
+ * deadline: if it has not finished by then, the worker is interrupted (which SnuggleTeX
+ * honours while expanding user-defined commands) and the client gets a
+ * <tt>503 Service Unavailable</tt> response.
+ * <p>
+ * If asynchronous processing is not available for a request (e.g. because a filter in
+ * front of the servlet does not support it) then the container thread simply waits for the
+ * worker, so that the same admission control and deadlines still apply.
+ * <p>
+ * Conversions write to a {@link BufferedHttpServletResponse} rather than to the real
+ * response. Only whichever of the worker and the deadline finishes first then writes to the
+ * real response, so a late conversion can never interfere with a timeout response.
+ * <p>
+ * An instance of this class is thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class ConversionExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConversionExecutor.class);
+
+    /** (This is missing from {@link HttpServletResponse} as it post-dates the Servlet API) */
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** Number of seconds clients are told to wait before retrying when we are too busy */
+    public static final int RETRY_AFTER_SECONDS = 5;
+
+    /**
+     * Callback interface representing the actual conversion work.
+     */
+    public interface Conversion {
+
+        void run(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException;
+    }
+
+    private final ThreadPoolExecutor threadPoolExecutor;
+    private final long deadlineMillis;
+
+    /**
+     * Creates a new executor.
+     *
+     * @param threadCount number of worker threads, which must be positive
+     * @param queueCapacity maximum number of conversions waiting for a worker, which must be
+     *   positive
+     * @param deadlineMillis maximum time in milliseconds that a conversion is allowed to take,
+     *   including any time spent waiting in the queue, which must be positive
+     */
+    public ConversionExecutor(final int threadCount, final int queueCapacity, final long deadlineMillis) {
+        if (threadCount<=0) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        if (queueCapacity<=0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        if (deadlineMillis<=0) {
+            throw new IllegalArgumentException("deadlineMillis must be positive");
+        }
+        this.deadlineMillis = deadlineMillis;
+        this.threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new WorkerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public int getThreadCount() {
+        return threadPoolExecutor.getMaximumPoolSize();
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /** Returns the number of conversions currently waiting for a worker */
+    public int getQueueDepth() {
+        return threadPoolExecutor.getQueue().size();
+    }
+
+    /**
+     * Stops accepting new conversions and interrupts any that are still running.
+     */
+    public void shutdown() {
+        threadPoolExecutor.shutdownNow();
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Runs the given {@link Conversion} for the given request on a worker thread, sending an
+     * appropriate error response if we are too busy or if the conversion does not finish in
+     * time.
+     * <p>
+     * If asynchronous processing is supported then this returns straight away, otherwise it
+     * waits for the conversion to finish (or time out).
+     */
+    public void execute(final HttpServletRequest request, final HttpServletResponse response,
+            final Conversion conversion) throws ServletException, IOException {
+        if (request.isAsyncSupported()) {
+            executeAsynchronously(request, response, conversion);
+        }
+        else {
+            executeSynchronously(request, response, conversion);
+        }
+    }
+
+    private void executeAsynchronously(final HttpServletRequest request, final HttpServletResponse response,
+            final Conversion conversion) throws IOException {
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(deadlineMillis);
+
+        /* Whichever of the worker and the timeout gets to set this first is responsible
+         * for finishing off the response */
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final BufferedHttpServletResponse bufferedResponse = new BufferedHttpServletResponse(response);
+        final FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+            public void run() {
+                try {
+                    conversion.run(request, bufferedResponse);
+                }
+                catch (Throwable e) {
+                    handleConversionFailure(bufferedResponse, e);
+                }
+                if (finished.compareAndSet(false, true)) {
+                    try {
+                        bufferedResponse.sendTo(response);
+                    }
+                    catch (IOException e) {
+                        logger.warn("Could not send conversion response", e);
+                    }
+                    finally {
+                        asyncContext.complete();
+                    }
+                }
+            }
+        }, null);
+        asyncContext.addListener(new AsyncListener() {
+
+            public void onTimeout(AsyncEvent event) throws IOException {
+                cancel(task);
+                if (finished.compareAndSet(false, true)) {
+                    sendDeadlineExceeded(response);
+                    asyncContext.complete();
+                }
+            }
+
+            public void onError(AsyncEvent event) {
+                cancel(task);
+            }
+
+            public void onStartAsync(AsyncEvent event) {
+                /* (Nothing to do) */
+            }
+
+            public void onComplete(AsyncEvent event) {
+                /* (Nothing to do) */
+            }
+        });
+        try {
+            threadPoolExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            finished.set(true);
+            sendOverloaded(response);
+            asyncContext.complete();
+        }
+    }
+
+    private void executeSynchronously(final HttpServletRequest request, final HttpServletResponse response,
+            final Conversion conversion) throws ServletException, IOException {
+        final BufferedHttpServletResponse bufferedResponse = new BufferedHttpServletResponse(response);
+        FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+            public void run() {
+                try {
+                    conversion.run(request, bufferedResponse);
+                }
+                catch (ServletException e) {
+                    throw new SnuggleRuntimeException(e);
+                }
+                catch (IOException e) {
+                    throw new SnuggleRuntimeException(e);
+                }
+            }
+        }, null);
+        try {
+            threadPoolExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            sendOverloaded(response);
+            return;
+        }
+        try {
+            task.get(deadlineMillis, TimeUnit.MILLISECONDS);
+            bufferedResponse.sendTo(response);
+        }
+        catch (TimeoutException e) {
+            cancel(task);
+            sendDeadlineExceeded(response);
+        }
+        catch (InterruptedException e) {
+            cancel(task);
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while waiting for conversion to finish", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SnuggleRuntimeException
+                    && (cause.getCause() instanceof ServletException || cause.getCause() instanceof IOException)) {
+                /* Unwrap checked Exception wrapped up above */
+                cause = cause.getCause();
+            }
+            if (cause instanceof ServletException) {
+                throw (ServletException) cause;
+            }
+            else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ServletException("Conversion failed", cause);
+        }
+    }
+
+    private void cancel(final FutureTask<Object> task) {
+        /* (Removing the task frees up its space in the queue if it had not started yet) */
+        task.cancel(true);
+        threadPoolExecutor.remove(task);
+    }
+
+    private void handleConversionFailure(final BufferedHttpServletResponse response, final Throwable e) {
+        logger.error("Conversion failed", e);
+        response.reset();
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    private void sendOverloaded(final HttpServletResponse response) throws IOException {
+        if (threadPoolExecutor.isShutdown()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service is shutting down");
+            return;
+        }
+        logger.warn("Conversion queue is full ({} waiting); rejecting request", Integer.valueOf(getQueueDepth()));
+        response.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        response.sendError(SC_TOO_MANY_REQUESTS, "Too many requests are being processed; please try again shortly");
+    }
+
+    private void sendDeadlineExceeded(final HttpServletResponse response) throws IOException {
+        logger.warn("Conversion did not finish within {}ms; cancelled", Long.valueOf(deadlineMillis));
+        if (!response.isCommitted()) {
+            response.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Conversion did not finish within " + deadlineMillis + "ms");
+        }
+    }
+
+    /**
+     * Creates named daemon worker threads, so that they never hold up container shutdown.
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCounter = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread result = new Thread(runnable, "SnuggleTeX-conversion-" + threadCounter.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+}
@@ -7,9 +7,9 @@ package uk.ac.ed.ph.snuggletex.webapp;
 
 import uk.ac.ed.ph.snuggletex.InputError;
 import uk.ac.ed.ph.snuggletex.SerializationMethod;
-import uk.ac.ed.ph.snuggletex.SnuggleEngine;
 import uk.ac.ed.ph.snuggletex.SnuggleInput;
 import uk.ac.ed.ph.snuggletex.SnuggleLogicException;
+import uk.ac.ed.ph.snuggletex.SnugglePreambleCache;
 import uk.ac.ed.ph.snuggletex.SnuggleSession;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptionsTemplates;
@@ -22,19 +22,26 @@ import uk.ac.ed.ph.snuggletex.jeuclid.SimpleMathMLImageSavingCallback;
 import uk.ac.ed.ph.snuggletex.utilities.MessageFormatter;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.transform.Transformer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +67,12 @@ import org.slf4j.LoggerFactory;
  *   </li>
  *   <li>
  *     Limited caching is available. If off, we recreate each documentation resource each time,
- *     otherwise we create once and keep forever.
+ *     otherwise we create once and keep forever. With caching on, the whole documentation set
+ *     can also be generated in the background when the servlet starts up.
+ *   </li>
+ *   <li>
+ *     Generated pages are stored alongside gzipped versions and are served with validators
+ *     so that clients can make conditional requests. (See {@link PrecompressedResource}.)
  *   </li>
  * </ul>
  *
@@ -76,6 +88,12 @@ public final class DocumentationServlet extends BaseServlet {
     /** <tt>init-param</tt> controlling whether we are caching or not */
     private static final String CACHING_PARAM = "caching";
     
+    /**
+     * <tt>init-param</tt> controlling whether to generate all documentation resources
+     * when starting up. (This only has an effect if caching.)
+     */
+    private static final String PREGENERATING_PARAM = "pregenerating";
+    
     /** Location of XSLT for formatting the resulting web pages */
     private static final String FORMAT_OUTPUT_XSLT_URI = "classpath:/format-output.xsl";
     
@@ -97,6 +115,28 @@ public final class DocumentationServlet extends BaseServlet {
     /** Directory in which Files created and cached by this servlet will be stored. */
     private File baseDirectory;
     
+    /** Caches the results of parsing {@link #MACROS_RESOURCE_LOCATION} */
+    private SnugglePreambleCache preambleCache;
+    
+    /** Used to render MathML images concurrently */
+    private ExecutorService imageRenderingExecutor;
+    
+    /** 
+     * Generated resources, keyed on resource path, used when caching. Each resource is
+     * generated at most once, even if requested by more than one thread at the same time.
+     */
+    private ConcurrentMap<String, FutureTask<PrecompressedResource>> resourceCache;
+    
+    /**
+     * Frozen {@link WebPageOutputOptions} for each {@link WebPageType} other than
+     * {@link WebPageType#PROCESSED_HTML}, shared by all pages of that type. (Processed pages
+     * need their own options as they save images to a page-specific location.)
+     */
+    private ConcurrentMap<WebPageType, WebPageOutputOptions> sharedOptionsMap;
+    
+    /** Used to generate all resources at startup, if requested */
+    private ExecutorService pregenerationExecutor;
+    
     @Override
     public void init() throws ServletException {
         /* Set up base directory */
@@ -120,6 +160,36 @@ public final class DocumentationServlet extends BaseServlet {
         
         /* Check whether caching is turned on or not */
         caching = "true".equals(getServletConfig().getInitParameter(CACHING_PARAM));
+        
+        /* Set up cache for the parsed macros. (This is keyed on the content of the macros
+         * file, so will still pick up any changes when caching is turned off.) */
+        preambleCache = new SnugglePreambleCache(getSnuggleEngine());
+        
+        /* Set up Threads for rendering MathML images */
+        imageRenderingExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        
+        /* Output options will be created when first needed */
+        sharedOptionsMap = new ConcurrentHashMap<WebPageType, WebPageOutputOptions>();
+        
+        /* Maybe generate everything now rather than waiting for requests */
+        resourceCache = new ConcurrentHashMap<String, FutureTask<PrecompressedResource>>();
+        if ("true".equals(getServletConfig().getInitParameter(PREGENERATING_PARAM))) {
+            if (caching) {
+                pregenerateResources();
+            }
+            else {
+                logger.warn("Ignoring init-param {} as caching is turned off", PREGENERATING_PARAM);
+            }
+        }
+    }
+    
+    @Override
+    public void destroy() {
+        if (pregenerationExecutor!=null) {
+            pregenerationExecutor.shutdownNow();
+        }
+        imageRenderingExecutor.shutdownNow();
+        super.destroy();
     }
     
     public DocumentationServlet() {
@@ -157,7 +227,6 @@ public final class DocumentationServlet extends BaseServlet {
         }
         String resourceBaseName = resourcePath.substring(0, lastDotPosition);
         String extension = resourcePath.substring(lastDotPosition+1);
-        File resourceFile = mapResourcePath(resourcePath);
         
         /* Make sure content type is known */
         String contentType = extensionToContentTypeMap.get(extension);
@@ -166,23 +235,136 @@ public final class DocumentationServlet extends BaseServlet {
             return;
         }
         
-        /* Decide whether to (re)generate resource or not. This will happen if:
-         * 
-         * 1. It's a "proper" documentation page (i.e. not PNG).
-         * 2. Cached resource doesn't already exist (or caching is turned off)
-         */
-        if (!"png".equals(extension) && (!resourceFile.exists() || !caching)) {
-            resourceFile = generateResource(request, resourcePath, resourceBaseName, extension);
-            if (resourceFile==null) {
-                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Documentation page does not exist");
-                return;
-            }
+        /* Get the resource, (re)generating it if required. PNG images are created as a
+         * side-effect of generating pages so are simply served up if they exist. */
+        PrecompressedResource resource;
+        if ("png".equals(extension)) {
+            File resourceFile = mapResourcePath(resourcePath);
+            resource = resourceFile.isFile() ? PrecompressedResource.createUncompressed(resourceFile, contentType) : null;
+        }
+        else {
+            resource = getResource(request.getContextPath(), request.getServletPath(),
+                    resourcePath, resourceBaseName, extension, contentType);
+        }
+        if (resource==null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Documentation page does not exist");
+            return;
         }
         
         /* Serve up */
-        response.setContentType(contentType);
-        response.setContentLength((int) resourceFile.length());
-        IOUtilities.transfer(new FileInputStream(resourceFile), response.getOutputStream(), true, false);
+        resource.serve(request, response);
+    }
+    
+    /**
+     * Obtains the (non-PNG) documentation resource at the given path, generating it if we are
+     * not caching or if it has not been generated yet.
+     * 
+     * @return resulting resource, or null if it does not exist
+     */
+    private PrecompressedResource getResource(final String contextPath, final String servletPath,
+            final String resourcePath, final String resourceBaseName, final String extension,
+            final String contentType) throws ServletException, IOException {
+        if (!caching) {
+            return generatePrecompressedResource(contextPath, servletPath, resourcePath,
+                    resourceBaseName, extension, contentType);
+        }
+        FutureTask<PrecompressedResource> task = new FutureTask<PrecompressedResource>(new Callable<PrecompressedResource>() {
+            public PrecompressedResource call() throws Exception {
+                return generatePrecompressedResource(contextPath, servletPath, resourcePath,
+                        resourceBaseName, extension, contentType);
+            }
+        });
+        FutureTask<PrecompressedResource> existingTask = resourceCache.putIfAbsent(resourcePath, task);
+        if (existingTask!=null) {
+            task = existingTask;
+        }
+        else {
+            task.run();
+        }
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while waiting for resource " + resourcePath, e);
+        }
+        catch (ExecutionException e) {
+            /* Forget about failures so that we try again next time */
+            resourceCache.remove(resourcePath, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof ServletException) {
+                throw (ServletException) cause;
+            }
+            else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ServletException("Failed to generate resource " + resourcePath, cause);
+        }
+    }
+    
+    private PrecompressedResource generatePrecompressedResource(final String contextPath,
+            final String servletPath, final String resourcePath, final String resourceBaseName,
+            final String extension, final String contentType)
+            throws ServletException, IOException {
+        File resourceFile = generateResource(contextPath, servletPath, resourcePath, resourceBaseName, extension);
+        return resourceFile!=null ? PrecompressedResource.create(resourceFile, contentType, true) : null;
+    }
+    
+    /**
+     * Generates all of the documentation resources in the background, using the context path
+     * and the first mapping for this servlet to work out URLs in the same way as if they'd
+     * been requested.
+     */
+    private void pregenerateResources() {
+        final String contextPath = getServletContext().getContextPath();
+        String mapping = getServletContext().getServletRegistration(getServletName()).getMappings().iterator().next();
+        final String servletPath = mapping.endsWith("/*") ? mapping.substring(0, mapping.length() - 2) : mapping;
+        List<String> resourceBaseNames = new ArrayList<String>();
+        findTeXSources(TEX_SOURCE_BASE_RESOURCE, resourceBaseNames);
+        
+        List<String> extensions = new ArrayList<String>(extensionToWebPageTypeMap.keySet());
+        extensions.add("tex");
+        pregenerationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        logger.info("Pre-generating {} documentation resource(s)", Integer.valueOf(resourceBaseNames.size() * extensions.size()));
+        for (final String resourceBaseName : resourceBaseNames) {
+            for (final String extension : extensions) {
+                pregenerationExecutor.execute(new Runnable() {
+                    public void run() {
+                        String resourcePath = resourceBaseName + "." + extension;
+                        try {
+                            getResource(contextPath, servletPath, resourcePath, resourceBaseName,
+                                    extension, extensionToContentTypeMap.get(extension));
+                        }
+                        catch (Exception e) {
+                            logger.warn("Failed to pre-generate resource " + resourcePath, e);
+                        }
+                    }
+                });
+            }
+        }
+        pregenerationExecutor.shutdown();
+    }
+    
+    /**
+     * Finds the base names of all <tt>.tex</tt> sources at or under the given resource path,
+     * relative to {@link #TEX_SOURCE_BASE_RESOURCE}.
+     */
+    private void findTeXSources(final String resourcePath, final List<String> resultBuilder) {
+        Set<String> childPaths = getServletContext().getResourcePaths(resourcePath);
+        if (childPaths==null) {
+            return;
+        }
+        for (String childPath : childPaths) {
+            if (childPath.endsWith("/")) {
+                findTeXSources(childPath, resultBuilder);
+            }
+            else if (childPath.endsWith(".tex")) {
+                resultBuilder.add(childPath.substring(TEX_SOURCE_BASE_RESOURCE.length(), childPath.length() - ".tex".length()));
+            }
+        }
     }
     
     /**
@@ -198,8 +380,8 @@ public final class DocumentationServlet extends BaseServlet {
      * @return resulting File, or null if the source TeX file for this resource couldn't be
      *   located or if the file extension couldn't be understood.
      */
-    private File generateResource(final HttpServletRequest request, final String resourcePath,
-            final String resourceBaseName, final String extension)
+    private File generateResource(final String contextPath, final String servletPath,
+            final String resourcePath, final String resourceBaseName, final String extension)
             throws ServletException, IOException {
         logger.info("Generating Resource at {}", resourcePath);
         
@@ -230,32 +412,31 @@ public final class DocumentationServlet extends BaseServlet {
                 return null;
             } 
             String imageOutputDirectortyResourcePath = resourceBaseName;
-            String imageOutputBaseUrl = request.getContextPath() + request.getServletPath() + resourceBaseName;
-            resultFile = generateSnuggledFile(request, texSourceStream, texSourceResourcePath,
+            String imageOutputBaseUrl = contextPath + servletPath + resourceBaseName;
+            resultFile = generateSnuggledFile(contextPath, texSourceStream, texSourceResourcePath,
                     webPageType, resourcePath, imageOutputDirectortyResourcePath, imageOutputBaseUrl);
         }
         return resultFile;
     }
     
-    private File generateSnuggledFile(final HttpServletRequest request,
+    private File generateSnuggledFile(final String contextPath,
             final InputStream texSourceStream, final String texSourceResourcePath,
             final WebPageType webPageType, final String outputResourcePath,
             final String imageOutputDirectoryResourcePath, final String imageOutputBaseURL)
             throws ServletException, IOException {
-        /* Parse macros.tex and source resource */
+        /* Parse macros.tex (reusing the results if unchanged) and source resource */
         InputStream macrosResource = ensureReadResource(MACROS_RESOURCE_LOCATION);
-        SnuggleEngine engine = createSnuggleEngine();
-        SnuggleSession session = engine.createSession();
-        session.parseInput(new SnuggleInput(macrosResource, "Web resource at " + MACROS_RESOURCE_LOCATION));
+        SnuggleSession session;
+        try {
+            session = preambleCache.createSession(new SnuggleInput(macrosResource, "Web resource at " + MACROS_RESOURCE_LOCATION));
+        }
+        finally {
+            macrosResource.close();
+        }
         session.parseInput(new SnuggleInput(texSourceStream, "Web resource at " + texSourceResourcePath));
         
-        /* Work out basic SnuggleTeX options */
-        WebPageOutputOptions options = WebPageOutputOptionsTemplates.createWebPageOptions(webPageType);
-        options.setErrorOutputOptions(ErrorOutputOptions.XHTML);
-        options.setMathVariantMapping(true);
-        options.setAddingMathSourceAnnotations(true);
-        options.setIndenting(true);
-        options.setIncludingStyleElement(false);
+        /* Work out SnuggleTeX options */
+        WebPageOutputOptions options;
         if (webPageType==WebPageType.PROCESSED_HTML) {
             /* Create folder for storing MathML images. */
             File imageOutputDirectory = IOUtilities.ensureDirectoryCreated(mapResourcePath(imageOutputDirectoryResourcePath));
@@ -263,25 +444,17 @@ public final class DocumentationServlet extends BaseServlet {
             
             /* We'll actually generate XHTML 1.0 Strict here so that I can be
              * anally retentive about having valid documentation! */
+            options = createWebPageOptions(contextPath, webPageType);
             options.setDoctypePublic(W3CConstants.XHTML_10_STRICT_PUBLIC_IDENTIFIER);
             options.setDoctypeSystem(W3CConstants.XHTML_10_STRICT_SYSTEM_IDENTIFIER);
             options.setSerializationMethod(SerializationMethod.XHTML);
             
-            /* Configure JEuclid post-processor, with down-conversion */
-            JEuclidUtilities.setupJEuclidPostProcessors(options, true, callback);
+            /* Configure JEuclid post-processor, with down-conversion and concurrent rendering */
+            JEuclidUtilities.setupJEuclidPostProcessors(options, true, callback, imageRenderingExecutor);
         }
-        else if (webPageType==WebPageType.UNIVERSAL_STYLESHEET) {
-            /* Point to our own version of the USS if required */
-            options.setClientSideXSLTStylesheetURLs(request.getContextPath() + "/includes/pmathml.xsl");
+        else {
+            options = getSharedOptions(contextPath, webPageType);
         }
-//        else if (webPageType==WebPageType.MATHJAX_CROSS_BROWSER_XHTML) {
-//            options.setMathJaxPath(request.getContextPath() + "/lib/MathJax/MathJax.js");
-//        }
-        
-        /* Set up stylesheet to format the output */
-        Transformer stylesheet = getStylesheet(request, FORMAT_OUTPUT_XSLT_URI);
-        stylesheet.setParameter("page-type", webPageType!=WebPageType.PROCESSED_HTML ? webPageType.name() : null);
-        options.setStylesheets(stylesheet);
         
         /* Generate output file */
         File outputFile = IOUtilities.ensureFileCreated(mapResourcePath(outputResourcePath));
@@ -301,6 +474,51 @@ public final class DocumentationServlet extends BaseServlet {
         return outputFile;
     }
     
+    /**
+     * Returns the shared (and frozen) {@link WebPageOutputOptions} for the given
+     * {@link WebPageType}, creating them if required.
+     */
+    private WebPageOutputOptions getSharedOptions(final String contextPath, final WebPageType webPageType)
+            throws ServletException {
+        WebPageOutputOptions result = sharedOptionsMap.get(webPageType);
+        if (result==null) {
+            result = createWebPageOptions(contextPath, webPageType);
+            result.freeze();
+            WebPageOutputOptions existing = sharedOptionsMap.putIfAbsent(webPageType, result);
+            if (existing!=null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Creates the basic {@link WebPageOutputOptions} used for the given {@link WebPageType},
+     * including the stylesheet used to format the output.
+     */
+    private WebPageOutputOptions createWebPageOptions(final String contextPath, final WebPageType webPageType)
+            throws ServletException {
+        WebPageOutputOptions options = WebPageOutputOptionsTemplates.createWebPageOptions(webPageType);
+        options.setErrorOutputOptions(ErrorOutputOptions.XHTML);
+        options.setMathVariantMapping(true);
+        options.setAddingMathSourceAnnotations(true);
+        options.setIndenting(true);
+        options.setIncludingStyleElement(false);
+        if (webPageType==WebPageType.UNIVERSAL_STYLESHEET) {
+            /* Point to our own version of the USS if required */
+            options.setClientSideXSLTStylesheetURLs(contextPath + "/includes/pmathml.xsl");
+        }
+//        else if (webPageType==WebPageType.MATHJAX_CROSS_BROWSER_XHTML) {
+//            options.setMathJaxPath(contextPath + "/lib/MathJax/MathJax.js");
+//        }
+        
+        /* Set up stylesheet to format the output */
+        options.setStylesheetURIs(FORMAT_OUTPUT_XSLT_URI);
+        setStylesheetParameters(options, contextPath);
+        options.setStylesheetParameter("page-type", webPageType!=WebPageType.PROCESSED_HTML ? webPageType.name() : null);
+        return options;
+    }
+    
     /**
      * Implementation of {@link SimpleMathMLImageSavingCallback} that stores images in the
      * given output directory with the given base URL, using a very simple naming scheme.
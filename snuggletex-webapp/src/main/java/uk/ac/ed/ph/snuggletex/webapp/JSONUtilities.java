@@ -0,0 +1,305 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON support for the webapp, which is just enough for {@link BatchConversionServlet}
+ * without having to pull in a full JSON library.
+ * <p>
+ * JSON values are parsed into the obvious Java equivalents: {@link Map} (with insertion order
+ * preserved), {@link List}, {@link String}, {@link Double}, {@link Boolean} and null.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class JSONUtilities {
+
+    /**
+     * Parses a single JSON value from the given {@link Reader}, which is left open.
+     *
+     * @throws JSONParseException if the input is not well-formed JSON
+     * @throws IOException if the input could not be read
+     */
+    public static Object parse(final Reader reader) throws IOException {
+        return parse(reader, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses a single JSON value from the given {@link Reader}, which is left open, failing
+     * as soon as any array turns out to have more than the given number of elements.
+     *
+     * @throws JSONLimitException if an array has more than maxArraySize elements
+     * @throws JSONParseException if the input is not well-formed JSON
+     * @throws IOException if the input could not be read
+     */
+    public static Object parse(final Reader reader, final int maxArraySize) throws IOException {
+        Parser parser = new Parser(reader, maxArraySize);
+        Object result = parser.readValue();
+        if (parser.skipWhitespace()!=-1) {
+            throw new JSONParseException("Unexpected data after JSON value");
+        }
+        return result;
+    }
+
+    /**
+     * Appends the given String to the given {@link StringBuilder} as a quoted and escaped
+     * JSON string, or as <tt>null</tt> if the String is null.
+     */
+    public static void appendString(final StringBuilder result, final String value) {
+        if (value==null) {
+            result.append("null");
+            return;
+        }
+        result.append('"');
+        for (int i=0, length=value.length(); i<length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': result.append("\\\""); break;
+                case '\\': result.append("\\\\"); break;
+                case '\n': result.append("\\n"); break;
+                case '\r': result.append("\\r"); break;
+                case '\t': result.append("\\t"); break;
+                case '\b': result.append("\\b"); break;
+                case '\f': result.append("\\f"); break;
+                default:
+                    if (c < 0x20 || c==0x2028 || c==0x2029) {
+                        result.append("\\u");
+                        String hex = Integer.toHexString(c);
+                        for (int j=hex.length(); j<4; j++) {
+                            result.append('0');
+                        }
+                        result.append(hex);
+                    }
+                    else {
+                        result.append(c);
+                    }
+                    break;
+            }
+        }
+        result.append('"');
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Thrown when parsing malformed JSON.
+     */
+    public static class JSONParseException extends IOException {
+
+        private static final long serialVersionUID = -2264735386342406917L;
+
+        public JSONParseException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when parsing JSON that exceeds one of the limits passed to the parser.
+     */
+    public static final class JSONLimitException extends JSONParseException {
+
+        private static final long serialVersionUID = 3946226720958472313L;
+
+        public JSONLimitException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Simple recursive descent parser, reading one character ahead.
+     */
+    private static final class Parser {
+
+        /** Limit on nesting to prevent stack exhaustion on malicious input */
+        private static final int MAX_DEPTH = 64;
+
+        private final Reader reader;
+        private final int maxArraySize;
+        private int current;
+        private int depth;
+
+        public Parser(final Reader reader, final int maxArraySize) throws IOException {
+            this.reader = reader;
+            this.maxArraySize = maxArraySize;
+            this.current = reader.read();
+        }
+
+        private int advance() throws IOException {
+            current = reader.read();
+            return current;
+        }
+
+        int skipWhitespace() throws IOException {
+            while (current==' ' || current=='\t' || current=='\n' || current=='\r') {
+                advance();
+            }
+            return current;
+        }
+
+        private void expect(final char c) throws IOException {
+            if (current!=c) {
+                throw new JSONParseException("Expected '" + c + "' but got " + describeCurrent());
+            }
+            advance();
+        }
+
+        private String describeCurrent() {
+            return current==-1 ? "end of input" : "'" + (char) current + "'";
+        }
+
+        Object readValue() throws IOException {
+            switch (skipWhitespace()) {
+                case '{': return readObject();
+                case '[': return readArray();
+                case '"': return readString();
+                case 't': readLiteral("true"); return Boolean.TRUE;
+                case 'f': readLiteral("false"); return Boolean.FALSE;
+                case 'n': readLiteral("null"); return null;
+                default:
+                    if (current=='-' || (current>='0' && current<='9')) {
+                        return readNumber();
+                    }
+                    throw new JSONParseException("Unexpected " + describeCurrent());
+            }
+        }
+
+        private Map<String, Object> readObject() throws IOException {
+            enter();
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            expect('{');
+            if (skipWhitespace()=='}') {
+                advance();
+            }
+            else {
+                while (true) {
+                    if (skipWhitespace()!='"') {
+                        throw new JSONParseException("Expected object key but got " + describeCurrent());
+                    }
+                    String key = readString();
+                    skipWhitespace();
+                    expect(':');
+                    result.put(key, readValue());
+                    if (skipWhitespace()==',') {
+                        advance();
+                        continue;
+                    }
+                    expect('}');
+                    break;
+                }
+            }
+            depth--;
+            return result;
+        }
+
+        private List<Object> readArray() throws IOException {
+            enter();
+            List<Object> result = new ArrayList<Object>();
+            expect('[');
+            if (skipWhitespace()==']') {
+                advance();
+            }
+            else {
+                while (true) {
+                    if (result.size()==maxArraySize) {
+                        throw new JSONLimitException("JSON array has more than " + maxArraySize + " elements");
+                    }
+                    result.add(readValue());
+                    if (skipWhitespace()==',') {
+                        advance();
+                        continue;
+                    }
+                    expect(']');
+                    break;
+                }
+            }
+            depth--;
+            return result;
+        }
+
+        private void enter() throws JSONParseException {
+            if (++depth > MAX_DEPTH) {
+                throw new JSONParseException("JSON is nested too deeply");
+            }
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder result = new StringBuilder();
+            while (current!='"') {
+                if (current==-1) {
+                    throw new JSONParseException("Unterminated string");
+                }
+                else if (current=='\\') {
+                    switch (advance()) {
+                        case '"': result.append('"'); break;
+                        case '\\': result.append('\\'); break;
+                        case '/': result.append('/'); break;
+                        case 'b': result.append('\b'); break;
+                        case 'f': result.append('\f'); break;
+                        case 'n': result.append('\n'); break;
+                        case 'r': result.append('\r'); break;
+                        case 't': result.append('\t'); break;
+                        case 'u':
+                            int codeUnit = 0;
+                            for (int i=0; i<4; i++) {
+                                int digit = Character.digit(advance(), 16);
+                                if (digit==-1) {
+                                    throw new JSONParseException("Bad \\u escape in string");
+                                }
+                                codeUnit = (codeUnit << 4) | digit;
+                            }
+                            result.append((char) codeUnit);
+                            break;
+                        default:
+                            throw new JSONParseException("Bad escape " + describeCurrent() + " in string");
+                    }
+                }
+                else if (current < 0x20) {
+                    throw new JSONParseException("Unescaped control character in string");
+                }
+                else {
+                    result.append((char) current);
+                }
+                advance();
+            }
+            advance();
+            return result.toString();
+        }
+
+        private Double readNumber() throws IOException {
+            StringBuilder result = new StringBuilder();
+            while (current=='-' || current=='+' || current=='.' || current=='e' || current=='E'
+                    || (current>='0' && current<='9')) {
+                result.append((char) current);
+                advance();
+            }
+            try {
+                return Double.valueOf(result.toString());
+            }
+            catch (NumberFormatException e) {
+                throw new JSONParseException("Bad number " + result);
+            }
+        }
+
+        private void readLiteral(final String literal) throws IOException {
+            for (int i=0; i<literal.length(); i++) {
+                if (current!=literal.charAt(i)) {
+                    throw new JSONParseException("Unexpected " + describeCurrent());
+                }
+                advance();
+            }
+        }
+    }
+}
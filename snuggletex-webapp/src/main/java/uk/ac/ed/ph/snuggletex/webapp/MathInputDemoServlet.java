@@ -10,7 +10,6 @@ import static uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities.serializeElement;
 
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.InputError;
-import uk.ac.ed.ph.snuggletex.SnuggleEngine;
 import uk.ac.ed.ph.snuggletex.SnuggleInput;
 import uk.ac.ed.ph.snuggletex.SnuggleSession;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
@@ -57,16 +56,17 @@ public final class MathInputDemoServlet extends BaseServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
             IOException {
-        doRequest(request, response);
+        executeConversion(request, response);
     }
     
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        doRequest(request, response);
+        executeConversion(request, response);
     }
     
-    private void doRequest(HttpServletRequest request, HttpServletResponse response)
+    @Override
+    protected void doConversion(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         /* Read in input LaTeX, using some placeholder text if nothing was provided */
         String rawInputLaTeX = request.getParameter("input");
@@ -80,8 +80,7 @@ public final class MathInputDemoServlet extends BaseServlet {
         }
         
         /* Parse the LaTeX */
-        SnuggleEngine engine = createSnuggleEngine();
-        SnuggleSession session = engine.createSession();
+        SnuggleSession session = getSnuggleEngine().createSession();
         SnuggleInput input = new SnuggleInput("\\[ " + inputLaTeX + " \\]", "Form Input");
         session.parseInput(input);
         
@@ -5,27 +5,26 @@
  */
 package uk.ac.ed.ph.snuggletex.webapp;
 
+import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.InputError;
-import uk.ac.ed.ph.snuggletex.SnuggleEngine;
 import uk.ac.ed.ph.snuggletex.SnuggleInput;
 import uk.ac.ed.ph.snuggletex.SnuggleSession;
-import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions.ErrorOutputOptions;
-import uk.ac.ed.ph.snuggletex.internal.util.IOUtilities;
-import uk.ac.ed.ph.snuggletex.jeuclid.JEuclidUtilities;
-import uk.ac.ed.ph.snuggletex.jeuclid.SimpleMathMLImageSavingCallback;
+import uk.ac.ed.ph.snuggletex.jeuclid.MathMLImageRenderer;
+import uk.ac.ed.ph.snuggletex.jeuclid.RenderedMathMLImage;
+import uk.ac.ed.ph.snuggletex.jeuclid.JEuclidRenderingProfile;
 import uk.ac.ed.ph.snuggletex.utilities.MessageFormatter;
 
+import java.awt.Color;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
 
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,6 +34,11 @@ import org.slf4j.LoggerFactory;
  * <p>
  * This is useful for creating legacy outputs for dynamically created pages.
  * (I.e. not the documentation pages.)
+ * <p>
+ * Rendered images are kept in a {@link RenderedImageCache}, which can optionally save them
+ * to a directory specified by the {@link #DISK_CACHE_DIRECTORY_PARAM} <tt>init-param</tt>.
+ * As each image is entirely determined by its input, responses include a strong ETag and
+ * conditional GETs are answered with <tt>304 Not Modified</tt>.
  *
  * @author  David McKain
  * @version $Revision$
@@ -44,107 +48,193 @@ public final class MathInputToImageServlet extends BaseServlet {
     private static final long serialVersionUID = 2349962200011540329L;
     private static final Logger logger = LoggerFactory.getLogger(MathInputToImageServlet.class);
     
+    /** <tt>init-param</tt> specifying the maximum number of images to cache in memory */
+    public static final String MEMORY_CACHE_SIZE_PARAM = "imageCacheSize";
+    
+    /** <tt>init-param</tt> specifying a directory in which to save rendered images, if required */
+    public static final String DISK_CACHE_DIRECTORY_PARAM = "imageCacheDirectory";
+    
+    /** Default value for {@link #MEMORY_CACHE_SIZE_PARAM} */
+    public static final int DEFAULT_MEMORY_CACHE_SIZE = 256;
+    
+    /** Value of the <tt>Cache-Control</tt> header sent with each image */
+    private static final String CACHE_CONTROL = "public, max-age=86400";
+    
+    /** Renders MathML to images */
+    private MathMLImageRenderer imageRenderer;
+    
+    /** Cache of rendered images */
+    private RenderedImageCache imageCache;
+    
+    /** Describes how images are rendered, used to help create cache keys */
+    private String renderingOptions;
+    
     @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        doRequest(request, response);
+    public void init() throws ServletException {
+        JEuclidRenderingProfile renderingProfile = JEuclidRenderingProfile.DEFAULT;
+        imageRenderer = new MathMLImageRenderer(renderingProfile, "image/png");
+        
+        /* Set up image cache */
+        int memoryCacheSize = DEFAULT_MEMORY_CACHE_SIZE;
+        String memoryCacheSizeParam = getServletConfig().getInitParameter(MEMORY_CACHE_SIZE_PARAM);
+        if (memoryCacheSizeParam!=null) {
+            try {
+                memoryCacheSize = Integer.parseInt(memoryCacheSizeParam.trim());
+            }
+            catch (NumberFormatException e) {
+                throw new ServletException("init-param " + MEMORY_CACHE_SIZE_PARAM + " must be an integer");
+            }
+        }
+        String diskCacheDirectoryParam = getServletConfig().getInitParameter(DISK_CACHE_DIRECTORY_PARAM);
+        File diskCacheDirectory = diskCacheDirectoryParam!=null ? new File(diskCacheDirectoryParam) : null;
+        imageCache = new RenderedImageCache(memoryCacheSize, diskCacheDirectory, ".png");
+        
+        /* Images depend on both the rendering options and the version of SnuggleTeX */
+        renderingOptions = imageRenderer.getContentType()
+            + ";size=" + renderingProfile.getFontSize()
+            + ";antialias=" + renderingProfile.isAntiAliasing()
+            + ";foreground=" + formatColor(renderingProfile.getForeground())
+            + ";background=" + formatColor(renderingProfile.getBackground())
+            + ";version=" + ensureGetContextInitParam(ContextInitialiser.SNUGGLETEX_VERSION_PROPERTY_NAME);
+        logger.info("Image cache set up with memory size {} and directory {}", memoryCacheSize, diskCacheDirectory);
+    }
+    
+    /** (Exposed for testing) */
+    RenderedImageCache getImageCache() {
+        return imageCache;
     }
     
-    private void doRequest(HttpServletRequest request, HttpServletResponse response)
+    /** (Exposed for testing) */
+    String getRenderingOptions() {
+        return renderingOptions;
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        executeConversion(request, response);
+    }
+    
+    @Override
+    protected void doConversion(HttpServletRequest request, HttpServletResponse response)
             throws IOException {
         /* Read in input LaTeX, which is assumed to contain appropriate Math mode delimiters */
-        String inputLaTeX = request.getParameter("input");
-        if (inputLaTeX==null || inputLaTeX.trim().length()==0) {
+        String rawInputLaTeX = request.getParameter("input");
+        if (rawInputLaTeX==null || rawInputLaTeX.trim().length()==0) {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Empty input");
             return;
         }
-        /* Parse the LaTeX */
-        SnuggleEngine engine = createSnuggleEngine();
-        SnuggleSession session = engine.createSession();
-        SnuggleInput input = new SnuggleInput(inputLaTeX, "Form Input");
-        session.parseInput(input);
+        String inputLaTeX = normaliseInput(rawInputLaTeX);
         
-        /* We'll save the image to a temporary File */
-        final File tempFile = File.createTempFile("mathimage-", "png");
-        ImageSavingCallback callback = new ImageSavingCallback(tempFile);
-        try {
-            /* Set up appropriate web output options */
-            WebPageOutputOptions options = JEuclidUtilities.createWebPageOptions(false, callback);
-            options.setErrorOutputOptions(ErrorOutputOptions.NO_OUTPUT);
-            options.setMathVariantMapping(true);
-            options.setAddingMathSourceAnnotations(false);
-            options.setIndenting(false);
-            
-            /* Generate web page result, which we'll actually throw away! The important side effect
-             * here is that an image should have been saved!
-             */
-            session.createWebPage(options);
-
-            /* Generate appropriate result, logging bad things but staying silent otherwise */
-            List<InputError> errors = session.getErrors();
-            if (!errors.isEmpty()) {
-                logger.warn("Bad input: {}", inputLaTeX);
-                logger.warn("Error count: {}", errors.size());
-                for (InputError error : errors) {
-                    logger.warn("Error: " + MessageFormatter.formatErrorAsString(error));
-                }
-                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad LaTeX Input");
-            }
-            else if (callback.getFailure()!=null) {
-                logger.warn("Could not generate image for input: " + inputLaTeX, callback.getFailure());
-                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Could not generate image for this input");
-            }
-            else {
-                response.setContentType("image/png");
-                response.setContentLength((int) tempFile.length());
-                IOUtilities.transfer(new FileInputStream(tempFile), response.getOutputStream(), true, false);
-            } 
+        /* The ETag is derived from the input only, so if the client already has it then
+         * there's no need to do anything else */
+        String cacheKey = RenderedImageCache.createKey(renderingOptions, inputLaTeX);
+        String eTag = "\"" + cacheKey + "\"";
+        if (matchesETag(request.getHeader("If-None-Match"), eTag)) {
+            setCachingHeaders(response, eTag);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
         }
-        finally {
-            if (tempFile.exists()) {
-                tempFile.delete();
+        
+        /* Get image from the cache, rendering it if required */
+        byte[] imageData = imageCache.getImage(cacheKey);
+        if (imageData==null) {
+            imageData = renderImage(inputLaTeX, response);
+            if (imageData==null) {
+                /* (Error response will already have been sent) */
+                return;
             }
+            imageCache.putImage(cacheKey, imageData);
         }
+        
+        /* Serve up result */
+        setCachingHeaders(response, eTag);
+        response.setContentType(imageRenderer.getContentType());
+        response.setContentLength(imageData.length);
+        OutputStream outputStream = response.getOutputStream();
+        outputStream.write(imageData);
+        outputStream.flush();
     }
     
     /**
-     * Does the job of the saving the (first) image rendered to the given output file, recording
-     * any {@link Throwable} for later retrieval.
+     * Renders the given input, returning the resulting image data or null if this failed, in
+     * which case a suitable error response will have been sent.
      */
-    private static class ImageSavingCallback extends SimpleMathMLImageSavingCallback {
-        
-        private final File outputFile;
-        private Throwable failure;
-        
-        public Throwable getFailure() {
-            return failure;
+    private byte[] renderImage(final String inputLaTeX, final HttpServletResponse response)
+            throws IOException {
+        /* Parse the LaTeX and render the resulting MathML directly */
+        SnuggleSession session = getSnuggleEngine().createSession();
+        SnuggleInput input = new SnuggleInput(inputLaTeX, "Form Input");
+        DOMOutputOptions options = new DOMOutputOptions();
+        options.setErrorOutputOptions(ErrorOutputOptions.NO_OUTPUT);
+        options.setMathVariantMapping(true);
+        options.setAddingMathSourceAnnotations(false);
+        RenderedMathMLImage image;
+        try {
+            image = imageRenderer.renderImage(session, input, options);
         }
-
-        public ImageSavingCallback(final File outputFile) {
-            this.outputFile = outputFile;
-            this.failure = null;
+        catch (IOException e) {
+            logger.warn("Could not generate image for input: " + inputLaTeX, e);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Could not generate image for this input");
+            return null;
         }
-        
-        @Override
-        public File getImageOutputFile(int mathmlCounter) {
-            /* Valid input only produces 1 image, so ignore all others */
-            return mathmlCounter==0 ? outputFile : null;
+
+        /* Generate appropriate result, logging bad things but staying silent otherwise */
+        List<InputError> errors = session.getErrors();
+        if (!errors.isEmpty()) {
+            logger.warn("Bad input: {}", inputLaTeX);
+            logger.warn("Error count: {}", errors.size());
+            for (InputError error : errors) {
+                logger.warn("Error: " + MessageFormatter.formatErrorAsString(error));
+            }
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad LaTeX Input");
+            return null;
         }
-        
-        @Override
-        public OutputStream getImageOutputStream(int mathmlCounter) {
-            /* (Not used here) */
-            return new NullOutputStream();
+        else if (image==null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Input did not contain any mathematics");
+            return null;
         }
-
-        @Override
-        public String getImageURL(int mathmlCounter) {
-            /* Not needed here as we're throwing the resulting XML away */
-            return "";
+        return image.getImageData();
+    }
+    
+    /**
+     * Formats the given (possibly null) colour for use in {@link #renderingOptions}.
+     */
+    private static String formatColor(final Color color) {
+        return color!=null ? Integer.toHexString(color.getRGB()) : "none";
+    }
+    
+    /**
+     * Normalises the given input so that trivially different inputs share the same image.
+     * (We only trim and standardise line endings, as other whitespace can be significant
+     * in LaTeX, e.g. in comments.)
+     */
+    private static String normaliseInput(final String rawInputLaTeX) {
+        return rawInputLaTeX.trim().replace("\r\n", "\n").replace('\r', '\n');
+    }
+    
+    /**
+     * Determines whether the given <tt>If-None-Match</tt> header matches the given (strong) ETag.
+     * (This uses the weak comparison, as required for GET requests.)
+     */
+    private static boolean matchesETag(final String ifNoneMatch, final String eTag) {
+        if (ifNoneMatch==null) {
+            return false;
         }
-
-        public void imageSavingFailed(Object imageOutputObject, int mathmlCounter,
-                String contentType, Throwable exception) {
-            this.failure = exception;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
         }
+        return false;
+    }
+    
+    private static void setCachingHeaders(final HttpServletResponse response, final String eTag) {
+        response.setHeader("ETag", eTag);
+        response.setHeader("Cache-Control", CACHE_CONTROL);
     }
 }
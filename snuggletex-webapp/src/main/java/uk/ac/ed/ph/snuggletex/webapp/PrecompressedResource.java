@@ -0,0 +1,271 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import uk.ac.ed.ph.snuggletex.internal.util.DigestUtilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Represents a file stored on disk that will be served up over HTTP, along with an optional
+ * gzipped variant and the validators (<tt>ETag</tt> and <tt>Last-Modified</tt>) needed to
+ * support conditional GETs.
+ * <p>
+ * The gzipped variant has its own ETag (the normal one with {@link #GZIP_ETAG_SUFFIX} added)
+ * as its bytes differ from those of the normal variant.
+ * <p>
+ * Files are sent using the container's <tt>sendfile</tt> support where available (currently
+ * only Tomcat's), otherwise via {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * <p>
+ * An instance of this class is immutable.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class PrecompressedResource {
+
+    /** Suffix added to the name of the gzipped variant of a file */
+    public static final String GZIP_SUFFIX = ".gz";
+
+    /** Suffix added to the opaque part of the ETag of the gzipped variant of a file */
+    public static final String GZIP_ETAG_SUFFIX = "-gzip";
+
+    /** Request attributes used by Tomcat's sendfile support */
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    private final File file;
+    private final File gzipFile;
+    private final String contentType;
+    private final String etag;
+    private final String gzipETag;
+    private final long lastModified;
+
+    private PrecompressedResource(final File file, final File gzipFile, final String contentType,
+            final String etag) {
+        this.file = file;
+        this.gzipFile = gzipFile;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.gzipETag = gzipFile!=null ? etag.substring(0, etag.length() - 1) + GZIP_ETAG_SUFFIX + "\"" : null;
+        this.lastModified = (file.lastModified() / 1000L) * 1000L; /* (HTTP dates are in seconds) */
+    }
+
+    /**
+     * Creates a {@link PrecompressedResource} for the given newly created file, creating a
+     * gzipped variant alongside it if requested and if this turns out to be smaller.
+     * The ETag is a hash of the file's content so will stay the same if the file is
+     * regenerated without changing.
+     */
+    public static PrecompressedResource create(final File file, final String contentType,
+            final boolean compressing) throws IOException {
+        MessageDigest digest = DigestUtilities.createDigest();
+        File gzipFile = new File(file.getPath() + GZIP_SUFFIX);
+        gzipFile.delete();
+        File tempGzipFile = compressing ? File.createTempFile("gz-" + file.getName(), ".tmp", file.getParentFile()) : null;
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            OutputStream gzipStream = compressing ? new GZIPOutputStream(new FileOutputStream(tempGzipFile)) : null;
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = inputStream.read(buffer))!=-1) {
+                    digest.update(buffer, 0, count);
+                    if (gzipStream!=null) {
+                        gzipStream.write(buffer, 0, count);
+                    }
+                }
+            }
+            finally {
+                if (gzipStream!=null) {
+                    gzipStream.close();
+                }
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+        if (compressing) {
+            /* Only keep compressed version if it's actually worth using */
+            if (tempGzipFile.length() < file.length() && tempGzipFile.renameTo(gzipFile)) {
+                gzipFile.setLastModified(file.lastModified());
+            }
+            else {
+                tempGzipFile.delete();
+                gzipFile = null;
+            }
+        }
+        else {
+            gzipFile = null;
+        }
+        String etag = "\"" + DigestUtilities.toHex(digest.digest(), 16) + "\""; /* (Half the hash is plenty here) */
+        return new PrecompressedResource(file, gzipFile, contentType, etag);
+    }
+
+    /**
+     * Creates a {@link PrecompressedResource} for an existing file that won't be compressed,
+     * using a weak ETag based on its size and modification time. This is cheaper than
+     * {@link #create(File, String, boolean)} so is good for (already compressed) images.
+     */
+    public static PrecompressedResource createUncompressed(final File file, final String contentType) {
+        String etag = "W/\"" + file.length() + "-" + file.lastModified() + "\"";
+        return new PrecompressedResource(file, null, contentType, etag);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Returns the gzipped variant of the file, or null if there isn't one */
+    public File getGzipFile() {
+        return gzipFile;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /** Returns the ETag of the gzipped variant of the file, or null if there isn't one */
+    public String getGzipETag() {
+        return gzipETag;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    //-------------------------------------------------
+
+    /**
+     * Serves up this resource, sending a <tt>304 Not Modified</tt> response if the client's
+     * copy of the variant it accepts is still current, otherwise the best variant of the file
+     * that the client accepts.
+     */
+    public void serve(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException {
+        boolean sendingGzip = gzipFile!=null && acceptsGzip(request);
+        String variantETag = sendingGzip ? gzipETag : etag;
+        response.setHeader("ETag", variantETag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (gzipFile!=null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (isNotModified(request, variantETag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        File fileToSend = file;
+        if (sendingGzip) {
+            fileToSend = gzipFile;
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentType(contentType);
+        long length = fileToSend.length();
+        if (length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        }
+        else {
+            response.setHeader("Content-Length", Long.toString(length));
+        }
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            /* Let the container send the file itself once we return */
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, fileToSend.getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, Long.valueOf(0L));
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, Long.valueOf(length));
+            return;
+        }
+        FileInputStream inputStream = new FileInputStream(fileToSend);
+        try {
+            FileChannel fileChannel = inputStream.getChannel();
+            WritableByteChannel outputChannel = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            while (position < length) {
+                position += fileChannel.transferTo(position, length - position, outputChannel);
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    private boolean isNotModified(final HttpServletRequest request, final String variantETag) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch!=null) {
+            /* (If-None-Match takes precedence over If-Modified-Since, and uses weak comparison) */
+            String opaqueTag = stripWeakness(variantETag);
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if ("*".equals(candidate) || opaqueTag.equals(stripWeakness(candidate))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        }
+        catch (IllegalArgumentException e) {
+            /* Ignore malformed dates */
+            return false;
+        }
+        return ifModifiedSince!=-1 && ifModifiedSince >= lastModified;
+    }
+
+    private static String stripWeakness(final String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static boolean acceptsGzip(final HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding==null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                for (int i=1; i<parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(parameter.substring(2).trim()) > 0.0;
+                        }
+                        catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
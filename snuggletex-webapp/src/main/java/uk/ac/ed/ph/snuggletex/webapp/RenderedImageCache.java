@@ -0,0 +1,166 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import uk.ac.ed.ph.snuggletex.internal.util.DigestUtilities;
+import uk.ac.ed.ph.snuggletex.internal.util.IOUtilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple content-addressed cache of rendered images, used by {@link MathInputToImageServlet}.
+ * <p>
+ * Images are keyed on a hash of the input and the options used to render it, created via
+ * {@link #createKey(String, String)}. The most recently used images are kept in memory.
+ * If a disk directory is specified, all images are also saved there so that they survive
+ * restarts and evictions from memory.
+ * <p>
+ * An instance of this class is thread-safe.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class RenderedImageCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderedImageCache.class);
+
+    /** Maximum number of images to keep in memory */
+    private final int memoryCacheSize;
+
+    /** Directory to save images in, null if only caching in memory */
+    private final File diskCacheDirectory;
+
+    /** Suffix for the names of files saved in {@link #diskCacheDirectory} */
+    private final String fileSuffix;
+
+    private final Map<String, byte[]> memoryCache;
+
+    public RenderedImageCache(final int memoryCacheSize, final File diskCacheDirectory,
+            final String fileSuffix) {
+        if (memoryCacheSize<0) {
+            throw new IllegalArgumentException("memoryCacheSize must not be negative");
+        }
+        this.memoryCacheSize = memoryCacheSize;
+        this.diskCacheDirectory = diskCacheDirectory;
+        this.fileSuffix = fileSuffix;
+        this.memoryCache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -5925386437011405457L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > RenderedImageCache.this.memoryCacheSize;
+            }
+        };
+    }
+
+    public int getMemoryCacheSize() {
+        return memoryCacheSize;
+    }
+
+    public File getDiskCacheDirectory() {
+        return diskCacheDirectory;
+    }
+
+    /**
+     * Creates a cache key for the given input, rendered using the given options.
+     *
+     * @param renderingOptions String uniquely describing the rendering options used
+     * @param input input to render, which should already have been normalised
+     */
+    public static String createKey(final String renderingOptions, final String input) {
+        MessageDigest digest = DigestUtilities.createDigest();
+        DigestUtilities.updateUTF8(digest, renderingOptions);
+        digest.update((byte) 0);
+        DigestUtilities.updateUTF8(digest, input);
+        return DigestUtilities.toHex(digest.digest());
+    }
+
+    /**
+     * Returns the image data for the given key, or null if it has not been cached.
+     *
+     * @param key key created via {@link #createKey(String, String)}
+     */
+    public byte[] getImage(final String key) {
+        byte[] result;
+        synchronized (memoryCache) {
+            result = memoryCache.get(key);
+        }
+        if (result==null && diskCacheDirectory!=null) {
+            File imageFile = mapKey(key);
+            if (imageFile.isFile()) {
+                try {
+                    result = readFile(imageFile);
+                    synchronized (memoryCache) {
+                        memoryCache.put(key, result);
+                    }
+                }
+                catch (IOException e) {
+                    logger.warn("Could not read cached image at " + imageFile, e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the given image data under the given key.
+     *
+     * @param key key created via {@link #createKey(String, String)}
+     * @param imageData image data, which must not be changed afterwards
+     */
+    public void putImage(final String key, final byte[] imageData) {
+        synchronized (memoryCache) {
+            memoryCache.put(key, imageData);
+        }
+        if (diskCacheDirectory!=null) {
+            /* Write to a temporary file first, then rename so that readers never see
+             * a partially written file. */
+            File imageFile = mapKey(key);
+            try {
+                IOUtilities.ensureDirectoryCreated(diskCacheDirectory);
+                File tempFile = File.createTempFile(key, ".tmp", diskCacheDirectory);
+                OutputStream outputStream = new FileOutputStream(tempFile);
+                try {
+                    outputStream.write(imageData);
+                }
+                finally {
+                    outputStream.close();
+                }
+                if (!tempFile.renameTo(imageFile) && !imageFile.isFile()) {
+                    logger.warn("Could not rename {} to {}", tempFile, imageFile);
+                }
+                tempFile.delete();
+            }
+            catch (IOException e) {
+                logger.warn("Could not save cached image to " + imageFile, e);
+            }
+        }
+    }
+
+    private File mapKey(final String key) {
+        return new File(diskCacheDirectory, key + fileSuffix);
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream((int) file.length());
+        IOUtilities.transfer(new FileInputStream(file), result);
+        return result.toByteArray();
+    }
+}
@@ -14,8 +14,8 @@ import static uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities.serializeElement;
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.InputError;
 import uk.ac.ed.ph.snuggletex.SerializationSpecifier;
-import uk.ac.ed.ph.snuggletex.SnuggleEngine;
 import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnugglePreambleCache;
 import uk.ac.ed.ph.snuggletex.SnuggleSession;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions.ErrorOutputOptions;
@@ -24,7 +24,6 @@ import uk.ac.ed.ph.snuggletex.WebPageOutputOptions.WebPageType;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 import uk.ac.ed.ph.snuggletex.upconversion.MathMLUpConverter;
 import uk.ac.ed.ph.snuggletex.upconversion.UpConvertingPostProcessor;
-import uk.ac.ed.ph.snuggletex.upconversion.internal.UpConversionPackageDefinitions;
 import uk.ac.ed.ph.snuggletex.utilities.MessageFormatter;
 
 import java.io.IOException;
@@ -73,19 +72,28 @@ public final class UpConversionDemoServlet extends BaseServlet {
     /** Location of XSLT controlling page layout */
     private static final String DISPLAY_XSLT_LOCATION = "classpath:/upconversion-demo.xsl";
     
+    /** Caches the results of parsing assumptions input */
+    private SnugglePreambleCache preambleCache;
+    
+    @Override
+    public void init() throws ServletException {
+        preambleCache = new SnugglePreambleCache(getUpConversionSnuggleEngine());
+    }
+    
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        doRequest(request, response);
+        executeConversion(request, response);
     }
     
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        doRequest(request, response);
+        executeConversion(request, response);
     }
     
-    private void doRequest(HttpServletRequest request, HttpServletResponse response)
+    @Override
+    protected void doConversion(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         /* Read in input LaTeX, using some placeholder text if nothing was provided */
         String rawInputLaTeX = request.getParameter("input");
@@ -103,11 +111,8 @@ public final class UpConversionDemoServlet extends BaseServlet {
         String upConversionOptions = rawUpConversionOptions!=null ? rawUpConversionOptions : DEFAULT_UPCONVERSION_OPTIONS;
         boolean hasChangedUpConversionOptions = rawUpConversionOptions!=null && !rawUpConversionOptions.equals(DEFAULT_UPCONVERSION_OPTIONS);
         
-        /* Parse the assumptions & LaTeX */
-        SnuggleEngine engine = createSnuggleEngine();
-        engine.addPackage(UpConversionPackageDefinitions.getPackage());
-        SnuggleSession session = engine.createSession();
-        session.parseInput(new SnuggleInput(upConversionOptions, "Assumptions Input"));
+        /* Parse the assumptions (reusing the results if seen before) & LaTeX */
+        SnuggleSession session = preambleCache.createSession(new SnuggleInput(upConversionOptions, "Assumptions Input"));
         session.parseInput(new SnuggleInput("\\[ " + inputLaTeX + " \\]", "Math Input"));
         
         /* Create raw DOM, without any up-conversion for the time being. I've done this
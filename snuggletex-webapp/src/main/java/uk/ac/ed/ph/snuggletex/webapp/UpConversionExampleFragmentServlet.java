@@ -14,8 +14,8 @@ import static uk.ac.ed.ph.snuggletex.utilities.MathMLUtilities.serializeElement;
 import uk.ac.ed.ph.snuggletex.DOMOutputOptions;
 import uk.ac.ed.ph.snuggletex.InputError;
 import uk.ac.ed.ph.snuggletex.SerializationSpecifier;
-import uk.ac.ed.ph.snuggletex.SnuggleEngine;
 import uk.ac.ed.ph.snuggletex.SnuggleInput;
+import uk.ac.ed.ph.snuggletex.SnugglePreambleCache;
 import uk.ac.ed.ph.snuggletex.SnuggleSession;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptions;
 import uk.ac.ed.ph.snuggletex.WebPageOutputOptionsTemplates;
@@ -26,7 +26,6 @@ import uk.ac.ed.ph.snuggletex.definitions.W3CConstants;
 import uk.ac.ed.ph.snuggletex.internal.util.XMLUtilities;
 import uk.ac.ed.ph.snuggletex.upconversion.MathMLUpConverter;
 import uk.ac.ed.ph.snuggletex.upconversion.UpConvertingPostProcessor;
-import uk.ac.ed.ph.snuggletex.upconversion.internal.UpConversionPackageDefinitions;
 import uk.ac.ed.ph.snuggletex.utilities.MessageFormatter;
 
 import java.io.IOException;
@@ -73,13 +72,22 @@ public final class UpConversionExampleFragmentServlet extends BaseServlet {
         + "\\assumeSymbol{\\pi}{constantPi}\n"
         + "\\assumeSymbol{\\gamma}{eulerGamma}";
     
+    /** Caches the results of parsing assumptions input */
+    private SnugglePreambleCache preambleCache;
+    
+    @Override
+    public void init() throws ServletException {
+        preambleCache = new SnugglePreambleCache(getUpConversionSnuggleEngine());
+    }
+    
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        doRequest(request, response);
+        executeConversion(request, response);
     }
     
-    private void doRequest(HttpServletRequest request, HttpServletResponse response)
+    @Override
+    protected void doConversion(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         /* Read in input LaTeX, which must be provided */
         String rawInputLaTeX = request.getParameter("input");
@@ -97,16 +105,15 @@ public final class UpConversionExampleFragmentServlet extends BaseServlet {
         }
         
         /* Parse the LaTeX */
-        SnuggleEngine engine = createSnuggleEngine();
-        engine.addPackage(UpConversionPackageDefinitions.getPackage());
-        SnuggleSession session = engine.createSession();
+        SnuggleSession session;
         if (inputLaTeX.endsWith("$") || inputLaTeX.endsWith("\\]") || inputLaTeX.endsWith("\\)")) {
             /* Author has explicitly ended Math mode, so is probably doing some custom assumptions */
+            session = getUpConversionSnuggleEngine().createSession();
             session.parseInput(new SnuggleInput(inputLaTeX, "Query Input"));
         }
         else {
-            /* Parse whole thing in Math mode using default assumptions */
-            session.parseInput(new SnuggleInput(DEFAULT_UPCONVERSION_OPTIONS, "Default Assumptions Input"));
+            /* Parse whole thing in Math mode using default assumptions (which only get parsed once) */
+            session = preambleCache.createSession(new SnuggleInput(DEFAULT_UPCONVERSION_OPTIONS, "Default Assumptions Input"));
             session.parseInput(new SnuggleInput("\\[ " + inputLaTeX + " \\]", "Query Input"));
         }
         
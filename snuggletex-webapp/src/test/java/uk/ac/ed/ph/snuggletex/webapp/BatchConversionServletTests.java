@@ -0,0 +1,228 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import uk.ac.ed.ph.snuggletex.SnuggleEngine;
+import uk.ac.ed.ph.snuggletex.upconversion.internal.UpConversionPackageDefinitions;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the request handling and limits in {@link BatchConversionServlet}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class BatchConversionServletTests {
+
+    private static final int MAX_ITEMS = 3;
+    private static final int MAX_BODY_SIZE = 200;
+
+    private ConversionExecutor conversionExecutor;
+    private BatchConversionServlet servlet;
+
+    @Before
+    public void setup() throws Exception {
+        SnuggleEngine upConversionEngine = new SnuggleEngine();
+        upConversionEngine.addPackage(UpConversionPackageDefinitions.getPackage());
+        conversionExecutor = new ConversionExecutor(1, 1, 10000L);
+        servlet = new BatchConversionServlet();
+        servlet.init(new FakeServletConfig("BatchConversionServlet")
+            .setInitParameter(BatchConversionServlet.THREADS_PARAM, "2")
+            .setInitParameter(BatchConversionServlet.MAX_CONCURRENT_BATCHES_PARAM, "1")
+            .setInitParameter(BatchConversionServlet.MAX_ITEMS_PARAM, Integer.toString(MAX_ITEMS))
+            .setInitParameter(BatchConversionServlet.MAX_BODY_SIZE_PARAM, Integer.toString(MAX_BODY_SIZE))
+            .setContextAttribute(ContextInitialiser.UP_CONVERSION_SNUGGLE_ENGINE_ATTRIBUTE_NAME, upConversionEngine)
+            .setContextAttribute(ContextInitialiser.CONVERSION_EXECUTOR_ATTRIBUTE_NAME, conversionExecutor)
+            .create());
+    }
+
+    @After
+    public void teardown() {
+        servlet.destroy();
+        conversionExecutor.shutdown();
+    }
+
+    @Test
+    public void testConversion() throws Exception {
+        FakeServletExchange exchange = post("{\"items\": [\"x\", {\"id\": \"q\", \"input\": \"\\\\alpha\"}]}");
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals(BatchConversionServlet.NDJSON_CONTENT_TYPE, exchange.getContentType());
+        String[] lines = exchange.getResponseBodyAsString().split("\n");
+        Arrays.sort(lines);
+        Assert.assertEquals(2, lines.length);
+        Assert.assertTrue(lines[0], lines[0].startsWith("{\"index\":0,\"mathml\":"));
+        Assert.assertTrue(lines[1], lines[1].startsWith("{\"index\":1,\"id\":\"q\",\"mathml\":"));
+        Assert.assertTrue(lines[1], lines[1].contains("\u03b1"));
+    }
+
+    @Test
+    public void testAssumptions() throws Exception {
+        /* (Assumptions use commands from the up-conversion package) */
+        FakeServletExchange exchange = post("{\"assumptions\": \"\\\\assumeSymbol{f}{function}\", \"items\": [\"f(x)\"]}");
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        String body = exchange.getResponseBodyAsString();
+        Assert.assertTrue(body, body.startsWith("{\"index\":0,\"mathml\":"));
+    }
+
+    @Test
+    public void testMaxItems() throws Exception {
+        FakeServletExchange exchange = post("{\"items\": [\"a\", \"b\", \"c\", \"d\"]}");
+        Assert.assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.getStatus());
+        Assert.assertTrue(exchange.getErrorMessage().contains("items"));
+    }
+
+    @Test
+    public void testMaxItemsAllowed() throws Exception {
+        FakeServletExchange exchange = post("{\"items\": [\"a\", \"b\", \"c\"]}");
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals(3, exchange.getResponseBodyAsString().split("\n").length);
+    }
+
+    @Test
+    public void testMaxItemsBeforeMalformed() throws Exception {
+        /* Too many items are noticed before the malformed end of the input is reached */
+        FakeServletExchange exchange = post("{\"items\": [\"a\", \"b\", \"c\", \"d\", ");
+        Assert.assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.getStatus());
+    }
+
+    @Test
+    public void testBodyTooLarge() throws Exception {
+        /* (No Content-Length is sent, so the limit is enforced while reading) */
+        StringBuilder body = new StringBuilder("{\"items\": [\"");
+        while (body.length() <= MAX_BODY_SIZE) {
+            body.append("x");
+        }
+        body.append("\"]}");
+        FakeServletExchange exchange = postChunked(body.toString());
+        Assert.assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.getStatus());
+        Assert.assertTrue(exchange.getErrorMessage().contains("bytes"));
+    }
+
+    @Test
+    public void testBodyTooLargeNonASCII() throws Exception {
+        /* The limit is on bytes rather than characters */
+        StringBuilder body = new StringBuilder("{\"items\": [\"");
+        for (int i=0; i<MAX_BODY_SIZE / 2; i++) {
+            body.append("\u03b1");
+        }
+        body.append("\"]}");
+        Assert.assertTrue(body.length() < MAX_BODY_SIZE);
+        FakeServletExchange exchange = postChunked(body.toString());
+        Assert.assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.getStatus());
+    }
+
+    @Test
+    public void testDeclaredBodyTooLarge() throws Exception {
+        /* A Content-Length over the limit is rejected without reading anything, so an
+         * otherwise fine body is never looked at */
+        FakeServletExchange exchange = post(new FakeServletExchange("POST")
+            .setRequestBody("application/json", "{\"items\": []}".getBytes("UTF-8"))
+            .setRequestContentLength(MAX_BODY_SIZE + 1));
+        Assert.assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.getStatus());
+    }
+
+    @Test
+    public void testBusy() throws Exception {
+        /* Start a batch whose body arrives slowly, which takes up the only permit */
+        final CountDownLatch readingLatch = new CountDownLatch(1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final FakeServletExchange slowExchange = new FakeServletExchange("POST")
+            .setRequestBody("application/json", new InputStream() {
+                private final InputStream body = new ByteArrayInputStream("{\"items\": [\"x\"]}".getBytes("UTF-8"));
+
+                @Override
+                public int read() throws IOException {
+                    readingLatch.countDown();
+                    try {
+                        releaseLatch.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    return body.read();
+                }
+            });
+        Thread slowThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    post(slowExchange);
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        slowThread.start();
+        try {
+            Assert.assertTrue(readingLatch.await(10, TimeUnit.SECONDS));
+
+            /* Another batch is turned away without its body being read */
+            FakeServletExchange exchange = post("{\"items\": [\"y\"]}");
+            Assert.assertEquals(ConversionExecutor.SC_TOO_MANY_REQUESTS, exchange.getStatus());
+            Assert.assertNotNull(exchange.getResponseHeader("Retry-After"));
+            Assert.assertEquals(0, exchange.getRequestBytesRead());
+        }
+        finally {
+            releaseLatch.countDown();
+            slowThread.join(10000L);
+        }
+        Assert.assertEquals(HttpServletResponse.SC_OK, slowExchange.getStatus());
+
+        /* The permit is given back afterwards, including after bad batches */
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("[]").getStatus());
+        Assert.assertEquals(HttpServletResponse.SC_OK, post("{\"items\": [\"y\"]}").getStatus());
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        FakeServletExchange exchange = post("{\"items\": [\"a\" \"b\"]}");
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, exchange.getStatus());
+        Assert.assertTrue(exchange.getErrorMessage().startsWith("Bad JSON"));
+    }
+
+    @Test
+    public void testBadBatch() throws Exception {
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("[]").getStatus());
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("{}").getStatus());
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("{\"items\": [1]}").getStatus());
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("{\"items\": [], \"inputType\": \"x\"}").getStatus());
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, post("{\"items\": [], \"upConvert\": 1}").getStatus());
+    }
+
+    //-------------------------------------------------------------------
+
+    private FakeServletExchange post(String body) throws Exception {
+        return post(new FakeServletExchange("POST")
+            .setRequestBody("application/json", body.getBytes("UTF-8")));
+    }
+
+    private FakeServletExchange postChunked(String body) throws Exception {
+        return post(new FakeServletExchange("POST")
+            .setRequestBody("application/json", body.getBytes("UTF-8"))
+            .setRequestContentLength(-1));
+    }
+
+    private FakeServletExchange post(FakeServletExchange exchange) throws Exception {
+        servlet.doPost(exchange.getRequest(), exchange.getResponse());
+        return exchange;
+    }
+}
@@ -0,0 +1,247 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ConversionExecutor}, in particular that only one of a conversion and its
+ * deadline ever writes to the real response.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class ConversionExecutorTests {
+
+    private static final long DEADLINE_MILLIS = 200L;
+
+    /** Generous time to wait for things that should happen promptly */
+    private static final long WAIT_MILLIS = 10000L;
+
+    private ConversionExecutor executor;
+
+    @Before
+    public void setup() {
+        executor = new ConversionExecutor(1, 1, DEADLINE_MILLIS);
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testSynchronous() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET");
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new WritingConversion("Result"));
+        assertWritten(exchange, "Result");
+    }
+
+    @Test
+    public void testSynchronousError() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET");
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new ConversionExecutor.Conversion() {
+            public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.getWriter().print("Ignored");
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad input");
+            }
+        });
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, exchange.getStatus());
+        Assert.assertEquals("Bad input", exchange.getErrorMessage());
+        Assert.assertEquals(0, exchange.getResponseBody().length);
+    }
+
+    @Test
+    public void testSynchronousTimeout() throws Exception {
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        FakeServletExchange exchange = new FakeServletExchange("GET");
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new BlockingConversion(releaseLatch, "Late"));
+        assertDeadlineExceeded(exchange);
+
+        /* Let the conversion finish, then make sure it has not touched the real response */
+        releaseLatch.countDown();
+        awaitIdle();
+        assertDeadlineExceeded(exchange);
+    }
+
+    @Test(expected=ServletException.class)
+    public void testSynchronousFailure() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET");
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new ConversionExecutor.Conversion() {
+            public void run(HttpServletRequest request, HttpServletResponse response) throws ServletException {
+                throw new ServletException("Failed");
+            }
+        });
+    }
+
+    @Test
+    public void testAsynchronous() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET").setAsyncSupported(true);
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new WritingConversion("Result"));
+        Assert.assertTrue(exchange.awaitAsyncCompletion(WAIT_MILLIS));
+        assertWritten(exchange, "Result");
+        Assert.assertEquals(1, exchange.getAsyncCompleteCount());
+    }
+
+    @Test
+    public void testAsynchronousFailure() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET").setAsyncSupported(true);
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new ConversionExecutor.Conversion() {
+            public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.setContentType("text/plain");
+                response.getWriter().print("Partial");
+                throw new IllegalStateException("Failed");
+            }
+        });
+        Assert.assertTrue(exchange.awaitAsyncCompletion(WAIT_MILLIS));
+        Assert.assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, exchange.getStatus());
+        Assert.assertEquals(0, exchange.getResponseBody().length);
+        Assert.assertNull(exchange.getContentType());
+    }
+
+    @Test
+    public void testAsynchronousTimeout() throws Exception {
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        FakeServletExchange exchange = new FakeServletExchange("GET").setAsyncSupported(true);
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new BlockingConversion(releaseLatch, "Late"));
+
+        /* Fire the timeout ourselves, as the container would */
+        for (AsyncListener listener : exchange.getAsyncListeners()) {
+            listener.onTimeout(null);
+        }
+        assertDeadlineExceeded(exchange);
+        Assert.assertEquals(1, exchange.getAsyncCompleteCount());
+
+        /* Let the conversion finish, then make sure it has not touched the real response */
+        releaseLatch.countDown();
+        awaitIdle();
+        assertDeadlineExceeded(exchange);
+        Assert.assertEquals(1, exchange.getAsyncCompleteCount());
+    }
+
+    @Test
+    public void testAsynchronousTimeoutAfterFinishing() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET").setAsyncSupported(true);
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new WritingConversion("Result"));
+        Assert.assertTrue(exchange.awaitAsyncCompletion(WAIT_MILLIS));
+
+        /* A timeout arriving late must not send anything */
+        for (AsyncListener listener : exchange.getAsyncListeners()) {
+            listener.onTimeout(null);
+        }
+        assertWritten(exchange, "Result");
+        Assert.assertEquals(1, exchange.getAsyncCompleteCount());
+    }
+
+    @Test
+    public void testOverloaded() throws Exception {
+        /* Fill up the single worker and the single queue slot */
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        FakeServletExchange running = new FakeServletExchange("GET").setAsyncSupported(true);
+        FakeServletExchange queued = new FakeServletExchange("GET").setAsyncSupported(true);
+        executor.execute(running.getRequest(), running.getResponse(), new BlockingConversion(releaseLatch, "First"));
+        executor.execute(queued.getRequest(), queued.getResponse(), new WritingConversion("Second"));
+
+        FakeServletExchange rejected = new FakeServletExchange("GET").setAsyncSupported(true);
+        executor.execute(rejected.getRequest(), rejected.getResponse(), new WritingConversion("Third"));
+        Assert.assertEquals(ConversionExecutor.SC_TOO_MANY_REQUESTS, rejected.getStatus());
+        Assert.assertEquals(Integer.toString(ConversionExecutor.RETRY_AFTER_SECONDS), rejected.getResponseHeader("Retry-After"));
+        Assert.assertEquals(1, rejected.getAsyncCompleteCount());
+
+        releaseLatch.countDown();
+        Assert.assertTrue(running.awaitAsyncCompletion(WAIT_MILLIS));
+        Assert.assertTrue(queued.awaitAsyncCompletion(WAIT_MILLIS));
+        assertWritten(running, "First");
+        assertWritten(queued, "Second");
+    }
+
+    //-------------------------------------------------------------------
+
+    /**
+     * Waits for the (single) worker to finish whatever it is currently doing, by running
+     * another conversion after it.
+     */
+    private void awaitIdle() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET").setAsyncSupported(true);
+        executor.execute(exchange.getRequest(), exchange.getResponse(), new WritingConversion("Idle"));
+        Assert.assertTrue(exchange.awaitAsyncCompletion(WAIT_MILLIS));
+    }
+
+    private static void assertWritten(FakeServletExchange exchange, String expectedContent) throws IOException {
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals("text/plain;charset=UTF-8", exchange.getContentType());
+        Assert.assertEquals("value", exchange.getResponseHeader("X-Test"));
+        Assert.assertEquals(expectedContent, exchange.getResponseBodyAsString());
+        Assert.assertEquals(expectedContent.length(), exchange.getContentLength());
+    }
+
+    private static void assertDeadlineExceeded(FakeServletExchange exchange) {
+        Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exchange.getStatus());
+        Assert.assertEquals(Integer.toString(ConversionExecutor.RETRY_AFTER_SECONDS), exchange.getResponseHeader("Retry-After"));
+        Assert.assertNull(exchange.getResponseHeader("X-Test"));
+        Assert.assertEquals(0, exchange.getResponseBody().length);
+    }
+
+    /** Conversion that writes some text */
+    private static class WritingConversion implements ConversionExecutor.Conversion {
+
+        private final String content;
+
+        public WritingConversion(String content) {
+            this.content = content;
+        }
+
+        public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setContentType("text/plain;charset=UTF-8");
+            response.setHeader("X-Test", "value");
+            response.getWriter().print(content);
+        }
+    }
+
+    /**
+     * Conversion that waits to be released before writing some text, ignoring interruptions
+     * so as to behave like a conversion that is slow to notice being cancelled.
+     */
+    private static class BlockingConversion extends WritingConversion {
+
+        private final CountDownLatch releaseLatch;
+
+        public BlockingConversion(CountDownLatch releaseLatch, String content) {
+            super(content);
+            this.releaseLatch = releaseLatch;
+        }
+
+        @Override
+        public void run(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    releaseLatch.await();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            super.run(request, response);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
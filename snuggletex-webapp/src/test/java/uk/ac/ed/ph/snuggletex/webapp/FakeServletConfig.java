@@ -0,0 +1,88 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * Simple fake {@link ServletConfig} and {@link ServletContext} for initialising servlets in
+ * tests, in the same spirit as {@link FakeServletExchange}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class FakeServletConfig {
+
+    private final String servletName;
+    private final Map<String, String> initParameters;
+    private final Map<String, String> contextInitParameters;
+    private final Map<String, Object> contextAttributes;
+
+    public FakeServletConfig(final String servletName) {
+        this.servletName = servletName;
+        this.initParameters = new HashMap<String, String>();
+        this.contextInitParameters = new HashMap<String, String>();
+        this.contextAttributes = new HashMap<String, Object>();
+    }
+
+    public FakeServletConfig setInitParameter(final String name, final String value) {
+        initParameters.put(name, value);
+        return this;
+    }
+
+    public FakeServletConfig setContextInitParameter(final String name, final String value) {
+        contextInitParameters.put(name, value);
+        return this;
+    }
+
+    public FakeServletConfig setContextAttribute(final String name, final Object value) {
+        contextAttributes.put(name, value);
+        return this;
+    }
+
+    /** Creates a {@link ServletConfig} reflecting the current state of this fake */
+    public ServletConfig create() {
+        final ServletContext servletContext = (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ServletContext.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getInitParameter")) {
+                            return contextInitParameters.get(args[0]);
+                        }
+                        else if (name.equals("getAttribute")) {
+                            return contextAttributes.get(args[0]);
+                        }
+                        else if (name.equals("log")) {
+                            return null;
+                        }
+                        throw new UnsupportedOperationException("Fake does not implement " + name);
+                    }
+                });
+        return (ServletConfig) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getInitParameter")) {
+                            return initParameters.get(args[0]);
+                        }
+                        else if (name.equals("getServletContext")) {
+                            return servletContext;
+                        }
+                        else if (name.equals("getServletName")) {
+                            return servletName;
+                        }
+                        throw new UnsupportedOperationException("Fake does not implement " + name);
+                    }
+                });
+    }
+}
@@ -0,0 +1,445 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Simple fake HTTP request and response pair for testing the webapp classes without a
+ * container. The request and response are dynamic proxies, so only implement the methods
+ * that the code under test actually uses; anything else fails with an
+ * {@link UnsupportedOperationException}.
+ * <p>
+ * Header names are case-insensitive, as in HTTP.
+ * <p>
+ * Asynchronous processing can be enabled via {@link #setAsyncSupported(boolean)}. Tests can
+ * then fire the registered {@link AsyncListener}s themselves, and wait for
+ * {@link AsyncContext#complete()} to be called via {@link #awaitAsyncCompletion(long)}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+final class FakeServletExchange {
+
+    /** Character encoding used for text sent via {@link HttpServletResponse#getWriter()} */
+    public static final String RESPONSE_ENCODING = "UTF-8";
+
+    private String method;
+    private final Map<String, String> requestHeaders;
+    private final Map<String, String> parameters;
+    private final Map<String, Object> attributes;
+    private String requestContentType;
+    private String requestCharacterEncoding;
+    private byte[] requestBody;
+    private InputStream requestBodyStream;
+    private int requestContentLength;
+    private final AtomicInteger requestBytesRead;
+    private boolean asyncSupported;
+    private final List<AsyncListener> asyncListeners;
+    private final AtomicInteger asyncCompleteCount;
+    private final CountDownLatch asyncCompletionLatch;
+
+    private int status;
+    private String errorMessage;
+    private final Map<String, String> responseHeaders;
+    private String contentType;
+    private int contentLength;
+    private final ByteArrayOutputStream responseBody;
+    private PrintWriter responseWriter;
+    private boolean committed;
+
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+
+    public FakeServletExchange(final String method) {
+        this.method = method;
+        this.requestHeaders = new HashMap<String, String>();
+        this.parameters = new HashMap<String, String>();
+        this.attributes = new HashMap<String, Object>();
+        this.asyncListeners = new ArrayList<AsyncListener>();
+        this.asyncCompleteCount = new AtomicInteger();
+        this.requestBytesRead = new AtomicInteger();
+        this.asyncCompletionLatch = new CountDownLatch(1);
+        this.status = HttpServletResponse.SC_OK;
+        this.responseHeaders = new HashMap<String, String>();
+        this.contentLength = -1;
+        this.responseBody = new ByteArrayOutputStream();
+        this.request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new RequestHandler());
+        this.response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new ResponseHandler());
+    }
+
+    public HttpServletRequest getRequest() {
+        return request;
+    }
+
+    public HttpServletResponse getResponse() {
+        return response;
+    }
+
+    //-------------------------------------------------
+    // Setting up the request
+
+    public FakeServletExchange setRequestHeader(final String name, final String value) {
+        requestHeaders.put(name.toLowerCase(Locale.US), value);
+        return this;
+    }
+
+    public FakeServletExchange setRequestDateHeader(final String name, final long date) {
+        return setRequestHeader(name, formatDate(date));
+    }
+
+    public FakeServletExchange setParameter(final String name, final String value) {
+        parameters.put(name, value);
+        return this;
+    }
+
+    public FakeServletExchange setRequestBody(final String contentType, final byte[] body) {
+        this.requestContentType = contentType;
+        this.requestBody = body;
+        this.requestContentLength = body.length;
+        return this;
+    }
+
+    /**
+     * Sets the request body to be read from the given stream, with no declared length. This
+     * is useful for simulating clients that are slow to send their request.
+     */
+    public FakeServletExchange setRequestBody(final String contentType, final InputStream bodyStream) {
+        this.requestContentType = contentType;
+        this.requestBody = new byte[0];
+        this.requestBodyStream = bodyStream;
+        this.requestContentLength = -1;
+        return this;
+    }
+
+    /** Overrides the declared length of the request body, e.g. -1 to act as if it were chunked */
+    public FakeServletExchange setRequestContentLength(final int contentLength) {
+        this.requestContentLength = contentLength;
+        return this;
+    }
+
+    public FakeServletExchange setAsyncSupported(final boolean asyncSupported) {
+        this.asyncSupported = asyncSupported;
+        return this;
+    }
+
+    //-------------------------------------------------
+    // Asynchronous processing
+
+    public synchronized List<AsyncListener> getAsyncListeners() {
+        return new ArrayList<AsyncListener>(asyncListeners);
+    }
+
+    /**
+     * Waits up to the given time for {@link AsyncContext#complete()} to be called, returning
+     * true if it was.
+     */
+    public boolean awaitAsyncCompletion(final long timeoutMillis) throws InterruptedException {
+        return asyncCompletionLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the number of times {@link AsyncContext#complete()} has been called */
+    public int getAsyncCompleteCount() {
+        return asyncCompleteCount.get();
+    }
+
+    /** Returns the number of bytes of the request body that have been read so far */
+    public int getRequestBytesRead() {
+        return requestBytesRead.get();
+    }
+
+    //-------------------------------------------------
+    // Inspecting the response
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public String getResponseHeader(final String name) {
+        return responseHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public byte[] getResponseBody() {
+        if (responseWriter!=null) {
+            responseWriter.flush();
+        }
+        return responseBody.toByteArray();
+    }
+
+    public String getResponseBodyAsString() throws UnsupportedEncodingException {
+        return new String(getResponseBody(), RESPONSE_ENCODING);
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    //-------------------------------------------------
+
+    private static String formatDate(final long date) {
+        return createDateFormat().format(new Date(date));
+    }
+
+    private static SimpleDateFormat createDateFormat() {
+        SimpleDateFormat result = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        result.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return result;
+    }
+
+    private static UnsupportedOperationException unsupported(final Method method) {
+        return new UnsupportedOperationException("Fake does not implement " + method.getName());
+    }
+
+    private class RequestHandler implements InvocationHandler {
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            String name = method.getName();
+            if (name.equals("getMethod")) {
+                return FakeServletExchange.this.method;
+            }
+            else if (name.equals("getHeader")) {
+                return requestHeaders.get(((String) args[0]).toLowerCase(Locale.US));
+            }
+            else if (name.equals("getDateHeader")) {
+                String value = requestHeaders.get(((String) args[0]).toLowerCase(Locale.US));
+                if (value==null) {
+                    return Long.valueOf(-1L);
+                }
+                try {
+                    return Long.valueOf(createDateFormat().parse(value).getTime());
+                }
+                catch (ParseException e) {
+                    throw new IllegalArgumentException("Bad date header " + value);
+                }
+            }
+            else if (name.equals("getParameter")) {
+                return parameters.get(args[0]);
+            }
+            else if (name.equals("getAttribute")) {
+                return attributes.get(args[0]);
+            }
+            else if (name.equals("setAttribute")) {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+            else if (name.equals("getContentType")) {
+                return requestContentType;
+            }
+            else if (name.equals("getCharacterEncoding")) {
+                return requestCharacterEncoding;
+            }
+            else if (name.equals("setCharacterEncoding")) {
+                requestCharacterEncoding = (String) args[0];
+                return null;
+            }
+            else if (name.equals("getContentLength")) {
+                return Integer.valueOf(requestBody!=null ? requestContentLength : -1);
+            }
+            else if (name.equals("getInputStream")) {
+                final InputStream bodyStream = requestBodyStream!=null ? requestBodyStream
+                        : new ByteArrayInputStream(requestBody!=null ? requestBody : new byte[0]);
+                return new ServletInputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        int result = bodyStream.read();
+                        if (result!=-1) {
+                            requestBytesRead.incrementAndGet();
+                        }
+                        return result;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int result = bodyStream.read(buffer, offset, length);
+                        if (result>0) {
+                            requestBytesRead.addAndGet(result);
+                        }
+                        return result;
+                    }
+                };
+            }
+            else if (name.equals("isAsyncSupported")) {
+                return Boolean.valueOf(asyncSupported);
+            }
+            else if (name.equals("startAsync")) {
+                if (!asyncSupported) {
+                    throw new IllegalStateException("Asynchronous processing is not supported");
+                }
+                return Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] { AsyncContext.class }, new AsyncContextHandler());
+            }
+            else if (name.equals("getContextPath")) {
+                return "";
+            }
+            else if (name.equals("toString")) {
+                return "FakeRequest(" + FakeServletExchange.this.method + ")";
+            }
+            throw unsupported(method);
+        }
+    }
+
+    private class AsyncContextHandler implements InvocationHandler {
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            String name = method.getName();
+            if (name.equals("setTimeout")) {
+                return null;
+            }
+            else if (name.equals("addListener")) {
+                synchronized (FakeServletExchange.this) {
+                    asyncListeners.add((AsyncListener) args[0]);
+                }
+                return null;
+            }
+            else if (name.equals("complete")) {
+                asyncCompleteCount.incrementAndGet();
+                asyncCompletionLatch.countDown();
+                return null;
+            }
+            else if (name.equals("getRequest")) {
+                return request;
+            }
+            else if (name.equals("getResponse")) {
+                return response;
+            }
+            throw unsupported(method);
+        }
+    }
+
+    private class ResponseHandler implements InvocationHandler {
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws IOException {
+            String name = method.getName();
+            if (name.equals("setHeader") || name.equals("addHeader")) {
+                responseHeaders.put(((String) args[0]).toLowerCase(Locale.US), (String) args[1]);
+                return null;
+            }
+            else if (name.equals("setDateHeader")) {
+                responseHeaders.put(((String) args[0]).toLowerCase(Locale.US), formatDate(((Long) args[1]).longValue()));
+                return null;
+            }
+            else if (name.equals("setIntHeader")) {
+                responseHeaders.put(((String) args[0]).toLowerCase(Locale.US), args[1].toString());
+                return null;
+            }
+            else if (name.equals("getHeader")) {
+                return getResponseHeader((String) args[0]);
+            }
+            else if (name.equals("containsHeader")) {
+                return Boolean.valueOf(getResponseHeader((String) args[0])!=null);
+            }
+            else if (name.equals("setStatus")) {
+                status = ((Integer) args[0]).intValue();
+                return null;
+            }
+            else if (name.equals("getStatus")) {
+                return Integer.valueOf(status);
+            }
+            else if (name.equals("sendError")) {
+                if (committed) {
+                    throw new IllegalStateException("Response has already been committed");
+                }
+                status = ((Integer) args[0]).intValue();
+                errorMessage = args.length>1 ? (String) args[1] : null;
+                committed = true;
+                return null;
+            }
+            else if (name.equals("setContentType")) {
+                contentType = (String) args[0];
+                return null;
+            }
+            else if (name.equals("getContentType")) {
+                return contentType;
+            }
+            else if (name.equals("setContentLength")) {
+                contentLength = ((Integer) args[0]).intValue();
+                return null;
+            }
+            else if (name.equals("setCharacterEncoding")) {
+                return null;
+            }
+            else if (name.equals("getCharacterEncoding")) {
+                return RESPONSE_ENCODING;
+            }
+            else if (name.equals("getOutputStream")) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        committed = true;
+                        responseBody.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) {
+                        committed = true;
+                        responseBody.write(buffer, offset, length);
+                    }
+                };
+            }
+            else if (name.equals("getWriter")) {
+                if (responseWriter==null) {
+                    committed = true;
+                    responseWriter = new PrintWriter(new OutputStreamWriter(responseBody, RESPONSE_ENCODING));
+                }
+                return responseWriter;
+            }
+            else if (name.equals("isCommitted")) {
+                return Boolean.valueOf(committed);
+            }
+            else if (name.equals("flushBuffer")) {
+                committed = true;
+                return null;
+            }
+            else if (name.equals("toString")) {
+                return "FakeResponse(" + status + ")";
+            }
+            throw unsupported(method);
+        }
+    }
+}
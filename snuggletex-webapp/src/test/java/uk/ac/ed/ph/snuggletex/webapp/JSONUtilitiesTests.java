@@ -0,0 +1,198 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import uk.ac.ed.ph.snuggletex.webapp.JSONUtilities.JSONLimitException;
+import uk.ac.ed.ph.snuggletex.webapp.JSONUtilities.JSONParseException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link JSONUtilities}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class JSONUtilitiesTests {
+
+    @Test
+    public void testLiterals() throws Exception {
+        Assert.assertEquals(Boolean.TRUE, parse("true"));
+        Assert.assertEquals(Boolean.FALSE, parse(" false "));
+        Assert.assertNull(parse("null"));
+        Assert.assertEquals(Double.valueOf(-1.5E3), parse("-1.5e3"));
+        Assert.assertEquals(Double.valueOf(42), parse("\n42\t"));
+    }
+
+    @Test
+    public void testStructures() throws Exception {
+        Object result = parse("{ \"b\": [1, \"x\", {}], \"a\": [], \"c\": { \"d\": null } }");
+        Assert.assertTrue(result instanceof Map);
+        Map<?, ?> map = (Map<?, ?>) result;
+        Iterator<?> keyIterator = map.keySet().iterator();
+        Assert.assertEquals("b", keyIterator.next()); /* (Order is preserved) */
+        Assert.assertEquals("a", keyIterator.next());
+        Assert.assertEquals("c", keyIterator.next());
+        List<?> list = (List<?>) map.get("b");
+        Assert.assertEquals(3, list.size());
+        Assert.assertEquals(Double.valueOf(1), list.get(0));
+        Assert.assertEquals("x", list.get(1));
+        Assert.assertTrue(((Map<?, ?>) list.get(2)).isEmpty());
+        Assert.assertTrue(((List<?>) map.get("a")).isEmpty());
+        Assert.assertTrue(((Map<?, ?>) map.get("c")).containsKey("d"));
+    }
+
+    @Test
+    public void testEscapes() throws Exception {
+        Assert.assertEquals("\"\\/\b\f\n\r\t", parse("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\""));
+        Assert.assertEquals("A\u00e9\u2028", parse("\"\\u0041\\u00E9\\u2028\""));
+        Assert.assertEquals("\u03b1\u2200", parse("\"\u03b1\u2200\""));
+    }
+
+    @Test
+    public void testSurrogates() throws Exception {
+        /* Surrogate pairs may be written directly or escaped */
+        Assert.assertEquals("\ud835\udc65", parse("\"\ud835\udc65\""));
+        Assert.assertEquals("\ud835\udc65", parse("\"\\ud835\\udc65\""));
+
+        /* Lone surrogates are passed through, as JSON allows */
+        Assert.assertEquals("a\ud835b", parse("\"a\\ud835b\""));
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        String[] inputs = {
+            "",
+            "   ",
+            "tru",
+            "nul",
+            "[1, 2",
+            "[1 2]",
+            "[1,]",
+            "{\"a\" 1}",
+            "{\"a\": 1,}",
+            "{a: 1}",
+            "\"unterminated",
+            "\"bad \\x escape\"",
+            "\"bad \\u12 escape\"",
+            "\"control \n character\"",
+            "1.2.3",
+            "-",
+            "@",
+            "[] []"
+        };
+        for (String input : inputs) {
+            try {
+                parse(input);
+                Assert.fail("Expected JSONParseException for " + input);
+            }
+            catch (JSONParseException e) {
+                /* Expected */
+            }
+        }
+    }
+
+    @Test
+    public void testDepth() throws Exception {
+        Assert.assertTrue(parse(nest(64)) instanceof List);
+        try {
+            parse(nest(65));
+            Assert.fail("Expected JSONParseException");
+        }
+        catch (JSONParseException e) {
+            /* Expected */
+        }
+
+        /* Very deep nesting must fail cleanly rather than overflowing the stack */
+        try {
+            parse(nest(100000));
+            Assert.fail("Expected JSONParseException");
+        }
+        catch (JSONParseException e) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void testMaxArraySize() throws Exception {
+        Assert.assertEquals(3, ((List<?>) JSONUtilities.parse(new StringReader("[1, 2, 3]"), 3)).size());
+        Assert.assertEquals(1, ((List<?>) JSONUtilities.parse(new StringReader("[[1, 2, 3]]"), 3)).size());
+        try {
+            JSONUtilities.parse(new StringReader("{\"items\": [1, 2, 3, 4]}"), 3);
+            Assert.fail("Expected JSONLimitException");
+        }
+        catch (JSONLimitException e) {
+            /* Expected */
+        }
+    }
+
+    /**
+     * Checks that the array size limit is enforced while parsing, so that the rest of the
+     * input is never read.
+     */
+    @Test
+    public void testMaxArraySizeStopsEarly() throws Exception {
+        StringReader reader = new StringReader("[1, 2, 3, 4, 5]");
+        try {
+            JSONUtilities.parse(reader, 2);
+            Assert.fail("Expected JSONLimitException");
+        }
+        catch (JSONLimitException e) {
+            /* Expected */
+        }
+        char[] remaining = new char[16];
+        Assert.assertEquals("3, 4, 5]", new String(remaining, 0, reader.read(remaining)));
+    }
+
+    @Test
+    public void testAppendString() throws Exception {
+        Assert.assertEquals("null", appendString(null));
+        Assert.assertEquals("\"\"", appendString(""));
+        Assert.assertEquals("\"a\\\"b\\\\c\\n\\r\\t\\b\\f\"", appendString("a\"b\\c\n\r\t\b\f"));
+        Assert.assertEquals("\"\\u0000\\u001f\\u2028\\u2029\"", appendString("\u0000\u001f\u2028\u2029"));
+        Assert.assertEquals("\"\u03b1\ud835\udc65/\"", appendString("\u03b1\ud835\udc65/"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String value : Arrays.asList("", "plain", "\"quoted\"", "\\frac{1}{2}", "\u0001\n\u2028",
+                "\ud835\udc65", "\udc65\ud835")) {
+            Assert.assertEquals(value, parse(appendString(value)));
+        }
+    }
+
+    //-------------------------------------------------------------------
+
+    private static Object parse(String input) throws IOException {
+        return JSONUtilities.parse(new StringReader(input));
+    }
+
+    private static String appendString(String value) {
+        StringBuilder result = new StringBuilder();
+        JSONUtilities.appendString(result, value);
+        return result.toString();
+    }
+
+    private static String nest(int depth) {
+        StringBuilder result = new StringBuilder();
+        for (int i=0; i<depth; i++) {
+            result.append('[');
+        }
+        for (int i=0; i<depth; i++) {
+            result.append(']');
+        }
+        return result.toString();
+    }
+}
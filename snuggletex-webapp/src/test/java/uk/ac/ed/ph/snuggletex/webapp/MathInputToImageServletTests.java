@@ -0,0 +1,145 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the caching and conditional GET handling in {@link MathInputToImageServlet}.
+ * <p>
+ * Images are put into the servlet's cache up front so that nothing needs to be rendered here.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class MathInputToImageServletTests {
+
+    private static final byte[] IMAGE = new byte[] { 1, 2, 3, 4 };
+
+    private MathInputToImageServlet servlet;
+    private String eTag;
+
+    @Before
+    public void setup() throws Exception {
+        servlet = new MathInputToImageServlet();
+        servlet.init(new FakeServletConfig("MathInputToImageServlet")
+            .setContextInitParameter(ContextInitialiser.SNUGGLETEX_VERSION_PROPERTY_NAME, "1.3.1-test")
+            .create());
+        String cacheKey = RenderedImageCache.createKey(servlet.getRenderingOptions(), "$x^2$");
+        servlet.getImageCache().putImage(cacheKey, IMAGE);
+        eTag = "\"" + cacheKey + "\"";
+    }
+
+    @Test
+    public void testCachedImage() throws Exception {
+        FakeServletExchange exchange = convert(new FakeServletExchange("GET")
+            .setParameter("input", "$x^2$"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals("image/png", exchange.getContentType());
+        Assert.assertEquals(IMAGE.length, exchange.getContentLength());
+        Assert.assertTrue(Arrays.equals(IMAGE, exchange.getResponseBody()));
+        assertCachingHeaders(exchange);
+    }
+
+    @Test
+    public void testNormalisedInput() throws Exception {
+        FakeServletExchange exchange = convert(new FakeServletExchange("GET")
+            .setParameter("input", "  $x^2$\r\n"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertTrue(Arrays.equals(IMAGE, exchange.getResponseBody()));
+        assertCachingHeaders(exchange);
+    }
+
+    @Test
+    public void testRenderingOptions() {
+        String renderingOptions = servlet.getRenderingOptions();
+        Assert.assertTrue(renderingOptions.startsWith("image/png;"));
+        Assert.assertTrue(renderingOptions.contains(";foreground="));
+        Assert.assertTrue(renderingOptions.contains(";background="));
+        Assert.assertTrue(renderingOptions.endsWith(";version=1.3.1-test"));
+    }
+
+    @Test
+    public void testIfNoneMatch() throws Exception {
+        assertNotModified(convert(new FakeServletExchange("GET")
+            .setParameter("input", "$x^2$")
+            .setRequestHeader("If-None-Match", eTag)));
+    }
+
+    @Test
+    public void testIfNoneMatchWeak() throws Exception {
+        assertNotModified(convert(new FakeServletExchange("GET")
+            .setParameter("input", "$x^2$")
+            .setRequestHeader("If-None-Match", "W/" + eTag)));
+    }
+
+    @Test
+    public void testIfNoneMatchList() throws Exception {
+        assertNotModified(convert(new FakeServletExchange("GET")
+            .setParameter("input", "$x^2$")
+            .setRequestHeader("If-None-Match", "\"other\",  " + eTag)));
+        assertNotModified(convert(new FakeServletExchange("GET")
+            .setParameter("input", "$x^2$")
+            .setRequestHeader("If-None-Match", "*")));
+    }
+
+    @Test
+    public void testIfNoneMatchDifferent() throws Exception {
+        FakeServletExchange exchange = convert(new FakeServletExchange("GET")
+            .setParameter("input", "$x^2$")
+            .setRequestHeader("If-None-Match", "\"other\""));
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertTrue(Arrays.equals(IMAGE, exchange.getResponseBody()));
+    }
+
+    @Test
+    public void testIfNoneMatchDifferentInput() throws Exception {
+        /* The ETag for one input must not validate another */
+        String otherKey = RenderedImageCache.createKey(servlet.getRenderingOptions(), "$y$");
+        byte[] otherImage = new byte[] { 5, 6 };
+        servlet.getImageCache().putImage(otherKey, otherImage);
+        FakeServletExchange exchange = convert(new FakeServletExchange("GET")
+            .setParameter("input", "$y$")
+            .setRequestHeader("If-None-Match", eTag));
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals("\"" + otherKey + "\"", exchange.getResponseHeader("ETag"));
+        Assert.assertTrue(Arrays.equals(otherImage, exchange.getResponseBody()));
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        FakeServletExchange exchange = convert(new FakeServletExchange("GET")
+            .setParameter("input", "  ")
+            .setRequestHeader("If-None-Match", "*"));
+        Assert.assertEquals(HttpServletResponse.SC_BAD_REQUEST, exchange.getStatus());
+        Assert.assertNull(exchange.getResponseHeader("ETag"));
+    }
+
+    //-------------------------------------------------------------------
+
+    private FakeServletExchange convert(FakeServletExchange exchange) throws Exception {
+        servlet.doConversion(exchange.getRequest(), exchange.getResponse());
+        return exchange;
+    }
+
+    private void assertCachingHeaders(FakeServletExchange exchange) {
+        Assert.assertEquals(eTag, exchange.getResponseHeader("ETag"));
+        Assert.assertNotNull(exchange.getResponseHeader("Cache-Control"));
+    }
+
+    private void assertNotModified(FakeServletExchange exchange) {
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, exchange.getStatus());
+        Assert.assertEquals(0, exchange.getResponseBody().length);
+        assertCachingHeaders(exchange);
+    }
+}
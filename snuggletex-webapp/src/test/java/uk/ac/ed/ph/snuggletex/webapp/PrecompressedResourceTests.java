@@ -0,0 +1,279 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link PrecompressedResource}, in particular variant selection and conditional GETs.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class PrecompressedResourceTests {
+
+    private static final String CONTENT_TYPE = "text/css";
+
+    private File directory;
+    private byte[] content;
+    private PrecompressedResource resource;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("precompressed", ".dir");
+        directory.delete();
+        directory.mkdir();
+        StringBuilder contentBuilder = new StringBuilder();
+        for (int i=0; i<200; i++) {
+            contentBuilder.append("p.line").append(i).append(" { color: red; }\n");
+        }
+        content = contentBuilder.toString().getBytes("UTF-8");
+        resource = PrecompressedResource.create(createFile("test.css", content), CONTENT_TYPE, true);
+    }
+
+    @After
+    public void teardown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testETags() throws Exception {
+        Assert.assertNotNull(resource.getGzipFile());
+        String etag = resource.getETag();
+        String gzipETag = resource.getGzipETag();
+        Assert.assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        Assert.assertEquals(etag.substring(0, etag.length() - 1) + "-gzip\"", gzipETag);
+
+        /* Regenerating the same content gives the same ETags */
+        PrecompressedResource regenerated = PrecompressedResource.create(resource.getFile(), CONTENT_TYPE, true);
+        Assert.assertEquals(etag, regenerated.getETag());
+        Assert.assertEquals(gzipETag, regenerated.getGzipETag());
+    }
+
+    @Test
+    public void testUncompressible() throws Exception {
+        PrecompressedResource tiny = PrecompressedResource.create(createFile("tiny.css", new byte[] { 'a' }), CONTENT_TYPE, true);
+        Assert.assertNull(tiny.getGzipFile());
+        Assert.assertNull(tiny.getGzipETag());
+        Assert.assertFalse(new File(directory, "tiny.css" + PrecompressedResource.GZIP_SUFFIX).exists());
+
+        FakeServletExchange exchange = serve(tiny, new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "gzip"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertNull(exchange.getResponseHeader("Content-Encoding"));
+        Assert.assertNull(exchange.getResponseHeader("Vary"));
+        Assert.assertEquals(tiny.getETag(), exchange.getResponseHeader("ETag"));
+    }
+
+    @Test
+    public void testIdentity() throws Exception {
+        FakeServletExchange exchange = serve(new FakeServletExchange("GET"));
+        assertIdentity(exchange);
+        Assert.assertEquals("Accept-Encoding", exchange.getResponseHeader("Vary"));
+        Assert.assertEquals(CONTENT_TYPE, exchange.getContentType());
+        Assert.assertEquals(content.length, exchange.getContentLength());
+        Assert.assertNotNull(exchange.getResponseHeader("Last-Modified"));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        FakeServletExchange exchange = serve(new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "deflate, gzip"));
+        assertGzip(exchange);
+        Assert.assertEquals("Accept-Encoding", exchange.getResponseHeader("Vary"));
+        Assert.assertEquals((int) resource.getGzipFile().length(), exchange.getContentLength());
+    }
+
+    @Test
+    public void testAcceptEncoding() throws Exception {
+        assertGzip(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "GZIP")));
+        assertGzip(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "x-gzip")));
+        assertGzip(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "gzip;q=0.5, identity")));
+        assertIdentity(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "identity")));
+        assertIdentity(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "deflate")));
+        assertIdentity(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "gzip;q=0")));
+        assertIdentity(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "gzip; q=0.0")));
+        assertIdentity(serve(new FakeServletExchange("GET").setRequestHeader("Accept-Encoding", "gzip;q=bad")));
+    }
+
+    @Test
+    public void testHead() throws Exception {
+        FakeServletExchange exchange = serve(new FakeServletExchange("HEAD")
+            .setRequestHeader("Accept-Encoding", "gzip"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals(resource.getGzipETag(), exchange.getResponseHeader("ETag"));
+        Assert.assertEquals("gzip", exchange.getResponseHeader("Content-Encoding"));
+        Assert.assertEquals((int) resource.getGzipFile().length(), exchange.getContentLength());
+        Assert.assertEquals(0, exchange.getResponseBody().length);
+    }
+
+    @Test
+    public void testIfNoneMatchIdentity() throws Exception {
+        assertNotModified(serve(new FakeServletExchange("GET")
+            .setRequestHeader("If-None-Match", resource.getETag())), resource.getETag());
+
+        /* The gzip ETag must not validate the identity variant */
+        assertIdentity(serve(new FakeServletExchange("GET")
+            .setRequestHeader("If-None-Match", resource.getGzipETag())));
+    }
+
+    @Test
+    public void testIfNoneMatchGzip() throws Exception {
+        assertNotModified(serve(new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "gzip")
+            .setRequestHeader("If-None-Match", resource.getGzipETag())), resource.getGzipETag());
+
+        /* The identity ETag must not validate the gzip variant */
+        assertGzip(serve(new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "gzip")
+            .setRequestHeader("If-None-Match", resource.getETag())));
+    }
+
+    @Test
+    public void testIfNoneMatchList() throws Exception {
+        assertNotModified(serve(new FakeServletExchange("GET")
+            .setRequestHeader("If-None-Match", "\"other\", W/" + resource.getETag())), resource.getETag());
+        assertNotModified(serve(new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "gzip")
+            .setRequestHeader("If-None-Match", "*")), resource.getGzipETag());
+        assertIdentity(serve(new FakeServletExchange("GET")
+            .setRequestHeader("If-None-Match", "\"other\"")));
+    }
+
+    @Test
+    public void testIfNoneMatchTakesPrecedence() throws Exception {
+        /* A non-matching If-None-Match means we ignore If-Modified-Since */
+        assertIdentity(serve(new FakeServletExchange("GET")
+            .setRequestHeader("If-None-Match", "\"other\"")
+            .setRequestDateHeader("If-Modified-Since", resource.getLastModified())));
+    }
+
+    @Test
+    public void testIfModifiedSince() throws Exception {
+        long lastModified = resource.getLastModified();
+        assertNotModified(serve(new FakeServletExchange("GET")
+            .setRequestDateHeader("If-Modified-Since", lastModified)), resource.getETag());
+        assertNotModified(serve(new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "gzip")
+            .setRequestDateHeader("If-Modified-Since", lastModified + 60000L)), resource.getGzipETag());
+        assertIdentity(serve(new FakeServletExchange("GET")
+            .setRequestDateHeader("If-Modified-Since", lastModified - 60000L)));
+        assertIdentity(serve(new FakeServletExchange("GET")
+            .setRequestHeader("If-Modified-Since", "not a date")));
+    }
+
+    @Test
+    public void testCreateUncompressed() throws Exception {
+        File file = createFile("image.png", content);
+        PrecompressedResource image = PrecompressedResource.createUncompressed(file, "image/png");
+        Assert.assertNull(image.getGzipFile());
+        Assert.assertNull(image.getGzipETag());
+        Assert.assertEquals("W/\"" + file.length() + "-" + file.lastModified() + "\"", image.getETag());
+
+        FakeServletExchange exchange = serve(image, new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "gzip"));
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertNull(exchange.getResponseHeader("Content-Encoding"));
+        Assert.assertTrue(Arrays.equals(content, exchange.getResponseBody()));
+
+        /* Weak comparison is used, so strong form of tag also matches */
+        assertNotModified(serve(image, new FakeServletExchange("GET")
+            .setRequestHeader("If-None-Match", image.getETag().substring(2))), image.getETag());
+    }
+
+    @Test
+    public void testSendfile() throws Exception {
+        FakeServletExchange exchange = new FakeServletExchange("GET")
+            .setRequestHeader("Accept-Encoding", "gzip");
+        exchange.getRequest().setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        serve(exchange);
+        Assert.assertEquals(0, exchange.getResponseBody().length);
+        Assert.assertEquals(resource.getGzipFile().getCanonicalPath(),
+                exchange.getRequest().getAttribute("org.apache.tomcat.sendfile.filename"));
+        Assert.assertEquals(Long.valueOf(resource.getGzipFile().length()),
+                exchange.getRequest().getAttribute("org.apache.tomcat.sendfile.end"));
+    }
+
+    //-------------------------------------------------------------------
+
+    private File createFile(String name, byte[] data) throws IOException {
+        File file = new File(directory, name);
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+        }
+        finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private FakeServletExchange serve(FakeServletExchange exchange) throws IOException {
+        return serve(resource, exchange);
+    }
+
+    private static FakeServletExchange serve(PrecompressedResource toServe, FakeServletExchange exchange)
+            throws IOException {
+        toServe.serve(exchange.getRequest(), exchange.getResponse());
+        return exchange;
+    }
+
+    private void assertIdentity(FakeServletExchange exchange) {
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals(resource.getETag(), exchange.getResponseHeader("ETag"));
+        Assert.assertNull(exchange.getResponseHeader("Content-Encoding"));
+        Assert.assertTrue(Arrays.equals(content, exchange.getResponseBody()));
+    }
+
+    private void assertGzip(FakeServletExchange exchange) throws IOException {
+        Assert.assertEquals(HttpServletResponse.SC_OK, exchange.getStatus());
+        Assert.assertEquals(resource.getGzipETag(), exchange.getResponseHeader("ETag"));
+        Assert.assertEquals("gzip", exchange.getResponseHeader("Content-Encoding"));
+        Assert.assertTrue(Arrays.equals(content, gunzip(exchange.getResponseBody())));
+    }
+
+    private static void assertNotModified(FakeServletExchange exchange, String expectedETag) {
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, exchange.getStatus());
+        Assert.assertEquals(expectedETag, exchange.getResponseHeader("ETag"));
+        Assert.assertNull(exchange.getResponseHeader("Content-Encoding"));
+        Assert.assertEquals(0, exchange.getResponseBody().length);
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = inputStream.read(buffer))!=-1) {
+                result.write(buffer, 0, count);
+            }
+            return result.toByteArray();
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link RenderedImageCache}.
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public class RenderedImageCacheTests {
+
+    private static final byte[] IMAGE_1 = new byte[] { 1, 2, 3 };
+    private static final byte[] IMAGE_2 = new byte[] { 4, 5 };
+    private static final byte[] IMAGE_3 = new byte[] { 6 };
+
+    private static final String KEY_A = RenderedImageCache.createKey("test", "a");
+    private static final String KEY_B = RenderedImageCache.createKey("test", "b");
+    private static final String KEY_C = RenderedImageCache.createKey("test", "c");
+
+    private File directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("imagecache", ".dir");
+        directory.delete();
+    }
+
+    @After
+    public void teardown() {
+        File[] files = directory.listFiles();
+        if (files!=null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCreateKey() {
+        String key = RenderedImageCache.createKey("image/png;size=16", "$x^2$");
+        Assert.assertEquals(64, key.length());
+        Assert.assertTrue(key.matches("[0-9a-f]+"));
+        Assert.assertEquals(key, RenderedImageCache.createKey("image/png;size=16", "$x^2$"));
+
+        /* Keys depend on both the options and the input, and on where one ends */
+        Assert.assertFalse(key.equals(RenderedImageCache.createKey("image/png;size=17", "$x^2$")));
+        Assert.assertFalse(key.equals(RenderedImageCache.createKey("image/png;size=16", "$x^3$")));
+        Assert.assertFalse(RenderedImageCache.createKey("ab", "c").equals(RenderedImageCache.createKey("a", "bc")));
+
+        /* Non-ASCII input is hashed as UTF-8 */
+        Assert.assertFalse(RenderedImageCache.createKey("", "\u03b1").equals(RenderedImageCache.createKey("", "\u03b2")));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNegativeSize() {
+        new RenderedImageCache(-1, null, ".png");
+    }
+
+    @Test
+    public void testMemoryOnly() {
+        RenderedImageCache cache = new RenderedImageCache(2, null, ".png");
+        Assert.assertNull(cache.getImage(KEY_A));
+        cache.putImage(KEY_A, IMAGE_1);
+        cache.putImage(KEY_B, IMAGE_2);
+        Assert.assertSame(IMAGE_1, cache.getImage(KEY_A));
+        Assert.assertSame(IMAGE_2, cache.getImage(KEY_B));
+
+        /* Least recently used image should be evicted */
+        cache.getImage(KEY_A);
+        cache.putImage(KEY_C, IMAGE_3);
+        Assert.assertSame(IMAGE_1, cache.getImage(KEY_A));
+        Assert.assertNull(cache.getImage(KEY_B));
+        Assert.assertSame(IMAGE_3, cache.getImage(KEY_C));
+        Assert.assertFalse(directory.exists());
+    }
+
+    @Test
+    public void testDisk() {
+        RenderedImageCache cache = new RenderedImageCache(1, directory, ".png");
+        cache.putImage(KEY_A, IMAGE_1);
+        cache.putImage(KEY_B, IMAGE_2);
+        Assert.assertTrue(new File(directory, KEY_A + ".png").isFile());
+        Assert.assertTrue(new File(directory, KEY_B + ".png").isFile());
+        Assert.assertEquals(2, directory.listFiles().length); /* (No temporary files left behind) */
+
+        /* Second image is still in memory; first has been evicted so must be read back from disk */
+        Assert.assertSame(IMAGE_2, cache.getImage(KEY_B));
+        Assert.assertTrue(Arrays.equals(IMAGE_1, cache.getImage(KEY_A)));
+        Assert.assertNull(cache.getImage(KEY_C));
+    }
+
+    @Test
+    public void testDiskOnly() {
+        RenderedImageCache cache = new RenderedImageCache(0, directory, ".png");
+        cache.putImage(KEY_A, IMAGE_1);
+        byte[] result = cache.getImage(KEY_A);
+        Assert.assertNotSame(IMAGE_1, result);
+        Assert.assertTrue(Arrays.equals(IMAGE_1, result));
+    }
+
+    @Test
+    public void testDiskSurvivesRestart() {
+        new RenderedImageCache(10, directory, ".png").putImage(KEY_A, IMAGE_1);
+        RenderedImageCache restarted = new RenderedImageCache(10, directory, ".png");
+        Assert.assertTrue(Arrays.equals(IMAGE_1, restarted.getImage(KEY_A)));
+    }
+}
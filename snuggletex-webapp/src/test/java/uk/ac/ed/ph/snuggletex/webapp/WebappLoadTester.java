@@ -0,0 +1,358 @@
+/* $Id$
+ *
+ * Copyright (c) 2008-2011, The University of Edinburgh.
+ * All Rights Reserved
+ */
+package uk.ac.ed.ph.snuggletex.webapp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * Simple load-testing harness for the demo webapp, which runs the webapp in an embedded
+ * Jetty server on localhost and hammers some of its servlets with a concurrent load,
+ * reporting throughput, latency percentiles and allocation rates for each of them.
+ * <p>
+ * This is not a unit test, so is not run as part of the normal build. Run it using the
+ * <tt>loadtest</tt> profile (i.e. <tt>mvn -Ploadtest test</tt> inside <tt>snuggletex-webapp</tt>)
+ * or directly as a Java application with the test classpath and <tt>snuggletex-webapp</tt> as
+ * the working directory. The following system properties can be used to configure the load:
+ * <ul>
+ *   <li><tt>loadtest.threads</tt>: number of concurrent clients (default 8)</li>
+ *   <li><tt>loadtest.requests</tt>: number of measured requests per endpoint (default 2000)</li>
+ *   <li><tt>loadtest.warmup</tt>: number of unmeasured warm-up requests per endpoint (default 200)</li>
+ *   <li><tt>loadtest.endpoints</tt>: comma-separated names of the endpoints to test (default all)</li>
+ * </ul>
+ * Endpoints are tested one at a time, so allocation figures are (roughly) attributable to
+ * the endpoint being tested. They count everything allocated by the JVM during the run apart
+ * from what the client threads allocate, so will include some noise from the container.
+ * Allocation figures are not available on JVMs that don't support
+ * <tt>com.sun.management.ThreadMXBean</tt>.
+ * <p>
+ * Inputs are taken from the <tt>load-test-formulae.txt</tt> and
+ * <tt>load-test-documentation.txt</tt> files alongside this class.
+ *
+ * @since 1.3.1
+ *
+ * @author  David McKain
+ * @version $Revision$
+ */
+public final class WebappLoadTester {
+
+    private static final String CONTEXT_PATH = "/snuggletex";
+    private static final String WEBAPP_DIRECTORY = "src/main/webapp";
+
+    /** Name and URL paths for each endpoint being tested */
+    private static final class Endpoint {
+
+        final String name;
+        final List<String> paths;
+
+        public Endpoint(final String name, final List<String> paths) {
+            this.name = name;
+            this.paths = paths;
+        }
+    }
+
+    /** Results of testing an {@link Endpoint} */
+    private static final class Result {
+
+        final Endpoint endpoint;
+        final long[] latencies;
+        final int errorCount;
+        final int rejectedCount;
+        final long elapsedNanos;
+        final long allocatedBytes;
+
+        public Result(final Endpoint endpoint, final long[] latencies, final int errorCount,
+                final int rejectedCount, final long elapsedNanos, final long allocatedBytes) {
+            this.endpoint = endpoint;
+            this.latencies = latencies;
+            this.errorCount = errorCount;
+            this.rejectedCount = rejectedCount;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private final String baseURL;
+    private final int threadCount;
+    private final int requestCount;
+    private final int warmupCount;
+    private final com.sun.management.ThreadMXBean threadMXBean;
+
+    public WebappLoadTester(final String baseURL, final int threadCount, final int requestCount,
+            final int warmupCount) {
+        this.baseURL = baseURL;
+        this.threadCount = threadCount;
+        this.requestCount = requestCount;
+        this.warmupCount = warmupCount;
+        java.lang.management.ThreadMXBean platformThreadMXBean = ManagementFactory.getThreadMXBean();
+        if (platformThreadMXBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) platformThreadMXBean).isThreadAllocatedMemorySupported()) {
+            this.threadMXBean = (com.sun.management.ThreadMXBean) platformThreadMXBean;
+            this.threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        else {
+            this.threadMXBean = null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threadCount = Integer.getInteger("loadtest.threads", 8).intValue();
+        int requestCount = Integer.getInteger("loadtest.requests", 2000).intValue();
+        int warmupCount = Integer.getInteger("loadtest.warmup", 200).intValue();
+        String endpointNames = System.getProperty("loadtest.endpoints");
+
+        /* Start up webapp on a free port */
+        Server server = new Server(0);
+        WebAppContext webAppContext = new WebAppContext();
+        webAppContext.setContextPath(CONTEXT_PATH);
+        webAppContext.setResourceBase(WEBAPP_DIRECTORY);
+        webAppContext.setDescriptor(WEBAPP_DIRECTORY + "/WEB-INF/web.xml");
+        webAppContext.setParentLoaderPriority(true);
+        server.setHandler(webAppContext);
+        server.start();
+        try {
+            int port = server.getConnectors()[0].getLocalPort();
+            String baseURL = "http://localhost:" + port + CONTEXT_PATH;
+            System.out.println("Webapp running at " + baseURL);
+            System.out.println("Threads: " + threadCount + ", requests per endpoint: " + requestCount
+                    + ", warm-up requests: " + warmupCount);
+
+            WebappLoadTester loadTester = new WebappLoadTester(baseURL, threadCount, requestCount, warmupCount);
+            List<Result> results = new ArrayList<Result>();
+            for (Endpoint endpoint : createEndpoints()) {
+                if (endpointNames==null || Arrays.asList(endpointNames.split(",")).contains(endpoint.name)) {
+                    System.out.println("Testing " + endpoint.name + "...");
+                    results.add(loadTester.testEndpoint(endpoint));
+                }
+            }
+            loadTester.report(results);
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    private static List<Endpoint> createEndpoints() throws IOException {
+        List<String> formulae = readCorpus("load-test-formulae.txt");
+        List<String> mathInputPaths = new ArrayList<String>();
+        List<String> imagePaths = new ArrayList<String>();
+        List<String> upConversionPaths = new ArrayList<String>();
+        for (String formula : formulae) {
+            String encodedFormula = URLEncoder.encode(formula, "UTF-8");
+            mathInputPaths.add("/MathInputDemo?input=" + encodedFormula);
+            imagePaths.add("/MathInputToImage.png?input=" + URLEncoder.encode("$" + formula + "$", "UTF-8"));
+            upConversionPaths.add("/UpConversionDemo?input=" + encodedFormula);
+        }
+        List<String> documentationPaths = new ArrayList<String>();
+        for (String page : readCorpus("load-test-documentation.txt")) {
+            documentationPaths.add("/documentation" + page);
+        }
+        return Arrays.asList(
+            new Endpoint("MathInputDemo", mathInputPaths),
+            new Endpoint("MathInputToImage", imagePaths),
+            new Endpoint("UpConversionDemo", upConversionPaths),
+            new Endpoint("Documentation", documentationPaths)
+        );
+    }
+
+    private static List<String> readCorpus(final String resourceName) throws IOException {
+        InputStream inputStream = WebappLoadTester.class.getResourceAsStream(resourceName);
+        if (inputStream==null) {
+            throw new IOException("Could not find corpus " + resourceName);
+        }
+        List<String> result = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine())!=null) {
+                line = line.trim();
+                if (line.length()>0 && !line.startsWith("#")) {
+                    result.add(line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    //-------------------------------------------------
+
+    private Result testEndpoint(final Endpoint endpoint) throws InterruptedException {
+        /* Warm up first, ignoring results */
+        runLoad(endpoint, warmupCount);
+
+        /* Then do the real run */
+        return runLoad(endpoint, requestCount);
+    }
+
+    private Result runLoad(final Endpoint endpoint, final int count) throws InterruptedException {
+        final long[] latencies = new long[count];
+        final AtomicInteger nextRequest = new AtomicInteger();
+        final AtomicInteger errorCount = new AtomicInteger();
+        final AtomicInteger rejectedCount = new AtomicInteger();
+        final long[] clientAllocatedBytes = new long[threadCount];
+        final CountDownLatch readyLatch = new CountDownLatch(threadCount);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch finishLatch = new CountDownLatch(threadCount);
+
+        /* Client threads are kept alive until the final allocation snapshot has been taken, as
+         * the allocations of dead threads can't be read, so wouldn't be there to subtract from */
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        for (int i=0; i<threadCount; i++) {
+            final int threadIndex = i;
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    long allocatedAtStart = getCurrentThreadAllocatedBytes();
+                    readyLatch.countDown();
+                    try {
+                        startLatch.await();
+                        int requestIndex;
+                        while ((requestIndex = nextRequest.getAndIncrement()) < count) {
+                            String path = endpoint.paths.get(requestIndex % endpoint.paths.size());
+                            long startTime = System.nanoTime();
+                            int status = makeRequest(path);
+                            latencies[requestIndex] = System.nanoTime() - startTime;
+                            if (status==429 || status==503) {
+                                rejectedCount.incrementAndGet();
+                            }
+                            else if (status!=200 && status!=304) {
+                                errorCount.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally {
+                        clientAllocatedBytes[threadIndex] = getCurrentThreadAllocatedBytes() - allocatedAtStart;
+                        finishLatch.countDown();
+                    }
+                    try {
+                        releaseLatch.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "LoadTester-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        readyLatch.await();
+        long allocatedAtStart = getTotalAllocatedBytes();
+        long startTime = System.nanoTime();
+        startLatch.countDown();
+        finishLatch.await();
+        long elapsedNanos = System.nanoTime() - startTime;
+        long allocatedBytes;
+        try {
+            allocatedBytes = getTotalAllocatedBytes() - allocatedAtStart;
+        }
+        finally {
+            releaseLatch.countDown();
+        }
+        for (long clientBytes : clientAllocatedBytes) {
+            allocatedBytes -= clientBytes;
+        }
+        return new Result(endpoint, latencies, errorCount.get(), rejectedCount.get(), elapsedNanos,
+                threadMXBean!=null ? allocatedBytes : -1L);
+    }
+
+    private int makeRequest(final String path) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(baseURL + path).openConnection();
+            connection.setRequestProperty("User-Agent", "SnuggleTeX load tester");
+            int status = connection.getResponseCode();
+            InputStream inputStream = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (inputStream!=null) {
+                /* Read and discard response so that the connection can be reused */
+                byte[] buffer = new byte[8192];
+                try {
+                    while (inputStream.read(buffer)!=-1) {
+                        /* (Discard) */
+                    }
+                }
+                finally {
+                    inputStream.close();
+                }
+            }
+            return status;
+        }
+        catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private long getCurrentThreadAllocatedBytes() {
+        return threadMXBean!=null ? threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0L;
+    }
+
+    private long getTotalAllocatedBytes() {
+        if (threadMXBean==null) {
+            return 0L;
+        }
+        long result = 0L;
+        for (long threadBytes : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+            if (threadBytes > 0) {
+                result += threadBytes;
+            }
+        }
+        return result;
+    }
+
+    //-------------------------------------------------
+
+    private void report(final List<Result> results) {
+        System.out.println();
+        System.out.println(String.format("%-18s %8s %7s %8s %10s %9s %9s %9s %11s %11s",
+                "Endpoint", "Requests", "Errors", "Rejected", "Req/sec", "p50 (ms)", "p99 (ms)",
+                "Max (ms)", "Alloc MB/s", "Alloc KB/req"));
+        for (Result result : results) {
+            long[] sortedLatencies = result.latencies.clone();
+            Arrays.sort(sortedLatencies);
+            double elapsedSeconds = result.elapsedNanos / 1.0E9;
+            int count = sortedLatencies.length;
+            String allocationRate = "n/a";
+            String allocationPerRequest = "n/a";
+            if (result.allocatedBytes >= 0 && count > 0) {
+                allocationRate = String.format("%.1f", result.allocatedBytes / elapsedSeconds / (1024.0 * 1024.0));
+                allocationPerRequest = String.format("%.1f", result.allocatedBytes / (double) count / 1024.0);
+            }
+            System.out.println(String.format("%-18s %8d %7d %8d %10.1f %9.2f %9.2f %9.2f %11s %11s",
+                    result.endpoint.name, Integer.valueOf(count), Integer.valueOf(result.errorCount),
+                    Integer.valueOf(result.rejectedCount), Double.valueOf(count / elapsedSeconds),
+                    Double.valueOf(percentile(sortedLatencies, 0.50) / 1.0E6),
+                    Double.valueOf(percentile(sortedLatencies, 0.99) / 1.0E6),
+                    Double.valueOf(count > 0 ? sortedLatencies[count - 1] / 1.0E6 : 0.0),
+                    allocationRate, allocationPerRequest));
+        }
+    }
+
+    /** Returns the given percentile of the given sorted values, using the nearest rank method */
+    private static long percentile(final long[] sortedValues, final double percentile) {
+        if (sortedValues.length==0) {
+            return 0L;
+        }
+        int rank = (int) Math.ceil(percentile * sortedValues.length);
+        return sortedValues[Math.max(0, rank - 1)];
+    }
+}